@@ -40,7 +40,6 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
-import android.content.pm.Signature;
 import android.content.pm.UserInfo;
 import android.net.Uri;
 import android.os.Bundle;
@@ -66,7 +65,7 @@ import android.util.LocalLog;
 import android.util.Pair;
 
 import com.android.internal.annotations.GuardedBy;
-import com.android.internal.telephony.uicc.IccUtils;
+import com.android.internal.telephony.uicc.UiccAccessRuleIndex;
 import com.android.internal.telephony.uicc.UiccPort;
 import com.android.internal.telephony.uicc.UiccProfile;
 import com.android.telephony.Rlog;
@@ -78,7 +77,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -98,9 +96,6 @@ public class CarrierPrivilegesTracker extends Handler {
 
     private static final boolean VDBG = false;
 
-    private static final String SHA_1 = "SHA-1";
-    private static final String SHA_256 = "SHA-256";
-
     private static final int PACKAGE_NOT_PRIVILEGED = 0;
     private static final int PACKAGE_PRIVILEGED_FROM_CARRIER_CONFIG = 1;
     private static final int PACKAGE_PRIVILEGED_FROM_SIM = 2;
@@ -194,6 +189,12 @@ public class CarrierPrivilegesTracker extends Handler {
     // - Non-empty list indicates test override with specific rules (CC and UICC rules are ignored)
     @Nullable private List<UiccAccessRule> mTestOverrideRules = null;
     @Nullable private String mTestOverrideCarrierServicePackage = null;
+    // Indexes of the rules above by certificate hash. Rebuilt when the rules change.
+    @NonNull private UiccAccessRuleIndex mCarrierConfigRuleIndex = new UiccAccessRuleIndex(null);
+    @NonNull private UiccAccessRuleIndex mUiccRuleIndex = new UiccAccessRuleIndex(null);
+    @Nullable private UiccAccessRuleIndex mTestOverrideRuleIndex = null;
+    // Map of PackageName -> privileged status, for the privileged packages only
+    @NonNull private final Map<String, Integer> mPackagePrivilegedStatus = new ArrayMap<>();
     // Map of PackageName -> Certificate hashes for that Package
     @NonNull private final Map<String, Set<String>> mInstalledPackageCerts = new ArrayMap<>();
     // Map of PackageName -> UIDs for that Package
@@ -556,21 +557,11 @@ public class CarrierPrivilegesTracker extends Handler {
                     + " cert hashes=" + mInstalledPackageCerts.get(pkgName));
         }
 
-        maybeUpdatePrivilegedPackagesAndNotifyRegistrants();
+        maybeUpdatePrivilegedPackageAndNotifyRegistrants(pkg.packageName);
     }
 
     private void updateCertsForPackage(@NonNull PackageInfo pkg) {
-        Set<String> certs = new ArraySet<>(1);
-        List<Signature> signatures = UiccAccessRule.getSignatures(pkg);
-        for (Signature signature : signatures) {
-            byte[] sha1 = UiccAccessRule.getCertHash(signature, SHA_1);
-            certs.add(IccUtils.bytesToHexString(sha1).toUpperCase(Locale.ROOT));
-
-            byte[] sha256 = UiccAccessRule.getCertHash(signature, SHA_256);
-            certs.add(IccUtils.bytesToHexString(sha256).toUpperCase(Locale.ROOT));
-        }
-
-        mInstalledPackageCerts.put(pkg.packageName, certs);
+        mInstalledPackageCerts.put(pkg.packageName, UiccAccessRuleIndex.getCertHashes(pkg));
     }
 
     private void handlePackageRemovedOrDisabledByUser(@Nullable String pkgName) {
@@ -585,7 +576,7 @@ public class CarrierPrivilegesTracker extends Handler {
             Rlog.d(TAG, "Package removed or disabled by user: pkg=" + Rlog.pii(TAG, pkgName));
         }
 
-        maybeUpdatePrivilegedPackagesAndNotifyRegistrants();
+        maybeUpdatePrivilegedPackageAndNotifyRegistrants(pkgName);
     }
 
     private void handleInitializeTracker() {
@@ -594,6 +585,7 @@ public class CarrierPrivilegesTracker extends Handler {
 
         // Cache SIM rules
         mUiccRules.addAll(getSimRules());
+        updateRuleIndexes();
 
         // Cache all installed packages and their certs
         refreshInstalledPackageCache();
@@ -642,14 +634,42 @@ public class CarrierPrivilegesTracker extends Handler {
 
         currentRules.clear();
         currentRules.addAll(updatedRules);
+        updateRuleIndexes();
 
         maybeUpdatePrivilegedPackagesAndNotifyRegistrants();
     }
 
+    private void updateRuleIndexes() {
+        mCarrierConfigRuleIndex = new UiccAccessRuleIndex(mCarrierConfigRules);
+        mUiccRuleIndex = new UiccAccessRuleIndex(mUiccRules);
+        mTestOverrideRuleIndex =
+                mTestOverrideRules == null ? null : new UiccAccessRuleIndex(mTestOverrideRules);
+    }
+
+    /** Re-evaluates all the installed packages, e.g. when the rules changed. */
     private void maybeUpdatePrivilegedPackagesAndNotifyRegistrants() {
-        PrivilegedPackageInfo currentPrivilegedPackageInfo =
-                getCurrentPrivilegedPackagesForAllUsers();
+        maybeUpdatePrivilegedPackageInfoAndNotifyRegistrants(
+                getCurrentPrivilegedPackagesForAllUsers());
+    }
+
+    /**
+     * Re-evaluates a single package whose certificates or UIDs changed. The other packages keep
+     * the status evaluated with the current rules.
+     */
+    private void maybeUpdatePrivilegedPackageAndNotifyRegistrants(@NonNull String pkgName) {
+        Set<String> certs = mInstalledPackageCerts.get(pkgName);
+        int priv = certs == null
+                ? PACKAGE_NOT_PRIVILEGED : getPackagePrivilegedStatus(pkgName, certs);
+        if (priv == PACKAGE_NOT_PRIVILEGED) {
+            mPackagePrivilegedStatus.remove(pkgName);
+        } else {
+            mPackagePrivilegedStatus.put(pkgName, priv);
+        }
+        maybeUpdatePrivilegedPackageInfoAndNotifyRegistrants(buildPrivilegedPackageInfo());
+    }
 
+    private void maybeUpdatePrivilegedPackageInfoAndNotifyRegistrants(
+            @NonNull PrivilegedPackageInfo currentPrivilegedPackageInfo) {
         boolean carrierPrivilegesPackageNamesChanged;
         boolean carrierPrivilegesUidsChanged;
         boolean carrierServiceChanged;
@@ -705,11 +725,24 @@ public class CarrierPrivilegesTracker extends Handler {
 
     @NonNull
     private PrivilegedPackageInfo getCurrentPrivilegedPackagesForAllUsers() {
+        mPackagePrivilegedStatus.clear();
+        for (Map.Entry<String, Set<String>> e : mInstalledPackageCerts.entrySet()) {
+            final int priv = getPackagePrivilegedStatus(e.getKey(), e.getValue());
+            if (priv != PACKAGE_NOT_PRIVILEGED) {
+                mPackagePrivilegedStatus.put(e.getKey(), priv);
+            }
+        }
+        return buildPrivilegedPackageInfo();
+    }
+
+    /** Builds the privileged package info from the status of the privileged packages. */
+    @NonNull
+    private PrivilegedPackageInfo buildPrivilegedPackageInfo() {
         Set<String> carrierServiceEligiblePackages = new ArraySet<>();
         Set<String> privilegedPackageNames = new ArraySet<>();
         Set<Integer> privilegedUids = new ArraySet<>();
-        for (Map.Entry<String, Set<String>> e : mInstalledPackageCerts.entrySet()) {
-            final int priv = getPackagePrivilegedStatus(e.getKey(), e.getValue());
+        for (Map.Entry<String, Integer> e : mPackagePrivilegedStatus.entrySet()) {
+            final int priv = e.getValue();
             switch (priv) {
                 case PACKAGE_PRIVILEGED_FROM_SIM:
                 case PACKAGE_PRIVILEGED_FROM_CARRIER_SERVICE_TEST_OVERRIDE: // fallthrough
@@ -735,29 +768,22 @@ public class CarrierPrivilegesTracker extends Handler {
      * carrier config, from test overrides or from certificates stored on the SIM.
      */
     private int getPackagePrivilegedStatus(@NonNull String pkgName, @NonNull Set<String> certs) {
-        // Double-nested for loops, but each collection should contain at most 2 elements in nearly
-        // every case.
-        // TODO(b/184382310) find a way to speed this up
+        // The rules are looked up by certificate hash, and a package has at most 2 hashes per
+        // certificate in nearly every case.
         for (String cert : certs) {
             // Non-null (whether empty or not) test override rule will ignore the UICC and CC rules
-            if (mTestOverrideRules != null) {
-                for (UiccAccessRule rule : mTestOverrideRules) {
-                    if (rule.matches(cert, pkgName)) {
-                        return PACKAGE_PRIVILEGED_FROM_SIM;
-                    }
+            if (mTestOverrideRuleIndex != null) {
+                if (mTestOverrideRuleIndex.matches(cert, pkgName)) {
+                    return PACKAGE_PRIVILEGED_FROM_SIM;
                 }
             } else {
-                for (UiccAccessRule rule : mUiccRules) {
-                    if (rule.matches(cert, pkgName)) {
-                        return PACKAGE_PRIVILEGED_FROM_SIM;
-                    }
+                if (mUiccRuleIndex.matches(cert, pkgName)) {
+                    return PACKAGE_PRIVILEGED_FROM_SIM;
                 }
-                for (UiccAccessRule rule : mCarrierConfigRules) {
-                    if (rule.matches(cert, pkgName)) {
-                        return pkgName.equals(mTestOverrideCarrierServicePackage)
-                                ? PACKAGE_PRIVILEGED_FROM_CARRIER_SERVICE_TEST_OVERRIDE
-                                : PACKAGE_PRIVILEGED_FROM_CARRIER_CONFIG;
-                    }
+                if (mCarrierConfigRuleIndex.matches(cert, pkgName)) {
+                    return pkgName.equals(mTestOverrideCarrierServicePackage)
+                            ? PACKAGE_PRIVILEGED_FROM_CARRIER_SERVICE_TEST_OVERRIDE
+                            : PACKAGE_PRIVILEGED_FROM_CARRIER_CONFIG;
                 }
             }
         }
@@ -879,6 +905,7 @@ public class CarrierPrivilegesTracker extends Handler {
             // best effort.
             refreshInstalledPackageCache();
         }
+        updateRuleIndexes();
         maybeUpdatePrivilegedPackagesAndNotifyRegistrants();
     }
 
@@ -2051,7 +2051,12 @@ public class GsmCdmaPhone extends Phone {
 
     @Override
     public IsimRecords getIsimRecords() {
-        return mIsimUiccRecords;
+        IsimUiccRecords isimUiccRecords = mIsimUiccRecords;
+        if (isimUiccRecords != null) {
+            // The load of the ISIM records is deferred until they are used.
+            isimUiccRecords.onRecordsRequested();
+        }
+        return isimUiccRecords;
     }
 
     @Override
@@ -4757,6 +4762,12 @@ public class GsmCdmaPhone extends Phone {
             e.printStackTrace();
         }
         pw.flush();
+        try {
+            mIccPhoneBookIntManager.dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.flush();
     }
 
     @Override
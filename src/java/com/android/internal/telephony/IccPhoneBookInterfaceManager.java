@@ -38,6 +38,7 @@ import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.telephony.uicc.UiccProfile;
 import com.android.telephony.Rlog;
 
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -135,6 +136,15 @@ public class IccPhoneBookInterfaceManager {
         mSimPbRecordCache.dispose();
     }
 
+    /**
+     * Dump the phonebook state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(PrintWriter pw) {
+        mSimPbRecordCache.dump(pw);
+    }
+
     public void updateIccRecords(IccRecords iccRecords) {
         if (iccRecords != null) {
             mAdnCache = iccRecords.getAdnCache();
@@ -46,6 +46,7 @@ import com.android.internal.telephony.cdma.CdmaSubscriptionSourceManager;
 import com.android.internal.telephony.data.CellularNetworkValidator;
 import com.android.internal.telephony.data.PhoneSwitcher;
 import com.android.internal.telephony.data.TelephonyNetworkFactory;
+import com.android.internal.telephony.emergency.EmergencyStateTracker;
 import com.android.internal.telephony.euicc.EuiccCardController;
 import com.android.internal.telephony.euicc.EuiccController;
 import com.android.internal.telephony.flags.FeatureFlags;
@@ -606,6 +607,17 @@ public class PhoneFactory {
         pw.decreaseIndent();
         pw.println("++++++++++++++++++++++++++++++++");
 
+        pw.println("EmergencyStateTracker:");
+        pw.increaseIndent();
+        try {
+            EmergencyStateTracker.getInstance().dump(pw);
+        } catch (IllegalStateException e) {
+            pw.println("Not available");
+        }
+        pw.flush();
+        pw.decreaseIndent();
+        pw.println("++++++++++++++++++++++++++++++++");
+
         pw.println("LocalLogs:");
         pw.increaseIndent();
         synchronized (sLocalLogs) {
@@ -1137,6 +1137,13 @@ public class AutoDataSwitchController extends Handler {
         mDisplayedNotification = true;
     }
 
+    /**
+     * @return {@code true} if the current auto data switch is a retry after a failed validation.
+     */
+    public boolean isRetryingValidation() {
+        return mAutoSwitchValidationFailedCount > 0;
+    }
+
     /** Enable future switch retry again. Called when switch condition changed. */
     public void resetFailedCount() {
         mAutoSwitchValidationFailedCount = 0;
@@ -28,12 +28,15 @@ import android.net.NetworkRequest;
 import android.net.TelephonyNetworkSpecifier;
 import android.os.Handler;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellIdentity;
 import android.telephony.CellIdentityLte;
 import android.telephony.CellInfo;
 import android.telephony.NetworkRegistrationInfo;
 import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -45,6 +48,8 @@ import com.android.internal.telephony.nano.TelephonyProto.TelephonyEvent;
 import com.android.internal.telephony.subscription.SubscriptionInfoInternal;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
@@ -76,11 +81,21 @@ public class CellularNetworkValidator {
     private static CellularNetworkValidator sInstance;
     @VisibleForTesting
     public static final long MAX_VALIDATION_CACHE_TTL = TimeUnit.DAYS.toMillis(1);
+    // A failed validation is remembered for a shorter time than a successful one, so that a
+    // transient failure does not block switching to the network for the whole cache TTL.
+    @VisibleForTesting
+    public static final long MAX_FAILED_VALIDATION_CACHE_TTL = TimeUnit.SECONDS.toMillis(10);
 
     private int mState = STATE_IDLE;
     private int mSubId;
     private long mTimeoutInMs;
     private boolean mReleaseAfterValidation;
+    // The elapsed realtime when the current validation started.
+    private long mValidationStartTimeMs;
+    private int mNumValidationsPassed;
+    private int mNumValidationsFailed;
+    private long mTotalValidationTimeMs;
+    private final LocalLog mLocalLog = new LocalLog(64);
 
     private NetworkRequest mNetworkRequest;
     private ValidationCallback mValidationCallback;
@@ -106,6 +121,9 @@ public class CellularNetworkValidator {
                     }
                 });
         private final Map<String, ValidatedNetwork> mValidatedNetworkMap = new HashMap();
+        // Networks whose last validation failed, mapped to the time of the failure. Bounded by
+        // VALIDATED_NETWORK_CACHE_SIZE as well.
+        private final Map<String, Long> mFailedNetworkMap = new HashMap();
 
         private final class ValidatedNetwork {
             ValidatedNetwork(String identity, long timeStamp) {
@@ -131,19 +149,43 @@ public class CellularNetworkValidator {
             return recentlyValidated;
         }
 
+        synchronized boolean isRecentlyFailed(int subId) {
+            long cacheTtl = Math.min(getValidationCacheTtl(subId),
+                    MAX_FAILED_VALIDATION_CACHE_TTL);
+            String networkIdentity = getValidationNetworkIdentity(subId);
+            if (networkIdentity == null || !mFailedNetworkMap.containsKey(networkIdentity)) {
+                return false;
+            }
+            long failedTime = mFailedNetworkMap.get(networkIdentity);
+            boolean recentlyFailed = System.currentTimeMillis() - failedTime < cacheTtl;
+            logd("isRecentlyFailed on subId " + subId + " ? " + recentlyFailed);
+            return recentlyFailed;
+        }
+
         synchronized void storeLastValidationResult(int subId, boolean validated) {
             String networkIdentity = getValidationNetworkIdentity(subId);
             logd("storeLastValidationResult for subId " + subId
                     + (validated ? " validated." : " not validated."));
             if (networkIdentity == null) return;
 
+            long time =  System.currentTimeMillis();
             if (!validated) {
-                // If validation failed, clear it from the cache.
+                // If validation failed, clear it from the cache and remember the failure.
                 mValidatedNetworkPQ.remove(mValidatedNetworkMap.get(networkIdentity));
                 mValidatedNetworkMap.remove(networkIdentity);
+                mFailedNetworkMap.put(networkIdentity, time);
+                if (mFailedNetworkMap.size() > VALIDATED_NETWORK_CACHE_SIZE) {
+                    String oldest = null;
+                    for (Map.Entry<String, Long> entry : mFailedNetworkMap.entrySet()) {
+                        if (oldest == null || entry.getValue() < mFailedNetworkMap.get(oldest)) {
+                            oldest = entry.getKey();
+                        }
+                    }
+                    mFailedNetworkMap.remove(oldest);
+                }
                 return;
             }
-            long time =  System.currentTimeMillis();
+            mFailedNetworkMap.remove(networkIdentity);
             ValidatedNetwork network = mValidatedNetworkMap.get(networkIdentity);
             if (network != null) {
                 // Already existed in cache, update.
@@ -282,6 +324,7 @@ public class CellularNetworkValidator {
         mValidationCallback = callback;
         mReleaseAfterValidation = releaseAfterValidation;
         mNetworkRequest = createNetworkRequest();
+        mValidationStartTimeMs = SystemClock.elapsedRealtime();
 
         logd("Start validating subId " + mSubId + " mTimeoutInMs " + mTimeoutInMs
                 + " mReleaseAfterValidation " + mReleaseAfterValidation);
@@ -315,6 +358,19 @@ public class CellularNetworkValidator {
         mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     }
 
+    /**
+     * Check whether the network the subscription is currently camped on failed validation
+     * recently. The result is kept for the interval defined by
+     * {@link CarrierConfigManager#KEY_DATA_SWITCH_VALIDATION_MIN_INTERVAL_MILLIS_LONG}, but no
+     * longer than {@link #MAX_FAILED_VALIDATION_CACHE_TTL}.
+     *
+     * @param subId The subscription to check.
+     * @return {@code true} if the last validation on the same network failed within the interval.
+     */
+    public boolean isRecentlyFailed(int subId) {
+        return mValidatedNetworkCache.isRecentlyFailed(subId);
+    }
+
     /**
      * Return which subscription is under validating.
      */
@@ -347,6 +403,15 @@ public class CellularNetworkValidator {
         // Deal with the result only when state is still VALIDATING. This is to avoid
         // receiving multiple callbacks in queue.
         if (mState == STATE_VALIDATING) {
+            long validationTimeMs = SystemClock.elapsedRealtime() - mValidationStartTimeMs;
+            if (passed) {
+                mNumValidationsPassed++;
+            } else {
+                mNumValidationsFailed++;
+            }
+            mTotalValidationTimeMs += validationTimeMs;
+            mLocalLog.log("subId " + subId + (passed ? " passed" : " failed") + " in "
+                    + validationTimeMs + "ms");
             mValidationCallback.onValidationDone(passed, mSubId);
             mState = STATE_VALIDATED;
             // If validation passed and per request to NOT release after validation, delay cleanup.
@@ -428,6 +493,31 @@ public class CellularNetworkValidator {
         }
     }
 
+    /**
+     * Dump the state of CellularNetworkValidator
+     *
+     * @param fd File descriptor
+     * @param printWriter Print writer
+     * @param args Arguments
+     */
+    public void dump(FileDescriptor fd, PrintWriter printWriter, String[] args) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("CellularNetworkValidator:");
+        pw.increaseIndent();
+        synchronized (this) {
+            int numValidations = mNumValidationsPassed + mNumValidationsFailed;
+            pw.println("mSubId=" + mSubId + " mState=" + mState);
+            pw.println("passed=" + mNumValidationsPassed + " failed=" + mNumValidationsFailed
+                    + " avgValidationTimeMs="
+                    + (numValidations == 0 ? 0 : mTotalValidationTimeMs / numValidations));
+        }
+        pw.println("Local logs:");
+        pw.increaseIndent();
+        mLocalLog.dump(fd, pw, args);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+
     private static void logd(String log) {
         Log.d(LOG_TAG, log);
     }
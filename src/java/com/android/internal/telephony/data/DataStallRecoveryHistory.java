@@ -0,0 +1,215 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.telephony.Annotation.NetworkType;
+import android.telephony.TelephonyManager;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.data.DataStallRecoveryManager.RecoveryAction;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * DataStallRecoveryHistory keeps the outcome of the data stall recovery actions per carrier and
+ * RAT across reboots. It tells {@link DataStallRecoveryManager} whether a recovery action has
+ * been ineffective in the past, so the action can be skipped in favor of the next one.
+ */
+public class DataStallRecoveryHistory {
+    private static final String PREF_KEY_PREFIX = "dsrm_history_";
+    private static final String PREF_KEY_ATTEMPTS_SUFFIX = "_attempts";
+    private static final String PREF_KEY_RECOVERED_SUFFIX = "_recovered";
+    private static final String PREF_KEY_LAST_ATTEMPT_TIME_SUFFIX = "_last_attempt_time";
+
+    /** The number of attempts needed before the history of an action is considered. */
+    @VisibleForTesting
+    public static final int MIN_ATTEMPTS_TO_EVALUATE = 10;
+
+    /** An action recovering less than this percentage of the attempts is ineffective. */
+    @VisibleForTesting
+    public static final int MIN_RECOVERY_RATE_PERCENT = 10;
+
+    /**
+     * When the number of attempts reaches this value, both counters are halved so the recent
+     * outcomes weigh more than the old ones.
+     */
+    @VisibleForTesting
+    public static final int MAX_ATTEMPTS = 64;
+
+    /**
+     * An ineffective action is attempted again once it has not been performed for this long, so
+     * its history can recover when the network behavior changes. The counters are halved when it
+     * is attempted again.
+     */
+    @VisibleForTesting
+    public static final long RETRY_INEFFECTIVE_ACTION_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final @NonNull SharedPreferences mSharedPreferences;
+    private final @NonNull LongSupplier mClock;
+
+    /**
+     * Constructor
+     *
+     * @param context The context.
+     */
+    public DataStallRecoveryHistory(@NonNull Context context) {
+        this(context, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context The context.
+     * @param clock The wall clock, which is kept across reboots like the history.
+     */
+    @VisibleForTesting
+    public DataStallRecoveryHistory(@NonNull Context context, @NonNull LongSupplier clock) {
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mClock = clock;
+    }
+
+    /**
+     * Called when a recovery action is performed.
+     *
+     * @param carrierId The carrier id.
+     * @param rat The data network type.
+     * @param action The recovery action performed.
+     */
+    public void onActionPerformed(int carrierId, @NetworkType int rat,
+            @RecoveryAction int action) {
+        String key = getKey(carrierId, rat, action);
+        int attempts = getAttempts(carrierId, rat, action);
+        int recovered = getRecovered(carrierId, rat, action);
+        long now = mClock.getAsLong();
+        if (isHistoryOutdated(key, now)) {
+            attempts /= 2;
+            recovered /= 2;
+        }
+        attempts++;
+        if (attempts >= MAX_ATTEMPTS) {
+            attempts /= 2;
+            recovered /= 2;
+        }
+        mSharedPreferences.edit()
+                .putInt(key + PREF_KEY_ATTEMPTS_SUFFIX, attempts)
+                .putInt(key + PREF_KEY_RECOVERED_SUFFIX, recovered)
+                .putLong(key + PREF_KEY_LAST_ATTEMPT_TIME_SUFFIX, now)
+                .apply();
+    }
+
+    /**
+     * Called when the data stall was recovered by the recovery action performed last.
+     *
+     * @param carrierId The carrier id.
+     * @param rat The data network type.
+     * @param action The recovery action which recovered the data stall.
+     */
+    public void onRecovered(int carrierId, @NetworkType int rat, @RecoveryAction int action) {
+        int attempts = getAttempts(carrierId, rat, action);
+        int recovered = getRecovered(carrierId, rat, action);
+        if (recovered >= attempts) return;
+        mSharedPreferences.edit()
+                .putInt(getKey(carrierId, rat, action) + PREF_KEY_RECOVERED_SUFFIX, recovered + 1)
+                .apply();
+    }
+
+    /**
+     * Check whether the recovery action has been ineffective with the carrier and RAT.
+     *
+     * @param carrierId The carrier id.
+     * @param rat The data network type.
+     * @param action The recovery action.
+     * @return {@code true} if the action was attempted enough times and rarely recovered the
+     * data stall, unless it was not attempted for {@link #RETRY_INEFFECTIVE_ACTION_INTERVAL_MS}.
+     */
+    public boolean isIneffective(int carrierId, @NetworkType int rat,
+            @RecoveryAction int action) {
+        int attempts = getAttempts(carrierId, rat, action);
+        if (attempts < MIN_ATTEMPTS_TO_EVALUATE) return false;
+        if (isHistoryOutdated(getKey(carrierId, rat, action), mClock.getAsLong())) return false;
+        return getRecovered(carrierId, rat, action) * 100 < attempts * MIN_RECOVERY_RATE_PERCENT;
+    }
+
+    /**
+     * @param carrierId The carrier id.
+     * @param rat The data network type.
+     * @param action The recovery action.
+     * @return The number of times the action was performed.
+     */
+    @VisibleForTesting
+    public int getAttempts(int carrierId, @NetworkType int rat, @RecoveryAction int action) {
+        return mSharedPreferences.getInt(
+                getKey(carrierId, rat, action) + PREF_KEY_ATTEMPTS_SUFFIX, 0);
+    }
+
+    /**
+     * @param carrierId The carrier id.
+     * @param rat The data network type.
+     * @param action The recovery action.
+     * @return The number of times the action recovered the data stall.
+     */
+    @VisibleForTesting
+    public int getRecovered(int carrierId, @NetworkType int rat, @RecoveryAction int action) {
+        return mSharedPreferences.getInt(
+                getKey(carrierId, rat, action) + PREF_KEY_RECOVERED_SUFFIX, 0);
+    }
+
+    private boolean isHistoryOutdated(@NonNull String key, long now) {
+        long lastAttemptTime = mSharedPreferences.getLong(
+                key + PREF_KEY_LAST_ATTEMPT_TIME_SUFFIX, now);
+        // A last attempt in the future means the clock was changed, consider it outdated too.
+        return now - lastAttemptTime >= RETRY_INEFFECTIVE_ACTION_INTERVAL_MS
+                || lastAttemptTime > now;
+    }
+
+    private static @NonNull String getKey(int carrierId, @NetworkType int rat,
+            @RecoveryAction int action) {
+        return PREF_KEY_PREFIX + carrierId + "_" + TelephonyManager.getNetworkTypeName(rat) + "_"
+                + action;
+    }
+
+    /**
+     * Dump the recovery history.
+     *
+     * @param pw Print writer
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Recovery history (recovered/attempts):");
+        pw.increaseIndent();
+        Map<String, String> history = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(PREF_KEY_PREFIX) || !key.endsWith(PREF_KEY_ATTEMPTS_SUFFIX)) {
+                continue;
+            }
+            String prefix = key.substring(0, key.length() - PREF_KEY_ATTEMPTS_SUFFIX.length());
+            history.put(prefix.substring(PREF_KEY_PREFIX.length()),
+                    mSharedPreferences.getInt(prefix + PREF_KEY_RECOVERED_SUFFIX, 0) + "/"
+                            + entry.getValue());
+        }
+        history.forEach((key, value) -> pw.println(key + "=" + value));
+        pw.decreaseIndent();
+    }
+}
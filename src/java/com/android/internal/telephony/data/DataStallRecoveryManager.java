@@ -228,6 +228,15 @@ public class DataStallRecoveryManager extends Handler {
 
     private final DataStallRecoveryStats mStats;
 
+    /** The history of recovery action outcomes per carrier and RAT. */
+    private final @NonNull DataStallRecoveryHistory mRecoveryHistory;
+    /** Whether a recovery action was performed during the current data stall. */
+    private boolean mActionPerformedDuringDataStall;
+    /** The carrier id when the last recovery action was performed. */
+    private int mLastActionCarrierId;
+    /** The data network type when the last recovery action was performed. */
+    private @TelephonyManager.NetworkType int mLastActionRat;
+
     /** The number of milliseconds to wait for the DSRM prediction to complete. */
     private @ElapsedRealtimeLong long mPredictWaitingMillis = 0L;
 
@@ -291,6 +300,7 @@ public class DataStallRecoveryManager extends Handler {
                             }
                         });
         mDataStallRecoveryManagerCallback = callback;
+        mRecoveryHistory = new DataStallRecoveryHistory(mPhone.getContext());
         mRadioPowerState = mPhone.getRadioPowerState();
         updateDataStallRecoveryConfigs();
 
@@ -556,6 +566,7 @@ public class DataStallRecoveryManager extends Handler {
         mRecoveryAction = RECOVERY_ACTION_GET_DATA_CALL_LIST;
         mValidationCount = 0;
         mActionValidationCount = 0;
+        mActionPerformedDuringDataStall = false;
     }
 
     /**
@@ -566,6 +577,10 @@ public class DataStallRecoveryManager extends Handler {
     private void onInternetValidationStatusChanged(@ValidationStatus int status) {
         logl("onInternetValidationStatusChanged: " + DataUtils.validationStatusToString(status));
         final boolean isValid = status == NetworkAgent.VALIDATION_STATUS_VALID;
+        if (isValid && mDataStalled && mActionPerformedDuringDataStall
+                && getRecoveredReason(true) == RECOVERED_REASON_DSRM) {
+            mRecoveryHistory.onRecovered(mLastActionCarrierId, mLastActionRat, mLastAction);
+        }
         if (mFeatureFlags.dsrsDiagnosticsEnabled()) {
             mValidationCount += 1;
             mActionValidationCount += 1;
@@ -633,8 +648,10 @@ public class DataStallRecoveryManager extends Handler {
                 && mRadioPowerState == TelephonyManager.RADIO_POWER_ON) {
             mRecoveryAction = RECOVERY_ACTION_RESET_MODEM;
         }
-        // To check the flag from DataConfigManager if we need to skip the step.
-        if (shouldSkipRecoveryAction(mRecoveryAction)) {
+        // To check the flag from DataConfigManager if we need to skip the step, or if the step
+        // has been ineffective with the current carrier and RAT.
+        if (shouldSkipRecoveryAction(mRecoveryAction)
+                || isRecoveryActionIneffective(mRecoveryAction)) {
             switch (mRecoveryAction) {
                 case RECOVERY_ACTION_GET_DATA_CALL_LIST:
                     setRecoveryAction(RECOVERY_ACTION_CLEANUP);
@@ -654,6 +671,29 @@ public class DataStallRecoveryManager extends Handler {
         log("setRecoveryAction: " + recoveryActionToString(mRecoveryAction));
     }
 
+    /**
+     * Check if the recovery action rarely recovered the data stall with the current carrier and
+     * RAT in the past. Only the actions cheaper than the radio restart are considered, so the
+     * last resort actions are always attempted.
+     *
+     * @param recoveryAction The recovery action.
+     * @return {@code true} if the action is expected to be ineffective.
+     */
+    private boolean isRecoveryActionIneffective(@RecoveryAction int recoveryAction) {
+        if (recoveryAction >= RECOVERY_ACTION_RADIO_RESTART) return false;
+        boolean ineffective = mRecoveryHistory.isIneffective(mPhone.getCarrierId(),
+                getDataNetworkType(), recoveryAction);
+        if (ineffective) {
+            log("isRecoveryActionIneffective: " + recoveryActionToString(recoveryAction));
+        }
+        return ineffective;
+    }
+
+    /** @return The current data network type. */
+    private @TelephonyManager.NetworkType int getDataNetworkType() {
+        return mPhone.getServiceState().getDataNetworkType();
+    }
+
     /**
      * Check if recovery already started.
      *
@@ -916,6 +956,10 @@ public class DataStallRecoveryManager extends Handler {
 
     /** Perform a series of data stall recovery actions. */
     private void doRecovery() {
+        if (isRecoveryActionIneffective(getRecoveryAction())) {
+            // Move on to the next action, the same way as a skipped one.
+            setRecoveryAction(getRecoveryAction());
+        }
         @RecoveryAction final int recoveryAction = getRecoveryAction();
         final int signalStrength = mPhone.getSignalStrength().getLevel();
 
@@ -926,6 +970,10 @@ public class DataStallRecoveryManager extends Handler {
         mLastActionReported = false;
         mNetworkCheckTimerStarted = false;
         mTimeElapsedOfCurrentAction = SystemClock.elapsedRealtime();
+        mActionPerformedDuringDataStall = true;
+        mLastActionCarrierId = mPhone.getCarrierId();
+        mLastActionRat = getDataNetworkType();
+        mRecoveryHistory.onActionPerformed(mLastActionCarrierId, mLastActionRat, recoveryAction);
 
         switch (recoveryAction) {
             case RECOVERY_ACTION_GET_DATA_CALL_LIST:
@@ -1090,6 +1138,7 @@ public class DataStallRecoveryManager extends Handler {
                 "DataStallRecoveryDelayMillisArray="
                         + Arrays.toString(mDataStallRecoveryDelayMillisArray));
         pw.println("SkipRecoveryActionArray=" + Arrays.toString(mSkipRecoveryActionArray));
+        mRecoveryHistory.dump(pw);
         pw.decreaseIndent();
         pw.println("");
 
@@ -66,6 +66,8 @@ import com.android.telephony.Rlog;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -96,12 +98,23 @@ public class LinkBandwidthEstimator extends Handler {
     static final int MSG_ACTIVE_PHONE_CHANGED = 8;
     @VisibleForTesting
     static final int MSG_DATA_REG_STATE_OR_RAT_CHANGED = 9;
+    @VisibleForTesting
+    static final int MSG_DEFAULT_NETWORK_ACTIVE = 10;
+    @VisibleForTesting
+    static final int MSG_CALLBACK_REGISTERED = 11;
 
     @VisibleForTesting
     static final int UNKNOWN_TAC = CellInfo.UNAVAILABLE;
 
     // TODO: move the following parameters to xml file
     private static final int TRAFFIC_STATS_POLL_INTERVAL_MS = 1_000;
+    // The traffic stats poll interval is doubled after this many consecutive idle polls, up to
+    // TRAFFIC_STATS_POLL_INTERVAL_MAX_MS. Any traffic, or the default network becoming active,
+    // brings it back to the base interval.
+    @VisibleForTesting
+    static final int TRAFFIC_STATS_IDLE_POLL_COUNT_BEFORE_BACKOFF = 3;
+    @VisibleForTesting
+    static final int TRAFFIC_STATS_POLL_INTERVAL_MAX_MS = 8_000;
     private static final int MODEM_POLL_MIN_INTERVAL_MS = 5_000;
     private static final int TRAFFIC_MODEM_POLL_BYTE_RATIO = 8;
     private static final int TRAFFIC_POLL_BYTE_THRESHOLD_MAX = 20_000;
@@ -153,6 +166,12 @@ public class LinkBandwidthEstimator extends Handler {
             "NR_NSA_MMWAVE:145000,60000", "NR:145000,60000", "NR_MMWAVE:145000,60000"};
     private static final Map<String, Pair<Integer, Integer>> AVG_BW_PER_RAT_MAP = new ArrayMap<>();
     private static final String UNKNOWN_PLMN = "";
+    // The max number of networks (PLMN/RAT/TAC) whose stats are persisted. The least recently
+    // used network is evicted when the limit is exceeded so the storage stays bounded.
+    @VisibleForTesting
+    static final int MAX_NUM_PERSISTED_NETWORKS = 128;
+    private static final String PERSISTED_NETWORK_KEYS = "LinkBandwidthEstimatorNetworkKeys";
+    private static final String PERSISTED_NETWORK_SEQUENCE = "LinkBandwidthEstimatorSequence";
 
     // To be used in the long term avg, each count needs to be above the following value
     public static final int BW_STATS_COUNT_THRESHOLD = 5;
@@ -166,6 +185,7 @@ public class LinkBandwidthEstimator extends Handler {
     private final TelephonyFacade mTelephonyFacade;
     private final TelephonyManager mTelephonyManager;
     private final ConnectivityManager mConnectivityManager;
+    private final SharedPreferences mSharedPreferences;
     private final LocalLog mLocalLog = new LocalLog(512);
     private boolean mScreenOn = false;
     private boolean mIsOnDefaultRoute = false;
@@ -198,6 +218,9 @@ public class LinkBandwidthEstimator extends Handler {
     private long mLastDrsOrRatChangeTimeMs;
 
     private int mDataActivity = TelephonyManager.DATA_ACTIVITY_NONE;
+    private int mTrafficStatsPollIntervalMs = TRAFFIC_STATS_POLL_INTERVAL_MS;
+    private int mNumConsecutiveIdlePolls;
+    private long mNumTrafficStatsPolls;
 
     /** Link bandwidth estimator callbacks. */
     private final @NonNull Set<LinkBandwidthEstimatorCallback> mLinkBandwidthEstimatorCallbacks =
@@ -296,6 +319,9 @@ public class LinkBandwidthEstimator extends Handler {
                 }
             };
 
+    private final ConnectivityManager.OnNetworkActiveListener mDefaultNetworkActiveListener =
+            () -> sendEmptyMessage(MSG_DEFAULT_NETWORK_ACTIVE);
+
     public LinkBandwidthEstimator(Phone phone, TelephonyFacade telephonyFacade) {
         mPhone = phone;
         mTelephonyFacade = telephonyFacade;
@@ -303,11 +329,13 @@ public class LinkBandwidthEstimator extends Handler {
                 .getSystemService(TelephonyManager.class)
                 .createForSubscriptionId(phone.getSubId());
         mConnectivityManager = phone.getContext().getSystemService(ConnectivityManager.class);
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(phone.getContext());
         DisplayManager dm = (DisplayManager) phone.getContext().getSystemService(
                 Context.DISPLAY_SERVICE);
         dm.registerDisplayListener(mDisplayListener, null);
         handleScreenStateChanged(isScreenOn());
         mConnectivityManager.registerDefaultNetworkCallback(mDefaultNetworkCallback, this);
+        mConnectivityManager.addDefaultNetworkActiveListener(mDefaultNetworkActiveListener);
         mTelephonyManager.registerTelephonyCallback(new HandlerExecutor(this),
                 mTelephonyCallback);
         mPlaceholderNetwork = new NetworkBandwidth(UNKNOWN_PLMN);
@@ -328,6 +356,9 @@ public class LinkBandwidthEstimator extends Handler {
             case MSG_TRAFFIC_STATS_POLL:
                 handleTrafficStatsPoll();
                 break;
+            case MSG_DEFAULT_NETWORK_ACTIVE:
+                handleDefaultNetworkActive();
+                break;
             case MSG_MODEM_ACTIVITY_RETURNED:
                 handleModemActivityReturned((ModemActivityInfo) msg.obj);
                 break;
@@ -348,6 +379,9 @@ public class LinkBandwidthEstimator extends Handler {
             case MSG_DATA_REG_STATE_OR_RAT_CHANGED:
                 handleDrsOrRatChanged((AsyncResult) msg.obj);
                 break;
+            case MSG_CALLBACK_REGISTERED:
+                handleCallbackRegistered((LinkBandwidthEstimatorCallback) msg.obj);
+                break;
             default:
                 Rlog.e(TAG, "invalid message " + msg.what);
                 break;
@@ -361,6 +395,24 @@ public class LinkBandwidthEstimator extends Handler {
      */
     public void registerCallback(@NonNull LinkBandwidthEstimatorCallback callback) {
         mLinkBandwidthEstimatorCallbacks.add(callback);
+        obtainMessage(MSG_CALLBACK_REGISTERED, callback).sendToTarget();
+    }
+
+    /**
+     * Warm start a newly registered callback with the estimate derived from the persisted
+     * stats, so it does not need to wait for the next filter update. The estimate is only
+     * updated on the handler thread, so it is read there.
+     *
+     * @param callback The registered callback.
+     */
+    private void handleCallbackRegistered(@NonNull LinkBandwidthEstimatorCallback callback) {
+        if (!mLinkBandwidthEstimatorCallbacks.contains(callback)) return;
+        if (isValidNetwork() && mBandwidthUpdateDataRat == mDataRat
+                && mBandwidthUpdatePlmn.equals(mPlmn)) {
+            int txKbps = mTxState.mLastReportedBwKbps;
+            int rxKbps = mRxState.mLastReportedBwKbps;
+            callback.invokeFromExecutor(() -> callback.onBandwidthChanged(txKbps, rxKbps));
+        }
     }
 
     /**
@@ -440,6 +492,8 @@ public class LinkBandwidthEstimator extends Handler {
 
     private void handleTrafficStatsPollConditionChanged() {
         removeMessages(MSG_TRAFFIC_STATS_POLL);
+        mNumConsecutiveIdlePolls = 0;
+        mTrafficStatsPollIntervalMs = TRAFFIC_STATS_POLL_INTERVAL_MS;
         if (mScreenOn && mIsOnDefaultRoute && mIsOnActiveData) {
             updateDataRatCellIdentityBandwidth();
             handleTrafficStatsPoll();
@@ -478,7 +532,9 @@ public class LinkBandwidthEstimator extends Handler {
         }
 
         // Schedule the next traffic stats poll
-        sendEmptyMessageDelayed(MSG_TRAFFIC_STATS_POLL, TRAFFIC_STATS_POLL_INTERVAL_MS);
+        mNumTrafficStatsPolls++;
+        updateTrafficStatsPollInterval(dataActivity);
+        sendEmptyMessageDelayed(MSG_TRAFFIC_STATS_POLL, mTrafficStatsPollIntervalMs);
 
         mLastMobileTxBytes = mobileTxBytes;
         mLastMobileRxBytes = mobileRxBytes;
@@ -534,6 +590,50 @@ public class LinkBandwidthEstimator extends Handler {
         }
     }
 
+    /**
+     * Adapt the traffic stats poll interval to the data activity. The interval is backed off
+     * exponentially while the link stays idle and the bandwidth estimate is stable, and goes back
+     * to the base interval as soon as there is traffic, so that the bandwidth samples are
+     * collected at full rate during transfers.
+     *
+     * @param dataActivity The data activity seen in the current poll.
+     */
+    private void updateTrafficStatsPollInterval(@DataActivityType int dataActivity) {
+        if (dataActivity != TelephonyManager.DATA_ACTIVITY_NONE) {
+            mNumConsecutiveIdlePolls = 0;
+            mTrafficStatsPollIntervalMs = TRAFFIC_STATS_POLL_INTERVAL_MS;
+            return;
+        }
+        mNumConsecutiveIdlePolls++;
+        // Keep polling at the base interval until the filter has converged, so the pending
+        // filter updates are still delivered in time.
+        if (mNumConsecutiveIdlePolls >= TRAFFIC_STATS_IDLE_POLL_COUNT_BEFORE_BACKOFF
+                && mTxState.mFilterConverged && mRxState.mFilterConverged) {
+            mTrafficStatsPollIntervalMs = Math.min(mTrafficStatsPollIntervalMs * 2,
+                    TRAFFIC_STATS_POLL_INTERVAL_MAX_MS);
+        }
+    }
+
+    /**
+     * Poll the traffic stats right away when the radio of the default network becomes active
+     * while the poll is backed off, so the data activity is not detected late.
+     */
+    private void handleDefaultNetworkActive() {
+        if (mTrafficStatsPollIntervalMs == TRAFFIC_STATS_POLL_INTERVAL_MS
+                || !hasMessages(MSG_TRAFFIC_STATS_POLL)) {
+            return;
+        }
+        removeMessages(MSG_TRAFFIC_STATS_POLL);
+        mNumConsecutiveIdlePolls = 0;
+        mTrafficStatsPollIntervalMs = TRAFFIC_STATS_POLL_INTERVAL_MS;
+        handleTrafficStatsPoll();
+    }
+
+    @VisibleForTesting
+    int getTrafficStatsPollIntervalMs() {
+        return mTrafficStatsPollIntervalMs;
+    }
+
     private void makeRequestModemActivity() {
         mLastModemPollTimeMs = mTelephonyFacade.getElapsedSinceBootMillis();
         // TODO: add CountDown in case that onResult/OnError() never happen
@@ -661,6 +761,9 @@ public class LinkBandwidthEstimator extends Handler {
         long mBwSampleValidTimeMs;
         int mStaticBwKbps;
         int mLastReportedBwKbps;
+        // Whether the filter output is close enough to its input that further filter updates
+        // would not trigger a bandwidth report.
+        boolean mFilterConverged;
 
         BandwidthState(int link) {
             mLink = link;
@@ -719,6 +822,7 @@ public class LinkBandwidthEstimator extends Handler {
             }
 
             if (filterInKbps == mFilterKbps) {
+                mFilterConverged = true;
                 return;
             }
 
@@ -726,12 +830,15 @@ public class LinkBandwidthEstimator extends Handler {
                     : (int) (FILTER_SCALE * Math.exp(-1.0 * timeDeltaSec / timeConstantSec));
             if (alpha == 0) {
                 mFilterKbps = filterInKbps;
+                mFilterConverged = true;
                 return;
             }
             long filterOutKbps = (long) mFilterKbps * alpha
                     + filterInKbps * FILTER_SCALE - filterInKbps * alpha;
             filterOutKbps = filterOutKbps / FILTER_SCALE;
             mFilterKbps = (int) Math.min(filterOutKbps, Integer.MAX_VALUE);
+            mFilterConverged = (long) Math.abs(filterInKbps - mFilterKbps) * 100
+                    <= (long) BW_UPDATE_THRESHOLD_PERCENT * filterInKbps;
 
             StringBuilder sb = new StringBuilder();
             logv(sb.append(mLink)
@@ -823,6 +930,7 @@ public class LinkBandwidthEstimator extends Handler {
         private void resetBandwidthFilter() {
             mBwSampleValid = false;
             mFilterKbps = getAvgLinkBandwidthKbps();
+            mFilterConverged = true;
         }
 
         private void updateByteCountThr() {
@@ -1179,64 +1287,172 @@ public class LinkBandwidthEstimator extends Handler {
         if (ans == null) {
             ans = new NetworkBandwidth(key.toString());
             mNetworkMap.put(key, ans);
+            ans.touch();
         }
         return ans;
     }
 
-    /** A class holding link bandwidth related stats */
+    /**
+     * Get the set of network keys which currently have bandwidth stats persisted.
+     */
+    @NonNull
+    private Set<String> getPersistedNetworkKeys() {
+        return mSharedPreferences.getStringSet(PERSISTED_NETWORK_KEYS, Collections.emptySet());
+    }
+
+    /**
+     * Record the network key in the persisted index and evict the least recently used networks
+     * if the index grows beyond {@link #MAX_NUM_PERSISTED_NETWORKS}.
+     *
+     * @param networkKey The network key being used.
+     * @param editor The editor to stage the changes in.
+     */
+    private void addToPersistedNetworkKeys(@NonNull String networkKey,
+            @NonNull SharedPreferences.Editor editor) {
+        Set<String> keys = getPersistedNetworkKeys();
+        if (keys.contains(networkKey)) {
+            return;
+        }
+        // The set returned by SharedPreferences must not be modified.
+        Set<String> newKeys = new ArraySet<>(keys);
+        newKeys.add(networkKey);
+        while (newKeys.size() > MAX_NUM_PERSISTED_NETWORKS) {
+            String lruKey = null;
+            long lruSequence = Long.MAX_VALUE;
+            for (String key : newKeys) {
+                if (key.equals(networkKey)) continue;
+                long sequence = mSharedPreferences.getLong(getLastUsedKey(key), 0);
+                if (sequence < lruSequence) {
+                    lruSequence = sequence;
+                    lruKey = key;
+                }
+            }
+            if (lruKey == null) break;
+            logd("Evict bandwidth stats of " + lruKey);
+            newKeys.remove(lruKey);
+            removeNetworkFromEditor(lruKey, editor);
+            for (NetworkBandwidth network : mNetworkMap.values()) {
+                if (network.mKey.equals(lruKey)) {
+                    network.clear();
+                }
+            }
+        }
+        editor.putStringSet(PERSISTED_NETWORK_KEYS, newKeys);
+    }
+
+    private static String getValueKey(String key, int link, int level) {
+        return getDataKey(key, link, level) + "Data";
+    }
+
+    private static String getCountKey(String key, int link, int level) {
+        return getDataKey(key, link, level) + "Count";
+    }
+
+    private static String getLastUsedKey(String key) {
+        return key + "LastUsed";
+    }
+
+    private static String getDataKey(String key, int link, int level) {
+        StringBuilder sb = new StringBuilder();
+        return sb.append(key)
+                .append("Link").append(link)
+                .append("Level").append(level)
+                .toString();
+    }
+
+    private static void removeNetworkFromEditor(String key, SharedPreferences.Editor editor) {
+        for (int link = 0; link < NUM_LINK_DIRECTION; link++) {
+            for (int level = 0; level < NUM_SIGNAL_LEVEL; level++) {
+                editor.remove(getValueKey(key, link, level));
+                editor.remove(getCountKey(key, link, level));
+            }
+        }
+        editor.remove(getLastUsedKey(key));
+    }
+
+    /**
+     * A class holding link bandwidth related stats. The stats are loaded from the persisted
+     * storage once, served from memory afterwards, and written through on each update so the
+     * long term average survives reboot.
+     */
     @VisibleForTesting
     public class NetworkBandwidth {
 
         private final String mKey;
+        private final long[][] mValues = new long[NUM_LINK_DIRECTION][NUM_SIGNAL_LEVEL];
+        private final int[][] mCounts = new int[NUM_LINK_DIRECTION][NUM_SIGNAL_LEVEL];
 
         NetworkBandwidth(String key) {
             mKey = key;
+            for (int link = 0; link < NUM_LINK_DIRECTION; link++) {
+                for (int level = 0; level < NUM_SIGNAL_LEVEL; level++) {
+                    mValues[link][level] = mSharedPreferences.getLong(
+                            getValueKey(mKey, link, level), 0);
+                    mCounts[link][level] = mSharedPreferences.getInt(
+                            getCountKey(mKey, link, level), 0);
+                }
+            }
         }
 
         /** Update link bandwidth stats */
         public void update(long value, int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            String countKey = getCountKey(link, level);
-            SharedPreferences.Editor editor = sp.edit();
-            long currValue = sp.getLong(valueKey, 0);
-            int currCount = sp.getInt(countKey, 0);
-            editor.putLong(valueKey, currValue + value);
-            editor.putInt(countKey, currCount + 1);
+            mValues[link][level] += value;
+            mCounts[link][level]++;
+            SharedPreferences.Editor editor = mSharedPreferences.edit();
+            editor.putLong(getValueKey(mKey, link, level), mValues[link][level]);
+            editor.putInt(getCountKey(mKey, link, level), mCounts[link][level]);
+            stageLastUsed(editor);
             editor.apply();
         }
 
-        private String getValueKey(int link, int level) {
-            return getDataKey(link, level) + "Data";
+        /** Mark this network as the most recently used one in the persisted index. */
+        private void touch() {
+            if (!hasStats()) {
+                // Only networks with stats occupy a slot in the persisted index.
+                return;
+            }
+            SharedPreferences.Editor editor = mSharedPreferences.edit();
+            stageLastUsed(editor);
+            editor.apply();
         }
 
-        private String getCountKey(int link, int level) {
-            return getDataKey(link, level) + "Count";
+        private void stageLastUsed(@NonNull SharedPreferences.Editor editor) {
+            if (this == mPlaceholderNetwork) {
+                return;
+            }
+            long sequence = mSharedPreferences.getLong(PERSISTED_NETWORK_SEQUENCE, 0) + 1;
+            editor.putLong(PERSISTED_NETWORK_SEQUENCE, sequence);
+            editor.putLong(getLastUsedKey(mKey), sequence);
+            addToPersistedNetworkKeys(mKey, editor);
         }
 
-        private String getDataKey(int link, int level) {
-            StringBuilder sb = new StringBuilder();
-            return sb.append(mKey)
-                    .append("Link").append(link)
-                    .append("Level").append(level)
-                    .toString();
+        private boolean hasStats() {
+            for (int link = 0; link < NUM_LINK_DIRECTION; link++) {
+                for (int level = 0; level < NUM_SIGNAL_LEVEL; level++) {
+                    if (mCounts[link][level] > 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Clear the in-memory stats after the persisted ones were evicted. */
+        private void clear() {
+            for (int link = 0; link < NUM_LINK_DIRECTION; link++) {
+                Arrays.fill(mValues[link], 0);
+                Arrays.fill(mCounts[link], 0);
+            }
         }
 
         /** Get the accumulated bandwidth value */
         public long getValue(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            return sp.getLong(valueKey, 0);
+            return mValues[link][level];
         }
 
         /** Get the accumulated bandwidth count */
         public int getCount(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String countKey = getCountKey(link, level);
-            return sp.getInt(countKey, 0);
+            return mCounts[link][level];
         }
 
         @Override
@@ -1270,6 +1486,10 @@ public class LinkBandwidthEstimator extends Handler {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, " ");
         pw.increaseIndent();
         pw.println("current PLMN " + mPlmn + " TAC " + mTac + " RAT " + getDataRatName(mDataRat));
+        pw.println("traffic stats polls " + mNumTrafficStatsPolls + " current interval "
+                + mTrafficStatsPollIntervalMs + "ms");
+        pw.println("persisted networks " + getPersistedNetworkKeys().size()
+                + "/" + MAX_NUM_PERSISTED_NETWORKS);
         pw.println("all networks visited since device boot");
         for (NetworkBandwidth network : mNetworkMap.values()) {
             pw.println(network.toString());
@@ -55,6 +55,7 @@ import android.os.PersistableBundle;
 import android.os.Registrant;
 import android.os.RegistrantList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneCapability;
 import android.telephony.PhoneStateListener;
@@ -195,6 +196,8 @@ public class PhoneSwitcher extends Handler {
     @VisibleForTesting
     protected final CellularNetworkValidator mValidator;
     private int mPendingSwitchSubId = INVALID_SUBSCRIPTION_ID;
+    // The elapsed realtime when the pending switch started, used to report the time to switch.
+    private long mPendingSwitchStartTimeMs;
     /** The reason for the last time changing preferred data sub **/
     private int mLastSwitchPreferredDataReason = -1;
     private boolean mPendingSwitchNeedValidation;
@@ -1582,6 +1585,20 @@ public class PhoneSwitcher extends Handler {
         mPendingSwitchSubId = subIdToValidate;
         mPendingSwitchNeedValidation = needValidation;
         mSetOpptSubCallback = callback;
+        mPendingSwitchStartTimeMs = SystemClock.elapsedRealtime();
+
+        // If the target network failed validation recently, don't wait for another round of
+        // validation which is likely to time out again. Fail the auto switch right away and let
+        // the retry logic in AutoDataSwitchController decide when to try again. The retries
+        // always validate, so that a transient failure does not use up the retry count.
+        if (needValidation && switchReason == DataSwitch.Reason.DATA_SWITCH_REASON_AUTO
+                && !mAutoDataSwitchController.isRetryingValidation()
+                && mValidator.isRecentlyFailed(subIdToValidate)) {
+            logl("Skip validation on subId " + subIdToValidate + " as it recently failed");
+            confirmSwitch(subIdToValidate, false);
+            return;
+        }
+
         long validationTimeout = getValidationTimeout(subIdToValidate, needValidation);
         mValidator.validate(subIdToValidate, validationTimeout, false, mValidationCallback);
     }
@@ -1624,7 +1641,8 @@ public class PhoneSwitcher extends Handler {
     }
 
     private void confirmSwitch(int subId, boolean confirm) {
-        logl("confirmSwitch: subId " + subId + (confirm ? " confirmed." : " cancelled."));
+        logl("confirmSwitch: subId " + subId + (confirm ? " confirmed" : " cancelled")
+                + " in " + (SystemClock.elapsedRealtime() - mPendingSwitchStartTimeMs) + "ms.");
         int resultForCallBack;
         if (!isActiveSubId(subId)) {
             logl("confirmSwitch: subId " + subId + " is no longer active");
@@ -1867,6 +1885,7 @@ public class PhoneSwitcher extends Handler {
         mLocalLog.dump(fd, pw, args);
         pw.decreaseIndent();
         mAutoDataSwitchController.dump(fd, pw, args);
+        mValidator.dump(fd, pw, args);
         pw.decreaseIndent();
     }
 
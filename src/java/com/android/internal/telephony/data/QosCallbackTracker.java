@@ -18,6 +18,7 @@ package com.android.internal.telephony.data;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.net.InetAddresses;
 import android.net.LinkAddress;
 import android.net.NetworkAgent;
 import android.net.QosFilter;
@@ -37,8 +38,8 @@ import com.android.telephony.Rlog;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -52,6 +53,8 @@ public class QosCallbackTracker extends Handler {
     private static final int DEDICATED_BEARER_EVENT_STATE_ADDED = 1;
     private static final int DEDICATED_BEARER_EVENT_STATE_MODIFIED = 2;
     private static final int DEDICATED_BEARER_EVENT_STATE_DELETED = 3;
+    // The wildcard address used when the session filter does not specify any address.
+    private static final InetAddress ANY_ADDRESS = InetAddresses.parseNumericAddress("0.0.0.0");
 
     private final @NonNull String mLogTag;
     private final @NonNull TelephonyNetworkAgent mNetworkAgent;
@@ -61,6 +64,11 @@ public class QosCallbackTracker extends Handler {
     // We perform an exact match on the address
     private final @NonNull Map<Integer, IFilter> mCallbacksToFilter;
 
+    // The session filters matched by each callback, keyed by qos session id and then callback
+    // id. Only the callbacks matching the session are present. It is kept in sync with the
+    // sessions and callbacks so the previous match results never need to be recomputed.
+    private final @NonNull Map<Integer, Map<Integer, QosBearerFilter>> mSessionMatchedFilters;
+
     private final int mPhoneId;
 
     /**
@@ -105,6 +113,7 @@ public class QosCallbackTracker extends Handler {
     public QosCallbackTracker(@NonNull TelephonyNetworkAgent networkAgent, @NonNull Phone phone) {
         mQosBearerSessions = new HashMap<>();
         mCallbacksToFilter = new HashMap<>();
+        mSessionMatchedFilters = new HashMap<>();
         mNetworkAgent = networkAgent;
         mPhoneId = phone.getPhoneId();
         mRcsStats = RcsStats.getInstance();
@@ -158,11 +167,18 @@ public class QosCallbackTracker extends Handler {
             log("addFilter: callbackId=" + callbackId);
             // Called from mDcNetworkAgent
             mCallbacksToFilter.put(callbackId, filter);
+            for (final Map<Integer, QosBearerFilter> matchedFilters
+                    : mSessionMatchedFilters.values()) {
+                matchedFilters.remove(callbackId);
+            }
 
             //On first change. Check all sessions and send.
             for (final QosBearerSession session : mQosBearerSessions.values()) {
-                if (doFiltersMatch(session, filter)) {
-                    sendSessionAvailable(callbackId, session, filter);
+                final QosBearerFilter matchingFilter = getMatchingQosBearerFilter(session, filter);
+                if (matchingFilter != null) {
+                    getMatchedFilters(session.getQosBearerSessionId())
+                            .put(callbackId, matchingFilter);
+                    sendSessionAvailable(callbackId, session, matchingFilter);
 
                     notifyMetricDedicatedBearerListenerAdded(callbackId, session);
                 }
@@ -179,6 +195,10 @@ public class QosCallbackTracker extends Handler {
         post(() -> {
             log("removeFilter: callbackId=" + callbackId);
             mCallbacksToFilter.remove(callbackId);
+            for (final Map<Integer, QosBearerFilter> matchedFilters
+                    : mSessionMatchedFilters.values()) {
+                matchedFilters.remove(callbackId);
+            }
             notifyMetricDedicatedBearerListenerRemoved(callbackId);
         });
     }
@@ -196,22 +216,34 @@ public class QosCallbackTracker extends Handler {
 
             final List<QosBearerSession> sessionsToAdd = new ArrayList<>();
             final Map<Integer, QosBearerSession> incomingSessions = new HashMap<>();
+            final Map<Integer, Map<Integer, QosBearerFilter>> incomingMatchedFilters =
+                    new HashMap<>();
             final HashSet<Integer> sessionsReportedToMetric = new HashSet<>();
             for (final QosBearerSession incomingSession : sessions) {
                 int sessionId = incomingSession.getQosBearerSessionId();
                 incomingSessions.put(sessionId, incomingSession);
 
                 final QosBearerSession existingSession = mQosBearerSessions.get(sessionId);
-                for (final int callbackId : mCallbacksToFilter.keySet()) {
-                    final IFilter filter = mCallbacksToFilter.get(callbackId);
-
-                    final boolean incomingSessionMatch = doFiltersMatch(incomingSession, filter);
-                    final boolean existingSessionMatch =
-                            existingSession != null && doFiltersMatch(existingSession, filter);
+                final Map<Integer, QosBearerFilter> existingMatches = existingSession != null
+                        ? getMatchedFilters(sessionId) : Collections.emptyMap();
+                // The match results only depend on the session filters, so they are reused as
+                // long as the session filters did not change.
+                final Map<Integer, QosBearerFilter> incomingMatches = existingSession != null
+                        && existingSession.getQosBearerFilterList().equals(
+                                incomingSession.getQosBearerFilterList())
+                        ? existingMatches : matchFilters(incomingSession);
+                incomingMatchedFilters.put(sessionId, incomingMatches);
+
+                for (final Map.Entry<Integer, IFilter> entry : mCallbacksToFilter.entrySet()) {
+                    final int callbackId = entry.getKey();
+                    final QosBearerFilter matchingFilter = incomingMatches.get(callbackId);
+
+                    final boolean incomingSessionMatch = matchingFilter != null;
+                    final boolean existingSessionMatch = existingMatches.containsKey(callbackId);
 
                     if (!existingSessionMatch && incomingSessionMatch) {
                         // The filter matches now and didn't match earlier
-                        sendSessionAvailable(callbackId, incomingSession, filter);
+                        sendSessionAvailable(callbackId, incomingSession, matchingFilter);
 
                         bearerState = DEDICATED_BEARER_EVENT_STATE_ADDED;
                     }
@@ -220,7 +252,7 @@ public class QosCallbackTracker extends Handler {
                         // The same sessions matches the same filter, but if the qos changed,
                         // the callback still needs to be notified
                         if (!incomingSession.getQos().equals(existingSession.getQos())) {
-                            sendSessionAvailable(callbackId, incomingSession, filter);
+                            sendSessionAvailable(callbackId, incomingSession, matchingFilter);
                             bearerState = DEDICATED_BEARER_EVENT_STATE_MODIFIED;
                         }
                     }
@@ -250,11 +282,12 @@ public class QosCallbackTracker extends Handler {
             for (final QosBearerSession existingSession : mQosBearerSessions.values()) {
                 final int sessionId = existingSession.getQosBearerSessionId();
                 if (!incomingSessions.containsKey(sessionId)) {
+                    final Map<Integer, QosBearerFilter> existingMatches =
+                            getMatchedFilters(sessionId);
                     for (final int callbackId : mCallbacksToFilter.keySet()) {
-                        final IFilter filter = mCallbacksToFilter.get(callbackId);
                         // The filter matches which means it was previously available, and now is
                         // lost
-                        if (doFiltersMatch(existingSession, filter)) {
+                        if (existingMatches.containsKey(callbackId)) {
                             bearerState = DEDICATED_BEARER_EVENT_STATE_DELETED;
                             sendSessionLost(callbackId, existingSession);
                             notifyMetricDedicatedBearerEvent(existingSession, bearerState, true);
@@ -278,12 +311,40 @@ public class QosCallbackTracker extends Handler {
             for (final int sessionToRemove : sessionsToRemove) {
                 mQosBearerSessions.remove(sessionToRemove);
             }
+
+            mSessionMatchedFilters.clear();
+            mSessionMatchedFilters.putAll(incomingMatchedFilters);
         });
     }
 
-    private boolean doFiltersMatch(final @NonNull QosBearerSession qosBearerSession,
-            final @NonNull IFilter filter) {
-        return getMatchingQosBearerFilter(qosBearerSession, filter) != null;
+    /**
+     * Get the filters of the session matched by each callback.
+     *
+     * @param sessionId The qos session id.
+     * @return The map of callback id to the matching session filter.
+     */
+    private @NonNull Map<Integer, QosBearerFilter> getMatchedFilters(int sessionId) {
+        return mSessionMatchedFilters.computeIfAbsent(sessionId, k -> new HashMap<>());
+    }
+
+    /**
+     * Match the session against all the registered callback filters.
+     *
+     * @param session The qos session.
+     * @return The map of callback id to the matching session filter, only containing the
+     * callbacks which match the session.
+     */
+    private @NonNull Map<Integer, QosBearerFilter> matchFilters(
+            @NonNull QosBearerSession session) {
+        final Map<Integer, QosBearerFilter> matches = new HashMap<>();
+        for (final Map.Entry<Integer, IFilter> entry : mCallbacksToFilter.entrySet()) {
+            final QosBearerFilter matchingFilter =
+                    getMatchingQosBearerFilter(session, entry.getValue());
+            if (matchingFilter != null) {
+                matches.put(entry.getKey(), matchingFilter);
+            }
+        }
+        return matches;
     }
 
     private boolean matchesByLocalAddress(final @NonNull QosBearerFilter sessionFilter,
@@ -300,13 +361,7 @@ public class QosCallbackTracker extends Handler {
             return false;
         }
         if (sessionFilter.getLocalAddresses().isEmpty()) {
-            InetAddress anyAddress;
-            try {
-                anyAddress = InetAddress.getByAddress(new byte[] {0, 0, 0, 0});
-            } catch (UnknownHostException e) {
-                return false;
-            }
-            return filter.matchesLocalAddress(anyAddress, portStart, portEnd);
+            return filter.matchesLocalAddress(ANY_ADDRESS, portStart, portEnd);
         } else {
             for (final LinkAddress qosAddress : sessionFilter.getLocalAddresses()) {
                 return filter.matchesLocalAddress(qosAddress.getAddress(), portStart, portEnd);
@@ -330,13 +385,7 @@ public class QosCallbackTracker extends Handler {
             return false;
         }
         if (sessionFilter.getRemoteAddresses().isEmpty()) {
-            InetAddress anyAddress;
-            try {
-                anyAddress = InetAddress.getByAddress(new byte[] {0, 0, 0, 0});
-            } catch (UnknownHostException e) {
-                return false;
-            }
-            result = filter.matchesRemoteAddress(anyAddress, portStart, portEnd);
+            result = filter.matchesRemoteAddress(ANY_ADDRESS, portStart, portEnd);
         } else {
             for (final LinkAddress qosAddress : sessionFilter.getRemoteAddresses()) {
                 result = filter.matchesRemoteAddress(qosAddress.getAddress(), portStart, portEnd);
@@ -407,8 +456,7 @@ public class QosCallbackTracker extends Handler {
     }
 
     private void sendSessionAvailable(final int callbackId, final @NonNull QosBearerSession session,
-            @NonNull IFilter filter) {
-        QosBearerFilter qosBearerFilter = getMatchingQosBearerFilter(session, filter);
+            @NonNull QosBearerFilter qosBearerFilter) {
         List<InetSocketAddress> remoteAddresses = new ArrayList<>();
         if (qosBearerFilter.getRemoteAddresses().size() > 0
                 && qosBearerFilter.getRemotePortRange() != null) {
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.telephony.Rlog;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Traces the setup of emergency calls, from the request to start the call until the call is
+ * connected or ended.
+ *
+ * The time of each phase of the setup is recorded relative to the start of the call, in a fixed
+ * number of records which are allocated once and reused, the oldest first. The records are
+ * printed in dump with the percentiles of the time each phase took.
+ */
+public class EmergencyCallSetupTracer {
+    private static final String TAG = "EmergencyCallSetupTracer";
+
+    /** The number of traces kept. */
+    @VisibleForTesting
+    public static final int MAX_TRACES = 16;
+
+    /** The phases of the emergency call setup. */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(prefix = "PHASE_",
+            value = {
+                    PHASE_RADIO_ON,
+                    PHASE_DDS_SWITCHED,
+                    PHASE_EMERGENCY_MODE_SET,
+                    PHASE_DOMAIN_SELECTED,
+                    PHASE_DIALED,
+                    PHASE_CONNECTED})
+    public @interface Phase {}
+
+    /** The radio was turned on, or the satellite modem turned off. */
+    public static final int PHASE_RADIO_ON = 0;
+    /** The default data subscription was switched, or the switch timed out. */
+    public static final int PHASE_DDS_SWITCHED = 1;
+    /** The emergency mode was set on the modem. */
+    public static final int PHASE_EMERGENCY_MODE_SET = 2;
+    /** The domain selection selected the transport of the call. */
+    public static final int PHASE_DOMAIN_SELECTED = 3;
+    /** The call was dialed on its domain. */
+    public static final int PHASE_DIALED = 4;
+    /** The call was connected. */
+    public static final int PHASE_CONNECTED = 5;
+
+    private static final int NUM_PHASES = 6;
+
+    private static final class Trace {
+        private String mCallId;
+        private long mStartTimeMs;
+        private boolean mStartedInEcm;
+        // Time of each phase relative to the start, or -1 if the phase did not happen.
+        private final long[] mPhaseTimesMs = new long[NUM_PHASES];
+        // Time the trace ended relative to the start, or -1 if it is ongoing.
+        private long mDurationMs;
+
+        private void reset(String callId, long startTimeMs, boolean startedInEcm) {
+            mCallId = callId;
+            mStartTimeMs = startTimeMs;
+            mStartedInEcm = startedInEcm;
+            Arrays.fill(mPhaseTimesMs, -1);
+            mDurationMs = -1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("callId=").append(mCallId)
+                    .append(" startedInEcm=").append(mStartedInEcm);
+            for (int phase = 0; phase < NUM_PHASES; phase++) {
+                sb.append(' ').append(phaseToString(phase)).append('=');
+                if (mPhaseTimesMs[phase] < 0) {
+                    sb.append('-');
+                } else {
+                    sb.append(mPhaseTimesMs[phase]);
+                }
+            }
+            sb.append(" duration=").append(mDurationMs < 0 ? "ongoing" : mDurationMs);
+            return sb.toString();
+        }
+    }
+
+    private final LongSupplier mClock;
+    private final Trace[] mTraces = new Trace[MAX_TRACES];
+    // Index of the next trace to reuse.
+    private int mNextTrace;
+    private int mNumTraces;
+    private @Nullable Trace mCurrentTrace;
+    // Scratch buffer used to compute the percentiles.
+    private final long[] mSamples = new long[MAX_TRACES];
+
+    public EmergencyCallSetupTracer() {
+        this(SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public EmergencyCallSetupTracer(@NonNull LongSupplier clock) {
+        mClock = clock;
+        for (int i = 0; i < MAX_TRACES; i++) {
+            mTraces[i] = new Trace();
+        }
+    }
+
+    /**
+     * Start the trace of an emergency call, the trace of the previous call is ended if it is
+     * still ongoing.
+     *
+     * @param callId The telecom call id.
+     * @param startedInEcm Whether the call is started in the emergency callback mode.
+     */
+    public synchronized void start(@Nullable String callId, boolean startedInEcm) {
+        if (mCurrentTrace != null) {
+            end(mCurrentTrace.mCallId);
+        }
+        mCurrentTrace = mTraces[mNextTrace];
+        mCurrentTrace.reset(callId, mClock.getAsLong(), startedInEcm);
+        mNextTrace = (mNextTrace + 1) % MAX_TRACES;
+        mNumTraces = Math.min(mNumTraces + 1, MAX_TRACES);
+    }
+
+    /**
+     * Record the time of a phase of the ongoing emergency call setup. Only the first time a phase
+     * happens is recorded.
+     *
+     * @param phase The phase.
+     */
+    public synchronized void mark(@Phase int phase) {
+        if (mCurrentTrace == null || mCurrentTrace.mPhaseTimesMs[phase] >= 0) {
+            return;
+        }
+        mCurrentTrace.mPhaseTimesMs[phase] = mClock.getAsLong() - mCurrentTrace.mStartTimeMs;
+        if (phase == PHASE_CONNECTED) {
+            end(mCurrentTrace.mCallId);
+        }
+    }
+
+    /**
+     * End the trace of an emergency call, when it is connected or ended.
+     *
+     * @param callId The telecom call id.
+     */
+    public synchronized void end(@Nullable String callId) {
+        if (mCurrentTrace == null || !Objects.equals(mCurrentTrace.mCallId, callId)) {
+            return;
+        }
+        mCurrentTrace.mDurationMs = mClock.getAsLong() - mCurrentTrace.mStartTimeMs;
+        Rlog.i(TAG, "end: " + mCurrentTrace);
+        mCurrentTrace = null;
+    }
+
+    /**
+     * @param phase The phase.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The time of the phase relative to the start of the call at the given percentile of
+     * the traces, or -1 if the phase is in none of the traces.
+     */
+    @VisibleForTesting
+    public synchronized long getPhasePercentile(@Phase int phase, int percentile) {
+        int numSamples = 0;
+        for (int i = 0; i < mNumTraces; i++) {
+            long time = mTraces[i].mPhaseTimesMs[phase];
+            if (time >= 0) {
+                mSamples[numSamples++] = time;
+            }
+        }
+        if (numSamples == 0) {
+            return -1;
+        }
+        Arrays.sort(mSamples, 0, numSamples);
+        // Nearest-rank percentile.
+        int rank = (int) Math.ceil(percentile / 100.0 * numSamples);
+        return mSamples[Math.max(0, rank - 1)];
+    }
+
+    private static String phaseToString(@Phase int phase) {
+        switch (phase) {
+            case PHASE_RADIO_ON: return "radioOn";
+            case PHASE_DDS_SWITCHED: return "ddsSwitched";
+            case PHASE_EMERGENCY_MODE_SET: return "emergencyModeSet";
+            case PHASE_DOMAIN_SELECTED: return "domainSelected";
+            case PHASE_DIALED: return "dialed";
+            case PHASE_CONNECTED: return "connected";
+            default: return "unknown";
+        }
+    }
+
+    /**
+     * Dump the traces, from the oldest to the newest, and the percentiles of each phase.
+     *
+     * @param pw Print writer
+     */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Phase percentiles (ms, p50/p90/max):");
+        pw.increaseIndent();
+        for (int phase = 0; phase < NUM_PHASES; phase++) {
+            pw.println(phaseToString(phase) + ": " + getPhasePercentile(phase, 50) + "/"
+                    + getPhasePercentile(phase, 90) + "/" + getPhasePercentile(phase, 100));
+        }
+        pw.decreaseIndent();
+        pw.println("Traces:");
+        pw.increaseIndent();
+        for (int i = 0; i < mNumTraces; i++) {
+            int index = (mNextTrace - mNumTraces + i + MAX_TRACES) % MAX_TRACES;
+            pw.println(mTraces[index]);
+        }
+        pw.decreaseIndent();
+    }
+}
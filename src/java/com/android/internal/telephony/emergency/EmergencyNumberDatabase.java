@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Emergency number database indexed by country.
+ *
+ * The gzipped database of all the countries is decoded once when the index is built, then each
+ * country is encoded again into a single buffer with a table of the country offsets. Loading the
+ * emergency numbers of a country only decodes the records of that country.
+ */
+public class EmergencyNumberDatabase {
+    private final String mSource;
+    private final int mRevision;
+    // Encoded CountryInfo records, in the order of the database.
+    private final byte[] mData;
+    // ISO code of the database, in upper case -> {offset, length} of the country in mData.
+    private final Map<String, int[]> mCountryOffsets;
+    private final long mBuildTimeMs;
+
+    private EmergencyNumberDatabase(String source, int revision, byte[] data,
+            Map<String, int[]> countryOffsets, long buildTimeMs) {
+        mSource = source;
+        mRevision = revision;
+        mData = data;
+        mCountryOffsets = countryOffsets;
+        mBuildTimeMs = buildTimeMs;
+    }
+
+    /**
+     * Build the index of a gzipped emergency number database.
+     *
+     * @param source Identifies where the database was read from, so the index can be reused until
+     * the database changes.
+     * @param inputStream The gzipped database, which is closed once read.
+     * @return The index of the database.
+     * @throws IOException if the database could not be read or decoded.
+     */
+    public static @NonNull EmergencyNumberDatabase build(@NonNull String source,
+            @NonNull InputStream inputStream) throws IOException {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        ProtobufEccData.AllInfo allEccMessages;
+        try (InputStream databaseInputStream = inputStream;
+             GZIPInputStream gzipInputStream = new GZIPInputStream(databaseInputStream)) {
+            allEccMessages = ProtobufEccData.AllInfo.parseFrom(
+                    readInputStreamToByteArray(gzipInputStream));
+        }
+        // The records of a country are stored next to each other, so they are decoded as a single
+        // record with all their emergency numbers, as the scan of the database found them.
+        Map<String, ByteArrayOutputStream> countries = new LinkedHashMap<>();
+        for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
+            byte[] country = ProtobufEccData.CountryInfo.toByteArray(countryEccInfo);
+            countries.computeIfAbsent(countryEccInfo.isoCode, k -> new ByteArrayOutputStream())
+                    .write(country, 0, country.length);
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Map<String, int[]> countryOffsets = new HashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> country : countries.entrySet()) {
+            countryOffsets.put(country.getKey(),
+                    new int[] {data.size(), country.getValue().size()});
+            country.getValue().writeTo(data);
+        }
+        return new EmergencyNumberDatabase(source, allEccMessages.revision, data.toByteArray(),
+                countryOffsets, SystemClock.elapsedRealtime() - startTimeMs);
+    }
+
+    /**
+     * Util function to convert inputStream to byte array before parsing proto data.
+     */
+    private static byte[] readInputStreamToByteArray(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int nRead;
+        int size = 16 * 1024; // Read 16k chunks
+        byte[] data = new byte[size];
+        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+        buffer.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return Where the database was read from.
+     */
+    public @NonNull String getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return The revision of the database.
+     */
+    public int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * @return The number of countries in the database.
+     */
+    public int getCountryCount() {
+        return mCountryOffsets.size();
+    }
+
+    /**
+     * @return The time it took to build the index, in milliseconds.
+     */
+    public long getBuildTimeMs() {
+        return mBuildTimeMs;
+    }
+
+    /**
+     * Decode the emergency numbers of a country.
+     *
+     * @param countryIso The ISO code of the country, in any case.
+     * @return The emergency numbers of the country, or {@code null} if the country is not in the
+     * database.
+     * @throws IOException if the records of the country could not be decoded.
+     */
+    public @Nullable ProtobufEccData.CountryInfo getCountryInfo(@NonNull String countryIso)
+            throws IOException {
+        int[] offset = mCountryOffsets.get(countryIso.toUpperCase(Locale.ROOT));
+        if (offset == null) {
+            return null;
+        }
+        return ProtobufEccData.CountryInfo.mergeFrom(new ProtobufEccData.CountryInfo(), mData,
+                offset[0], offset[1]);
+    }
+
+    @Override
+    public String toString() {
+        return "EmergencyNumberDatabase{source=" + mSource + ", revision=" + mRevision
+                + ", countries=" + mCountryOffsets.size() + ", bytes=" + mData.length
+                + ", buildTimeMs=" + mBuildTimeMs + "}";
+    }
+}
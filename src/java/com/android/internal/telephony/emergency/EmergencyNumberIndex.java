@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.emergency.EmergencyNumber;
+import android.telephony.emergency.EmergencyNumber.EmergencyCallRouting;
+import android.telephony.emergency.EmergencyNumber.EmergencyServiceCategories;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of an emergency number list, used to look up a dialed number without scanning
+ * the list.
+ *
+ * The numbers are stored in a trie of dialable characters. Each number keeps the
+ * {@link EmergencyNumber}s of the list in their original order, along with the service categories
+ * and call routing resolved from their trusted sources, so a lookup only walks the characters of
+ * the dialed number and does not allocate.
+ */
+public final class EmergencyNumberIndex {
+    /** Index of an empty emergency number list. */
+    public static final EmergencyNumberIndex EMPTY =
+            new EmergencyNumberIndex(Collections.emptyList());
+
+    // Dialable characters stored in the trie, the other characters are stored in a map.
+    private static final String TRIE_CHARACTERS = "0123456789*#+";
+
+    private static final class Node {
+        private Node[] mChildren;
+        private List<EmergencyNumber> mEmergencyNumbers;
+        private @EmergencyServiceCategories int mEmergencyServiceCategories =
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED;
+        private @EmergencyCallRouting int mEmergencyCallRouting =
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+        private boolean mHasTrustedCategories;
+        private boolean mHasTrustedRouting;
+    }
+
+    private final Node mRoot = new Node();
+    // Numbers with characters that are not stored in the trie, which are not expected.
+    private final Map<String, Node> mOtherNumbers = new HashMap<>();
+    private final int mSize;
+
+    /**
+     * @param emergencyNumberList The merged emergency number list to index. The list is not
+     * modified and can be changed once the index is built.
+     */
+    public EmergencyNumberIndex(@NonNull List<EmergencyNumber> emergencyNumberList) {
+        int size = 0;
+        for (EmergencyNumber num : emergencyNumberList) {
+            Node node = getOrCreateNode(num.getNumber());
+            if (node.mEmergencyNumbers == null) {
+                node.mEmergencyNumbers = new ArrayList<>(1);
+                size++;
+            }
+            node.mEmergencyNumbers.add(num);
+            // The first number reported by a trusted source is used, as the linear scan did.
+            if (!node.mHasTrustedCategories
+                    && (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)
+                    || num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM))) {
+                node.mEmergencyServiceCategories = num.getEmergencyServiceCategoryBitmask();
+                node.mHasTrustedCategories = true;
+            }
+            if (!node.mHasTrustedRouting
+                    && num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE)) {
+                node.mEmergencyCallRouting = num.getEmergencyCallRouting();
+                node.mHasTrustedRouting = true;
+            }
+        }
+        freeze(mRoot);
+        for (Node node : mOtherNumbers.values()) {
+            freeze(node);
+        }
+        mSize = size;
+    }
+
+    private static int indexOf(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        switch (c) {
+            case '*': return 10;
+            case '#': return 11;
+            case '+': return 12;
+            default: return -1;
+        }
+    }
+
+    private Node getOrCreateNode(String number) {
+        Node node = mRoot;
+        for (int i = 0; i < number.length(); i++) {
+            int index = indexOf(number.charAt(i));
+            if (index < 0) {
+                return mOtherNumbers.computeIfAbsent(number, k -> new Node());
+            }
+            if (node.mChildren == null) {
+                node.mChildren = new Node[TRIE_CHARACTERS.length()];
+            }
+            if (node.mChildren[index] == null) {
+                node.mChildren[index] = new Node();
+            }
+            node = node.mChildren[index];
+        }
+        return node;
+    }
+
+    private static void freeze(Node node) {
+        if (node.mEmergencyNumbers != null) {
+            node.mEmergencyNumbers = Collections.unmodifiableList(node.mEmergencyNumbers);
+        }
+        if (node.mChildren != null) {
+            for (Node child : node.mChildren) {
+                if (child != null) freeze(child);
+            }
+        }
+    }
+
+    private @Nullable Node findNode(@Nullable String number) {
+        if (number == null) return null;
+        Node node = mRoot;
+        for (int i = 0; i < number.length(); i++) {
+            int index = indexOf(number.charAt(i));
+            if (index < 0) {
+                node = mOtherNumbers.get(number);
+                break;
+            }
+            if (node.mChildren == null) return null;
+            node = node.mChildren[index];
+            if (node == null) return null;
+        }
+        return node == null || node.mEmergencyNumbers == null ? null : node;
+    }
+
+    /**
+     * @param number The normalized number.
+     * @return {@code true} if the number is in the list.
+     */
+    public boolean contains(@Nullable String number) {
+        return findNode(number) != null;
+    }
+
+    /**
+     * @param number The normalized number.
+     * @return The first {@link EmergencyNumber} of the list for the number, or {@code null} if
+     * the number is not in the list.
+     */
+    public @Nullable EmergencyNumber getEmergencyNumber(@Nullable String number) {
+        Node node = findNode(number);
+        return node == null ? null : node.mEmergencyNumbers.get(0);
+    }
+
+    /**
+     * @param number The normalized number.
+     * @return The {@link EmergencyNumber}s of the list for the number, in the order of the list.
+     */
+    public @NonNull List<EmergencyNumber> getEmergencyNumbers(@Nullable String number) {
+        Node node = findNode(number);
+        return node == null ? Collections.emptyList() : node.mEmergencyNumbers;
+    }
+
+    /**
+     * @param number The normalized number.
+     * @return The service categories reported for the number by the network or the SIM.
+     */
+    public @EmergencyServiceCategories int getEmergencyServiceCategories(@Nullable String number) {
+        Node node = findNode(number);
+        return node == null ? EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED
+                : node.mEmergencyServiceCategories;
+    }
+
+    /**
+     * @param number The normalized number.
+     * @return The call routing of the number from the emergency number database.
+     */
+    public @EmergencyCallRouting int getEmergencyCallRouting(@Nullable String number) {
+        Node node = findNode(number);
+        return node == null ? EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN
+                : node.mEmergencyCallRouting;
+    }
+
+    /**
+     * @return The number of distinct numbers in the index.
+     */
+    public int size() {
+        return mSize;
+    }
+}
@@ -29,6 +29,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.CellIdentity;
 import android.telephony.PhoneNumberUtils;
@@ -63,12 +64,10 @@ import com.android.telephony.Rlog;
 import com.google.i18n.phonenumbers.ShortNumberInfo;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -77,7 +76,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Emergency Number Tracker that handles update of emergency number list from RIL and emergency
@@ -111,6 +109,10 @@ public class EmergencyNumberTracker extends Handler {
     private String mLastKnownEmergencyCountryIso = "";
     private int mCurrentDatabaseVersion = INVALID_DATABASE_VERSION;
     private int mCurrentOtaDatabaseVersion = INVALID_DATABASE_VERSION;
+    // Indexes of the emergency number databases, built when a database is first read or changed.
+    private EmergencyNumberDatabase mAssetDatabase;
+    private EmergencyNumberDatabase mOtaDatabase;
+    private long mLastDatabaseLoadTimeMs;
     private Resources mResources = null;
     /**
      * Used for storing all specific mnc's along with the list of emergency numbers
@@ -132,6 +134,8 @@ public class EmergencyNumberTracker extends Handler {
     private List<EmergencyNumber> mEmergencyNumberListWithPrefix = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromTestMode = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberList = new ArrayList<>();
+    // Index of mEmergencyNumberList, rebuilt and published with it so lookups do not scan it.
+    private volatile EmergencyNumberIndex mEmergencyNumberIndex = EmergencyNumberIndex.EMPTY;
 
     private final LocalLog mEmergencyNumberListDatabaseLocalLog = new LocalLog(16);
     private final LocalLog mEmergencyNumberListRadioLocalLog = new LocalLog(16);
@@ -543,28 +547,30 @@ public class EmergencyNumberTracker extends Handler {
         int assetsDatabaseVersion;
         Map<String, Set<String>> assetNormalRoutedNumbers = new ArrayMap<>();
 
+        long startTimeMs = SystemClock.elapsedRealtime();
         // Read the Asset emergency number database
         List<EmergencyNumber> updatedAssetEmergencyNumberList = new ArrayList<>();
-        // try-with-resource. The 2 streams are auto closeable.
-        try (BufferedInputStream inputStream = new BufferedInputStream(
-                mPhone.getContext().getAssets().open(EMERGENCY_NUMBER_DB_ASSETS_FILE));
-             GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream)) {
-            ProtobufEccData.AllInfo allEccMessages = ProtobufEccData.AllInfo.parseFrom(
-                    readInputStreamToByteArray(gzipInputStream));
-            assetsDatabaseVersion = allEccMessages.revision;
+        try {
+            if (mAssetDatabase == null) {
+                // The assets only change with the package, the index is kept until then.
+                mAssetDatabase = EmergencyNumberDatabase.build(EMERGENCY_NUMBER_DB_ASSETS_FILE,
+                        new BufferedInputStream(mPhone.getContext().getAssets().open(
+                                EMERGENCY_NUMBER_DB_ASSETS_FILE)));
+                logd("Asset emergency database is indexed: " + mAssetDatabase);
+            }
+            assetsDatabaseVersion = mAssetDatabase.getRevision();
             logd(countryIso + " asset emergency database is loaded. Ver: " + assetsDatabaseVersion
                     + " Phone Id: " + mPhone.getPhoneId() + " countryIso: " + countryIso);
-            for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
-                if (countryEccInfo.isoCode.equals(countryIso.toUpperCase(Locale.ROOT))) {
-                    for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
-                        int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
-                        if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
-                            emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
-                                    assetNormalRoutedNumbers);
-                        }
-                        updatedAssetEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
-                                eccInfo, countryIso, emergencyCallRouting));
+            ProtobufEccData.CountryInfo countryEccInfo = mAssetDatabase.getCountryInfo(countryIso);
+            if (countryEccInfo != null) {
+                for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
+                    int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+                    if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
+                        emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
+                                assetNormalRoutedNumbers);
                     }
+                    updatedAssetEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso, emergencyCallRouting));
                 }
             }
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedAssetEmergencyNumberList);
@@ -589,10 +595,10 @@ public class EmergencyNumberTracker extends Handler {
         } else {
             logd("Using Ota Emergency database. Version: " + mCurrentOtaDatabaseVersion);
         }
+        mLastDatabaseLoadTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
     }
 
     private int cacheOtaEmergencyNumberDatabase() {
-        ProtobufEccData.AllInfo allEccMessages = null;
         int otaDatabaseVersion = INVALID_DATABASE_VERSION;
         Map<String, Set<String>> otaNormalRoutedNumbers = new ArrayMap<>();
 
@@ -613,26 +619,28 @@ public class EmergencyNumberTracker extends Handler {
             }
         }
 
-        // try-with-resource. Those 3 streams are all auto closeable.
-        try (FileInputStream fileInputStream = new FileInputStream(file);
-             BufferedInputStream inputStream = new BufferedInputStream(fileInputStream);
-             GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream)) {
-            allEccMessages = ProtobufEccData.AllInfo.parseFrom(
-                    readInputStreamToByteArray(gzipInputStream));
+        // The index is built again when the OTA database file is replaced.
+        String source = file.getPath() + ":" + file.length() + ":" + file.lastModified();
+        try {
+            if (mOtaDatabase == null || !mOtaDatabase.getSource().equals(source)) {
+                mOtaDatabase = null;
+                mOtaDatabase = EmergencyNumberDatabase.build(source,
+                        new BufferedInputStream(new FileInputStream(file)));
+                logd("Ota emergency database is indexed: " + mOtaDatabase);
+            }
             String countryIso = getLastKnownEmergencyCountryIso();
+            otaDatabaseVersion = mOtaDatabase.getRevision();
             logd(countryIso + " ota emergency database is loaded. Ver: " + otaDatabaseVersion);
-            otaDatabaseVersion = allEccMessages.revision;
-            for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
-                if (countryEccInfo.isoCode.equals(countryIso.toUpperCase(Locale.ROOT))) {
-                    for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
-                        int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
-                        if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
-                            emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
-                                    otaNormalRoutedNumbers);
-                        }
-                        updatedOtaEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
-                                eccInfo, countryIso, emergencyCallRouting));
+            ProtobufEccData.CountryInfo countryEccInfo = mOtaDatabase.getCountryInfo(countryIso);
+            if (countryEccInfo != null) {
+                for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
+                    int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+                    if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
+                        emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
+                                otaNormalRoutedNumbers);
                     }
+                    updatedOtaEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso, emergencyCallRouting));
                 }
             }
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedOtaEmergencyNumberList);
@@ -652,21 +660,6 @@ public class EmergencyNumberTracker extends Handler {
         return otaDatabaseVersion;
     }
 
-    /**
-     * Util function to convert inputStream to byte array before parsing proto data.
-     */
-    private static byte[] readInputStreamToByteArray(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        int size = 16 * 1024; // Read 16k chunks
-        byte[] data = new byte[size];
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-        }
-        buffer.flush();
-        return buffer.toByteArray();
-    }
-
     private void updateRadioEmergencyNumberListAndNotify(
             List<EmergencyNumber> emergencyNumberListRadio) {
         Collections.sort(emergencyNumberListRadio);
@@ -727,6 +720,8 @@ public class EmergencyNumberTracker extends Handler {
     private void updateOtaEmergencyNumberListDatabaseAndNotify() {
         logd("updateOtaEmergencyNumberListDatabaseAndNotify():"
                 + " receiving Emegency Number database OTA update");
+        // Do not rely on the file metadata to detect the update.
+        mOtaDatabase = null;
         mCurrentOtaDatabaseVersion = cacheOtaEmergencyNumberDatabase();
         if (mCurrentOtaDatabaseVersion != INVALID_DATABASE_VERSION) {
             writeUpdatedEmergencyNumberListMetrics(mEmergencyNumberListFromDatabase);
@@ -799,6 +794,18 @@ public class EmergencyNumberTracker extends Handler {
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(mergedEmergencyNumberList, true);
         }
         mEmergencyNumberList = mergedEmergencyNumberList;
+        mEmergencyNumberIndex = new EmergencyNumberIndex(mergedEmergencyNumberList);
+    }
+
+    /**
+     * @return The index of the emergency number list, or {@code null} if the emergency number
+     * list is not the list reported by the radio as is, and has to be built for each lookup.
+     */
+    private EmergencyNumberIndex getEmergencyNumberIndex() {
+        if (mEmergencyNumberListFromRadio.isEmpty() || shouldAdjustForRouting()) {
+            return null;
+        }
+        return mEmergencyNumberIndex;
     }
 
     /**
@@ -914,11 +921,9 @@ public class EmergencyNumberTracker extends Handler {
         number = PhoneNumberUtils.extractNetworkPortionAlt(number);
 
         if (!mEmergencyNumberListFromRadio.isEmpty()) {
-            for (EmergencyNumber num : mEmergencyNumberList) {
-                if (num.getNumber().equals(number)) {
-                    logd("Found in mEmergencyNumberList");
-                    return true;
-                }
+            if (mEmergencyNumberIndex.contains(number)) {
+                logd("Found in mEmergencyNumberList");
+                return true;
             }
             return false;
         } else {
@@ -940,6 +945,10 @@ public class EmergencyNumberTracker extends Handler {
      */
     public EmergencyNumber getEmergencyNumber(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
+        EmergencyNumberIndex index = getEmergencyNumberIndex();
+        if (index != null) {
+            return index.getEmergencyNumber(emergencyNumber);
+        }
         for (EmergencyNumber num : getEmergencyNumberList()) {
             if (num.getNumber().equals(emergencyNumber)) {
                 return num;
@@ -960,6 +969,10 @@ public class EmergencyNumberTracker extends Handler {
      */
     public List<EmergencyNumber> getEmergencyNumbers(String emergencyNumber) {
         final String toFind = PhoneNumberUtils.stripSeparators(emergencyNumber);
+        EmergencyNumberIndex index = getEmergencyNumberIndex();
+        if (index != null) {
+            return index.getEmergencyNumbers(toFind);
+        }
         return getEmergencyNumberList().stream()
                 .filter(num -> num.getNumber().equals(toFind))
                 .toList();
@@ -976,6 +989,10 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyServiceCategories int getEmergencyServiceCategories(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
+        EmergencyNumberIndex index = getEmergencyNumberIndex();
+        if (index != null) {
+            return index.getEmergencyServiceCategories(emergencyNumber);
+        }
         for (EmergencyNumber num : getEmergencyNumberList()) {
             if (num.getNumber().equals(emergencyNumber)) {
                 if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)
@@ -996,6 +1013,10 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyCallRouting int getEmergencyCallRouting(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
+        EmergencyNumberIndex index = getEmergencyNumberIndex();
+        if (index != null) {
+            return index.getEmergencyCallRouting(emergencyNumber);
+        }
         for (EmergencyNumber num : getEmergencyNumberList()) {
             if (num.getNumber().equals(emergencyNumber)) {
                 if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE)) {
@@ -1351,6 +1372,9 @@ public class EmergencyNumberTracker extends Handler {
         ipw.println(" ========================================= ");
 
         ipw.println(" Database Version:" + getEmergencyNumberDbVersion());
+        ipw.println(" Asset Database:" + mAssetDatabase);
+        ipw.println(" Ota Database:" + mOtaDatabase);
+        ipw.println(" Last Database Load Time (ms):" + mLastDatabaseLoadTimeMs);
         ipw.println(" ========================================= ");
 
         ipw.println("mEmergencyNumberListDatabaseLocalLog:");
@@ -1386,6 +1410,7 @@ public class EmergencyNumberTracker extends Handler {
         ipw.println("Emergency Number List for Phone" + "(" + mPhone.getPhoneId() + ")");
         ipw.increaseIndent();
         ipw.println(getEmergencyNumberList());
+        ipw.println("Indexed numbers: " + mEmergencyNumberIndex.size());
         ipw.decreaseIndent();
         ipw.println(" ========================================= ");
 
@@ -60,6 +60,7 @@ import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.data.PhoneSwitcher;
 import com.android.internal.telephony.satellite.SatelliteController;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.telephony.Rlog;
 
 import java.lang.annotation.Retention;
@@ -91,6 +92,17 @@ public class EmergencyStateTracker {
 
     private static final int DEFAULT_TRANSPORT_CHANGE_TIMEOUT_MS = 1 * 1000;
 
+    /** Timeout before the pre-warm of an emergency call is cancelled if the call is not started. */
+    @VisibleForTesting
+    public static final int DEFAULT_PRE_WARM_TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * Maximum duration of the pre-warm of an emergency call, however long the user keeps dialing.
+     * This also bounds the age of the registration result reused by the emergency call.
+     */
+    @VisibleForTesting
+    public static final int MAX_PRE_WARM_DURATION_MS = 60 * 1000;
+
     /** The emergency types used when setting the emergency mode on modem. */
     @Retention(RetentionPolicy.SOURCE)
     @IntDef(prefix = "EMERGENCY_TYPE_",
@@ -138,6 +150,23 @@ public class EmergencyStateTracker {
     private boolean mIsTestEmergencyNumber;
     private Runnable mOnEcmExitCompleteRunnable;
     private int mOngoingCallProperties;
+    private final EmergencyCallSetupTracer mCallSetupTracer = new EmergencyCallSetupTracer();
+    // The phone on which the emergency mode was set by the pre-warm of an emergency call.
+    private Phone mPreWarmPhone;
+    // Whether setting the emergency mode for the pre-warm is in progress on the modem.
+    private boolean mIsPreWarmInProgress;
+    // Identifies the current pre-warm request. Changed when a pre-warm is started or cancelled,
+    // so the response to a cancelled request is ignored.
+    private int mPreWarmToken;
+    // Whether the emergency call waits for the emergency mode set by the pre-warm.
+    private boolean mIsEmergencyCallWaitingForPreWarm;
+    // Whether the emergency call waits for exiting the emergency mode set by the pre-warm on the
+    // other phone.
+    private boolean mIsEmergencyCallStartedDuringPreWarmExit;
+    // Whether mLastEmergencyRegistrationResult was reported when setting the pre-warm mode.
+    private boolean mIsPreWarmRegistrationResult;
+    private int mPreWarmCount;
+    private int mPreWarmUsedCount;
 
     /** For emergency SMS */
     private final Set<String> mOngoingEmergencySmsIds = new ArraySet<>();
@@ -233,6 +262,12 @@ public class EmergencyStateTracker {
     public static final int MSG_SET_EMERGENCY_CALLBACK_MODE_DONE = 3;
     /** A message which is used to automatically exit from SCBM after a period of time. */
     private static final int MSG_EXIT_SCBM = 4;
+    @VisibleForTesting
+    public static final int MSG_PRE_WARM_EMERGENCY_MODE_DONE = 5;
+    /** A message which is used to cancel the pre-warm if the emergency call is not started. */
+    private static final int MSG_PRE_WARM_TIMEOUT = 6;
+    /** A message which is used to cancel the pre-warm once it lasts too long. */
+    private static final int MSG_PRE_WARM_MAX_DURATION = 7;
 
     private class MyHandler extends Handler {
 
@@ -325,6 +360,13 @@ public class EmergencyStateTracker {
                             mOnEcmExitCompleteRunnable.run();
                             mOnEcmExitCompleteRunnable = null;
                         }
+                        if (mIsEmergencyCallStartedDuringPreWarmExit) {
+                            mIsEmergencyCallStartedDuringPreWarmExit = false;
+                            if (mPhone != null) {
+                                turnOnRadioAndSwitchDds(mPhone, EMERGENCY_TYPE_CALL,
+                                        mIsTestEmergencyNumber);
+                            }
+                        }
                     } else if (emergencyType == EMERGENCY_TYPE_SMS) {
                         if (mIsEmergencyCallStartedDuringEmergencySms) {
                             mIsEmergencyCallStartedDuringEmergencySms = false;
@@ -377,6 +419,41 @@ public class EmergencyStateTracker {
                     exitEmergencySmsCallbackModeAndEmergencyMode();
                     break;
                 }
+                case MSG_PRE_WARM_EMERGENCY_MODE_DONE: {
+                    AsyncResult ar = (AsyncResult) msg.obj;
+                    Rlog.v(TAG, "MSG_PRE_WARM_EMERGENCY_MODE_DONE");
+                    if (msg.arg1 != mPreWarmToken) {
+                        // The pre-warm was cancelled. The emergency mode may already be set again
+                        // by an emergency call, which waits for its own response.
+                        Rlog.i(TAG, "Ignore the response of a cancelled pre-warm");
+                        break;
+                    }
+                    mIsPreWarmInProgress = false;
+                    setEmergencyModeInProgress(false);
+                    if (ar.exception == null) {
+                        mLastEmergencyRegistrationResult = (EmergencyRegistrationResult) ar.result;
+                        mIsPreWarmRegistrationResult = true;
+                    } else {
+                        mLastEmergencyRegistrationResult = null;
+                        Rlog.w(TAG, "Pre-warm failed. AsyncResult.exception: " + ar.exception);
+                    }
+                    if (mIsEmergencyCallWaitingForPreWarm) {
+                        mIsEmergencyCallWaitingForPreWarm = false;
+                        setIsInEmergencyCall(true);
+                        completeEmergencyMode(EMERGENCY_TYPE_CALL);
+                    }
+                    break;
+                }
+                case MSG_PRE_WARM_TIMEOUT: {
+                    Rlog.i(TAG, "MSG_PRE_WARM_TIMEOUT");
+                    cancelPreWarmEmergencyCall();
+                    break;
+                }
+                case MSG_PRE_WARM_MAX_DURATION: {
+                    Rlog.i(TAG, "MSG_PRE_WARM_MAX_DURATION");
+                    cancelPreWarmEmergencyCall();
+                    break;
+                }
                 default:
                     break;
             }
@@ -490,6 +567,28 @@ public class EmergencyStateTracker {
         Rlog.i(TAG, "startEmergencyCall: phoneId=" + phone.getPhoneId()
                 + ", callId=" + c.getTelecomCallId());
 
+        if (mPreWarmPhone != null && mPhone == null) {
+            Phone preWarmPhone = mPreWarmPhone;
+            mPreWarmPhone = null;
+            removePreWarmTimeouts();
+            if (!isSamePhone(preWarmPhone, phone)) {
+                Rlog.i(TAG, "startEmergencyCall: exit pre-warm on phoneId="
+                        + preWarmPhone.getPhoneId());
+                invalidatePreWarmRequest();
+                mOngoingCallProperties = 0;
+                mCallEmergencyModeFuture = new CompletableFuture<>();
+                mPhone = phone;
+                mOngoingConnection = c;
+                mIsTestEmergencyNumber = isTestEmergencyNumber;
+                mCallSetupTracer.start(c.getTelecomCallId(), false);
+                // The emergency mode for this call will be set after the exit complete.
+                mIsEmergencyCallStartedDuringPreWarmExit = true;
+                exitEmergencyMode(preWarmPhone, EMERGENCY_TYPE_CALL);
+                return mCallEmergencyModeFuture;
+            }
+            mPreWarmUsedCount++;
+        }
+
         if (mPhone != null) {
             // Create new future to return as to not interfere with any uncompleted futures.
             // Case1) When 2nd emergency call is initiated during an active call on the same phone.
@@ -498,6 +597,7 @@ public class EmergencyStateTracker {
                 exitEmergencySmsCallbackMode();
                 mOngoingConnection = c;
                 mIsTestEmergencyNumber = isTestEmergencyNumber;
+                mCallSetupTracer.start(c.getTelecomCallId(), isInEcm());
                 if (isInEcm()) {
                     // Remove pending exit ECM runnable.
                     mHandler.removeCallbacks(mExitEcmRunnable);
@@ -550,6 +650,7 @@ public class EmergencyStateTracker {
                 mPhone = phone;
                 mOngoingConnection = c;
                 mIsTestEmergencyNumber = isTestEmergencyNumber;
+                mCallSetupTracer.start(c.getTelecomCallId(), false);
                 return mCallEmergencyModeFuture;
             }
         }
@@ -557,10 +658,97 @@ public class EmergencyStateTracker {
         mPhone = phone;
         mOngoingConnection = c;
         mIsTestEmergencyNumber = isTestEmergencyNumber;
+        mCallSetupTracer.start(c.getTelecomCallId(), false);
         turnOnRadioAndSwitchDds(mPhone, EMERGENCY_TYPE_CALL, mIsTestEmergencyNumber);
         return mCallEmergencyModeFuture;
     }
 
+    /**
+     * Pre-warms an emergency call while the user is dialing a number, so the emergency call is
+     * set up faster if the number is dialed.
+     *
+     * <p>
+     * If the number is an emergency number and no emergency call or SMS is in progress, the
+     * emergency mode is set on the modem, so the modem starts the emergency registration and
+     * reports its result before the call is started. The pre-warm is cancelled by
+     * {@link #cancelPreWarmEmergencyCall()}, by an emergency SMS, or after
+     * {@link #DEFAULT_PRE_WARM_TIMEOUT_MS} if the emergency call is not started. Each call of
+     * this method while the user is dialing extends the pre-warm, for at most
+     * {@link #MAX_PRE_WARM_DURATION_MS} in total.
+     *
+     * <p>
+     * The radio is not turned on and the satellite modem is not turned off by the pre-warm, as
+     * they are visible to the user. The emergency call does that if it is dialed.
+     *
+     * @param phone  the {@code Phone} on which the emergency call is likely to be placed.
+     * @param number the number being dialed.
+     * @return {@code true} if the emergency call is pre-warmed.
+     */
+    public boolean preWarmEmergencyCall(@NonNull Phone phone, @NonNull String number) {
+        if (mPreWarmPhone != null && isSamePhone(mPreWarmPhone, phone)) {
+            // Extend the pre-warm while the user is dialing, up to MAX_PRE_WARM_DURATION_MS.
+            mHandler.removeMessages(MSG_PRE_WARM_TIMEOUT);
+            mHandler.sendEmptyMessageDelayed(MSG_PRE_WARM_TIMEOUT, DEFAULT_PRE_WARM_TIMEOUT_MS);
+            return true;
+        }
+        if (mPreWarmPhone != null || mPhone != null || mSmsPhone != null || isInEcm()
+                || isInScbm() || isInEmergencyMode() || isEmergencyModeInProgress()) {
+            Rlog.i(TAG, "preWarmEmergencyCall: emergency state is not idle");
+            return false;
+        }
+        EmergencyNumberTracker emergencyNumberTracker = phone.getEmergencyNumberTracker();
+        if (emergencyNumberTracker == null || !emergencyNumberTracker.isEmergencyNumber(number)) {
+            return false;
+        }
+        if (!phone.isRadioOn() || isAirplaneModeOn(mContext)
+                || SatelliteController.getInstance().isSatelliteEnabled()) {
+            Rlog.i(TAG, "preWarmEmergencyCall: radio is not available");
+            return false;
+        }
+
+        Rlog.i(TAG, "preWarmEmergencyCall: phoneId=" + phone.getPhoneId());
+        mPreWarmCount++;
+        mPreWarmPhone = phone;
+        mPreWarmToken++;
+        mIsPreWarmInProgress = true;
+        mIsPreWarmRegistrationResult = false;
+        setEmergencyMode(phone, EMERGENCY_TYPE_CALL, MODE_EMERGENCY_WWAN,
+                MSG_PRE_WARM_EMERGENCY_MODE_DONE);
+        mHandler.sendEmptyMessageDelayed(MSG_PRE_WARM_TIMEOUT, DEFAULT_PRE_WARM_TIMEOUT_MS);
+        mHandler.sendEmptyMessageDelayed(MSG_PRE_WARM_MAX_DURATION, MAX_PRE_WARM_DURATION_MS);
+        return true;
+    }
+
+    /**
+     * Cancels the pre-warm of an emergency call, if the emergency call is not started.
+     */
+    public void cancelPreWarmEmergencyCall() {
+        if (mPreWarmPhone == null) {
+            return;
+        }
+        Rlog.i(TAG, "cancelPreWarmEmergencyCall: phoneId=" + mPreWarmPhone.getPhoneId());
+        Phone phone = mPreWarmPhone;
+        mPreWarmPhone = null;
+        invalidatePreWarmRequest();
+        removePreWarmTimeouts();
+        exitEmergencyMode(phone, EMERGENCY_TYPE_CALL);
+    }
+
+    private void removePreWarmTimeouts() {
+        mHandler.removeMessages(MSG_PRE_WARM_TIMEOUT);
+        mHandler.removeMessages(MSG_PRE_WARM_MAX_DURATION);
+    }
+
+    /**
+     * Ignores the response to the pre-warm request in progress, as the emergency mode set by the
+     * pre-warm is exited or was consumed by an emergency call which ended.
+     */
+    private void invalidatePreWarmRequest() {
+        mPreWarmToken++;
+        mIsPreWarmInProgress = false;
+        mIsPreWarmRegistrationResult = false;
+    }
+
     /**
      * Ends emergency call.
      *
@@ -572,6 +760,7 @@ public class EmergencyStateTracker {
      */
     public void endCall(@NonNull android.telecom.Connection c) {
         boolean wasActive = mActiveEmergencyCalls.remove(c);
+        mCallSetupTracer.end(c.getTelecomCallId());
 
         if (Objects.equals(mOngoingConnection, c)) {
             mOngoingConnection = null;
@@ -611,6 +800,9 @@ public class EmergencyStateTracker {
     }
 
     private void clearEmergencyCallInfo() {
+        mIsEmergencyCallWaitingForPreWarm = false;
+        mIsEmergencyCallStartedDuringPreWarmExit = false;
+        invalidatePreWarmRequest();
         mEmergencyCallDomain = NetworkRegistrationInfo.DOMAIN_UNKNOWN;
         mIsTestEmergencyNumber = false;
         mIsEmergencyCallStartedDuringEmergencySms = false;
@@ -623,6 +815,9 @@ public class EmergencyStateTracker {
     private void switchDdsAndSetEmergencyMode(Phone phone, @EmergencyType int emergencyType) {
         switchDdsDelayed(phone, result -> {
             Rlog.i(TAG, "switchDdsDelayed: result = " + result);
+            if (emergencyType == EMERGENCY_TYPE_CALL) {
+                mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_DDS_SWITCHED);
+            }
             if (!result) {
                 // DDS Switch timed out/failed, but continue with call as it may still succeed.
                 Rlog.e(TAG, "DDS Switch failed.");
@@ -635,12 +830,22 @@ public class EmergencyStateTracker {
             if (mEmergencyMode != MODE_EMERGENCY_WWAN) {
                 setEmergencyMode(phone, emergencyType, MODE_EMERGENCY_WWAN,
                         MSG_SET_EMERGENCY_MODE_DONE);
+            } else if (emergencyType == EMERGENCY_TYPE_CALL && mIsPreWarmInProgress) {
+                // Completes once the emergency mode set by the pre-warm is set on the modem.
+                mIsEmergencyCallWaitingForPreWarm = true;
             } else {
-                // Ensure that domain selector requests the network scan.
-                mLastEmergencyRegistrationResult = new EmergencyRegistrationResult(
-                        AccessNetworkConstants.AccessNetworkType.UNKNOWN,
-                        NetworkRegistrationInfo.REGISTRATION_STATE_UNKNOWN,
-                        NetworkRegistrationInfo.DOMAIN_UNKNOWN, false, false, 0, 0, "", "", "");
+                if (emergencyType == EMERGENCY_TYPE_CALL && mIsPreWarmRegistrationResult) {
+                    // The domain selector uses the result reported when the emergency mode was
+                    // set by the pre-warm, instead of requesting the network scan.
+                    mIsPreWarmRegistrationResult = false;
+                } else {
+                    // Ensure that domain selector requests the network scan.
+                    mLastEmergencyRegistrationResult = new EmergencyRegistrationResult(
+                            AccessNetworkConstants.AccessNetworkType.UNKNOWN,
+                            NetworkRegistrationInfo.REGISTRATION_STATE_UNKNOWN,
+                            NetworkRegistrationInfo.DOMAIN_UNKNOWN, false, false, 0, 0, "", "",
+                            "");
+                }
                 if (emergencyType == EMERGENCY_TYPE_CALL) {
                     setIsInEmergencyCall(true);
                 }
@@ -671,6 +876,9 @@ public class EmergencyStateTracker {
         setEmergencyModeInProgress(true);
 
         Message m = mHandler.obtainMessage(msg, Integer.valueOf(emergencyType));
+        if (msg == MSG_PRE_WARM_EMERGENCY_MODE_DONE) {
+            m.arg1 = mPreWarmToken;
+        }
         if (mIsTestEmergencyNumberForSms && emergencyType == EMERGENCY_TYPE_SMS) {
             Rlog.d(TAG, "TestEmergencyNumber for " + emergencyTypeToString(emergencyType)
                     + ": Skipping setting emergency mode on modem.");
@@ -724,7 +932,12 @@ public class EmergencyStateTracker {
             }
 
             if (result != DisconnectCause.NOT_DISCONNECTED) {
+                if (mOngoingConnection != null) {
+                    mCallSetupTracer.end(mOngoingConnection.getTelecomCallId());
+                }
                 clearEmergencyCallInfo();
+            } else {
+                mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_EMERGENCY_MODE_SET);
             }
         } else if (emergencyType == EMERGENCY_TYPE_SMS) {
             if (mSmsEmergencyModeFuture != null && !mSmsEmergencyModeFuture.isDone()) {
@@ -903,6 +1116,7 @@ public class EmergencyStateTracker {
             Phone phone = null;
             if (emergencyType == EMERGENCY_TYPE_CALL) {
                 phone = mPhone;
+                mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_DOMAIN_SELECTED);
             } else if (emergencyType == EMERGENCY_TYPE_SMS) {
                 phone = mSmsPhone;
             }
@@ -924,6 +1138,9 @@ public class EmergencyStateTracker {
      */
     public void onEmergencyCallDomainUpdated(int phoneType, android.telecom.Connection c) {
         Rlog.d(TAG, "domain update for callId: " + c.getTelecomCallId());
+        if (Objects.equals(mOngoingConnection, c)) {
+            mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_DIALED);
+        }
         int domain = -1;
         switch(phoneType) {
             case (PhoneConstants.PHONE_TYPE_CDMA_LTE):
@@ -958,6 +1175,7 @@ public class EmergencyStateTracker {
             mActiveEmergencyCalls.add(c);
             if (Objects.equals(mOngoingConnection, c)) {
                 Rlog.i(TAG, "call connected " + c.getTelecomCallId());
+                mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_CONNECTED);
                 if (mPhone != null
                         && isVoWiFi(mOngoingCallProperties)
                         && mEmergencyMode == EmergencyConstants.MODE_EMERGENCY_WLAN) {
@@ -1177,6 +1395,7 @@ public class EmergencyStateTracker {
             boolean isTestEmergencyNumber) {
         Rlog.i(TAG, "startEmergencySms: phoneId=" + phone.getPhoneId() + ", smsId=" + smsId
                 + ", scbm=" + isInScbm());
+        cancelPreWarmEmergencyCall();
 
         // When an emergency call is in progress, it checks whether an emergency call is already in
         // progress on the different phone.
@@ -1457,6 +1676,9 @@ public class EmergencyStateTracker {
                                     + expectedConnection.getTelecomCallId() + " canceled.");
                             return;
                         }
+                        if (emergencyType == EMERGENCY_TYPE_CALL) {
+                            mCallSetupTracer.mark(EmergencyCallSetupTracer.PHASE_RADIO_ON);
+                        }
                         switchDdsAndSetEmergencyMode(phone, emergencyType);
                     }
                 }
@@ -1723,4 +1945,21 @@ public class EmergencyStateTracker {
         Rlog.i(TAG, "updateNoSimEcbmSupported preference updated slotIndex=" + slotIndex
                 + ", supported=" + carrierConfig);
     }
+
+    /**
+     * Dump the emergency state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("mEmergencyMode=" + mEmergencyMode + ", mIsInEmergencyCall=" + mIsInEmergencyCall
+                + ", mIsInEcm=" + mIsInEcm + ", mIsInScbm=" + mIsInScbm);
+        pw.println("mPreWarmPhone=" + (mPreWarmPhone == null ? null : mPreWarmPhone.getPhoneId())
+                + ", mPreWarmCount=" + mPreWarmCount + ", mPreWarmUsedCount="
+                + mPreWarmUsedCount);
+        pw.println("Emergency call setup traces:");
+        pw.increaseIndent();
+        mCallSetupTracer.dump(pw);
+        pw.decreaseIndent();
+    }
 }
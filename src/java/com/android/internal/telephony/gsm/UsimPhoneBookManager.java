@@ -62,7 +62,9 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
     // SFI to ADN Efid mapping table
     private SparseIntArray mSfiEfidTable;
 
-    private boolean mRefreshCache = false;
+    // Results of the EF_ADN loads in flight, indexed by PBR record.
+    private ArrayList<AdnRecord>[] mAdnLoadResults;
+    private int mNumPendingAdnLoads;
 
 
     private static final int EVENT_PBR_LOAD_DONE = 1;
@@ -133,7 +135,6 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         mEmailFileRecord = null;
         mPbrRecords = null;
         mIsPbrPresent = true;
-        mRefreshCache = false;
         mEmailsForAdnRec.clear();
         mSfiEfidTable.clear();
     }
@@ -143,10 +144,6 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
     public ArrayList<AdnRecord> loadEfFilesFromUsim() {
         synchronized (mLock) {
             if (!mPhoneBookRecords.isEmpty()) {
-                if (mRefreshCache) {
-                    mRefreshCache = false;
-                    refreshCache();
-                }
                 return mPhoneBookRecords;
             }
 
@@ -164,8 +161,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
             int numRecs = mPbrRecords.size();
 
             log("loadEfFilesFromUsim: Loading adn and emails");
+            readAdnFilesAndWait();
             for (int i = 0; i < numRecs; i++) {
-                readAdnFileAndWait(i);
                 readEmailFileAndWait(i);
             }
 
@@ -175,20 +172,26 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         return mPhoneBookRecords;
     }
 
-    // Refresh the phonebook cache.
-    private void refreshCache() {
-        if (mPbrRecords == null) return;
-        mPhoneBookRecords.clear();
-
-        int numRecs = mPbrRecords.size();
-        for (int i = 0; i < numRecs; i++) {
-            readAdnFileAndWait(i);
+    /**
+     * Called when an ADN record was written to the USIM, to update the phonebook cache.
+     *
+     * @param efid The EF_ADN the record belongs to.
+     * @param recordNumber The 1-based record number.
+     * @param adn The new record.
+     * @return The position of the record in the phonebook, or -1 if it is not loaded.
+     */
+    public int onAdnRecordUpdated(int efid, int recordNumber, AdnRecord adn) {
+        synchronized (mLock) {
+            int size = mPhoneBookRecords.size();
+            for (int i = 0; i < size; i++) {
+                AdnRecord rec = mPhoneBookRecords.get(i);
+                if (rec.getEfid() == efid && rec.getRecId() == recordNumber) {
+                    mPhoneBookRecords.set(i, adn);
+                    return i;
+                }
+            }
         }
-    }
-
-    // Invalidate the phonebook cache.
-    public void invalidateCache() {
-        mRefreshCache = true;
+        return -1;
     }
 
     // Read the phonebook reference file EF_PBR.
@@ -467,35 +470,48 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         return IccUtils.adnStringFieldToString(emailRec, 0, emailRec.length - 2);
     }
 
-    // Read EF_ADN file
-    private void readAdnFileAndWait(int recId) {
-        SparseArray<File> files;
-        files = mPbrRecords.get(recId).mFileIds;
-        if (files == null || files.size() == 0) return;
+    // Read the EF_ADN files of all the PBR records. The loads are requested together, so the
+    // files of a multi-PBR USIM are not read one round trip after the other.
+    private void readAdnFilesAndWait() {
+        int numRecs = mPbrRecords.size();
+        mAdnLoadResults = new ArrayList[numRecs];
+        mNumPendingAdnLoads = 0;
+        for (int i = 0; i < numRecs; i++) {
+            SparseArray<File> files = mPbrRecords.get(i).mFileIds;
+            if (files == null || files.get(USIM_EFADN_TAG) == null) continue;
 
-        int extEf = 0;
-        // Only call fileIds.get while EF_EXT1_TAG is available
-        if (files.get(USIM_EFEXT1_TAG) != null) {
-            extEf = files.get(USIM_EFEXT1_TAG).getEfid();
-        }
+            int extEf = 0;
+            // Only call fileIds.get while EF_EXT1_TAG is available
+            if (files.get(USIM_EFEXT1_TAG) != null) {
+                extEf = files.get(USIM_EFEXT1_TAG).getEfid();
+            }
 
-        if (files.get(USIM_EFADN_TAG) == null)
-            return;
+            mNumPendingAdnLoads++;
+            mAdnCache.requestLoadAllAdnLike(files.get(USIM_EFADN_TAG).getEfid(),
+                    extEf, obtainMessage(EVENT_USIM_ADN_LOAD_DONE, i, 0));
+        }
 
-        int previousSize = mPhoneBookRecords.size();
-        mAdnCache.requestLoadAllAdnLike(files.get(USIM_EFADN_TAG).getEfid(),
-            extEf, obtainMessage(EVENT_USIM_ADN_LOAD_DONE));
-        try {
-            mLock.wait();
-        } catch (InterruptedException e) {
-            Rlog.e(LOG_TAG, "Interrupted Exception in readAdnFileAndWait");
+        while (mNumPendingAdnLoads > 0) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                Rlog.e(LOG_TAG, "Interrupted Exception in readAdnFilesAndWait");
+                break;
+            }
         }
 
-        /**
-         * The recent added ADN record # would be the reference record size
-         * for the rest of EFs associated within this PBR.
-         */
-        mPbrRecords.get(recId).mMainFileRecordNum = mPhoneBookRecords.size() - previousSize;
+        for (int i = 0; i < numRecs; i++) {
+            ArrayList<AdnRecord> records = mAdnLoadResults[i];
+            /**
+             * The ADN record # would be the reference record size
+             * for the rest of EFs associated within this PBR.
+             */
+            mPbrRecords.get(i).mMainFileRecordNum = records == null ? 0 : records.size();
+            if (records != null) {
+                mPhoneBookRecords.addAll(records);
+            }
+        }
+        mAdnLoadResults = null;
     }
 
     // Create the phonebook reference file based on EF_PBR
@@ -545,10 +561,12 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         case EVENT_USIM_ADN_LOAD_DONE:
             log("Loading USIM ADN records done");
             ar = (AsyncResult) msg.obj;
-            if (ar.exception == null) {
-                mPhoneBookRecords.addAll((ArrayList<AdnRecord>)ar.result);
-            }
             synchronized (mLock) {
+                if (mAdnLoadResults == null) break;
+                if (ar.exception == null) {
+                    mAdnLoadResults[msg.arg1] = (ArrayList<AdnRecord>) ar.result;
+                }
+                mNumPendingAdnLoads--;
                 mLock.notify();
             }
             break;
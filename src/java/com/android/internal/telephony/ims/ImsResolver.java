@@ -24,6 +24,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -35,6 +36,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
@@ -441,6 +443,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
 
     private boolean mBootCompletedHandlerRan = false;
     private boolean mCarrierConfigReceived = false;
+    // Startup trace, in elapsed realtime milliseconds. Only accessed on the handler thread.
+    private long mInitializedTimeMs;
+    private long mDiscoveryDurationMs;
 
     // Synchronize all events on a handler to ensure that the cache includes the most recent
     // version of the installed ImsServices.
@@ -456,11 +461,14 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
             switch (msg.what) {
                 case HANDLER_ADD_PACKAGE: {
                     String packageName = (String) msg.obj;
+                    // The features of a changed package must be queried again.
+                    if (packageName != null) mFeatureCache.removePackage(packageName);
                     maybeAddedImsService(packageName);
                     break;
                 }
                 case HANDLER_REMOVE_PACKAGE: {
                     String packageName = (String) msg.obj;
+                    mFeatureCache.removePackage(packageName);
                     maybeRemovedImsService(packageName);
                     break;
                 }
@@ -497,7 +505,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 }
                 case HANDLER_START_DYNAMIC_FEATURE_QUERY: {
                     ImsServiceInfo info = (ImsServiceInfo) msg.obj;
-                    startDynamicQuery(info);
+                    startDynamicQuery(info, msg.arg1 == 1 /*useCachedFeatures*/);
                     break;
                 }
                 case HANDLER_DYNAMIC_FEATURE_CHANGE: {
@@ -577,6 +585,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
     // Active ImsServiceControllers, which are bound to ImsServices.
     private final Map<ComponentName, ImsServiceController> mActiveControllers = new HashMap<>();
     private ImsServiceFeatureQueryManager mFeatureQueryManager;
+    // Features returned by the dynamic queries, persisted across reboots. Only accessed on the
+    // handler thread.
+    private ImsServiceFeatureCache mFeatureCache;
     private final SparseIntArray mSlotIdToSubIdMap;
 
     public ImsResolver(Context context, String defaultMmTelPackageName,
@@ -603,6 +614,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         for (int i = 0; i < mNumSlots; i++) {
             mSlotIdToSubIdMap.put(i, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         }
+        mFeatureCache = new ImsServiceFeatureCache(context);
     }
 
     @VisibleForTesting
@@ -630,6 +642,11 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         mDynamicQueryManagerFactory = m;
     }
 
+    @VisibleForTesting
+    public void setImsServiceFeatureCache(ImsServiceFeatureCache cache) {
+        mFeatureCache = cache;
+    }
+
     /**
      * Needs to be called after the constructor to kick off the process of binding to ImsServices.
      * Should be run on the handler thread of ImsResolver
@@ -645,7 +662,11 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 HANDLER_MSIM_CONFIGURATION_CHANGE, null);
         mFeatureQueryManager = mDynamicQueryManagerFactory.create(mContext, mDynamicQueryListener);
 
+        mInitializedTimeMs = SystemClock.elapsedRealtime();
         updateInstalledServicesCache();
+        mDiscoveryDurationMs = SystemClock.elapsedRealtime() - mInitializedTimeMs;
+        mEventLog.log("initialize - discovered " + mInstalledServicesCache.size()
+                + " ImsServices in " + mDiscoveryDurationMs + " mS");
 
         IntentFilter appChangedFilter = new IntentFilter();
         appChangedFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
@@ -717,8 +738,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     if (info != null && info.featureFromMetadata) {
                         hasConfigChanged = true;
                     } else {
-                        // Config will change when this query completes
-                        scheduleQueryForFeatures(info);
+                        // Config will change when this query completes. The features cached
+                        // before the reboot are still valid if the package did not change.
+                        scheduleQueryForFeatures(info, 0, true /*useCachedFeatures*/);
                     }
                 }
             }
@@ -1119,6 +1141,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
     private void maybeAddedImsService(String packageName) {
         Log.d(TAG, "maybeAddedImsService, packageName: " + packageName);
         List<ImsServiceInfo> infos = getImsServiceInfo(packageName);
+        // The cached features can be used for the scan of all the packages at boot. The cached
+        // features of a changed package were removed.
+        boolean useCachedFeatures = packageName == null;
         // Wait until all ImsServiceInfo is cached before calling
         // calculateFeatureConfigurationChange to reduce churn.
         boolean requiresCalculation = false;
@@ -1143,7 +1168,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 } else {
                     mEventLog.log("maybeAddedImsService - scheduling query for " + info);
                     // start a query to get ImsService features
-                    scheduleQueryForFeatures(info);
+                    scheduleQueryForFeatures(info, 0, useCachedFeatures);
                 }
             } else {
                 Log.i(TAG, "Adding newly added ImsService to cache: " + info.name);
@@ -1154,7 +1179,7 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 } else {
                     // newly added ImsServiceInfo that has not had features queried yet. Start async
                     // bind and query features.
-                    scheduleQueryForFeatures(info);
+                    scheduleQueryForFeatures(info, 0, useCachedFeatures);
                 }
             }
         }
@@ -1236,9 +1261,12 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                 controller = info.controllerFactory.create(mContext, info.name, this, mRepo);
                 Log.i(TAG, "Binding ImsService: " + controller.getComponentName()
                         + " with features: " + features);
+                // A single controller binds the ImsService for the features of all the slots. The
+                // bind does not wait for the ImsService, so the ImsServices bind concurrently.
                 controller.bind(features, slotIdToSubIdMap);
                 mEventLog.log("bindImsServiceWithFeatures - create new controller: "
-                        + controller);
+                        + controller + ", +" + (SystemClock.elapsedRealtime() - mInitializedTimeMs)
+                        + " mS since initialize");
             }
             mActiveControllers.put(info.name, controller);
         }
@@ -1505,16 +1533,25 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
 
     /**
      * Schedules a query for dynamic ImsService features.
+     *
+     * @param useCachedFeatures Whether the features cached for the same package version can be
+     * used instead of querying the ImsService.
      */
-    private void scheduleQueryForFeatures(ImsServiceInfo service, int delayMs) {
+    private void scheduleQueryForFeatures(ImsServiceInfo service, int delayMs,
+            boolean useCachedFeatures) {
         if (service == null) {
             return;
         }
-        Message msg = Message.obtain(mHandler, HANDLER_START_DYNAMIC_FEATURE_QUERY, service);
+        Message msg = Message.obtain(mHandler, HANDLER_START_DYNAMIC_FEATURE_QUERY,
+                useCachedFeatures ? 1 : 0, 0, service);
         if (mHandler.hasMessages(HANDLER_START_DYNAMIC_FEATURE_QUERY, service)) {
-            Log.d(TAG, "scheduleQueryForFeatures: dynamic query for " + service.name
-                    + " already scheduled");
-            return;
+            if (useCachedFeatures) {
+                Log.d(TAG, "scheduleQueryForFeatures: dynamic query for " + service.name
+                        + " already scheduled");
+                return;
+            }
+            // The scheduled query may use the cached features, replace it.
+            mHandler.removeMessages(HANDLER_START_DYNAMIC_FEATURE_QUERY, service);
         }
         Log.d(TAG, "scheduleQueryForFeatures: starting dynamic query for " + service.name
                 + " in " + delayMs + "ms.");
@@ -1530,6 +1567,10 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         scheduleQueryForFeatures(service, delayMs);
     }
 
+    private void scheduleQueryForFeatures(ImsServiceInfo service, int delayMs) {
+        scheduleQueryForFeatures(service, delayMs, false /*useCachedFeatures*/);
+    }
+
     private void scheduleQueryForFeatures(ImsServiceInfo service) {
         scheduleQueryForFeatures(service, 0);
     }
@@ -1604,8 +1645,9 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         }
     }
 
-    // Starts a dynamic query. Called from handler ONLY.
-    private void startDynamicQuery(ImsServiceInfo service) {
+    // Starts a dynamic query, or applies the cached features of the ImsService if
+    // useCachedFeatures is true and they are valid. Called from handler ONLY.
+    private void startDynamicQuery(ImsServiceInfo service, boolean useCachedFeatures) {
         // if not current device/carrier service, don't perform query. If this changes, this method
         // will be called again.
         if (!isDeviceService(service) && getSlotsForActiveCarrierService(service).isEmpty()) {
@@ -1613,6 +1655,18 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     + " set as carrier/device ImsService.");
             return;
         }
+        String version = useCachedFeatures ? getPackageVersion(service.name.getPackageName())
+                : null;
+        Set<ImsFeatureConfiguration.FeatureSlotPair> cachedFeatures = version == null
+                ? null : mFeatureCache.get(service.name, version, mNumSlots);
+        // An ImsService without features is not bound, so it could not report a change of its
+        // features. Always query it.
+        if (cachedFeatures != null && !cachedFeatures.isEmpty()) {
+            mEventLog.log("startDynamicQuery - using cached features for " + service.name
+                    + printFeatures(cachedFeatures));
+            updateDynamicFeatures(service, cachedFeatures);
+            return;
+        }
         mEventLog.log("startDynamicQuery - starting query for " + service);
         boolean queryStarted = mFeatureQueryManager.startQuery(service.name,
                 service.controllerFactory.getServiceInterface());
@@ -1635,8 +1689,21 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
                     + name);
             return;
         }
+        String version = getPackageVersion(name.getPackageName());
+        if (version != null) {
+            Set<ImsFeatureConfiguration.FeatureSlotPair> sanitizedFeatures =
+                    new HashSet<>(features);
+            sanitizeFeatureConfig(sanitizedFeatures);
+            mFeatureCache.put(name, version, mNumSlots, sanitizedFeatures);
+        }
+        updateDynamicFeatures(service, features);
+    }
+
+    // Update the features of a dynamically queried service. Called from handler ONLY.
+    private void updateDynamicFeatures(ImsServiceInfo service,
+            Set<ImsFeatureConfiguration.FeatureSlotPair> features) {
         sanitizeFeatureConfig(features);
-        mEventLog.log("dynamicQueryComplete: for package " + name + ", features: "
+        mEventLog.log("dynamicQueryComplete: for package " + service.name + ", features: "
                 + printFeatures(service.getSupportedFeatures()) + " -> " + printFeatures(features));
         // Add features to service
         service.replaceFeatures(features);
@@ -1719,6 +1786,17 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         }
     }
 
+    // Return the version of the package, or null if it is not installed. The last update time is
+    // part of the version, since debug builds do not always change the version code.
+    private String getPackageVersion(String packageName) {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            return info == null ? null : info.getLongVersionCode() + "/" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
     // Return the ImsServiceInfo specified for the package name. If the package name is null,
     // get all packages that support ImsServices.
     private List<ImsServiceInfo> getImsServiceInfo(String packageName) {
@@ -1849,12 +1927,17 @@ public class ImsResolver implements ImsServiceController.ImsServiceControllerCal
         }
         pw.decreaseIndent();
         pw.decreaseIndent();
+        pw.println("Discovery: " + mDiscoveryDurationMs + " mS");
         pw.println("Cached ImsServices:");
         pw.increaseIndent();
         for (ImsServiceInfo i : mInstalledServicesCache.values()) {
             pw.println(i);
         }
         pw.decreaseIndent();
+        pw.println("Feature cache:");
+        pw.increaseIndent();
+        mFeatureCache.dump(pw);
+        pw.decreaseIndent();
         pw.println("Active controllers:");
         pw.increaseIndent();
         for (ImsServiceController c : mActiveControllers.values()) {
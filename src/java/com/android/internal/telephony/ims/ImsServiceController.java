@@ -29,6 +29,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.permission.LegacyPermissionManager;
 import android.telephony.AnomalyReporter;
@@ -49,14 +50,16 @@ import com.android.ims.ImsFeatureContainer;
 import com.android.ims.internal.IImsFeatureStatusCallback;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ExponentialBackoff;
-import com.android.internal.telephony.util.TelephonyUtils;
 
 import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -126,6 +129,7 @@ public class ImsServiceController {
                 mIsBinding = false;
                 try {
                     mLocalLog.log("onServiceConnectedInternal");
+                    mServiceConnectedTimeMs = SystemClock.elapsedRealtime();
                     Log.d(LOG_TAG, "ImsService(" + name
                             + "): onServiceConnectedInternal with binder: " + service);
                     setServiceController(service);
@@ -137,6 +141,7 @@ public class ImsServiceController {
                                 mServiceCapabilities);
                         addImsServiceFeature(i, caps, mSlotIdToSubIdMap.get(i.slotId));
                     }
+                    mFeaturesCreatedTimeMs = SystemClock.elapsedRealtime();
                 } catch (RemoteException e) {
                     mIsBound = false;
                     mIsBinding = false;
@@ -254,6 +259,16 @@ public class ImsServiceController {
         long getMaximumDelay();
     }
 
+    /**
+     * Grants the runtime permissions to the ImsService, see
+     * {@link LegacyPermissionManager#grantDefaultPermissionsToEnabledImsServices}.
+     */
+    @VisibleForTesting
+    public interface PermissionGranter {
+        void grantDefaultPermissionsToEnabledImsServices(String[] packageNames, UserHandle user,
+                Executor executor, Consumer<Boolean> callback);
+    }
+
     private static final String LOG_TAG = "ImsServiceController";
     private static final int REBIND_START_DELAY_MS = 2 * 1000; // 2 seconds
     private static final int REBIND_MAXIMUM_DELAY_MS = 60 * 1000; // 1 minute
@@ -264,7 +279,8 @@ public class ImsServiceController {
     private final ComponentName mComponentName;
     private final HandlerThread mHandlerThread = new HandlerThread("ImsServiceControllerHandler");
     private final Handler mHandler;
-    private final LegacyPermissionManager mPermissionManager;
+    private PermissionGranter mPermissionGranter;
+    private long mChangePermissionTimeoutMs = CHANGE_PERMISSION_TIMEOUT_MS;
     private ImsFeatureBinderRepository mRepo;
     private ImsServiceControllerCallbacks mCallbacks;
     private ExponentialBackoff mBackoff;
@@ -282,6 +298,17 @@ public class ImsServiceController {
     // Only added or removed, never accessed on purpose.
     private Set<ImsFeatureStatusCallback> mFeatureStatusCallbacks = new HashSet<>();
     private final LocalLog mLocalLog = new LocalLog(8);
+    // Bind waiting for the permissions to be granted to the ImsService.
+    private Runnable mPendingBindRunnable;
+
+    // Startup trace of the last bind, in elapsed realtime milliseconds, 0 until the step happens.
+    private long mBindRequestedTimeMs;
+    private long mPermissionsGrantedTimeMs;
+    private long mServiceConnectedTimeMs;
+    private long mFeaturesCreatedTimeMs;
+    // Not guarded by mLock, updated from the feature status callbacks.
+    private final Map<ImsFeatureConfiguration.FeatureSlotPair, Long> mFeatureReadyTimesMs =
+            new ConcurrentHashMap<>();
 
     protected final Object mLock = new Object();
     protected final Context mContext;
@@ -313,6 +340,10 @@ public class ImsServiceController {
                 Log.i(LOG_TAG, "notifyImsFeatureStatus: slot=" + mSlotId + ", feature="
                         + ImsFeature.FEATURE_LOG_MAP.get(mFeatureType) + ", status="
                         + ImsFeature.STATE_LOG_MAP.get(featureStatus));
+                if (featureStatus == ImsFeature.STATE_READY) {
+                    mFeatureReadyTimesMs.putIfAbsent(new ImsFeatureConfiguration.FeatureSlotPair(
+                            mSlotId, mFeatureType), SystemClock.elapsedRealtime());
+                }
                 mRepo.notifyFeatureStateChanged(mSlotId, mFeatureType, featureStatus);
             }
         };
@@ -365,8 +396,11 @@ public class ImsServiceController {
                 2, /* multiplier */
                 mHandler,
                 mRestartImsServiceRunnable);
-        mPermissionManager = (LegacyPermissionManager) mContext.getSystemService(
-                Context.LEGACY_PERMISSION_SERVICE);
+        LegacyPermissionManager permissionManager = (LegacyPermissionManager)
+                mContext.getSystemService(Context.LEGACY_PERMISSION_SERVICE);
+        if (permissionManager != null) {
+            mPermissionGranter = permissionManager::grantDefaultPermissionsToEnabledImsServices;
+        }
         mRepo = repo;
         mImsEnablementTracker = new ImsEnablementTracker(mHandlerThread.getLooper(), componentName);
         mPackageManager = mContext.getPackageManager();
@@ -394,7 +428,6 @@ public class ImsServiceController {
                 2, /* multiplier */
                 handler,
                 mRestartImsServiceRunnable);
-        mPermissionManager = null;
         mRepo = repo;
         mImsEnablementTracker = new ImsEnablementTracker(handler.getLooper(), componentName);
     }
@@ -418,39 +451,54 @@ public class ImsServiceController {
                 mSlotIdToSubIdMap = slotIdToSubIdMap;
                 // Set the number of slots that support the feature
                 mImsEnablementTracker.setNumOfSlots(mSlotIdToSubIdMap.size());
-                grantPermissionsToService();
-                Intent imsServiceIntent = new Intent(getServiceInterface()).setComponent(
-                        mComponentName);
-                mImsServiceConnection = new ImsServiceConnection();
-                int serviceFlags = Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE
-                        | Context.BIND_IMPORTANT;
-                mLocalLog.log("binding " + imsFeatureSet);
-                Log.i(LOG_TAG, "Binding ImsService:" + mComponentName);
-                try {
-                    boolean bindSucceeded = mContext.bindService(imsServiceIntent,
-                            mImsServiceConnection, serviceFlags);
-                    if (!bindSucceeded) {
-                        mLocalLog.log("    binding failed, retrying in "
-                                + mBackoff.getCurrentDelay() + " mS");
-                        mIsBinding = false;
-                        mBackoff.notifyFailed();
-                    }
-                    return bindSucceeded;
-                } catch (Exception e) {
-                    mBackoff.notifyFailed();
-                    mLocalLog.log("    binding exception=" + e.getMessage() + ", retrying in "
-                            + mBackoff.getCurrentDelay() + " mS");
-                    Log.e(LOG_TAG, "Error binding (" + mComponentName + ") with exception: "
-                            + e.getMessage() + ", rebinding in " + mBackoff.getCurrentDelay()
-                            + " ms");
-                    return false;
+                mBindRequestedTimeMs = SystemClock.elapsedRealtime();
+                mPermissionsGrantedTimeMs = 0;
+                mServiceConnectedTimeMs = 0;
+                mFeaturesCreatedTimeMs = 0;
+                mFeatureReadyTimesMs.clear();
+                if (mPermissionGranter != null) {
+                    // Granting the permissions can take a while. Do not block the caller, which
+                    // may have other ImsServices to bind, and bind once they are granted.
+                    grantPermissionsToServiceThenBind();
+                    return true;
                 }
+                return bindService();
             } else {
                 return false;
             }
         }
     }
 
+    // This method should only be called when synchronized on mLock
+    private boolean bindService() {
+        Intent imsServiceIntent = new Intent(getServiceInterface()).setComponent(
+                mComponentName);
+        mImsServiceConnection = new ImsServiceConnection();
+        int serviceFlags = Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE
+                | Context.BIND_IMPORTANT;
+        mLocalLog.log("binding " + mImsFeatures);
+        Log.i(LOG_TAG, "Binding ImsService:" + mComponentName);
+        try {
+            boolean bindSucceeded = mContext.bindService(imsServiceIntent,
+                    mImsServiceConnection, serviceFlags);
+            if (!bindSucceeded) {
+                mLocalLog.log("    binding failed, retrying in "
+                        + mBackoff.getCurrentDelay() + " mS");
+                mIsBinding = false;
+                mBackoff.notifyFailed();
+            }
+            return bindSucceeded;
+        } catch (Exception e) {
+            mBackoff.notifyFailed();
+            mLocalLog.log("    binding exception=" + e.getMessage() + ", retrying in "
+                    + mBackoff.getCurrentDelay() + " mS");
+            Log.e(LOG_TAG, "Error binding (" + mComponentName + ") with exception: "
+                    + e.getMessage() + ", rebinding in " + mBackoff.getCurrentDelay()
+                    + " ms");
+            return false;
+        }
+    }
+
     /**
      * Ensure the feature includes MMTEL when it supports EMERGENCY_MMTEL, if not, remove.
      */
@@ -473,6 +521,10 @@ public class ImsServiceController {
     public void unbind() throws RemoteException {
         synchronized (mLock) {
             mBackoff.stop();
+            if (mPendingBindRunnable != null) {
+                mHandler.removeCallbacks(mPendingBindRunnable);
+                mPendingBindRunnable = null;
+            }
             // Clean up all features
             changeImsServiceFeatures(new HashSet<>(), mSlotIdToSubIdMap);
             mIsBound = false;
@@ -592,6 +644,16 @@ public class ImsServiceController {
         mBackoff.stop();
     }
 
+    /**
+     * Grant the permissions with the given granter before binding, and bind anyway if they are
+     * not granted after timeoutMs.
+     */
+    @VisibleForTesting
+    public void setPermissionGranterForTesting(PermissionGranter granter, long timeoutMs) {
+        mPermissionGranter = granter;
+        mChangePermissionTimeoutMs = timeoutMs;
+    }
+
     public ComponentName getComponentName() {
         return mComponentName;
     }
@@ -755,26 +817,48 @@ public class ImsServiceController {
 
     // Grant runtime permissions to ImsService. PermissionManager ensures that the ImsService is
     // system/signed before granting permissions.
-    private void grantPermissionsToService() {
+    // This method should only be called when synchronized on mLock
+    private void grantPermissionsToServiceThenBind() {
         mLocalLog.log("grant permissions to " + getComponentName());
         Log.i(LOG_TAG, "Granting Runtime permissions to:" + getComponentName());
         String[] pkgToGrant = {mComponentName.getPackageName()};
-        try {
-            if (mPermissionManager != null) {
-                CountDownLatch latch = new CountDownLatch(1);
-                mPermissionManager.grantDefaultPermissionsToEnabledImsServices(
-                        pkgToGrant, UserHandle.of(UserHandle.myUserId()), Runnable::run,
-                        isSuccess -> {
-                            if (isSuccess) {
-                                latch.countDown();
-                            } else {
-                                Log.e(LOG_TAG, "Failed to grant permissions to service.");
-                            }
-                        });
-                TelephonyUtils.waitUntilReady(latch, CHANGE_PERMISSION_TIMEOUT_MS);
+        Runnable bindRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(LOG_TAG, "Timed out granting permissions to service.");
+                bindAfterPermissionsGrant(this, false /* granted */);
             }
+        };
+        mPendingBindRunnable = bindRunnable;
+        // Bind anyway if the permissions are not granted in time.
+        mHandler.postDelayed(bindRunnable, mChangePermissionTimeoutMs);
+        try {
+            mPermissionGranter.grantDefaultPermissionsToEnabledImsServices(
+                    pkgToGrant, UserHandle.of(UserHandle.myUserId()), mHandler::post,
+                    isSuccess -> {
+                        if (!isSuccess) {
+                            Log.e(LOG_TAG, "Failed to grant permissions to service.");
+                        }
+                        // Bind right away on failure, waiting for the timeout would not help.
+                        bindAfterPermissionsGrant(bindRunnable, isSuccess);
+                    });
         } catch (RuntimeException e) {
             Log.w(LOG_TAG, "Unable to grant permissions, binder died.");
+            bindAfterPermissionsGrant(bindRunnable, false /* granted */);
+        }
+    }
+
+    // Bind once the permission grant started by grantPermissionsToServiceThenBind is over,
+    // unless the bind was cancelled or already started.
+    private void bindAfterPermissionsGrant(Runnable bindRunnable, boolean granted) {
+        synchronized (mLock) {
+            if (mPendingBindRunnable != bindRunnable) return;
+            mPendingBindRunnable = null;
+            mHandler.removeCallbacks(bindRunnable);
+            if (granted) {
+                mPermissionsGrantedTimeMs = SystemClock.elapsedRealtime();
+            }
+            bindService();
         }
     }
 
@@ -974,7 +1058,38 @@ public class ImsServiceController {
         }
     }
 
+    /**
+     * @return The startup trace of the last bind: the time of each step since the bind was
+     * requested, until each feature reported that it is ready.
+     */
+    public String getStartupTrace() {
+        StringBuilder sb = new StringBuilder("startup trace:");
+        synchronized (mLock) {
+            if (mBindRequestedTimeMs == 0) {
+                return sb.append(" not bound").toString();
+            }
+            appendTraceStep(sb, "permissionsGranted", mPermissionsGrantedTimeMs);
+            appendTraceStep(sb, "connected", mServiceConnectedTimeMs);
+            appendTraceStep(sb, "featuresCreated", mFeaturesCreatedTimeMs);
+            for (Map.Entry<ImsFeatureConfiguration.FeatureSlotPair, Long> entry
+                    : mFeatureReadyTimesMs.entrySet()) {
+                appendTraceStep(sb, "ready{" + entry.getKey().slotId + ","
+                        + ImsFeature.FEATURE_LOG_MAP.get(entry.getKey().featureType) + "}",
+                        entry.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    // This method should only be called when synchronized on mLock
+    private void appendTraceStep(StringBuilder sb, String step, long timeMs) {
+        if (timeMs == 0) return;
+        sb.append(' ').append(step).append("=+").append(timeMs - mBindRequestedTimeMs)
+                .append("ms");
+    }
+
     public void dump(PrintWriter printWriter) {
+        printWriter.println(getStartupTrace());
         mLocalLog.dump(printWriter);
     }
 }
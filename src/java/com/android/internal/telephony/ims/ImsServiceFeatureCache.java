@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.ims;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telephony.ims.stub.ImsFeatureConfiguration;
+import android.util.Log;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the features returned by the dynamic query of ImsServices, so the
+ * ImsServices do not have to be bound again to query their features after a reboot.
+ *
+ * An entry is only valid for the version of the ImsService package and the number of slots it was
+ * queried for, and is removed when the package is changed or removed.
+ */
+public class ImsServiceFeatureCache {
+    private static final String TAG = "ImsServiceFeatureCache";
+
+    private static final String SHARED_PREFS_NAME = "ims_service_feature_cache";
+    private static final String FIELD_SEPARATOR = ";";
+    private static final String FEATURE_SEPARATOR = ",";
+    private static final String SLOT_SEPARATOR = ":";
+
+    private final Context mContext;
+    private SharedPreferences mSharedPreferences;
+
+    private int mNumHits;
+    private int mNumMisses;
+
+    public ImsServiceFeatureCache(@NonNull Context context) {
+        mContext = context;
+    }
+
+    private SharedPreferences getSharedPreferences() {
+        if (mSharedPreferences == null) {
+            mSharedPreferences = mContext.getSharedPreferences(SHARED_PREFS_NAME,
+                    Context.MODE_PRIVATE);
+        }
+        return mSharedPreferences;
+    }
+
+    /**
+     * @param name The ImsService component.
+     * @param version The version of the ImsService package.
+     * @param numSlots The number of slots of the device.
+     * @return The cached features of the ImsService, or {@code null} if they are not cached for
+     * this version and number of slots.
+     */
+    public @Nullable Set<ImsFeatureConfiguration.FeatureSlotPair> get(@NonNull ComponentName name,
+            @NonNull String version, int numSlots) {
+        String value = getSharedPreferences().getString(name.flattenToString(), null);
+        String[] fields = value == null ? null : value.split(FIELD_SEPARATOR, -1);
+        if (fields == null || fields.length != 3 || !fields[0].equals(version)
+                || !fields[1].equals(String.valueOf(numSlots))) {
+            mNumMisses++;
+            return null;
+        }
+        Set<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        try {
+            if (!fields[2].isEmpty()) {
+                for (String feature : fields[2].split(FEATURE_SEPARATOR)) {
+                    int index = feature.indexOf(SLOT_SEPARATOR);
+                    features.add(new ImsFeatureConfiguration.FeatureSlotPair(
+                            Integer.parseInt(feature.substring(0, index)),
+                            Integer.parseInt(feature.substring(index + 1))));
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "get: invalid entry for " + name + ": " + value);
+            mNumMisses++;
+            return null;
+        }
+        mNumHits++;
+        return features;
+    }
+
+    /**
+     * Cache the features returned by the dynamic query of an ImsService.
+     *
+     * @param name The ImsService component.
+     * @param version The version of the ImsService package.
+     * @param numSlots The number of slots of the device.
+     * @param features The features of the ImsService.
+     */
+    public void put(@NonNull ComponentName name, @NonNull String version, int numSlots,
+            @NonNull Set<ImsFeatureConfiguration.FeatureSlotPair> features) {
+        StringBuilder value = new StringBuilder();
+        value.append(version).append(FIELD_SEPARATOR).append(numSlots).append(FIELD_SEPARATOR);
+        boolean first = true;
+        for (ImsFeatureConfiguration.FeatureSlotPair feature : features) {
+            if (!first) value.append(FEATURE_SEPARATOR);
+            value.append(feature.slotId).append(SLOT_SEPARATOR).append(feature.featureType);
+            first = false;
+        }
+        String key = name.flattenToString();
+        String newValue = value.toString();
+        if (newValue.equals(getSharedPreferences().getString(key, null))) {
+            return;
+        }
+        getSharedPreferences().edit().putString(key, newValue).apply();
+    }
+
+    /**
+     * Remove the cached features of all the ImsServices of a package.
+     *
+     * @param packageName The package name.
+     */
+    public void removePackage(@NonNull String packageName) {
+        SharedPreferences.Editor editor = null;
+        for (String key : getSharedPreferences().getAll().keySet()) {
+            ComponentName name = ComponentName.unflattenFromString(key);
+            if (name == null || packageName.equals(name.getPackageName())) {
+                if (editor == null) editor = getSharedPreferences().edit();
+                editor.remove(key);
+            }
+        }
+        if (editor != null) editor.apply();
+    }
+
+    /**
+     * Dump the cache state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("hits=" + mNumHits + ", misses=" + mNumMisses);
+        for (Map.Entry<String, ?> entry : getSharedPreferences().getAll().entrySet()) {
+            pw.println(entry.getKey() + " -> " + entry.getValue());
+        }
+    }
+}
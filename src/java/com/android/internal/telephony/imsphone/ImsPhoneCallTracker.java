@@ -166,7 +166,9 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -557,8 +559,9 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             // If there is an ongoing VT call, request the latest VT usage from the modem. The
             // latest usage will return asynchronously so it won't be counted in this round, but it
             // will be eventually counted when next requestStatsUpdate is called.
-            if (mState != PhoneConstants.State.IDLE) {
-                for (ImsPhoneConnection conn : mConnections) {
+            CallStateSnapshot snapshot = mCallStateSnapshot;
+            if (snapshot.getState() != PhoneConstants.State.IDLE) {
+                for (ImsPhoneConnection conn : snapshot.getConnections()) {
                     final VideoProvider videoProvider = conn.getVideoProvider();
                     if (videoProvider != null) {
                         videoProvider.onRequestConnectionDataUsage();
@@ -680,6 +683,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     private static final int EVENT_CONNECTION_SETUP_FAILURE = 34;
     private static final int EVENT_NEW_ACTIVE_CALL_STARTED = 35;
     private static final int EVENT_PROVISIONING_CHANGED = 36;
+    private static final int EVENT_CONNECT_TIME_CACHE_EXPIRED = 37;
 
     private static final int TIMEOUT_HANGUP_PENDINGMO = 500;
 
@@ -689,6 +693,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
 
     private static final int TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS = 60000; //ms
 
+    private static final int MAX_FORMATTED_NUMBERS = 64;
+
     private static final int DELAY_STACKING_PROVISIONING_CHANGES_MILLIS = 50; //ms
 
     // Following values are for mHoldSwitchingState
@@ -714,6 +720,12 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     //***** Instance Variables
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private ArrayList<ImsPhoneConnection> mConnections = new ArrayList<ImsPhoneConnection>();
+    // mConnections indexed by the identity of their ImsCall, guarded by the tracker lock.
+    private final Map<ImsCall, ImsPhoneConnection> mConnectionsByImsCall =
+            new IdentityHashMap<>();
+    private volatile CallStateSnapshot mCallStateSnapshot = new CallStateSnapshot(0,
+            PhoneConstants.State.IDLE, ImsPhoneCall.State.IDLE, ImsPhoneCall.State.IDLE,
+            ImsPhoneCall.State.IDLE, Collections.emptyList());
     private RegistrantList mVoiceCallEndedRegistrants = new RegistrantList();
     private RegistrantList mVoiceCallStartedRegistrants = new RegistrantList();
 
@@ -733,6 +745,9 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     private final HashMap<Integer, Long> mVtDataUsageMap = new HashMap<>();
     private final Map<String, CacheEntry> mPhoneNumAndConnTime = new ConcurrentHashMap<>();
     private final Queue<CacheEntry> mUnknownPeerConnTime = new LinkedBlockingQueue<>();
+    // E.164 formatted numbers by number, for mFormattedNumbersCountryIso.
+    private final Map<String, String> mFormattedNumbers = new ConcurrentHashMap<>();
+    private volatile String mFormattedNumbersCountryIso;
 
     private static class CacheEntry {
         private long mCachedTime;
@@ -753,6 +768,67 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         }
     }
 
+    /**
+     * Immutable snapshot of the calls of the tracker, published after each transition so it can be
+     * read without taking the tracker lock.
+     */
+    public static final class CallStateSnapshot {
+        private final long mVersion;
+        private final PhoneConstants.State mState;
+        private final ImsPhoneCall.State mForegroundCallState;
+        private final ImsPhoneCall.State mBackgroundCallState;
+        private final ImsPhoneCall.State mRingingCallState;
+        private final List<ImsPhoneConnection> mConnections;
+
+        CallStateSnapshot(long version, PhoneConstants.State state,
+                ImsPhoneCall.State foregroundCallState, ImsPhoneCall.State backgroundCallState,
+                ImsPhoneCall.State ringingCallState, List<ImsPhoneConnection> connections) {
+            mVersion = version;
+            mState = state;
+            mForegroundCallState = foregroundCallState;
+            mBackgroundCallState = backgroundCallState;
+            mRingingCallState = ringingCallState;
+            mConnections = connections;
+        }
+
+        /** @return The version of the snapshot, incremented on each transition. */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /** @return The phone state. */
+        public PhoneConstants.State getState() {
+            return mState;
+        }
+
+        /** @return The state of the foreground call. */
+        public ImsPhoneCall.State getForegroundCallState() {
+            return mForegroundCallState;
+        }
+
+        /** @return The state of the background call. */
+        public ImsPhoneCall.State getBackgroundCallState() {
+            return mBackgroundCallState;
+        }
+
+        /** @return The state of the ringing call. */
+        public ImsPhoneCall.State getRingingCallState() {
+            return mRingingCallState;
+        }
+
+        /** @return The connections of the tracker, as an unmodifiable list. */
+        public List<ImsPhoneConnection> getConnections() {
+            return mConnections;
+        }
+
+        @Override
+        public String toString() {
+            return "CallStateSnapshot{version=" + mVersion + ", state=" + mState + ", fg="
+                    + mForegroundCallState + ", bg=" + mBackgroundCallState + ", ringing="
+                    + mRingingCallState + ", connections=" + mConnections.size() + "}";
+        }
+    }
+
     private class SrvccStartedCallback extends ISrvccStartedCallback.Stub {
         @Override
         public void onSrvccCallNotified(List<SrvccCall> profiles) {
@@ -1529,6 +1605,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             connection.getCall().detach(connection);
         }
         mConnections.clear();
+        mConnectionsByImsCall.clear();
         // Pending MO was added to mConnections previously, so it has already been disconnected
         // above. Remove all references to it.
         mPendingMO = null;
@@ -2187,6 +2264,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                     conn.isAdhocConference() ? conn.getParticipantsToDial() : callees,
                     mImsCallListener);
             conn.setImsCall(imsCall);
+            onConnectionImsCallChanged(conn);
 
             mMetrics.writeOnImsCallStart(mPhone.getPhoneId(), imsCall.getSession());
 
@@ -2445,11 +2523,31 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         }
     }
 
-    // Clean up expired cache entries.
+    // Clean up expired cache entries, and schedule the next clean up if entries are left. This runs
+    // from a timer, so the lookups do not have to scan the cache.
     private void maintainConnectTimeCache() {
-        long threshold = SystemClock.elapsedRealtime() - TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS;
+        long now = SystemClock.elapsedRealtime();
+        long threshold = now - TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS;
         // The cached time is the system elapsed millisecond when the CacheEntry is created.
         mPhoneNumAndConnTime.entrySet().removeIf(e -> e.getValue().mCachedTime < threshold);
+        pollExpiredUnknownPeerConnTime(threshold);
+
+        long oldestCachedTime = Long.MAX_VALUE;
+        for (CacheEntry entry : mPhoneNumAndConnTime.values()) {
+            oldestCachedTime = Math.min(oldestCachedTime, entry.mCachedTime);
+        }
+        CacheEntry head = mUnknownPeerConnTime.peek();
+        if (head != null) {
+            oldestCachedTime = Math.min(oldestCachedTime, head.mCachedTime);
+        }
+        removeMessages(EVENT_CONNECT_TIME_CACHE_EXPIRED);
+        if (oldestCachedTime != Long.MAX_VALUE) {
+            sendEmptyMessageDelayed(EVENT_CONNECT_TIME_CACHE_EXPIRED, Math.max(0,
+                    oldestCachedTime + TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS - now));
+        }
+    }
+
+    private void pollExpiredUnknownPeerConnTime(long threshold) {
         // Remove all the cached records which are older than current caching threshold. Since the
         // queue is FIFO, keep polling records until the queue is empty or the head of the queue is
         // fresh enough.
@@ -2459,21 +2557,26 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         }
     }
 
+    private void scheduleConnectTimeCacheExpiry() {
+        if (!hasMessages(EVENT_CONNECT_TIME_CACHE_EXPIRED)) {
+            sendEmptyMessageDelayed(EVENT_CONNECT_TIME_CACHE_EXPIRED,
+                    TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS);
+        }
+    }
+
     private void cacheConnectionTimeWithPhoneNumber(@NonNull ImsPhoneConnection connection) {
         int callDirection =
                 connection.isIncoming() ? android.telecom.Call.Details.DIRECTION_INCOMING
                         : android.telecom.Call.Details.DIRECTION_OUTGOING;
         CacheEntry cachedConnectTime = new CacheEntry(SystemClock.elapsedRealtime(),
                 connection.getConnectTime(), connection.getConnectTimeReal(), callDirection);
-        maintainConnectTimeCache();
         if (PhoneConstants.PRESENTATION_ALLOWED == connection.getNumberPresentation()) {
             // In case of merging calls with the same number, use the latest connect time. Since
             // that call might be dropped and re-connected. So if the connectTime is earlier than
             // the cache, skip.
-            String phoneNumber = getFormattedPhoneNumber(connection.getAddress());
-            if (mPhoneNumAndConnTime.containsKey(phoneNumber)
-                    && connection.getConnectTime()
-                        <= mPhoneNumAndConnTime.get(phoneNumber).mConnectTime) {
+            String phoneNumber = getFormattedPhoneNumber(connection.getAddress(), getCountryIso());
+            CacheEntry existing = findUnexpiredEntry(phoneNumber);
+            if (existing != null && connection.getConnectTime() <= existing.mConnectTime) {
                 // Use the latest connect time.
                 return;
             }
@@ -2481,11 +2584,11 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         } else {
             mUnknownPeerConnTime.add(cachedConnectTime);
         }
+        scheduleConnectTimeCacheExpiry();
     }
 
     private CacheEntry findConnectionTimeUsePhoneNumber(
-            @NonNull ConferenceParticipant participant) {
-        maintainConnectTimeCache();
+            @NonNull ConferenceParticipant participant, String countryIso) {
         if (PhoneConstants.PRESENTATION_ALLOWED == participant.getParticipantPresentation()) {
             if (participant.getHandle() == null
                     || participant.getHandle().getSchemeSpecificPart() == null) {
@@ -2493,24 +2596,42 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             }
 
             String number = ConferenceParticipant.getParticipantAddress(participant.getHandle(),
-                    getCountryIso()).getSchemeSpecificPart();
+                    countryIso).getSchemeSpecificPart();
             if (TextUtils.isEmpty(number)) {
                 return null;
             }
-            String formattedNumber = getFormattedPhoneNumber(number);
-            return mPhoneNumAndConnTime.get(formattedNumber);
+            String formattedNumber = getFormattedPhoneNumber(number, countryIso);
+            return findUnexpiredEntry(formattedNumber);
         } else {
+            pollExpiredUnknownPeerConnTime(
+                    SystemClock.elapsedRealtime() - TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS);
             return mUnknownPeerConnTime.poll();
         }
     }
 
-    private String getFormattedPhoneNumber(String number) {
-        String countryIso = getCountryIso();
-        if (countryIso == null) {
+    // Entries expire from a timer, which may not have run yet for an expired entry.
+    private CacheEntry findUnexpiredEntry(String formattedNumber) {
+        CacheEntry entry = mPhoneNumAndConnTime.get(formattedNumber);
+        if (entry == null || entry.mCachedTime
+                < SystemClock.elapsedRealtime() - TIMEOUT_PARTICIPANT_CONNECT_TIME_CACHE_MS) {
+            return null;
+        }
+        return entry;
+    }
+
+    private String getFormattedPhoneNumber(String number, String countryIso) {
+        if (countryIso == null || number == null) {
             return number;
         }
-        String phoneNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-        return phoneNumber == null ? number : phoneNumber;
+        if (!countryIso.equals(mFormattedNumbersCountryIso)
+                || mFormattedNumbers.size() >= MAX_FORMATTED_NUMBERS) {
+            mFormattedNumbers.clear();
+            mFormattedNumbersCountryIso = countryIso;
+        }
+        return mFormattedNumbers.computeIfAbsent(number, n -> {
+            String phoneNumber = PhoneNumberUtils.formatNumberToE164(n, countryIso);
+            return phoneNumber == null ? n : phoneNumber;
+        });
     }
 
     private String getCountryIso() {
@@ -2727,6 +2848,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             log("updatePhoneState oldState=" + oldState + ", newState=" + mState);
         }
 
+        publishCallStateSnapshot();
+
         if (mState != oldState) {
             mPhone.notifyPhoneStateChanged();
             mMetrics.writePhoneState(mPhone.getPhoneId(), mState);
@@ -2734,6 +2857,20 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
         }
     }
 
+    private synchronized void publishCallStateSnapshot() {
+        mCallStateSnapshot = new CallStateSnapshot(mCallStateSnapshot.getVersion() + 1, mState,
+                mForegroundCall.getState(), mBackgroundCall.getState(), mRingingCall.getState(),
+                Collections.unmodifiableList(new ArrayList<>(mConnections)));
+    }
+
+    /**
+     * @return The calls of the tracker as of the last transition. Can be called from any thread
+     * without blocking on the tracker.
+     */
+    public CallStateSnapshot getCallStateSnapshot() {
+        return mCallStateSnapshot;
+    }
+
     private void
     handleRadioNotAvailable() {
         // handlePollCalls will clear out its
@@ -2956,7 +3093,9 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                     + mHandoverCall.getConnections());
             mHandoverCall.clearConnections();
             mConnections.clear();
+            mConnectionsByImsCall.clear();
             mState = PhoneConstants.State.IDLE;
+            publishCallStateSnapshot();
         }
     }
 
@@ -3007,14 +3146,36 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private synchronized ImsPhoneConnection findConnection(final ImsCall imsCall) {
+        if (imsCall != null) {
+            ImsPhoneConnection conn = mConnectionsByImsCall.get(imsCall);
+            if (conn != null && conn.getImsCall() == imsCall) {
+                return conn;
+            }
+        }
+        // Not indexed, e.g. the ImsCall of the connection was closed on disconnect.
         for (ImsPhoneConnection conn : mConnections) {
             if (conn.getImsCall() == imsCall) {
+                if (imsCall != null) {
+                    mConnectionsByImsCall.put(imsCall, conn);
+                }
                 return conn;
             }
         }
         return null;
     }
 
+    /**
+     * Called when the {@link ImsCall} of a connection of the tracker changed.
+     */
+    private synchronized void onConnectionImsCallChanged(ImsPhoneConnection conn) {
+        // Remove every entry of the connection, it may still be indexed by a previous ImsCall.
+        mConnectionsByImsCall.values().removeIf(c -> c == conn);
+        ImsCall imsCall = conn.getImsCall();
+        if (imsCall != null && mConnections.contains(conn)) {
+            mConnectionsByImsCall.put(imsCall, conn);
+        }
+    }
+
     /**
      * Given a connection, detach it from any {@link ImsPhoneCall} it is associated with, remove it
      * from the connections lists, and ensure if it was the pending MO connection it gets removed
@@ -3043,6 +3204,8 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public synchronized void removeConnection(ImsPhoneConnection conn) {
         mConnections.remove(conn);
+        mConnectionsByImsCall.values().removeIf(c -> c == conn);
+        publishCallStateSnapshot();
 
         // If not emergency call is remaining, notify emergency call registrants
         if (mIsInEmergencyCall) {
@@ -3068,6 +3231,11 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private synchronized void addConnection(ImsPhoneConnection conn) {
         mConnections.add(conn);
+        ImsCall imsCall = conn.getImsCall();
+        if (imsCall != null) {
+            mConnectionsByImsCall.put(imsCall, conn);
+        }
+        publishCallStateSnapshot();
         if (conn.isEmergency()) {
             mIsInEmergencyCall = true;
             mPhone.sendEmergencyCallStateChange(true);
@@ -3155,11 +3323,12 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             // remove conference participants from the cached list when call is disconnected
             List<ConferenceParticipant> cpList = imsCall.getConferenceParticipants();
             if (cpList != null) {
+                String countryIso = getCountryIso();
                 for (ConferenceParticipant cp : cpList) {
                     String number = ConferenceParticipant.getParticipantAddress(cp.getHandle(),
-                            getCountryIso()).getSchemeSpecificPart();
+                            countryIso).getSchemeSpecificPart();
                     if (!TextUtils.isEmpty(number)) {
-                        String formattedNumber = getFormattedPhoneNumber(number);
+                        String formattedNumber = getFormattedPhoneNumber(number, countryIso);
                         mPhoneNumAndConnTime.remove(formattedNumber);
                     }
                 }
@@ -4210,10 +4379,28 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
             }
         }
 
-        private void updateConferenceParticipantsTiming(List<ConferenceParticipant> participants) {
+        private void updateConferenceParticipantsTiming(@NonNull ImsPhoneConnection conn,
+                List<ConferenceParticipant> participants) {
+            String countryIso = null;
+            boolean countryIsoQueried = false;
             for (ConferenceParticipant participant : participants) {
                 // Every time participants are newly created from parcel, update their connect time.
-                CacheEntry cachedConnectTime = findConnectionTimeUsePhoneNumber(participant);
+                // A participant already in the conference keeps the connect time found for it.
+                ConferenceParticipant last = conn.getLastConferenceParticipant(participant);
+                if (last != null && last.getConnectTime() != 0
+                        && last.getState() != android.telecom.Connection.STATE_DISCONNECTED
+                        && Objects.equals(last.getHandle(), participant.getHandle())) {
+                    participant.setConnectTime(last.getConnectTime());
+                    participant.setConnectElapsedTime(last.getConnectElapsedTime());
+                    participant.setCallDirection(last.getCallDirection());
+                    continue;
+                }
+                if (!countryIsoQueried) {
+                    countryIso = getCountryIso();
+                    countryIsoQueried = true;
+                }
+                CacheEntry cachedConnectTime =
+                        findConnectionTimeUsePhoneNumber(participant, countryIso);
                 if (cachedConnectTime != null) {
                     participant.setConnectTime(cachedConnectTime.mConnectTime);
                     participant.setConnectElapsedTime(cachedConnectTime.mConnectElapsedTime);
@@ -4245,7 +4432,7 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
 
             ImsPhoneConnection conn = findConnection(call);
             if (conn != null) {
-                updateConferenceParticipantsTiming(participants);
+                updateConferenceParticipantsTiming(conn, participants);
                 conn.updateConferenceParticipants(participants);
             }
         }
@@ -5090,6 +5277,10 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                 handleProvisioningChanged();
                 break;
             }
+            case EVENT_CONNECT_TIME_CACHE_EXPIRED: {
+                maintainConnectTimeCache();
+                break;
+            }
         }
     }
 
@@ -5286,6 +5477,10 @@ public class ImsPhoneCallTracker extends CallTracker implements ImsPullCall {
                 pw.println("  [" + i + "]: " + mConnections.get(i));
             }
         }
+        pw.println(" mCallStateSnapshot=" + mCallStateSnapshot);
+        pw.println(" mPhoneNumAndConnTime.size=" + mPhoneNumAndConnTime.size()
+                + " mUnknownPeerConnTime.size=" + mUnknownPeerConnTime.size()
+                + " mFormattedNumbers.size=" + mFormattedNumbers.size());
     }
 
     @Override
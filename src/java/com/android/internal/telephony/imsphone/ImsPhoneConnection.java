@@ -48,6 +48,7 @@ import android.text.TextUtils;
 
 import com.android.ims.ImsCall;
 import com.android.ims.ImsException;
+import com.android.ims.internal.ConferenceParticipant;
 import com.android.ims.internal.ImsVideoCallProviderWrapper;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallStateException;
@@ -62,6 +63,9 @@ import com.android.telephony.Rlog;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -157,6 +161,14 @@ public class ImsPhoneConnection extends Connection implements
      */
     private boolean mIsHeldByRemote = false;
 
+    /**
+     * The conference participants last notified to the listeners, by endpoint, and the state of
+     * each of them as returned by {@link #getParticipantState}, in the notified order. The states
+     * are null when the next update must be notified.
+     */
+    private Map<String, ConferenceParticipant> mConferenceParticipants = Collections.emptyMap();
+    private List<String> mConferenceParticipantStates = Collections.emptyList();
+
     //***** Event Constants
     private static final int EVENT_DTMF_DONE = 1;
     private static final int EVENT_PAUSE_DONE = 2;
@@ -891,6 +903,69 @@ public class ImsPhoneConnection extends Connection implements
         mPreciseDisconnectCause = cause;
     }
 
+    /**
+     * Notifies the listeners of the new conference participants, unless none of the participants
+     * changed since the last notification. Conference event packages are often resent without any
+     * change, and each notification makes the listeners reconcile every participant.
+     *
+     * @param conferenceParticipants The participants.
+     */
+    @Override
+    public void updateConferenceParticipants(List<ConferenceParticipant> conferenceParticipants) {
+        int size = conferenceParticipants == null ? 0 : conferenceParticipants.size();
+        Map<String, ConferenceParticipant> participants = new HashMap<>(size);
+        List<String> states = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ConferenceParticipant participant = conferenceParticipants.get(i);
+            participants.put(getParticipantId(participant), participant);
+            states.add(getParticipantState(participant));
+        }
+        boolean changed = conferenceParticipants == null
+                || !states.equals(mConferenceParticipantStates);
+        mConferenceParticipants = participants;
+        mConferenceParticipantStates = states;
+        if (!changed) {
+            Rlog.d(LOG_TAG, "updateConferenceParticipants: no change in " + size
+                    + " participants");
+            return;
+        }
+        super.updateConferenceParticipants(conferenceParticipants);
+    }
+
+    /**
+     * Adds a listener. The next conference participant update is notified even if none of the
+     * participants changed, as the new listener was not notified of the current ones.
+     *
+     * @param listener A listener.
+     */
+    @Override
+    public void addListener(Listener listener) {
+        super.addListener(listener);
+        mConferenceParticipantStates = null;
+    }
+
+    /**
+     * @param participant A conference participant.
+     * @return The participant with the same endpoint in the last notified participants, or
+     * {@code null} if there is none.
+     */
+    @Nullable
+    ConferenceParticipant getLastConferenceParticipant(@NonNull ConferenceParticipant participant) {
+        return mConferenceParticipants.get(getParticipantId(participant));
+    }
+
+    private static String getParticipantId(@NonNull ConferenceParticipant participant) {
+        return String.valueOf(participant.getEndpoint() != null
+                ? participant.getEndpoint() : participant.getHandle());
+    }
+
+    private static String getParticipantState(@NonNull ConferenceParticipant participant) {
+        return participant.getHandle() + "|" + participant.getDisplayName() + "|"
+                + participant.getEndpoint() + "|" + participant.getState() + "|"
+                + participant.getConnectTime() + "|" + participant.getConnectElapsedTime() + "|"
+                + participant.getCallDirection();
+    }
+
     /**
      * Notifies this Connection of a request to disconnect a participant of the conference managed
      * by the connection.
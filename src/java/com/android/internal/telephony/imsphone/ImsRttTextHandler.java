@@ -19,6 +19,7 @@ package com.android.internal.telephony.imsphone;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telecom.Connection;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -40,12 +41,16 @@ public class ImsRttTextHandler extends Handler {
     // These count Unicode codepoints, not Java char types.
     public static final int MAX_CODEPOINTS_PER_SECOND = 30;
     // Assuming that we do not exceed the rate limit, this is the maximum time between when a
-    // piece of text is received and when it is actually sent over the network.
-    public static final int MAX_BUFFERING_DELAY_MILLIS = 200;
+    // piece of text is received and when it is actually sent over the network. This is the
+    // buffering time recommended by ITU-T T.140.
+    public static final int MAX_BUFFERING_DELAY_MILLIS = 300;
     // Assuming that we do not exceed the rate limit, this is the maximum size we will allow
     // the buffer to grow to before sending as many as we can.
     public static final int MAX_BUFFERED_CHARACTER_COUNT = 5;
     private static final int MILLIS_PER_SECOND = 1000;
+    // Initial capacity of the buffer of text to send to the network, in chars. Enough for a few
+    // seconds of typing; the buffer grows on paste.
+    private static final int INITIAL_NETWORK_BUFFER_CAPACITY = 128;
 
     // Messages for the handler.
     // Initializes the text handler. Should have an RttTextStream set in msg.obj
@@ -108,13 +113,26 @@ public class ImsRttTextHandler extends Handler {
     }
 
     private int mCodepointsAvailableForTransmission = MAX_CODEPOINTS_PER_SECOND;
-    private StringBuffer mBufferedTextToNetwork = new StringBuffer();
+    // Only accessed on the handler thread.
+    private final RttTextBuffer mBufferedTextToNetwork =
+            new RttTextBuffer(INITIAL_NETWORK_BUFFER_CAPACITY);
+    private final int mBufferingDelayMillis;
     private InCallReaderThread mReaderThread;
     // This is only ever used when the pipes fail and we have to re-setup. Messages received
     // from the network are buffered here until Telecom gets back to us with the new pipes.
     private StringBuffer mBufferedTextToIncall = new StringBuffer();
     private final NetworkWriter mNetworkWriter;
 
+    // Counters of the text sent in each direction, only accessed on the handler thread.
+    private int mCodePointsToNetwork;
+    private int mWritesToNetwork;
+    private int mCharsToInCall;
+    private int mWritesToInCall;
+    // Elapsed realtime when the oldest text in the network buffer was buffered, or 0.
+    private long mOldestBufferedTimeMs;
+    // Maximum time that text waited in the network buffer before being sent.
+    private long mMaxNetworkLatencyMs;
+
     @Override
     public void handleMessage(Message msg) {
         switch (msg.what) {
@@ -140,6 +158,8 @@ public class ImsRttTextHandler extends Handler {
                 }
                 try {
                     mRttTextStream.write(messageToIncall);
+                    mCharsToInCall += messageToIncall.length();
+                    mWritesToInCall++;
                 } catch (IOException e) {
                     Rlog.e(LOG_TAG, "IOException encountered writing to in-call: %s", e);
                     obtainMessage(TEARDOWN).sendToTarget();
@@ -147,35 +167,42 @@ public class ImsRttTextHandler extends Handler {
                 }
                 break;
             case APPEND_TO_NETWORK_BUFFER:
-                // First, append the text-to-send to the string buffer
+                // First, append the text-to-send to the buffer
+                if (mBufferedTextToNetwork.isEmpty()) {
+                    mOldestBufferedTimeMs = SystemClock.elapsedRealtime();
+                }
                 mBufferedTextToNetwork.append((String) msg.obj);
                 // Check to see how many codepoints we have buffered. If we have more than 5,
-                // send immediately, otherwise, wait until a timeout happens.
-                int numCodepointsBuffered = mBufferedTextToNetwork
-                        .codePointCount(0, mBufferedTextToNetwork.length());
-                if (numCodepointsBuffered >= MAX_BUFFERED_CHARACTER_COUNT) {
+                // send immediately, otherwise, wait until a timeout happens. The timeout of the
+                // oldest buffered text is already pending if there is one.
+                if (mBufferedTextToNetwork.codePointCount() >= MAX_BUFFERED_CHARACTER_COUNT) {
                     sendMessage(obtainMessage(ATTEMPT_SEND_TO_NETWORK));
-                } else {
-                    sendEmptyMessageDelayed(
-                            ATTEMPT_SEND_TO_NETWORK, MAX_BUFFERING_DELAY_MILLIS);
+                } else if (!hasMessages(ATTEMPT_SEND_TO_NETWORK)) {
+                    sendEmptyMessageDelayed(ATTEMPT_SEND_TO_NETWORK, mBufferingDelayMillis);
                 }
                 break;
             case ATTEMPT_SEND_TO_NETWORK:
                 // Check to see how many codepoints we can send, and send that many.
-                int numCodePointsAvailableInBuffer = mBufferedTextToNetwork.codePointCount(0,
-                        mBufferedTextToNetwork.length());
-                int numCodePointsSent = Math.min(numCodePointsAvailableInBuffer,
+                int numCodePointsAvailableInBuffer = mBufferedTextToNetwork.codePointCount();
+                int numCodePointsToSend = Math.min(numCodePointsAvailableInBuffer,
                         mCodepointsAvailableForTransmission);
+                if (numCodePointsToSend == 0) {
+                    break;
+                }
+                String stringToSend = mBufferedTextToNetwork.remove(numCodePointsToSend);
+                // Less codepoints are removed when a surrogate pair is not complete yet.
+                int numCodePointsSent = numCodePointsAvailableInBuffer
+                        - mBufferedTextToNetwork.codePointCount();
                 if (numCodePointsSent == 0) {
                     break;
                 }
-                int endSendIndex = mBufferedTextToNetwork.offsetByCodePoints(0,
-                        numCodePointsSent);
-
-                String stringToSend = mBufferedTextToNetwork.substring(0, endSendIndex);
-
-                mBufferedTextToNetwork.delete(0, endSendIndex);
                 mNetworkWriter.write(stringToSend);
+                long now = SystemClock.elapsedRealtime();
+                mMaxNetworkLatencyMs = Math.max(mMaxNetworkLatencyMs, now - mOldestBufferedTimeMs);
+                // The rest of the text waits because of the rate limit from now on.
+                mOldestBufferedTimeMs = mBufferedTextToNetwork.isEmpty() ? 0 : now;
+                mCodePointsToNetwork += numCodePointsSent;
+                mWritesToNetwork++;
                 mCodepointsAvailableForTransmission -= numCodePointsSent;
                 sendMessageDelayed(
                         obtainMessage(EXPIRE_SENT_CODEPOINT_COUNT, numCodePointsSent, 0),
@@ -198,13 +225,24 @@ public class ImsRttTextHandler extends Handler {
                 }
                 mReaderThread = null;
                 mRttTextStream = null;
+                Rlog.i(LOG_TAG, "Teardown: " + getStats());
                 break;
         }
     }
 
     public ImsRttTextHandler(Looper looper, NetworkWriter networkWriter) {
+        this(looper, networkWriter, MAX_BUFFERING_DELAY_MILLIS);
+    }
+
+    /**
+     * @param bufferingDelayMillis The maximum time text is buffered before being sent to the
+     * network, when the rate limit is not exceeded.
+     */
+    public ImsRttTextHandler(Looper looper, NetworkWriter networkWriter,
+            int bufferingDelayMillis) {
         super(looper);
         mNetworkWriter = networkWriter;
+        mBufferingDelayMillis = bufferingDelayMillis;
     }
 
     public void sendToInCall(String msg) {
@@ -243,4 +281,16 @@ public class ImsRttTextHandler extends Handler {
     public String getNetworkBufferText() {
         return mBufferedTextToNetwork.toString();
     }
+
+    /**
+     * @return The counters of the text sent in each direction. Should be called on the handler
+     * thread.
+     */
+    public String getStats() {
+        return "toNetwork={codePoints=" + mCodePointsToNetwork + ", writes=" + mWritesToNetwork
+                + ", maxLatencyMs=" + mMaxNetworkLatencyMs + ", buffered="
+                + mBufferedTextToNetwork.codePointCount() + "}, toInCall={chars="
+                + mCharsToInCall + ", writes=" + mWritesToInCall + ", buffered="
+                + mBufferedTextToIncall.length() + "}";
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.telephony.imsphone;
+
+/**
+ * Ring buffer of the RTT text waiting to be sent to the network.
+ *
+ * The number of Unicode codepoints buffered is maintained as the text is appended and removed, so
+ * it does not have to be counted again for each send. Text is only removed on codepoint
+ * boundaries: a surrogate pair is never split, and a high surrogate at the end of the buffer is
+ * kept until the rest of its pair is appended. The buffer grows when text is appended to a full
+ * buffer, RTT text typed by the user is never dropped.
+ */
+class RttTextBuffer {
+    private char[] mBuffer;
+    // Index of the first buffered char.
+    private int mHead;
+    // Number of buffered chars.
+    private int mLength;
+    private int mCodePointCount;
+
+    RttTextBuffer(int initialCapacity) {
+        mBuffer = new char[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * @return The number of Unicode codepoints in the buffer.
+     */
+    int codePointCount() {
+        return mCodePointCount;
+    }
+
+    /**
+     * @return The number of chars in the buffer.
+     */
+    int length() {
+        return mLength;
+    }
+
+    boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    /**
+     * @return The capacity of the buffer, in chars.
+     */
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Append text at the end of the buffer.
+     */
+    void append(String text) {
+        int length = text.length();
+        if (length == 0) return;
+        if (mLength + length > mBuffer.length) {
+            grow(mLength + length);
+        }
+        int codePoints = Character.codePointCount(text, 0, length);
+        // The text completes a surrogate pair started by the previous text.
+        if (mLength > 0 && Character.isHighSurrogate(charAt(mLength - 1))
+                && Character.isLowSurrogate(text.charAt(0))) {
+            codePoints--;
+        }
+        int tail = (mHead + mLength) % mBuffer.length;
+        int firstPart = Math.min(length, mBuffer.length - tail);
+        text.getChars(0, firstPart, mBuffer, tail);
+        if (firstPart < length) {
+            text.getChars(firstPart, length, mBuffer, 0);
+        }
+        mLength += length;
+        mCodePointCount += codePoints;
+    }
+
+    /**
+     * Remove text from the start of the buffer.
+     *
+     * @param maxCodePoints The maximum number of codepoints to remove.
+     * @return The removed text, which may have less codepoints than requested if a surrogate pair
+     * is incomplete.
+     */
+    String remove(int maxCodePoints) {
+        int chars = 0;
+        int codePoints = 0;
+        while (codePoints < maxCodePoints && chars < mLength) {
+            char c = charAt(chars);
+            if (Character.isHighSurrogate(c)) {
+                if (chars + 1 == mLength) {
+                    // Wait for the rest of the pair.
+                    break;
+                }
+                if (Character.isLowSurrogate(charAt(chars + 1))) {
+                    chars++;
+                }
+            }
+            chars++;
+            codePoints++;
+        }
+        String text = peek(chars);
+        mHead = (mHead + chars) % mBuffer.length;
+        mLength -= chars;
+        mCodePointCount -= codePoints;
+        if (mLength == 0) {
+            mHead = 0;
+        }
+        return text;
+    }
+
+    private String peek(int chars) {
+        int firstPart = Math.min(chars, mBuffer.length - mHead);
+        if (firstPart == chars) {
+            return new String(mBuffer, mHead, chars);
+        }
+        char[] text = new char[chars];
+        System.arraycopy(mBuffer, mHead, text, 0, firstPart);
+        System.arraycopy(mBuffer, 0, text, firstPart, chars - firstPart);
+        return new String(text);
+    }
+
+    private char charAt(int index) {
+        return mBuffer[(mHead + index) % mBuffer.length];
+    }
+
+    private void grow(int minCapacity) {
+        char[] buffer = new char[Math.max(minCapacity, mBuffer.length * 2)];
+        int firstPart = Math.min(mLength, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, buffer, 0, firstPart);
+        System.arraycopy(mBuffer, 0, buffer, firstPart, mLength - firstPart);
+        mBuffer = buffer;
+        mHead = 0;
+    }
+
+    @Override
+    public String toString() {
+        return peek(mLength);
+    }
+}
@@ -27,7 +27,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.gsm.UsimPhoneBookManager;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.Locale;
 
 /**
@@ -54,6 +53,9 @@ public class AdnRecordCache extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     SparseArray<Message> mUserWriteResponse = new SparseArray<Message>();
 
+    // Indexes of the loaded ADN-like files and of the USIM phonebook, indexed by EF ID
+    private final SparseArray<AdnRecordIndex> mAdnIndexes = new SparseArray<>();
+
     //***** Event Constants
 
     static final int EVENT_LOAD_ALL_ADN_LIKE_DONE = 1;
@@ -78,6 +80,9 @@ public class AdnRecordCache extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public void reset() {
         mAdnLikeFiles.clear();
+        synchronized (mAdnIndexes) {
+            mAdnIndexes.clear();
+        }
         mUsimPhoneBookManager.reset();
 
         clearWaiters();
@@ -214,16 +219,8 @@ public class AdnRecordCache extends Handler implements IccConstants {
                     Integer.toHexString(efid).toUpperCase(Locale.ROOT));
             return;
         }
-        int index = -1;
-        int count = 1;
-        for (Iterator<AdnRecord> it = oldAdnList.iterator(); it.hasNext(); ) {
-            if (oldAdn.isEqual(it.next())) {
-                index = count;
-                break;
-            }
-            count++;
-        }
-        if (index == -1) {
+        int index = getAdnIndex(efid, oldAdnList).indexOf(oldAdn) + 1;
+        if (index == 0) {
             sendErrorResponse(response, "Adn record don't exist for " + oldAdn);
             return;
         }
@@ -319,6 +316,29 @@ public class AdnRecordCache extends Handler implements IccConstants {
 
     //***** Private methods
 
+    /**
+     * @return The index of the records of the EF, built if the records were not indexed yet.
+     */
+    private AdnRecordIndex getAdnIndex(int efid, ArrayList<AdnRecord> adnList) {
+        synchronized (mAdnIndexes) {
+            AdnRecordIndex index = mAdnIndexes.get(efid);
+            if (index == null || !index.isFor(adnList)) {
+                index = new AdnRecordIndex(adnList);
+                mAdnIndexes.put(efid, index);
+            }
+            return index;
+        }
+    }
+
+    private void onAdnReplaced(int efid, int position, AdnRecord oldAdn, AdnRecord newAdn) {
+        synchronized (mAdnIndexes) {
+            AdnRecordIndex index = mAdnIndexes.get(efid);
+            if (index != null) {
+                index.onRecordReplaced(position, oldAdn, newAdn);
+            }
+        }
+    }
+
     private void
     notifyWaiters(ArrayList<Message> waiters, AsyncResult ar) {
 
@@ -363,8 +383,13 @@ public class AdnRecordCache extends Handler implements IccConstants {
                 AdnRecord adn = (AdnRecord) (ar.userObj);
 
                 if (ar.exception == null) {
-                    mAdnLikeFiles.get(efid).set(index - 1, adn);
-                    mUsimPhoneBookManager.invalidateCache();
+                    AdnRecord oldAdn = mAdnLikeFiles.get(efid).set(index - 1, adn);
+                    onAdnReplaced(efid, index - 1, oldAdn, adn);
+                    // Update the record in the USIM phonebook instead of reloading all of it.
+                    int position = mUsimPhoneBookManager.onAdnRecordUpdated(efid, index, adn);
+                    if (position >= 0) {
+                        onAdnReplaced(EF_PBR, position, oldAdn, adn);
+                    }
                 }
 
                 Message response = mUserWriteResponse.get(efid);
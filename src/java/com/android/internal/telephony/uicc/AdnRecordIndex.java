@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Index of a list of ADN records by alpha tag and number, so a record can be found without
+ * scanning the whole phonebook. The index must be told about the records replaced in the list.
+ *
+ * {@hide}
+ */
+class AdnRecordIndex {
+    private final @NonNull List<AdnRecord> mRecords;
+    private final int mSize;
+
+    // Positions in the list of the records with the same alpha tag and number, in ascending order.
+    private final Map<String, TreeSet<Integer>> mPositions = new HashMap<>();
+
+    AdnRecordIndex(@NonNull List<AdnRecord> records) {
+        mRecords = records;
+        mSize = records.size();
+        for (int i = 0; i < mSize; i++) {
+            add(i, records.get(i));
+        }
+    }
+
+    /**
+     * @return {@code true} if this index was built for the list, and the list was not resized.
+     */
+    synchronized boolean isFor(@NonNull List<AdnRecord> records) {
+        return mRecords == records && mSize == records.size();
+    }
+
+    /**
+     * @param adn The record to search.
+     * @return The position of the first record in the list equal to {@code adn}, as defined by
+     * {@link AdnRecord#isEqual}, or -1 if there is none.
+     */
+    synchronized int indexOf(@NonNull AdnRecord adn) {
+        TreeSet<Integer> positions = mPositions.get(getKey(adn));
+        if (positions == null) return -1;
+        // The emails and additional numbers are not part of the key.
+        for (int position : positions) {
+            if (adn.isEqual(mRecords.get(position))) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Called when a record of the list was replaced.
+     *
+     * @param position The position of the record in the list.
+     * @param oldAdn The replaced record.
+     * @param newAdn The new record.
+     */
+    synchronized void onRecordReplaced(int position, @NonNull AdnRecord oldAdn,
+            @NonNull AdnRecord newAdn) {
+        String oldKey = getKey(oldAdn);
+        TreeSet<Integer> positions = mPositions.get(oldKey);
+        if (positions != null) {
+            positions.remove(position);
+            if (positions.isEmpty()) {
+                mPositions.remove(oldKey);
+            }
+        }
+        add(position, newAdn);
+    }
+
+    private void add(int position, @NonNull AdnRecord adn) {
+        mPositions.computeIfAbsent(getKey(adn), k -> new TreeSet<>()).add(position);
+    }
+
+    /**
+     * @return The key of the record in the index. Records equal as defined by
+     * {@link AdnRecord#isEqual} have the same key.
+     */
+    static @NonNull String getKey(@NonNull AdnRecord adn) {
+        // Null and empty are equal for AdnRecord#isEqual.
+        String alphaTag = adn.getAlphaTag() == null ? "" : adn.getAlphaTag();
+        String number = adn.getNumber() == null ? "" : adn.getNumber();
+        return alphaTag + '\0' + number;
+    }
+}
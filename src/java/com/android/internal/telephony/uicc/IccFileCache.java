@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent cache of the content of elementary files, keyed by ICCID and file id.
+ *
+ * The cache lets {@link SIMRecords} serve files which rarely change from the last content read
+ * from the same card, instead of waiting for the SIM I/O round trips at boot. The callers are
+ * responsible for revalidating the cached content against the card and for invalidating it when
+ * the card reports a file change.
+ *
+ * {@hide}
+ */
+public class IccFileCache {
+    private static final String SHARED_PREFS_NAME = "icc_file_cache";
+    private static final String KEY_PREFIX = "ef_";
+    private static final String KEY_BINARY_SUFFIX = "_binary";
+    private static final String KEY_RECORDS_SUFFIX = "_records";
+    private static final String SEPARATOR = ",";
+
+    /** The maximum number of cards whose files are kept in the cache. */
+    @VisibleForTesting
+    public static final int MAX_CACHED_ICCIDS = 4;
+
+    private final @NonNull IccIdLruStore mStore;
+
+    public IccFileCache(@NonNull Context context) {
+        mStore = new IccIdLruStore(context, SHARED_PREFS_NAME, KEY_PREFIX, MAX_CACHED_ICCIDS);
+    }
+
+    /**
+     * @param iccId The ICCID of the card.
+     * @param efid The file id of a transparent EF.
+     * @return The cached content of the file, or {@code null} if the file is not cached.
+     */
+    public @Nullable byte[] getTransparent(@NonNull String iccId, int efid) {
+        String value = mStore.get(iccId, getName(efid, KEY_BINARY_SUFFIX));
+        return value == null ? null : IccUtils.hexStringToBytes(value);
+    }
+
+    /**
+     * @param iccId The ICCID of the card.
+     * @param efid The file id of a linear fixed EF.
+     * @return The cached records of the file, or {@code null} if the file is not cached.
+     */
+    public @Nullable ArrayList<byte[]> getRecords(@NonNull String iccId, int efid) {
+        String value = mStore.get(iccId, getName(efid, KEY_RECORDS_SUFFIX));
+        if (value == null) {
+            return null;
+        }
+        ArrayList<byte[]> records = new ArrayList<>();
+        if (!value.isEmpty()) {
+            for (String record : value.split(SEPARATOR)) {
+                records.add(IccUtils.hexStringToBytes(record));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Cache the content of a transparent EF.
+     *
+     * @param iccId The ICCID of the card.
+     * @param efid The file id.
+     * @param data The content of the file.
+     */
+    public void putTransparent(@NonNull String iccId, int efid, @NonNull byte[] data) {
+        mStore.put(iccId, getName(efid, KEY_BINARY_SUFFIX), IccUtils.bytesToHexString(data));
+    }
+
+    /**
+     * Cache the records of a linear fixed EF.
+     *
+     * @param iccId The ICCID of the card.
+     * @param efid The file id.
+     * @param records All the records of the file.
+     */
+    public void putRecords(@NonNull String iccId, int efid, @NonNull List<byte[]> records) {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] record : records) {
+            if (sb.length() > 0) sb.append(SEPARATOR);
+            sb.append(IccUtils.bytesToHexString(record));
+        }
+        mStore.put(iccId, getName(efid, KEY_RECORDS_SUFFIX), sb.toString());
+    }
+
+    /**
+     * Remove a file from the cache.
+     *
+     * @param iccId The ICCID of the card.
+     * @param efid The file id.
+     */
+    public void remove(@NonNull String iccId, int efid) {
+        mStore.remove(iccId, getName(efid, KEY_BINARY_SUFFIX),
+                getName(efid, KEY_RECORDS_SUFFIX));
+    }
+
+    /**
+     * Remove all the files of a card from the cache.
+     *
+     * @param iccId The ICCID of the card.
+     */
+    public void clear(@NonNull String iccId) {
+        mStore.clear(iccId);
+    }
+
+    /**
+     * Called when the content read from the card did not match the cached content.
+     */
+    public void onStale() {
+        mStore.onStale();
+    }
+
+    private static @NonNull String getName(int efid, @NonNull String suffix) {
+        return Integer.toHexString(efid) + suffix;
+    }
+
+    /**
+     * Dump the cache state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        mStore.dump(pw, "mFileCache");
+    }
+}
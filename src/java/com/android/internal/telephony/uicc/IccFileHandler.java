@@ -21,11 +21,18 @@ import android.os.AsyncResult;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.LocalLog;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * {@hide}
@@ -79,6 +86,9 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int RESPONSE_DATA_STRUCTURE = 13;
     static protected final int RESPONSE_DATA_RECORD_LENGTH = 14;
 
+    /** The maximum number of READ RECORD commands in flight when loading all the records. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_READ_RECORDS = 4;
 
     //***** Events
 
@@ -109,6 +119,17 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     protected final String mAid;
 
+    /**
+     * The sizes of the EFs returned by GET RESPONSE, keyed by path and file id. The value is
+     * {record size, number of records} for linear fixed EFs and {file size} for transparent EFs.
+     */
+    private final Map<String, int[]> mEfSizes = new ConcurrentHashMap<>();
+    // The ICCID of the card the cached EF sizes were read from.
+    private String mEfSizesIccId;
+
+    private final LocalLog mLocalLog = new LocalLog(64);
+    private int mNumGetResponseSkipped;
+
     public static class LoadLinearFixedContext {
 
         int mEfid;
@@ -116,6 +137,12 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         int mRecordNum, mRecordSize, mCountRecords;
         boolean mLoadAll;
         String mPath;
+        // Record size and number of records come from mEfSizes instead of GET RESPONSE.
+        boolean mSizeFromCache;
+        boolean mFailed;
+        int mNumPendingReads;
+        int mNumReadRecords;
+        long mStartTimeMs;
 
         Message mOnLoaded;
 
@@ -188,9 +215,12 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public void loadEFLinearFixed(int fileid, String path, int recordNum, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
-        Message response
-                = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
-                        new LoadLinearFixedContext(fileid, recordNum, efPath, onLoaded));
+        LoadLinearFixedContext lc = new LoadLinearFixedContext(fileid, recordNum, efPath,
+                onLoaded);
+        if (readRecordsWithCachedSize(lc)) {
+            return;
+        }
+        Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE, lc);
 
         mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
                         0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
@@ -299,8 +329,12 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public void loadEFLinearFixedAll(int fileid, String path, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
-        Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
-                        new LoadLinearFixedContext(fileid, efPath, onLoaded));
+        LoadLinearFixedContext lc = new LoadLinearFixedContext(fileid, efPath, onLoaded);
+        lc.mStartTimeMs = SystemClock.elapsedRealtime();
+        if (readRecordsWithCachedSize(lc)) {
+            return;
+        }
+        Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE, lc);
 
         mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
                         0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
@@ -330,6 +364,14 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
     @UnsupportedAppUsage
     public void loadEFTransparent(int fileid, Message onLoaded) {
+        int[] size = mEfSizes.get(getEfSizeKey(fileid, getEFPath(fileid)));
+        if (size != null) {
+            mNumGetResponseSkipped++;
+            mCi.iccIOForApp(COMMAND_READ_BINARY, fileid, getEFPath(fileid),
+                    0, 0, size[0], null, null, mAid,
+                    obtainMessage(EVENT_READ_BINARY_DONE, fileid, 1, onLoaded));
+            return;
+        }
         Message response = obtainMessage(EVENT_GET_BINARY_SIZE_DONE,
                         fileid, 0, onLoaded);
 
@@ -433,11 +475,115 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     }
 
 
+    /**
+     * Clear the cached EF sizes, e.g. when the card reports that its files changed.
+     */
+    public void clearEfSizes() {
+        mEfSizes.clear();
+    }
+
+    /**
+     * Called when the ICCID of the card is read. The cached EF sizes are only kept for the card
+     * they were read from, so they are cleared when the ICCID changes.
+     *
+     * @param iccId The full ICCID of the card.
+     */
+    public void onIccIdLoaded(String iccId) {
+        if (!Objects.equals(iccId, mEfSizesIccId)) {
+            mEfSizes.clear();
+            mEfSizesIccId = iccId;
+        }
+    }
+
     //***** Abstract Methods
 
 
     //***** Private Methods
 
+    private static String getEfSizeKey(int fileid, String path) {
+        return path + "/" + Integer.toHexString(fileid);
+    }
+
+    /**
+     * Start reading the records of a linear fixed EF without GET RESPONSE if its size is known.
+     *
+     * @return {@code true} if the size of the EF is known and the read started.
+     */
+    private boolean readRecordsWithCachedSize(LoadLinearFixedContext lc) {
+        int[] size = mEfSizes.get(getEfSizeKey(lc.mEfid, lc.mPath));
+        if (size == null) {
+            return false;
+        }
+        mNumGetResponseSkipped++;
+        lc.mSizeFromCache = true;
+        lc.mRecordSize = size[0];
+        lc.mCountRecords = size[1];
+        startReadRecords(lc);
+        return true;
+    }
+
+    private void startReadRecords(LoadLinearFixedContext lc) {
+        if (!lc.mLoadAll) {
+            readRecord(lc, lc.mRecordNum);
+            return;
+        }
+        lc.results = new ArrayList<byte[]>(Collections.nCopies(lc.mCountRecords, null));
+        if (lc.mCountRecords == 0) {
+            onAllRecordsRead(lc);
+            return;
+        }
+        readNextRecords(lc);
+    }
+
+    /**
+     * Issue READ RECORD for the next records, keeping at most {@link #MAX_PENDING_READ_RECORDS}
+     * commands in flight. The records are independent, so they do not need to be read one at a
+     * time.
+     */
+    private void readNextRecords(LoadLinearFixedContext lc) {
+        while (lc.mNumPendingReads < MAX_PENDING_READ_RECORDS
+                && lc.mRecordNum <= lc.mCountRecords) {
+            readRecord(lc, lc.mRecordNum);
+            lc.mRecordNum++;
+            lc.mNumPendingReads++;
+        }
+    }
+
+    private void readRecord(LoadLinearFixedContext lc, int recordNum) {
+        String path = (lc.mPath == null) ? getEFPath(lc.mEfid) : lc.mPath;
+        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                recordNum,
+                READ_RECORD_MODE_ABSOLUTE,
+                lc.mRecordSize, null, null, mAid,
+                obtainMessage(EVENT_READ_RECORD_DONE, recordNum, 0, lc));
+    }
+
+    private void onAllRecordsRead(LoadLinearFixedContext lc) {
+        mLocalLog.log("Loaded EF 0x" + Integer.toHexString(lc.mEfid) + ": records="
+                + lc.mCountRecords + ", sizeFromCache=" + lc.mSizeFromCache + ", "
+                + (SystemClock.elapsedRealtime() - lc.mStartTimeMs) + "ms");
+        sendResult(lc.mOnLoaded, lc.results, null);
+    }
+
+    /**
+     * Called when reading an EF failed after its size was taken from the cache. The cached size
+     * may be outdated, so the load is restarted with GET RESPONSE.
+     */
+    private void retryWithoutCachedSize(LoadLinearFixedContext lc) {
+        mEfSizes.remove(getEfSizeKey(lc.mEfid, lc.mPath));
+        LoadLinearFixedContext retry = lc.mLoadAll
+                ? new LoadLinearFixedContext(lc.mEfid, lc.mPath, lc.mOnLoaded)
+                : new LoadLinearFixedContext(lc.mEfid, lc.mRecordNum, lc.mPath, lc.mOnLoaded);
+        retry.mStartTimeMs = lc.mStartTimeMs;
+        mCi.iccIOForApp(COMMAND_GET_RESPONSE, lc.mEfid, lc.mPath,
+                0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid,
+                obtainMessage(EVENT_GET_RECORD_SIZE_DONE, retry));
+    }
+
+    private static boolean isFailure(AsyncResult ar) {
+        return ar.exception != null || ((IccIoResult) ar.result).getException() != null;
+    }
+
     private void sendResult(Message response, Object result, Throwable ex) {
         if (response == null) {
             return;
@@ -537,18 +683,12 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
                 lc.mCountRecords = size / lc.mRecordSize;
 
-                if (lc.mLoadAll) {
-                    lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                if (msg.what == EVENT_GET_RECORD_SIZE_DONE && path != null) {
+                    mEfSizes.put(getEfSizeKey(lc.mEfid, path),
+                            new int[] {lc.mRecordSize, lc.mCountRecords});
                 }
 
-                if (path == null) {
-                    path = getEFPath(lc.mEfid);
-                }
-                mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                        lc.mRecordNum,
-                        READ_RECORD_MODE_ABSOLUTE,
-                        lc.mRecordSize, null, null, mAid,
-                        obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                startReadRecords(lc);
                 break;
             case EVENT_GET_BINARY_SIZE_DONE:
                 ar = (AsyncResult)msg.obj;
@@ -577,6 +717,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 }
 
                 size = getDataFileSize(data);
+                mEfSizes.put(getEfSizeKey(fileid, getEFPath(fileid)), new int[] {size});
 
                 mCi.iccIOForApp(COMMAND_READ_BINARY, fileid, getEFPath(fileid),
                                 0, 0, size, null, null, mAid,
@@ -590,32 +731,35 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 ar = (AsyncResult)msg.obj;
                 lc = (LoadLinearFixedContext) ar.userObj;
                 result = (IccIoResult) ar.result;
+
+                if (lc.mFailed) {
+                    // Another record of the EF failed to load, the result was already sent.
+                    break;
+                }
                 response = lc.mOnLoaded;
-                path = lc.mPath;
+
+                if (lc.mSizeFromCache && isFailure(ar)) {
+                    lc.mFailed = true;
+                    retryWithoutCachedSize(lc);
+                    break;
+                }
 
                 if (processException(response, (AsyncResult) msg.obj)) {
+                    lc.mFailed = true;
                     break;
                 }
 
                 if (!lc.mLoadAll) {
                     sendResult(response, result.payload, null);
                 } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
+                    lc.results.set(msg.arg1 - 1, result.payload);
+                    lc.mNumPendingReads--;
+                    lc.mNumReadRecords++;
 
-                    if (lc.mRecordNum > lc.mCountRecords) {
-                        sendResult(response, lc.results, null);
+                    if (lc.mNumReadRecords == lc.mCountRecords) {
+                        onAllRecordsRead(lc);
                     } else {
-                        if (path == null) {
-                            path = getEFPath(lc.mEfid);
-                        }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                        readNextRecords(lc);
                     }
                 }
 
@@ -627,6 +771,17 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 response = (Message) ar.userObj;
                 result = (IccIoResult) ar.result;
 
+                // arg2 is set if the size of the EF was taken from the cache. The cached size may
+                // be outdated, so read the EF again with GET RESPONSE.
+                if (msg.what == EVENT_READ_BINARY_DONE && msg.arg2 == 1 && isFailure(ar)) {
+                    fileid = msg.arg1;
+                    mEfSizes.remove(getEfSizeKey(fileid, getEFPath(fileid)));
+                    mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, getEFPath(fileid),
+                            0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid,
+                            obtainMessage(EVENT_GET_BINARY_SIZE_DONE, fileid, 0, response));
+                    break;
+                }
+
                 if (processException(response, (AsyncResult) msg.obj)) {
                     break;
                 }
@@ -707,6 +862,17 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     protected abstract void logd(String s);
     protected abstract void loge(String s);
 
+    /**
+     * Dump the state of the file handler.
+     *
+     * @param pw Print writer
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("IccFileHandler: mAid=" + mAid + " mEfSizes.size()=" + mEfSizes.size()
+                + " mNumGetResponseSkipped=" + mNumGetResponseSkipped);
+        mLocalLog.dump(pw);
+    }
+
     /**
      * Calculate the size of a data file
      *
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telephony.SubscriptionInfo;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent store of values keyed by ICCID, which only keeps the values of the most recently
+ * used cards.
+ *
+ * This is the storage of {@link IccFileCache} and {@link UiccAccessRulesCache}. Each value of a
+ * card has a name. When a value is put for a card which is not the most recently used one, the
+ * card becomes the most recently used one, and the values of the least recently used card are
+ * evicted if there are too many cards in the store.
+ *
+ * {@hide}
+ */
+public class IccIdLruStore {
+    /** Comma separated list of the stored ICCIDs, the most recently used first. */
+    private static final String KEY_ICCIDS = "iccids";
+    private static final String SEPARATOR = ",";
+
+    private final @NonNull SharedPreferences mSharedPreferences;
+    private final @NonNull String mKeyPrefix;
+    private final int mMaxIccIds;
+
+    private int mNumHits;
+    private int mNumMisses;
+    private int mNumStale;
+
+    /**
+     * @param context The context.
+     * @param sharedPrefsName The name of the private SharedPreferences file of the store.
+     * @param keyPrefix The prefix of the keys of the values in the file.
+     * @param maxIccIds The maximum number of cards whose values are kept.
+     */
+    public IccIdLruStore(@NonNull Context context, @NonNull String sharedPrefsName,
+            @NonNull String keyPrefix, int maxIccIds) {
+        mSharedPreferences = context.getSharedPreferences(sharedPrefsName, Context.MODE_PRIVATE);
+        mKeyPrefix = keyPrefix;
+        mMaxIccIds = maxIccIds;
+    }
+
+    /**
+     * @param iccId The ICCID of the card.
+     * @param name The name of the value.
+     * @return The value, or {@code null} if it is not stored.
+     */
+    public @Nullable String get(@NonNull String iccId, @NonNull String name) {
+        String value = mSharedPreferences.getString(getKey(iccId, name), null);
+        if (value == null) {
+            mNumMisses++;
+        } else {
+            mNumHits++;
+        }
+        return value;
+    }
+
+    /**
+     * Store a value, and mark the card as the most recently used one.
+     *
+     * @param iccId The ICCID of the card.
+     * @param name The name of the value.
+     * @param value The value.
+     */
+    public void put(@NonNull String iccId, @NonNull String name, @NonNull String value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit()
+                .putString(getKey(iccId, name), value);
+        touch(editor, iccId);
+        editor.apply();
+    }
+
+    /**
+     * Remove values of a card.
+     *
+     * @param iccId The ICCID of the card.
+     * @param names The names of the values.
+     */
+    public void remove(@NonNull String iccId, @NonNull String... names) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        for (String name : names) {
+            editor.remove(getKey(iccId, name));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Remove all the values of a card.
+     *
+     * @param iccId The ICCID of the card.
+     */
+    public void clear(@NonNull String iccId) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        removeIccId(editor, iccId);
+        List<String> iccIds = getIccIds();
+        iccIds.remove(iccId);
+        editor.putString(KEY_ICCIDS, TextUtils.join(SEPARATOR, iccIds)).apply();
+    }
+
+    /**
+     * Called when a value read from the card did not match the stored value.
+     */
+    public void onStale() {
+        mNumStale++;
+    }
+
+    /**
+     * Mark the card as the most recently used one, and evict the values of the least recently
+     * used card if there are too many cards in the store.
+     */
+    private void touch(@NonNull SharedPreferences.Editor editor, @NonNull String iccId) {
+        List<String> iccIds = getIccIds();
+        if (!iccIds.isEmpty() && iccIds.get(0).equals(iccId)) return;
+        iccIds.remove(iccId);
+        iccIds.add(0, iccId);
+        while (iccIds.size() > mMaxIccIds) {
+            removeIccId(editor, iccIds.remove(iccIds.size() - 1));
+        }
+        editor.putString(KEY_ICCIDS, TextUtils.join(SEPARATOR, iccIds));
+    }
+
+    private void removeIccId(@NonNull SharedPreferences.Editor editor, @NonNull String iccId) {
+        String prefix = getKey(iccId, "");
+        for (String key : mSharedPreferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+    }
+
+    private @NonNull List<String> getIccIds() {
+        String value = mSharedPreferences.getString(KEY_ICCIDS, "");
+        List<String> iccIds = new ArrayList<>();
+        if (!value.isEmpty()) {
+            iccIds.addAll(Arrays.asList(value.split(SEPARATOR)));
+        }
+        return iccIds;
+    }
+
+    private @NonNull String getKey(@NonNull String iccId, @NonNull String name) {
+        return mKeyPrefix + iccId + "_" + name;
+    }
+
+    /**
+     * Dump the store state.
+     *
+     * @param pw Print writer
+     * @param name The name of the store in the dump.
+     */
+    public void dump(@NonNull PrintWriter pw, @NonNull String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String iccId : getIccIds()) {
+            if (sb.length() > 0) sb.append(SEPARATOR);
+            sb.append(SubscriptionInfo.getPrintableId(iccId));
+        }
+        pw.println(" " + name + ": iccIds=[" + sb + "] hits=" + mNumHits + " misses=" + mNumMisses
+                + " stale=" + mNumStale);
+    }
+}
@@ -125,6 +125,8 @@ public abstract class IccRecords extends Handler implements IccConstants {
     protected static final int LOCKED_RECORDS_REQ_REASON_NETWORK_LOCKED = 2;
 
     protected boolean mRecordsRequested = false; // true if we've made requests for the sim records
+    // true if the application became ready while the load of the records was deferred
+    private boolean mAppReadyDeferred = false;
     protected int mLockedRecordsReqReason = LOCKED_RECORDS_REQ_REASON_NONE;
     // EF_SMSS fields tpmr invalid, min and max declarations
     protected static final int SMSS_INVALID_TPMR = -1;
@@ -239,6 +241,7 @@ public abstract class IccRecords extends Handler implements IccConstants {
     protected static final int EVENT_APP_LOCKED = 2 + SYSTEM_EVENT_BASE;
     protected static final int EVENT_APP_NETWORK_LOCKED = 3 + SYSTEM_EVENT_BASE;
     protected static final int EVENT_APP_DETECTED = 4 + SYSTEM_EVENT_BASE;
+    protected static final int EVENT_RECORDS_LOAD_RELEASED = 5 + SYSTEM_EVENT_BASE;
 
     public static final int CALL_FORWARDING_STATUS_DISABLED = 0;
     public static final int CALL_FORWARDING_STATUS_ENABLED = 1;
@@ -368,6 +371,17 @@ public abstract class IccRecords extends Handler implements IccConstants {
 
     protected abstract void onReady();
 
+    /**
+     * Called when the records are about to be used, to load them now if their load was deferred
+     * by {@link UiccProfile}.
+     */
+    public void onRecordsRequested() {
+        UiccCardApplication parentApp = mParentApp;
+        if (parentApp != null) {
+            parentApp.releaseRecordsLoad();
+        }
+    }
+
     protected void onDetected() {
         mRecordsRequested = false;
         mLoaded.set(false);
@@ -879,11 +893,26 @@ public abstract class IccRecords extends Handler implements IccConstants {
         switch (msg.what) {
             case EVENT_APP_READY:
                 mLockedRecordsReqReason = LOCKED_RECORDS_REQ_REASON_NONE;
+                UiccCardApplication parentApp = mParentApp;
+                if (parentApp != null && parentApp.isRecordsLoadDeferred()) {
+                    // The records are loaded once UiccProfile releases the application.
+                    mAppReadyDeferred = true;
+                    break;
+                }
+                mAppReadyDeferred = false;
                 onReady();
                 break;
 
+            case EVENT_RECORDS_LOAD_RELEASED:
+                if (mAppReadyDeferred) {
+                    mAppReadyDeferred = false;
+                    onReady();
+                }
+                break;
+
             case EVENT_APP_DETECTED:
                 mLockedRecordsReqReason = LOCKED_RECORDS_REQ_REASON_NONE;
+                mAppReadyDeferred = false;
                 onDetected();
                 break;
 
@@ -1075,8 +1104,15 @@ public abstract class IccRecords extends Handler implements IccConstants {
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleRefresh with SIM_FILE_UPDATED");
+                mFh.clearEfSizes();
                 handleFileUpdate(refreshResponse.efId);
                 break;
+            case IccRefreshResponse.REFRESH_RESULT_INIT:
+            case IccRefreshResponse.REFRESH_RESULT_RESET:
+                // The files may have changed, don't trust the EF sizes read before.
+                if (DBG) log("handleRefresh with SIM_INIT or SIM_RESET");
+                mFh.clearEfSizes();
+                break;
             default:
                 // unknown refresh operation
                 if (DBG) log("handleRefresh with unknown operation");
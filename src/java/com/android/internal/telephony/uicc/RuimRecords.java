@@ -689,6 +689,7 @@ public class RuimRecords extends IccRecords {
 
                 mIccId = IccUtils.bcdToString(data, 0, data.length);
                 mFullIccId = IccUtils.bchToString(data, 0, data.length);
+                mFh.onIccIdLoaded(mFullIccId);
 
                 log("iccid: " + SubscriptionInfo.getPrintableId(mFullIccId));
 
@@ -191,6 +191,40 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_SET_FPLMN_DONE = 43 + SIM_RECORD_EVENT_BASE;
     protected static final int EVENT_GET_SMSS_RECORD_DONE = 46 + SIM_RECORD_EVENT_BASE;
     protected static final int EVENT_GET_PSISMSC_DONE = 47 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_GET_CACHEABLE_EF_DONE = 48 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_REVALIDATE_CACHED_EF_DONE = 49 + SIM_RECORD_EVENT_BASE;
+
+    /**
+     * Marks the delivery of a file whose content read from the card differs from the cached
+     * content delivered during the records load. arg2 of the message is the file id.
+     */
+    private static final int HANDLER_ACTION_UPDATE_CACHED_EF = HANDLER_ACTION_BASE + 2;
+
+    private final IccFileCache mFileCache;
+
+    /**
+     * Files served from {@link IccFileCache} during the records load, which are read from the
+     * card once all the records are loaded.
+     */
+    private final List<CachedEfLoadContext> mPendingRevalidations = new ArrayList<>();
+
+    /** Context of the load of an EF which can be served from {@link IccFileCache}. */
+    private static class CachedEfLoadContext {
+        final String mIccId;
+        final int mEfid;
+        final boolean mLinearFixed;
+        final Message mOnLoaded;
+        final Object mCachedContent;
+
+        CachedEfLoadContext(String iccId, int efid, boolean linearFixed, Message onLoaded,
+                Object cachedContent) {
+            mIccId = iccId;
+            mEfid = efid;
+            mLinearFixed = linearFixed;
+            mOnLoaded = onLoaded;
+            mCachedContent = cachedContent;
+        }
+    }
 
     // ***** Constructor
 
@@ -201,6 +235,8 @@ public class SIMRecords extends IccRecords {
 
         mVmConfig = new VoiceMailConstants();
 
+        mFileCache = new IccFileCache(c);
+
         mRecordsRequested = false;  // No load request is made till SIM ready
         mLockedRecordsReqReason = LOCKED_RECORDS_REQ_REASON_NONE;
 
@@ -253,6 +289,11 @@ public class SIMRecords extends IccRecords {
 
         mAdnCache.reset();
 
+        for (CachedEfLoadContext context : mPendingRevalidations) {
+            context.mOnLoaded.recycle();
+        }
+        mPendingRevalidations.clear();
+
         log("SIMRecords: onRadioOffOrNotAvailable set 'gsm.sim.operator.numeric' to operator=null");
         log("update icc_operator_numeric=" + null);
         mTelephonyManager.setSimOperatorNumericForPhone(mParentApp.getPhoneId(), "");
@@ -615,6 +656,7 @@ public class SIMRecords extends IccRecords {
     @Override
     public void onRefresh(boolean fileChanged, int[] fileList) {
         if (fileChanged) {
+            invalidateFileCache(fileList);
             // A future optimization would be to inspect fileList and
             // only reload those files that we care about.  For now,
             // just re-fetch all SIM records that we cache.
@@ -857,6 +899,7 @@ public class SIMRecords extends IccRecords {
 
                     mIccId = IccUtils.bcdToString(data, 0, data.length);
                     mFullIccId = IccUtils.bchToString(data, 0, data.length);
+                    mFh.onIccIdLoaded(mFullIccId);
 
                     log("iccid: " + SubscriptionInfo.getPrintableId(mFullIccId));
                     break;
@@ -1359,6 +1402,16 @@ public class SIMRecords extends IccRecords {
                     }
                     break;
 
+                case EVENT_GET_CACHEABLE_EF_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    onCacheableEfLoaded((CachedEfLoadContext) ar.userObj, ar);
+                    break;
+
+                case EVENT_REVALIDATE_CACHED_EF_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    onCachedEfRevalidated((CachedEfLoadContext) ar.userObj, ar);
+                    break;
+
                 default:
                     super.handleMessage(msg);   // IccRecords handles generic record load responses
             }
@@ -1368,7 +1421,11 @@ public class SIMRecords extends IccRecords {
         } finally {
             // Count up record load responses even if they are fails
             if (isRecordLoadResponse) {
-                onRecordLoaded();
+                if (msg.arg1 == HANDLER_ACTION_UPDATE_CACHED_EF) {
+                    onCachedEfUpdated(msg.arg2);
+                } else {
+                    onRecordLoaded();
+                }
             }
         }
     }
@@ -1397,6 +1454,7 @@ public class SIMRecords extends IccRecords {
 
     @Override
     protected void handleFileUpdate(int efid) {
+        invalidateFileCache(new int[] {efid});
         switch(efid) {
             case EF_MBDN:
                 mRecordsToLoad++;
@@ -1584,6 +1642,8 @@ public class SIMRecords extends IccRecords {
         setVoiceMailByCountry(operator);
         mLoaded.set(true);
         mRecordsLoadedRegistrants.notifyRegistrants(new AsyncResult(null, null, null));
+
+        revalidateCachedEfs();
     }
 
     //***** Private methods
@@ -1605,6 +1665,8 @@ public class SIMRecords extends IccRecords {
      */
     public void getForbiddenPlmns(Message response) {
         int key = storePendingTransaction(response);
+        // EF_FPLMN is not served from the file cache, as both the modem and the framework update
+        // it.
         mFh.loadEFTransparent(EF_FPLMN, obtainMessage(
                     EVENT_GET_FPLMN_DONE, HANDLER_ACTION_SEND_RESPONSE, key));
     }
@@ -1681,7 +1743,7 @@ public class SIMRecords extends IccRecords {
         mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
+        loadEfWithCache(EF_AD, false, obtainMessage(EVENT_GET_AD_DONE));
         mRecordsToLoad++;
 
         // Record number is subscriber profile
@@ -1704,40 +1766,42 @@ public class SIMRecords extends IccRecords {
 
         getSpnFsm(true, null);
 
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
+        loadEfWithCache(EF_SPDI, false, obtainMessage(EVENT_GET_SPDI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixedAll(EF_PNN, obtainMessage(EVENT_GET_PNN_DONE));
+        loadEfWithCache(EF_PNN, true, obtainMessage(EVENT_GET_PNN_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixedAll(EF_OPL, obtainMessage(EVENT_GET_OPL_DONE));
+        loadEfWithCache(EF_OPL, true, obtainMessage(EVENT_GET_OPL_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
+        loadEfWithCache(EF_SST, false, obtainMessage(EVENT_GET_SST_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
+        loadEfWithCache(EF_INFO_CPHS, false, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
+        loadEfWithCache(EF_CSP_CPHS, false, obtainMessage(EVENT_GET_CSP_CPHS_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
+        loadEfWithCache(EF_GID1, false, obtainMessage(EVENT_GET_GID1_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID2, obtainMessage(EVENT_GET_GID2_DONE));
+        loadEfWithCache(EF_GID2, false, obtainMessage(EVENT_GET_GID2_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_PLMN_W_ACT, obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
+        loadEfWithCache(EF_PLMN_W_ACT, false, obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_OPLMN_W_ACT, obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
+        loadEfWithCache(EF_OPLMN_W_ACT, false,
+                obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_HPLMN_W_ACT, obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
+        loadEfWithCache(EF_HPLMN_W_ACT, false,
+                obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_EHPLMN, obtainMessage(EVENT_GET_EHPLMN_DONE));
+        loadEfWithCache(EF_EHPLMN, false, obtainMessage(EVENT_GET_EHPLMN_DONE));
         mRecordsToLoad++;
 
         mFh.loadEFTransparent(EF_FPLMN, obtainMessage(
@@ -1775,6 +1839,193 @@ public class SIMRecords extends IccRecords {
         if (DBG) log("fetchSimRecords " + mRecordsToLoad + " requested: " + mRecordsRequested);
     }
 
+    /**
+     * Load an EF which can be served from {@link IccFileCache}. If the file of the card is
+     * cached, the cached content is delivered right away and the file is read from the card
+     * once all the records are loaded, so that the read does not delay the other records. If the
+     * content read from the card differs, the file is delivered again as an update.
+     *
+     * @param efid The file id.
+     * @param linearFixed {@code true} to load all the records of a linear fixed EF,
+     * {@code false} to load a transparent EF.
+     * @param onLoaded The message to send with the loaded content.
+     */
+    private void loadEfWithCache(int efid, boolean linearFixed, Message onLoaded) {
+        String iccId = getFileCacheIccId();
+        if (iccId == null) {
+            if (linearFixed) {
+                mFh.loadEFLinearFixedAll(efid, onLoaded);
+            } else {
+                mFh.loadEFTransparent(efid, onLoaded);
+            }
+            return;
+        }
+
+        Object cachedContent = linearFixed ? mFileCache.getRecords(iccId, efid)
+                : mFileCache.getTransparent(iccId, efid);
+        Message response;
+        if (cachedContent == null) {
+            response = obtainMessage(EVENT_GET_CACHEABLE_EF_DONE);
+            response.obj = new CachedEfLoadContext(iccId, efid, linearFixed, onLoaded, null);
+        } else {
+            if (VDBG) {
+                log("loadEfWithCache: serving 0x" + Integer.toHexString(efid) + " from cache");
+            }
+            // Keep a copy of the message, in case it needs to be delivered again.
+            Message onRevalidated = Message.obtain(onLoaded);
+            AsyncResult.forMessage(onLoaded, cachedContent, null);
+            onLoaded.sendToTarget();
+            mPendingRevalidations.add(new CachedEfLoadContext(iccId, efid, linearFixed,
+                    onRevalidated, cachedContent));
+            return;
+        }
+
+        if (linearFixed) {
+            mFh.loadEFLinearFixedAll(efid, response);
+        } else {
+            mFh.loadEFTransparent(efid, response);
+        }
+    }
+
+    /**
+     * Read the files served from {@link IccFileCache} during the records load from the card.
+     */
+    private void revalidateCachedEfs() {
+        for (CachedEfLoadContext context : mPendingRevalidations) {
+            Message response = obtainMessage(EVENT_REVALIDATE_CACHED_EF_DONE);
+            response.obj = context;
+            if (context.mLinearFixed) {
+                mFh.loadEFLinearFixedAll(context.mEfid, response);
+            } else {
+                mFh.loadEFTransparent(context.mEfid, response);
+            }
+        }
+        mPendingRevalidations.clear();
+    }
+
+    private void onCacheableEfLoaded(CachedEfLoadContext context, AsyncResult ar) {
+        if (ar.exception == null && ar.result != null) {
+            putFileCache(context, ar.result);
+        }
+        AsyncResult.forMessage(context.mOnLoaded, ar.result, ar.exception);
+        context.mOnLoaded.sendToTarget();
+    }
+
+    private void onCachedEfRevalidated(CachedEfLoadContext context, AsyncResult ar) {
+        if (ar.exception != null || ar.result == null) {
+            // Keep the content already delivered, but read the file again next time.
+            log("onCachedEfRevalidated: failed to read 0x" + Integer.toHexString(context.mEfid)
+                    + ", ex=" + ar.exception);
+            mFileCache.remove(context.mIccId, context.mEfid);
+            context.mOnLoaded.recycle();
+            return;
+        }
+
+        boolean changed;
+        if (context.mLinearFixed) {
+            List<byte[]> cached = (List<byte[]>) context.mCachedContent;
+            List<byte[]> records = (List<byte[]>) ar.result;
+            changed = cached.size() != records.size();
+            for (int i = 0; !changed && i < records.size(); i++) {
+                changed = !Arrays.equals(cached.get(i), records.get(i));
+            }
+        } else {
+            changed = !Arrays.equals((byte[]) context.mCachedContent, (byte[]) ar.result);
+        }
+
+        if (!changed) {
+            context.mOnLoaded.recycle();
+            return;
+        }
+
+        log("onCachedEfRevalidated: 0x" + Integer.toHexString(context.mEfid) + " changed");
+        mFileCache.onStale();
+        putFileCache(context, ar.result);
+        if (!mRecordsRequested) {
+            // The records were reset since the load was requested.
+            context.mOnLoaded.recycle();
+            return;
+        }
+        // Deliver the file again as an update, which does not count as a record to load.
+        context.mOnLoaded.arg1 = HANDLER_ACTION_UPDATE_CACHED_EF;
+        context.mOnLoaded.arg2 = context.mEfid;
+        AsyncResult.forMessage(context.mOnLoaded, ar.result, null);
+        context.mOnLoaded.sendToTarget();
+    }
+
+    /**
+     * Called when a file which changed since it was cached has been parsed again. Like
+     * {@link #handleFileUpdate}, only the users of the file are notified, rather than reloading
+     * all the records.
+     *
+     * @param efid The file id.
+     */
+    private void onCachedEfUpdated(int efid) {
+        log("onCachedEfUpdated: 0x" + Integer.toHexString(efid));
+        if (!mLoaded.get()) {
+            // The records are loaded again, and will be notified once loaded.
+            return;
+        }
+        switch (efid) {
+            case EF_AD:
+            case EF_SPDI:
+            case EF_PNN:
+            case EF_OPL:
+                String operator = getOperatorNumeric();
+                if (!TextUtils.isEmpty(operator)) {
+                    mTelephonyManager.setSimOperatorNumericForPhone(
+                            mParentApp.getPhoneId(), operator);
+                }
+                mSpnUpdatedRegistrants.notifyRegistrants();
+                break;
+            default:
+                break;
+        }
+        // Let the carrier identification use the updated GID1, GID2, SST or EHPLMN.
+        mRecordsOverrideRegistrants.notifyRegistrants();
+    }
+
+    private void putFileCache(CachedEfLoadContext context, Object content) {
+        if (context.mLinearFixed) {
+            mFileCache.putRecords(context.mIccId, context.mEfid, (List<byte[]>) content);
+        } else {
+            mFileCache.putTransparent(context.mIccId, context.mEfid, (byte[]) content);
+        }
+    }
+
+    /**
+     * Remove files from {@link IccFileCache} after the card reported them as changed.
+     *
+     * @param fileList The changed files, or {@code null} if the changed files are unknown.
+     */
+    private void invalidateFileCache(int[] fileList) {
+        String iccId = getFileCacheIccId();
+        if (iccId == null) return;
+        if (fileList == null) {
+            mFileCache.clear(iccId);
+            return;
+        }
+        for (int efid : fileList) {
+            mFileCache.remove(iccId, efid);
+        }
+    }
+
+    /**
+     * @return The ICCID used as the key of {@link IccFileCache}, or {@code null} if the ICCID of
+     * the card is unknown.
+     */
+    private String getFileCacheIccId() {
+        String iccId = null;
+        UiccPort port = UiccController.getInstance().getUiccPort(mParentApp.getPhoneId());
+        if (port != null) {
+            iccId = port.getIccId();
+        }
+        if (TextUtils.isEmpty(iccId)) {
+            iccId = mFullIccId;
+        }
+        return TextUtils.isEmpty(iccId) ? null : IccUtils.stripTrailingFs(iccId);
+    }
+
     @Override
     @CarrierNameDisplayConditionBitmask
     public int getCarrierNameDisplayCondition() {
@@ -2218,6 +2469,7 @@ public class SIMRecords extends IccRecords {
         if (mCarrierTestOverride.isInTestMode()) {
             pw.println(" mFakePnnHomeName=" + mCarrierTestOverride.getFakePnnHomeName());
         }
+        mFileCache.dump(pw);
         pw.println(" mPlmnActRecords[]=" + Arrays.toString(mPlmnActRecords));
         pw.println(" mOplmnActRecords[]=" + Arrays.toString(mOplmnActRecords));
         pw.println(" mHplmnActRecords[]=" + Arrays.toString(mHplmnActRecords));
@@ -21,9 +21,13 @@ import android.content.Context;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Registrant;
+import android.os.RegistrantList;
+import android.os.SystemClock;
 import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.LocalLog;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
@@ -31,14 +35,18 @@ import com.android.internal.telephony.RadioInterfaceCapabilityController;
 import com.android.internal.telephony.uicc.AdnCapacity;
 import com.android.internal.telephony.uicc.IccConstants;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 
@@ -85,6 +93,11 @@ public class SimPhonebookRecordCache extends Handler {
     private Object mReadLock = new Object();
     private final ConcurrentSkipListMap<Integer, AdnRecord> mSimPbRecords =
             new ConcurrentSkipListMap<Integer, AdnRecord>();
+    // IDs of the non-empty records in mSimPbRecords, indexed by AdnRecordIndex#getKey
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> mRecordIdsByKey =
+            new ConcurrentHashMap<>();
+    // Notified of each batch of records received from the modem
+    private final RegistrantList mRecordsReceivedRegistrants = new RegistrantList();
     private final List<UpdateRequest> mUpdateRequests =
             Collections.synchronizedList(new ArrayList<UpdateRequest>());
     // If true, clear the records in the cache and re-query from modem
@@ -103,6 +116,13 @@ public class SimPhonebookRecordCache extends Handler {
      */
     boolean mIsUpdateDone = false;
 
+    // Metrics of the ongoing or last loading of the records
+    private long mLoadStartTimeMs;
+    private long mFirstBatchLatencyMs = -1;
+    private int mNumBatchesReceived;
+    private int mNumRecordsReceived;
+    private final LocalLog mLocalLog = new LocalLog(16);
+
     public SimPhonebookRecordCache(Context context, int phoneId, CommandsInterface ci) {
         mCi = ci;
         mPhoneId = phoneId;
@@ -136,6 +156,7 @@ public class SimPhonebookRecordCache extends Handler {
     private void reset() {
         mAdnCapacity.set(null);
         mSimPbRecords.clear();
+        mRecordIdsByKey.clear();
         mIsCacheInvalidated.set(false);
         mIsRecordLoading.set(false);
         mIsInRetry.set(false);
@@ -199,6 +220,12 @@ public class SimPhonebookRecordCache extends Handler {
     private void fillCacheWithoutWaiting() {
         logd("Start to queryAdnRecord");
         if (mIsRecordLoading.compareAndSet(false, true)) {
+            if (!mIsInRetry.get()) {
+                mLoadStartTimeMs = SystemClock.elapsedRealtime();
+                mFirstBatchLatencyMs = -1;
+                mNumBatchesReceived = 0;
+                mNumRecordsReceived = 0;
+            }
             mCi.getSimPhonebookRecords(obtainMessage(EVENT_GET_PHONEBOOK_RECORDS_DONE));
         } else {
             logd("The loading is ongoing");
@@ -251,10 +278,53 @@ public class SimPhonebookRecordCache extends Handler {
         return mSimPbRecords.values().stream().collect(Collectors.toList());
     }
 
+    /**
+     * Register for the batches of records received from the modem while the records are loaded,
+     * so the records can be read before the whole phonebook is loaded. The result of the
+     * {@link AsyncResult} is the {@code List<AdnRecord>} of the records in the batch. If the
+     * records are being loaded, the records received so far are notified right away.
+     *
+     * @param h Handler for notification message.
+     * @param what User-defined message code.
+     * @param obj User object.
+     */
+    public void registerForRecordsReceived(Handler h, int what, Object obj) {
+        Registrant r = new Registrant(h, what, obj);
+        mRecordsReceivedRegistrants.add(r);
+        if (isLoadInProgress() && mNumRecordsReceived > 0) {
+            r.notifyResult(getAdnRecords());
+        }
+    }
+
+    /**
+     * Unregister for the batches of records received from the modem.
+     *
+     * @param h Handler to be removed from the registrant list.
+     */
+    public void unregisterForRecordsReceived(Handler h) {
+        mRecordsReceivedRegistrants.remove(h);
+    }
+
+    /**
+     * @return {@code true} if the records are being loaded from the modem. The records received
+     * so far can be read with {@link #getAdnRecords}.
+     */
+    public boolean isLoadInProgress() {
+        return mIsRecordLoading.get() || mIsInRetry.get();
+    }
+
+    /**
+     * @return The number of records received from the modem by the ongoing or last loading.
+     */
+    public int getNumRecordsReceived() {
+        return mNumRecordsReceived;
+    }
+
     @VisibleForTesting
     public void clear() {
         if (!ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
             mSimPbRecords.clear();
+            mRecordIdsByKey.clear();
         }
     }
 
@@ -287,12 +357,7 @@ public class SimPhonebookRecordCache extends Handler {
         int recordId = INVALID_RECORD_ID; // The ID isn't specified by caller
 
         if (oldAdn != null && !oldAdn.isEmpty()) {
-            for(AdnRecord adn : mSimPbRecords.values()) {
-                if (oldAdn.isEqual(adn)) {
-                    recordId = adn.getRecId();
-                    break;
-                }
-            }
+            recordId = findRecordId(oldAdn);
         }
         if (recordId == INVALID_RECORD_ID
                 && mAdnCapacity.get() != null && mAdnCapacity.get().isSimFull()) {
@@ -303,6 +368,43 @@ public class SimPhonebookRecordCache extends Handler {
         updateSimPhonebookByNewAdn(recordId, newAdn, response);
     }
 
+    /**
+     * @return The lowest ID of the records equal to {@code adn}, or {@link #INVALID_RECORD_ID}.
+     */
+    private int findRecordId(AdnRecord adn) {
+        Set<Integer> recordIds = mRecordIdsByKey.get(AdnRecordIndex.getKey(adn));
+        if (recordIds != null) {
+            // The emails and additional numbers are not part of the key.
+            for (int recordId : recordIds) {
+                AdnRecord record = mSimPbRecords.get(recordId);
+                if (record != null && adn.isEqual(record)) {
+                    return record.getRecId();
+                }
+            }
+        }
+        return INVALID_RECORD_ID;
+    }
+
+    /**
+     * Update the index after the record of the ID was changed in mSimPbRecords.
+     */
+    private void onSimPbRecordChanged(int recordId, AdnRecord oldAdn, AdnRecord newAdn) {
+        if (oldAdn != null && !oldAdn.isEmpty()) {
+            String key = AdnRecordIndex.getKey(oldAdn);
+            Set<Integer> recordIds = mRecordIdsByKey.get(key);
+            if (recordIds != null) {
+                recordIds.remove(recordId);
+                if (recordIds.isEmpty()) {
+                    mRecordIdsByKey.remove(key, recordIds);
+                }
+            }
+        }
+        if (newAdn != null && !newAdn.isEmpty()) {
+            mRecordIdsByKey.computeIfAbsent(AdnRecordIndex.getKey(newAdn),
+                    k -> new ConcurrentSkipListSet<>()).add(recordId);
+        }
+    }
+
     private void updateSimPhonebookByNewAdn(int recordId, AdnRecord newAdn, Message response) {
         logd("update sim contact for record ID = " + recordId);
         final int updatingRecordId = recordId == INVALID_RECORD_ID ? 0 : recordId;
@@ -487,6 +589,10 @@ public class SimPhonebookRecordCache extends Handler {
             } else if (records.isCompleted()) {
                 logd("The whole loading process is finished");
                 populateAdnRecords(records.getPhonebookRecords());
+                mLocalLog.log("Loaded " + mNumRecordsReceived + " records in "
+                        + mNumBatchesReceived + " batches, first batch after "
+                        + mFirstBatchLatencyMs + " ms, total "
+                        + (SystemClock.elapsedRealtime() - mLoadStartTimeMs) + " ms");
                 mIsRecordLoading.set(false);
                 mIsInRetry.set(false);
                 mIsCacheInvalidated.set(false);
@@ -569,7 +675,17 @@ public class SimPhonebookRecordCache extends Handler {
                     record.getEmails(),
                     record.getAdditionalNumbers());})
                     .collect(Collectors.toMap(AdnRecord::getRecId, adn -> adn));
-            mSimPbRecords.putAll(newRecords);
+            for (Map.Entry<Integer, AdnRecord> entry : newRecords.entrySet()) {
+                onSimPbRecordChanged(entry.getKey(),
+                        mSimPbRecords.put(entry.getKey(), entry.getValue()), entry.getValue());
+            }
+
+            if (mNumBatchesReceived++ == 0) {
+                mFirstBatchLatencyMs = SystemClock.elapsedRealtime() - mLoadStartTimeMs;
+            }
+            mNumRecordsReceived += newRecords.size();
+            // Let the readers use the batch without waiting for the whole phonebook.
+            mRecordsReceivedRegistrants.notifyResult(new ArrayList<>(newRecords.values()));
         }
     }
 
@@ -585,24 +701,27 @@ public class SimPhonebookRecordCache extends Handler {
     private void addOrChangeSimPbRecord(AdnRecord record, int recordId) {
         logd("Record number for the added or changed ADN is " + recordId);
         record.setRecId(recordId);
+        AdnRecord oldRecord;
         if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
-            mSimPbRecords.replace(recordId, record);
+            oldRecord = mSimPbRecords.replace(recordId, record);
+            if (oldRecord == null) return;
         } else {
-            mSimPbRecords.put(recordId, record);
+            oldRecord = mSimPbRecords.put(recordId, record);
         }
+        onSimPbRecordChanged(recordId, oldRecord, record);
     }
 
 
     private void deleteSimPbRecord(int recordId) {
         logd("Record number for the deleted ADN is " + recordId);
+        AdnRecord oldRecord;
         if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
-            mSimPbRecords.replace(recordId,
+            oldRecord = mSimPbRecords.replace(recordId,
                     new AdnRecord(IccConstants.EF_ADN, recordId, null, null, null, null));
         } else {
-            if (mSimPbRecords.containsKey(recordId)) {
-                mSimPbRecords.remove(recordId);
-            }
+            oldRecord = mSimPbRecords.remove(recordId);
         }
+        onSimPbRecordChanged(recordId, oldRecord, null);
     }
 
     private void invalidateSimPbCache() {
@@ -614,6 +733,23 @@ public class SimPhonebookRecordCache extends Handler {
         } else {
             mSimPbRecords.clear();
         }
+        mRecordIdsByKey.clear();
+    }
+
+    /**
+     * Dump the SIM phonebook cache state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("SimPhonebookRecordCache[" + mPhoneId + "]:");
+        pw.println(" mAdnCapacity=" + mAdnCapacity.get());
+        pw.println(" mIsInitialized=" + mIsInitialized.get() + " isLoadInProgress()="
+                + isLoadInProgress() + " mIsCacheInvalidated=" + mIsCacheInvalidated.get());
+        pw.println(" records=" + mSimPbRecords.size() + " pendingUpdates="
+                + mUpdateRequests.size());
+        pw.println(" Last loads:");
+        mLocalLog.dump(pw);
     }
 
     private void logd(String msg) {
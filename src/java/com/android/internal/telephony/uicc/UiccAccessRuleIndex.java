@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.telephony.UiccAccessRule;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Carrier privilege access rules indexed by certificate hash, so the rules matching a package are
+ * found without comparing the package certificates with every rule.
+ *
+ * {@hide}
+ */
+public class UiccAccessRuleIndex {
+    private static final String SHA_1 = "SHA-1";
+    private static final String SHA_256 = "SHA-256";
+
+    // Rules by the upper case hex string of their certificate hash
+    private final @NonNull Map<String, List<UiccAccessRule>> mRulesByCertHash = new ArrayMap<>();
+    private final int mNumRules;
+
+    /**
+     * @param rules The rules to index, or {@code null} for no rules.
+     */
+    public UiccAccessRuleIndex(@Nullable Collection<UiccAccessRule> rules) {
+        int numRules = 0;
+        if (rules != null) {
+            for (UiccAccessRule rule : rules) {
+                String certHash = rule.getCertificateHexString();
+                if (certHash == null) continue;
+                mRulesByCertHash.computeIfAbsent(certHash.toUpperCase(Locale.ROOT),
+                        k -> new ArrayList<>(1)).add(rule);
+                numRules++;
+            }
+        }
+        mNumRules = numRules;
+    }
+
+    /**
+     * @return {@code true} if there is no rule which can match a certificate.
+     */
+    public boolean isEmpty() {
+        return mNumRules == 0;
+    }
+
+    /**
+     * @param certHash The upper case hex string of the SHA-1 or SHA-256 hash of a certificate.
+     * @param packageName The package name.
+     * @return {@code true} if a rule matches the certificate and the package, as defined by
+     * {@link UiccAccessRule#matches}.
+     */
+    public boolean matches(@NonNull String certHash, @Nullable String packageName) {
+        List<UiccAccessRule> rules = mRulesByCertHash.get(certHash);
+        if (rules == null) return false;
+        for (UiccAccessRule rule : rules) {
+            // Checks the package name constraint of the rule.
+            if (rule.matches(certHash, packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param certHashes The hashes of the certificates of a package, as returned by
+     * {@link #getCertHashes}.
+     * @param packageName The package name.
+     * @return {@code true} if a rule matches one of the certificates and the package.
+     */
+    public boolean matches(@NonNull Set<String> certHashes, @Nullable String packageName) {
+        if (isEmpty()) return false;
+        for (String certHash : certHashes) {
+            if (matches(certHash, packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param packageInfo The package info, with the signing certificates.
+     * @return The upper case hex strings of the SHA-1 and SHA-256 hashes of the signing
+     * certificates of the package.
+     */
+    public static @NonNull Set<String> getCertHashes(@NonNull PackageInfo packageInfo) {
+        Set<String> certs = new ArraySet<>(1);
+        List<Signature> signatures = UiccAccessRule.getSignatures(packageInfo);
+        for (Signature signature : signatures) {
+            byte[] sha1 = UiccAccessRule.getCertHash(signature, SHA_1);
+            certs.add(IccUtils.bytesToHexString(sha1).toUpperCase(Locale.ROOT));
+
+            byte[] sha256 = UiccAccessRule.getCertHash(signature, SHA_256);
+            certs.add(IccUtils.bytesToHexString(sha256).toUpperCase(Locale.ROOT));
+        }
+        return certs;
+    }
+}
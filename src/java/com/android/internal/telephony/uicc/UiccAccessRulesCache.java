@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Persistent cache of the carrier privilege rules read from ARA-M, keyed by ICCID.
+ *
+ * The rules are stored with the refresh tag reported by ARA-M, so {@link UiccCarrierPrivilegeRules}
+ * can serve them at boot and only read all the rules again when the refresh tag of the card
+ * changed.
+ *
+ * {@hide}
+ */
+public class UiccAccessRulesCache {
+    private static final String SHARED_PREFS_NAME = "uicc_access_rules_cache";
+
+    private static final String KEY_PREFIX = "rules_";
+    private static final String NAME_ARAM_RULES = "aram";
+    private static final String TAG_SEPARATOR = ":";
+
+    /** The maximum number of cards whose rules are kept in the cache. */
+    @VisibleForTesting
+    public static final int MAX_CACHED_ICCIDS = 4;
+
+    /** Rules read from ARA-M, with the refresh tag of ARA-M when they were read. */
+    public static class Entry {
+        /** The refresh tag, as an upper case hex string. */
+        public final @NonNull String refreshTag;
+        /** The ALL-REF-AR-DO data object, as an upper case hex string. */
+        public final @NonNull String rules;
+
+        public Entry(@NonNull String refreshTag, @NonNull String rules) {
+            this.refreshTag = refreshTag;
+            this.rules = rules;
+        }
+    }
+
+    private final @NonNull IccIdLruStore mStore;
+
+    public UiccAccessRulesCache(@NonNull Context context) {
+        mStore = new IccIdLruStore(context, SHARED_PREFS_NAME, KEY_PREFIX, MAX_CACHED_ICCIDS);
+    }
+
+    /**
+     * @param iccId The ICCID of the card.
+     * @return The cached rules of the card, or {@code null} if the rules are not cached.
+     */
+    public @Nullable Entry get(@NonNull String iccId) {
+        String value = mStore.get(iccId, NAME_ARAM_RULES);
+        int index = value == null ? -1 : value.indexOf(TAG_SEPARATOR);
+        if (index <= 0) {
+            return null;
+        }
+        return new Entry(value.substring(0, index), value.substring(index + 1));
+    }
+
+    /**
+     * Cache the rules of a card.
+     *
+     * @param iccId The ICCID of the card.
+     * @param refreshTag The refresh tag of ARA-M, as a hex string.
+     * @param rules The ALL-REF-AR-DO data object read from ARA-M, as a hex string.
+     */
+    public void put(@NonNull String iccId, @NonNull String refreshTag, @NonNull String rules) {
+        mStore.put(iccId, NAME_ARAM_RULES, refreshTag + TAG_SEPARATOR + rules);
+    }
+
+    /**
+     * Remove the rules of a card from the cache.
+     *
+     * @param iccId The ICCID of the card.
+     */
+    public void remove(@NonNull String iccId) {
+        mStore.clear(iccId);
+    }
+
+    /**
+     * Called when the refresh tag of the card did not match the cached one.
+     */
+    public void onStale() {
+        mStore.onStale();
+    }
+
+    /**
+     * Dump the cache state.
+     *
+     * @param pw Print writer
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        mStore.dump(pw, "mRulesCache");
+    }
+}
@@ -24,6 +24,8 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Registrant;
 import android.os.RegistrantList;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.IndentingPrintWriter;
 
 import com.android.internal.telephony.CommandException;
@@ -100,6 +102,15 @@ public class UiccCardApplication {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private boolean mDestroyed;//set to true once this App is commanded to be disposed of.
 
+    // true if the records are not loaded when the application is ready, see UiccProfile.
+    private boolean mRecordsLoadDeferred;
+
+    // Times of the initialization of the application, 0 if not reached yet.
+    private final long mCreationTimeMs;
+    private long mReadyTimeMs;
+    private long mRecordsLoadReleasedTimeMs;
+    private long mRecordsLoadedTimeMs;
+
     private RegistrantList mReadyRegistrants = new RegistrantList();
     private RegistrantList mDetectedRegistrants = new RegistrantList();
     private RegistrantList mPinLockedRegistrants = new RegistrantList();
@@ -124,10 +135,12 @@ public class UiccCardApplication {
 
         mContext = c;
         mCi = ci;
+        mCreationTimeMs = SystemClock.elapsedRealtime();
 
         mIccFh = createIccFileHandler(as.app_type);
         mIccRecords = createIccRecords(as.app_type, mContext, mCi);
         if (mAppState == AppState.APPSTATE_READY) {
+            mReadyTimeMs = mCreationTimeMs;
             queryFdn();
             queryPin1State();
         }
@@ -147,6 +160,7 @@ public class UiccCardApplication {
             mCi = ci;
             AppType oldAppType = mAppType;
             AppState oldAppState = mAppState;
+            String oldAid = mAid;
             PersoSubState oldPersoSubState = mPersoSubState;
             PinState oldPin1State = mPin1State;
             mAppType = as.app_type;
@@ -164,6 +178,10 @@ public class UiccCardApplication {
                 if (mIccRecords != null) { mIccRecords.dispose();}
                 mIccFh = createIccFileHandler(as.app_type);
                 mIccRecords = createIccRecords(as.app_type, c, ci);
+            } else if (mIccFh != null
+                    && (mAppState != oldAppState || !TextUtils.equals(mAid, oldAid))) {
+                // The same file handler is kept, but the card or profile may have changed.
+                mIccFh.clearEfSizes();
             }
 
             if (mPersoSubState != oldPersoSubState &&
@@ -176,6 +194,9 @@ public class UiccCardApplication {
                 // If the app state turns to APPSTATE_READY, then query FDN status,
                 //as it might have failed in earlier attempt.
                 if (mAppState == AppState.APPSTATE_READY) {
+                    if (mReadyTimeMs == 0) {
+                        mReadyTimeMs = SystemClock.elapsedRealtime();
+                    }
                     queryFdn();
                     queryPin1State();
                 }
@@ -232,6 +253,73 @@ public class UiccCardApplication {
         }
     }
 
+    /**
+     * Defers the load of the records until {@link #releaseRecordsLoad} is called. The records are
+     * not loaded when the application becomes ready in the meantime.
+     */
+    void deferRecordsLoad() {
+        synchronized (mLock) {
+            if (DBG) log(mAppType + " records load deferred");
+            mRecordsLoadDeferred = true;
+        }
+    }
+
+    /**
+     * @return true if the load of the records is deferred.
+     */
+    public boolean isRecordsLoadDeferred() {
+        synchronized (mLock) {
+            return mRecordsLoadDeferred;
+        }
+    }
+
+    /**
+     * Loads the records if their load was deferred and the application is ready.
+     */
+    public void releaseRecordsLoad() {
+        synchronized (mLock) {
+            if (!mRecordsLoadDeferred) {
+                return;
+            }
+            if (DBG) log(mAppType + " records load released");
+            mRecordsLoadDeferred = false;
+            mRecordsLoadReleasedTimeMs = SystemClock.elapsedRealtime();
+            if (mIccRecords != null) {
+                mIccRecords.sendEmptyMessage(IccRecords.EVENT_RECORDS_LOAD_RELEASED);
+            }
+        }
+    }
+
+    /**
+     * Called when the records of the application may have been loaded.
+     *
+     * @return true if the records were loaded for the first time.
+     */
+    boolean onRecordsLoaded() {
+        synchronized (mLock) {
+            if (mRecordsLoadedTimeMs != 0 || mIccRecords == null || !mIccRecords.isLoaded()) {
+                return false;
+            }
+            mRecordsLoadedTimeMs = SystemClock.elapsedRealtime();
+            return true;
+        }
+    }
+
+    /**
+     * @return The time it took to initialize the application, from the card status.
+     */
+    String getTimeToReadyString() {
+        synchronized (mLock) {
+            return mAppType + ": ready=" + getElapsedString(mReadyTimeMs)
+                    + " recordsLoadReleased=" + getElapsedString(mRecordsLoadReleasedTimeMs)
+                    + " recordsLoaded=" + getElapsedString(mRecordsLoadedTimeMs);
+        }
+    }
+
+    private String getElapsedString(long timeMs) {
+        return timeMs == 0 ? "-" : (timeMs - mCreationTimeMs) + "ms";
+    }
+
     /** Assumes mLock is held. */
     public void queryFdn() {
         //This shouldn't change run-time. So needs to be called only once.
@@ -1006,7 +1094,12 @@ public class UiccCardApplication {
         pw.println("mIccLockEnabled=" + mIccLockEnabled);
         pw.println("mDesiredPinLocked=" + mDesiredPinLocked);
         pw.println("mIccRecords=" + mIccRecords);
+        pw.println("mRecordsLoadDeferred=" + mRecordsLoadDeferred);
+        pw.println("timeToReady: " + getTimeToReadyString());
         pw.println("mIccFh=" + mIccFh);
+        if (mIccFh != null) {
+            mIccFh.dump(pw);
+        }
         pw.println("mDestroyed=" + mDestroyed);
         pw.decreaseIndent();
         pw.flush();
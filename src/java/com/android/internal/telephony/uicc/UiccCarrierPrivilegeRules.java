@@ -16,6 +16,7 @@
 
 package com.android.internal.telephony.uicc;
 
+import android.annotation.Nullable;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -68,6 +69,9 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private static final int P2_EXTENDED_DATA = 0x60;
     private static final int P3 = 0x00;
     private static final String DATA = "";
+    // GET DATA [Refresh tag], from the GlobalPlatform Secure Element Access Control spec.
+    private static final int P1_REFRESH_TAG = 0xDF;
+    private static final int P2_REFRESH_TAG = 0x20;
 
     /*
      * Rules format:
@@ -100,11 +104,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private static final String TAG_PERM_AR_DO = "DB";
     private static final String TAG_AID_REF_DO = "4F";
     private static final String CARRIER_PRIVILEGE_AID = "FFFFFFFFFFFF";
+    private static final String TAG_REFRESH_TAG_DO = "DF20";
 
     private static final int EVENT_OPEN_LOGICAL_CHANNEL_DONE = 1;
     private static final int EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE = 2;
     private static final int EVENT_CLOSE_LOGICAL_CHANNEL_DONE = 3;
     private static final int EVENT_PKCS15_READ_DONE = 4;
+    private static final int EVENT_GET_REFRESH_TAG_DONE = 5;
 
     // State of the object.
     private static final int STATE_LOADING  = 0;
@@ -189,7 +195,10 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private UiccPkcs15 mUiccPkcs15; // ARF fallback
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private AtomicInteger mState;
-    private List<UiccAccessRule> mAccessRules;
+    // Replaced, not modified, when the cached rules are found to be stale after loading.
+    private volatile List<UiccAccessRule> mAccessRules;
+    // Index of mAccessRules by certificate hash, built when the rules are loaded.
+    private volatile UiccAccessRuleIndex mAccessRuleIndex;
     private String mRules;
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private Message mLoadedCallback;
@@ -199,6 +208,14 @@ public class UiccCarrierPrivilegeRules extends Handler {
     private int mRetryCount;  // Number of retries for open logical channel.
     private boolean mCheckedRules = false;  // Flag that used to mark whether get rules from ARA-D.
     private int mAIDInUse;  // Message component to identify which AID is currently in-use.
+    private UiccAccessRulesCache mRulesCache;  // Null if the rules are not cached.
+    private String mCacheIccId;  // ICCID of the card in mRulesCache.
+    // Refresh tag of the rules served from mRulesCache, null if the rules are read from the UICC.
+    private String mCachedRefreshTag;
+    // Refresh tag of the rules being read again because the cached rules are stale.
+    private String mNewRefreshTag;
+    // True if the rules are read again from the UICC once the ARA-M channel is closed.
+    private boolean mReloadPending;
     private final Runnable mRetryRunnable = new Runnable() {
         @Override
         public void run() {
@@ -215,6 +232,15 @@ public class UiccCarrierPrivilegeRules extends Handler {
     }
 
     public UiccCarrierPrivilegeRules(UiccProfile uiccProfile, Message loadedCallback) {
+        this(uiccProfile, loadedCallback, null);
+    }
+
+    /**
+     * @param rulesCache The cache of the rules read from ARA-M, or {@code null} to always read the
+     * rules from the UICC.
+     */
+    public UiccCarrierPrivilegeRules(UiccProfile uiccProfile, Message loadedCallback,
+            @Nullable UiccAccessRulesCache rulesCache) {
         log("Creating UiccCarrierPrivilegeRules");
         mUiccProfile = uiccProfile;
         mState = new AtomicInteger(STATE_LOADING);
@@ -222,6 +248,15 @@ public class UiccCarrierPrivilegeRules extends Handler {
         mLoadedCallback = loadedCallback;
         mRules = "";
         mAccessRules = new ArrayList<>();
+        mRulesCache = rulesCache;
+        mCacheIccId = getCacheIccId();
+
+        if (loadRulesFromCache()) {
+            // Open logical channel with ARA_M to revalidate the cached rules.
+            mAIDInUse = ARAM;
+            openChannel(mAIDInUse);
+            return;
+        }
 
         // Open logical channel with ARA_D.
         mAIDInUse = ARAD;
@@ -231,6 +266,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
     @VisibleForTesting
     public UiccCarrierPrivilegeRules(List<UiccAccessRule> rules) {
         mAccessRules = rules;
+        mAccessRuleIndex = new UiccAccessRuleIndex(rules);
         mState = new AtomicInteger(STATE_LOADED);
         mRules = "";
         mStatusMessage.log("Loaded from test rules.");
@@ -350,11 +386,22 @@ public class UiccCarrierPrivilegeRules extends Handler {
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_ERROR_LOADING_RULES;
         }
 
-        for (UiccAccessRule ar : mAccessRules) {
-            int accessStatus = ar.getCarrierPrivilegeStatus(packageInfo);
-            if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
-                return accessStatus;
+        if (UiccAccessRule.getSignatures(packageInfo).isEmpty()) {
+            // Let the rules report the missing signatures.
+            for (UiccAccessRule ar : mAccessRules) {
+                int accessStatus = ar.getCarrierPrivilegeStatus(packageInfo);
+                if (accessStatus != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+                    return accessStatus;
+                }
             }
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        }
+
+        // Hash the certificates once and look the rules up, instead of hashing the certificates
+        // for every rule.
+        if (mAccessRuleIndex.matches(UiccAccessRuleIndex.getCertHashes(packageInfo),
+                packageInfo.packageName)) {
+            return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
         }
         return TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
     }
@@ -426,6 +473,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
                 ar = (AsyncResult) msg.obj;
                 if (ar.exception == null && ar.result != null) {
                     mChannelId = ((int[]) ar.result)[0];
+                    if (mCachedRefreshTag != null) {
+                        // Only read all the rules if the refresh tag changed.
+                        requestRefreshTag();
+                        break;
+                    }
                     mUiccProfile.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND, P1, P2, P3,
                             DATA, false /*isEs10Command*/, obtainMessage(
                                     EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE, mChannelId, mAIDInUse));
@@ -435,6 +487,10 @@ public class UiccCarrierPrivilegeRules extends Handler {
                         mRetryCount++;
                         removeCallbacks(mRetryRunnable);
                         postDelayed(mRetryRunnable, RETRY_INTERVAL_MS);
+                    } else if (mCachedRefreshTag != null) {
+                        onRevalidationFailed("Cannot open channel with ARA-M");
+                        // No channel was opened, read the rules right away.
+                        reloadRules();
                     } else {
                         if (mAIDInUse == ARAD) {
                             // Open logical channel with ARA_M.
@@ -476,11 +532,20 @@ public class UiccCarrierPrivilegeRules extends Handler {
                             if (isDataComplete()) {
                                 //TODO: here's where AccessRules are being updated from the psim
                                 // b/139133814
-                                mAccessRules.addAll(parseRules(mRules));
+                                List<UiccAccessRule> rules = parseRules(mRules);
                                 if (mAIDInUse == ARAD) {
+                                    mAccessRules.addAll(rules);
                                     mCheckedRules = true;
+                                } else if (mCachedRefreshTag != null) {
+                                    onCachedRulesStale(rules);
                                 } else {
+                                    mAccessRules.addAll(rules);
                                     updateState(STATE_LOADED, "Success!");
+                                    if (shouldCacheRules()) {
+                                        // Cache the rules with the refresh tag of ARA-M.
+                                        requestRefreshTag();
+                                        break;
+                                    }
                                 }
                             } else {
                                 mUiccProfile.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND,
@@ -491,7 +556,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
                             }
                         } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
                             if (mAIDInUse == ARAM) {
-                                updateState(STATE_ERROR, "Error parsing rules: " + ex);
+                                onAramError("Error parsing rules: " + ex);
                             }
                         }
                     } else {
@@ -499,7 +564,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
                             String errorMsg = "Invalid response: payload="
                                     + IccUtils.bytesToHexString(response.payload)
                                     + " sw1=" + response.sw1 + " sw2=" + response.sw2;
-                            updateState(STATE_ERROR, errorMsg);
+                            onAramError(errorMsg);
                         }
                     }
                 } else {
@@ -515,13 +580,36 @@ public class UiccCarrierPrivilegeRules extends Handler {
                     if (mAIDInUse == ARAD) {
                         updateStatusMessage(errorMsg);
                     } else {
-                        updateState(STATE_ERROR, errorMsg);
+                        onAramError(errorMsg);
                     }
                 }
 
-                mUiccProfile.iccCloseLogicalChannel(mChannelId, false /*isEs10*/, obtainMessage(
-                        EVENT_CLOSE_LOGICAL_CHANNEL_DONE, 0, mAIDInUse));
-                mChannelId = -1;
+                closeChannel();
+                break;
+
+            case EVENT_GET_REFRESH_TAG_DONE:
+                log("EVENT_GET_REFRESH_TAG_DONE");
+                ar = (AsyncResult) msg.obj;
+                String refreshTag = parseRefreshTag(ar);
+                if (mCachedRefreshTag == null) {
+                    // The rules were just read from ARA-M.
+                    if (refreshTag != null) {
+                        mRulesCache.put(mCacheIccId, refreshTag, mRules);
+                    }
+                } else if (mCachedRefreshTag.equals(refreshTag)) {
+                    updateStatusMessage("Cached rules are up to date.");
+                } else {
+                    // The rules changed since they were cached, or the refresh tag cannot be
+                    // read anymore. Read all the rules on the same channel.
+                    mRulesCache.onStale();
+                    mNewRefreshTag = refreshTag;
+                    mRules = "";
+                    mUiccProfile.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND, P1, P2, P3,
+                            DATA, false /*isEs10Command*/, obtainMessage(
+                                    EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE, mChannelId, ARAM));
+                    break;
+                }
+                closeChannel();
                 break;
 
             case EVENT_CLOSE_LOGICAL_CHANNEL_DONE:
@@ -530,6 +618,8 @@ public class UiccCarrierPrivilegeRules extends Handler {
                     // Close logical channel with ARA_D and then open logical channel with ARA_M.
                     mRules = "";
                     openChannel(ARAM);
+                } else if (mReloadPending) {
+                    reloadRules();
                 }
                 break;
 
@@ -552,6 +642,137 @@ public class UiccCarrierPrivilegeRules extends Handler {
         }
     }
 
+    private void closeChannel() {
+        mUiccProfile.iccCloseLogicalChannel(mChannelId, false /*isEs10*/, obtainMessage(
+                EVENT_CLOSE_LOGICAL_CHANNEL_DONE, 0, mAIDInUse));
+        mChannelId = -1;
+    }
+
+    /*
+     * Sends GET DATA [Refresh tag] to ARA-M on the open channel.
+     */
+    private void requestRefreshTag() {
+        mUiccProfile.iccTransmitApduLogicalChannel(mChannelId, CLA, COMMAND, P1_REFRESH_TAG,
+                P2_REFRESH_TAG, P3, DATA, false /*isEs10Command*/,
+                obtainMessage(EVENT_GET_REFRESH_TAG_DONE, mChannelId, ARAM));
+    }
+
+    /*
+     * Returns the refresh tag in the response to GET DATA [Refresh tag], or null if the response
+     * is not a valid refresh tag.
+     */
+    private static String parseRefreshTag(AsyncResult ar) {
+        if (ar.exception != null || !(ar.result instanceof IccIoResult)) {
+            return null;
+        }
+        IccIoResult response = (IccIoResult) ar.result;
+        if (response.sw1 != 0x90 || response.sw2 != 0x00 || response.payload == null) {
+            return null;
+        }
+        try {
+            TLV refreshTagDo = new TLV(TAG_REFRESH_TAG_DO);
+            refreshTagDo.parse(IccUtils.bytesToHexString(response.payload).toUpperCase(Locale.US),
+                    true);
+            return TextUtils.isEmpty(refreshTagDo.value) ? null : refreshTagDo.value;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            log("Invalid refresh tag: " + ex);
+            return null;
+        }
+    }
+
+    /*
+     * Returns the ICCID used as the key of the rules cache, or null if the rules are not cached.
+     */
+    private String getCacheIccId() {
+        if (mRulesCache == null) return null;
+        UiccPort port = UiccController.getInstance().getUiccPort(mUiccProfile.getPhoneId());
+        String iccId = port == null ? null : port.getIccId();
+        return TextUtils.isEmpty(iccId) ? null : IccUtils.stripTrailingFs(iccId);
+    }
+
+    /*
+     * Returns true if the rules just read can be cached. The rules read from ARA-D are not covered
+     * by the refresh tag of ARA-M.
+     */
+    private boolean shouldCacheRules() {
+        return mRulesCache != null && mCacheIccId != null && !mCheckedRules;
+    }
+
+    /*
+     * Loads the rules from the cache, and returns true if they were found.
+     */
+    private boolean loadRulesFromCache() {
+        if (mRulesCache == null || mCacheIccId == null) return false;
+        UiccAccessRulesCache.Entry entry = mRulesCache.get(mCacheIccId);
+        if (entry == null) return false;
+        try {
+            mAccessRules.addAll(parseRules(entry.rules));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            Rlog.e(LOG_TAG, "Invalid cached rules: " + ex);
+            mRulesCache.remove(mCacheIccId);
+            mAccessRules.clear();
+            return false;
+        }
+        mCachedRefreshTag = entry.refreshTag;
+        updateState(STATE_LOADED, "Loaded from cache.");
+        return true;
+    }
+
+    /*
+     * Replaces the cached rules, which were already served, with the rules read from ARA-M.
+     */
+    private void onCachedRulesStale(List<UiccAccessRule> rules) {
+        if (mNewRefreshTag != null) {
+            mRulesCache.put(mCacheIccId, mNewRefreshTag, mRules);
+        } else {
+            mRulesCache.remove(mCacheIccId);
+        }
+        mCachedRefreshTag = null;
+        // The current list may be read by other threads.
+        mAccessRules = new ArrayList<>(rules);
+        updateState(STATE_LOADED, "Cached rules were stale, updated.");
+    }
+
+    /*
+     * Called when the rules cannot be read from ARA-M.
+     */
+    private void onAramError(String errorMsg) {
+        if (mCachedRefreshTag != null) {
+            onRevalidationFailed(errorMsg);
+        } else {
+            updateState(STATE_ERROR, errorMsg);
+        }
+    }
+
+    /*
+     * Stops serving the cached rules, which may have been revoked on the card, and drops them from
+     * the cache. The rules are read again from ARA-D, ARA-M and ARF once the ARA-M channel is
+     * closed.
+     */
+    private void onRevalidationFailed(String errorMsg) {
+        mRulesCache.remove(mCacheIccId);
+        mCachedRefreshTag = null;
+        mNewRefreshTag = null;
+        // The current list may be read by other threads.
+        mAccessRules = new ArrayList<>();
+        mAccessRuleIndex = new UiccAccessRuleIndex(mAccessRules);
+        mState.set(STATE_LOADING);
+        mReloadPending = true;
+        updateStatusMessage("Cannot revalidate cached rules: " + errorMsg);
+    }
+
+    /*
+     * Reads the rules from the UICC as if they were not cached.
+     */
+    private void reloadRules() {
+        mReloadPending = false;
+        mRules = "";
+        mRetryCount = 0;
+        mCheckedRules = false;
+        mAIDInUse = ARAD;
+        openChannel(mAIDInUse);
+    }
+
     /*
      * Check if all rule bytes have been read from UICC.
      * For long payload, we need to fetch it repeatly before start parsing it.
@@ -675,9 +896,13 @@ public class UiccCarrierPrivilegeRules extends Handler {
      * Updates the state and notifies the UiccCard that the rules have finished loading.
      */
     private void updateState(int newState, String statusMessage) {
+        if (newState == STATE_LOADED) {
+            mAccessRuleIndex = new UiccAccessRuleIndex(mAccessRules);
+        }
         mState.set(newState);
         if (mLoadedCallback != null) {
-            mLoadedCallback.sendToTarget();
+            // Send a copy, as the rules are loaded again if the cached rules were stale.
+            Message.obtain(mLoadedCallback).sendToTarget();
         }
 
         updateStatusMessage(statusMessage);
@@ -711,6 +936,9 @@ public class UiccCarrierPrivilegeRules extends Handler {
         } else {
             pw.println(" mAccessRules: null");
         }
+        if (mRulesCache != null) {
+            mRulesCache.dump(pw);
+        }
         if (mUiccPkcs15 != null) {
             pw.println(" mUiccPkcs15: " + mUiccPkcs15);
             mUiccPkcs15.dump(fd, pw, args);
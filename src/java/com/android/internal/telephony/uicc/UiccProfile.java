@@ -85,6 +85,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents the carrier profiles in the {@link UiccCard}. Each profile contains
@@ -127,6 +128,8 @@ public class UiccProfile extends IccCard {
 
     private final int mPhoneId;
     private final PinStorage mPinStorage;
+    // Shared by the carrier privilege rules loaded for this profile.
+    private final UiccAccessRulesCache mAccessRulesCache;
 
     private final CarrierConfigManager mCarrierConfigManager;
 
@@ -147,8 +150,16 @@ public class UiccProfile extends IccCard {
     private static final int EVENT_CARRIER_CONFIG_CHANGED = 14;
     private static final int EVENT_CARRIER_PRIVILEGES_TEST_OVERRIDE_SET = 15;
     private static final int EVENT_SUPPLY_ICC_PIN_DONE = 16;
+    private static final int EVENT_DEFERRED_APPS_TIMEOUT = 17;
     // NOTE: any new EVENT_* values must be added to eventToString.
 
+    // Time after which the records of the deferred applications are loaded, even if the records of
+    // the applications needed for service are not loaded yet.
+    private static final long DEFERRED_APPS_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // true once the records of the deferred applications may be loaded.
+    private boolean mDeferredAppsReleased = false;
+
     private TelephonyManager mTelephonyManager;
 
     private RegistrantList mNetworkLockedRegistrants = new RegistrantList();
@@ -237,9 +248,18 @@ public class UiccProfile extends IccCard {
                 case EVENT_RECORDS_LOADED:
                 case EVENT_EID_READY:
                     if (VDBG) log("handleMessage: Received " + eventName);
+                    if (msg.what == EVENT_RECORDS_LOADED) {
+                        onRecordsLoaded();
+                    }
                     updateExternalState();
                     break;
 
+                case EVENT_DEFERRED_APPS_TIMEOUT:
+                    synchronized (mLock) {
+                        releaseDeferredAppsLocked("timeout");
+                    }
+                    break;
+
                 case EVENT_ICC_RECORD_EVENTS:
                     if ((mCurrentAppType == UiccController.APP_FAM_3GPP) && (mIccRecords != null)) {
                         AsyncResult ar = (AsyncResult) msg.obj;
@@ -347,6 +367,7 @@ public class UiccProfile extends IccCard {
             ((EuiccCard) mUiccCard).registerForEidReady(mHandler, EVENT_EID_READY, null);
         }
         mPinStorage = UiccController.getInstance().getPinStorage();
+        mAccessRulesCache = new UiccAccessRulesCache(c);
 
         update(c, ci, ics);
         ci.registerForOffOrNotAvailable(mHandler, EVENT_RADIO_OFF_OR_UNAVAILABLE, null);
@@ -1132,6 +1153,7 @@ public class UiccProfile extends IccCard {
                     if (i < ics.mApplications.length) {
                         mUiccApplications[i] = new UiccCardApplication(this,
                                 ics.mApplications[i], mContext, mCi);
+                        maybeDeferRecordsLoadLocked(mUiccApplications[i]);
                     }
                 } else if (i >= ics.mApplications.length) {
                     //Delete removed applications
@@ -1149,7 +1171,8 @@ public class UiccProfile extends IccCard {
             log("Before privilege rules: " + mCarrierPrivilegeRules + " : " + ics.mCardState);
             if (mCarrierPrivilegeRules == null && ics.mCardState == CardState.CARDSTATE_PRESENT) {
                 mCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(this,
-                        mHandler.obtainMessage(EVENT_CARRIER_PRIVILEGES_LOADED));
+                        mHandler.obtainMessage(EVENT_CARRIER_PRIVILEGES_LOADED),
+                        mAccessRulesCache);
             } else if (mCarrierPrivilegeRules != null
                     && ics.mCardState != CardState.CARDSTATE_PRESENT) {
                 mCarrierPrivilegeRules = null;
@@ -1221,6 +1244,54 @@ public class UiccProfile extends IccCard {
         return false;
     }
 
+    /**
+     * Defers the load of the records of an application which is not needed for service, such as
+     * ISIM, so that it does not compete for the SIM I/O with the applications needed for service.
+     * Assumes mLock is held.
+     */
+    private void maybeDeferRecordsLoadLocked(UiccCardApplication app) {
+        if (mDeferredAppsReleased || isSupportedApplication(app)) {
+            return;
+        }
+        app.deferRecordsLoad();
+        if (!mHandler.hasMessages(EVENT_DEFERRED_APPS_TIMEOUT)) {
+            mHandler.sendEmptyMessageDelayed(EVENT_DEFERRED_APPS_TIMEOUT,
+                    DEFERRED_APPS_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Loads the records of the deferred applications. Assumes mLock is held.
+     */
+    private void releaseDeferredAppsLocked(String reason) {
+        if (mDeferredAppsReleased) {
+            return;
+        }
+        logWithLocalLog("releaseDeferredApps: " + reason);
+        mDeferredAppsReleased = true;
+        mHandler.removeMessages(EVENT_DEFERRED_APPS_TIMEOUT);
+        for (UiccCardApplication app : mUiccApplications) {
+            if (app != null) {
+                app.releaseRecordsLoad();
+            }
+        }
+    }
+
+    private void onRecordsLoaded() {
+        synchronized (mLock) {
+            boolean anyLoaded = false;
+            for (UiccCardApplication app : mUiccApplications) {
+                if (app != null && app.onRecordsLoaded()) {
+                    logWithLocalLog("Time to ready: " + app.getTimeToReadyString());
+                    anyLoaded |= isSupportedApplication(app);
+                }
+            }
+            if (anyLoaded && areReadyAppsRecordsLoaded()) {
+                releaseDeferredAppsLocked("records loaded");
+            }
+        }
+    }
+
     private void checkAndUpdateIfAnyAppToBeIgnored() {
         boolean[] appReadyStateTracker = new boolean[AppType.APPTYPE_ISIM.ordinal() + 1];
         for (UiccCardApplication app : mUiccApplications) {
@@ -1791,6 +1862,7 @@ public class UiccProfile extends IccCard {
             case EVENT_CARRIER_PRIVILEGES_TEST_OVERRIDE_SET:
                 return "CARRIER_PRIVILEGES_TEST_OVERRIDE_SET";
             case EVENT_SUPPLY_ICC_PIN_DONE: return "SUPPLY_ICC_PIN_DONE";
+            case EVENT_DEFERRED_APPS_TIMEOUT: return "DEFERRED_APPS_TIMEOUT";
             default: return "UNKNOWN(" + event + ")";
         }
     }
@@ -1896,6 +1968,7 @@ public class UiccProfile extends IccCard {
                     + ((Registrant) mNetworkLockedRegistrants.get(i)).getHandler());
         }
         pw.println("mCurrentAppType=" + mCurrentAppType);
+        pw.println("mDeferredAppsReleased=" + mDeferredAppsReleased);
         pw.println("mUiccCard=" + mUiccCard);
         pw.println("mUiccApplication=" + mUiccApplication);
         pw.println("mIccRecords=" + mIccRecords);
@@ -75,12 +75,31 @@ public class EuiccCard extends UiccCard {
         }
     }
 
+    /**
+     * Drops the cached profile lists of all the ports, as on an MEP card an operation on one port
+     * changes the states of the profiles seen by the other ports.
+     */
+    void invalidateProfiles() {
+        synchronized (mLock) {
+            for (UiccPort port : mUiccPorts.values()) {
+                if (port instanceof EuiccPort) {
+                    ((EuiccPort) port).invalidateProfiles();
+                }
+            }
+        }
+    }
+
     @Override
     public void update(Context c, CommandsInterface ci, IccCardStatus ics, int phoneId) {
         synchronized (mLock) {
             if (!TextUtils.isEmpty(ics.eid)) {
                 mEid = ics.eid;
             }
+            // The profiles may have been changed by a card refresh. A new port reads them anyway.
+            UiccPort port = mUiccPorts.get(ics.mSlotPortMapping.mPortIndex);
+            if (port instanceof EuiccPort) {
+                ((EuiccPort) port).invalidateProfiles();
+            }
             super.update(c, ci, ics, phoneId);
         }
     }
@@ -20,6 +20,7 @@ import android.annotation.Nullable;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.service.carrier.CarrierIdentifier;
 import android.service.euicc.EuiccProfileInfo;
 import android.telephony.SubscriptionInfo;
@@ -29,7 +30,9 @@ import android.telephony.euicc.EuiccNotification;
 import android.telephony.euicc.EuiccRulesAuthTable;
 import android.text.TextUtils;
 import android.util.IndentingPrintWriter;
+import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.Phone;
@@ -56,6 +59,7 @@ import com.android.telephony.Rlog;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -123,15 +127,48 @@ public class EuiccPort extends UiccPort {
         void handleException(Throwable e);
     }
 
+    /** A GetProfilesInfo exchange in flight, shared by all the callers of getAllProfiles. */
+    private static class ProfilesQuery {
+        // The cache generation when the query was started.
+        final int mGeneration;
+        final List<Pair<AsyncResultCallback<EuiccProfileInfo[]>, Handler>> mCallers =
+                new ArrayList<>();
+
+        ProfilesQuery(int generation) {
+            mGeneration = generation;
+        }
+    }
+
     private final ApduSender mApduSender;
     private EuiccSpecVersion mSpecVersion;
     private volatile String mEid;
+    private volatile EuiccRulesAuthTable mRulesAuthTable;
+    private volatile UiccCard mUiccCard;
+
+    // The profile list is cached until an operation changing the profiles is sent to the eUICC,
+    // or the card status is updated. The cache is dropped again when the operation completes, and
+    // a query started before an invalidation is not cached. An operation drops the cache of all
+    // the ports of the card, as on an MEP card it changes the profile states seen by every port.
+    private final Object mProfilesLock = new Object();
+    @GuardedBy("mProfilesLock")
+    private EuiccProfileInfo[] mCachedProfiles;
+    @GuardedBy("mProfilesLock")
+    private ProfilesQuery mProfilesQuery;
+    @GuardedBy("mProfilesLock")
+    private int mProfilesGeneration;
+    @GuardedBy("mProfilesLock")
+    private int mNumProfilesQueries;
+    @GuardedBy("mProfilesLock")
+    private int mNumProfilesCacheHits;
+    @GuardedBy("mProfilesLock")
+    private int mNumProfilesCoalesced;
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
     public MultipleEnabledProfilesMode mSupportedMepMode;
 
     public EuiccPort(Context c, CommandsInterface ci, IccCardStatus ics, int phoneId, Object lock,
             UiccCard card, MultipleEnabledProfilesMode supportedMepMode) {
         super(c, ci, ics, phoneId, lock, card);
+        mUiccCard = card;
         // TODO: Set supportExtendedApdu based on ATR.
         mApduSender = new ApduSender(ci, ISD_R_AID, false /* supportExtendedApdu */);
         if (TextUtils.isEmpty(ics.eid)) {
@@ -163,6 +200,7 @@ public class EuiccPort extends UiccPort {
             if (!TextUtils.isEmpty(ics.eid)) {
                 mEid = ics.eid;
             }
+            mUiccCard = uiccCard;
             super.update(c, ci, ics, uiccCard);
         }
     }
@@ -174,16 +212,120 @@ public class EuiccPort extends UiccPort {
     public void updateSupportedMepMode(MultipleEnabledProfilesMode supportedMepMode) {
         logd("updateSupportedMepMode");
         mSupportedMepMode = supportedMepMode;
+        // The port information of the profiles depends on the mode.
+        invalidateProfiles();
+    }
+
+    /**
+     * Drops the cached profile list, so the next {@link #getAllProfiles} reads it from the eUICC.
+     * Queries in flight still return their result to their callers, but it is not cached.
+     */
+    public void invalidateProfiles() {
+        synchronized (mProfilesLock) {
+            mCachedProfiles = null;
+            mProfilesQuery = null;
+            mProfilesGeneration++;
+        }
+    }
+
+    /**
+     * Drops the cached profile lists of this port and of the other ports of the card.
+     */
+    private void invalidateCardProfiles() {
+        invalidateProfiles();
+        UiccCard card = mUiccCard;
+        if (card instanceof EuiccCard) {
+            ((EuiccCard) card).invalidateProfiles();
+        }
+    }
+
+    /**
+     * Wraps the callback of an operation changing the profiles, so the cached profile lists are
+     * dropped when the operation completes. A query sent while the operation was in flight may
+     * have read the profiles before they were changed.
+     */
+    private <T> AsyncResultCallback<T> invalidateProfilesOnDone(AsyncResultCallback<T> callback) {
+        return new AsyncResultCallback<T>() {
+            @Override
+            public void onResult(T result) {
+                invalidateCardProfiles();
+                callback.onResult(result);
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                invalidateCardProfiles();
+                callback.onException(e);
+            }
+        };
     }
 
     /**
      * Gets a list of user-visible profiles.
      *
+     * <p>The list is served from the cache if no operation changing the profiles was sent since it
+     * was read, and concurrent callers share a single APDU exchange.
+     *
      * @param callback The callback to get the result.
      * @param handler The handler to run the callback.
      * @since 1.1.0 [GSMA SGP.22]
      */
     public void getAllProfiles(AsyncResultCallback<EuiccProfileInfo[]> callback, Handler handler) {
+        ProfilesQuery query;
+        synchronized (mProfilesLock) {
+            if (mCachedProfiles != null) {
+                mNumProfilesCacheHits++;
+                AsyncResultHelper.returnResult(mCachedProfiles.clone(), callback, handler);
+                return;
+            }
+            if (mProfilesQuery != null) {
+                mNumProfilesCoalesced++;
+                mProfilesQuery.mCallers.add(new Pair<>(callback, handler));
+                return;
+            }
+            query = new ProfilesQuery(mProfilesGeneration);
+            query.mCallers.add(new Pair<>(callback, handler));
+            mProfilesQuery = query;
+            mNumProfilesQueries++;
+        }
+        readAllProfiles(new AsyncResultCallback<EuiccProfileInfo[]>() {
+            @Override
+            public void onResult(EuiccProfileInfo[] result) {
+                onProfilesQueryDone(query, result, null /* e */);
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                onProfilesQueryDone(query, null /* profiles */, e);
+            }
+        }, handler);
+    }
+
+    private void onProfilesQueryDone(ProfilesQuery query, EuiccProfileInfo[] profiles,
+            Throwable e) {
+        List<Pair<AsyncResultCallback<EuiccProfileInfo[]>, Handler>> callers;
+        synchronized (mProfilesLock) {
+            if (mProfilesQuery == query) {
+                mProfilesQuery = null;
+            }
+            if (e == null && query.mGeneration == mProfilesGeneration) {
+                mCachedProfiles = profiles;
+            }
+            // No caller can join the query anymore.
+            callers = query.mCallers;
+        }
+        for (Pair<AsyncResultCallback<EuiccProfileInfo[]>, Handler> caller : callers) {
+            if (e != null) {
+                AsyncResultHelper.throwException(e, caller.first, caller.second);
+            } else {
+                // Each caller gets its own array, as the cached one must not be modified.
+                AsyncResultHelper.returnResult(profiles.clone(), caller.first, caller.second);
+            }
+        }
+    }
+
+    private void readAllProfiles(AsyncResultCallback<EuiccProfileInfo[]> callback,
+            Handler handler) {
         byte[] profileTags = mSupportedMepMode.isMepMode() ? Tags.EUICC_PROFILE_MEP_TAGS
                 : Tags.EUICC_PROFILE_TAGS;
         sendApdu(
@@ -226,6 +368,17 @@ public class EuiccPort extends UiccPort {
      */
     public final void getProfile(String iccid, AsyncResultCallback<EuiccProfileInfo> callback,
             Handler handler) {
+        synchronized (mProfilesLock) {
+            if (mCachedProfiles != null) {
+                for (EuiccProfileInfo profile : mCachedProfiles) {
+                    if (profile != null && TextUtils.equals(iccid, profile.getIccid())) {
+                        mNumProfilesCacheHits++;
+                        AsyncResultHelper.returnResult(profile, callback, handler);
+                        return;
+                    }
+                }
+            }
+        }
         byte[] profileTags = mSupportedMepMode.isMepMode() ? Tags.EUICC_PROFILE_MEP_TAGS
                 : Tags.EUICC_PROFILE_TAGS;
         sendApdu(
@@ -264,6 +417,7 @@ public class EuiccPort extends UiccPort {
      */
     public void disableProfile(String iccid, boolean refresh, AsyncResultCallback<Void> callback,
             Handler handler) {
+        invalidateCardProfiles();
         sendApduWithSimResetErrorWorkaround(
                 newRequestProvider((RequestBuilder requestBuilder) -> {
                     byte[] iccidBytes = IccUtils.bcdToBytes(padTrailingFs(iccid));
@@ -289,7 +443,7 @@ public class EuiccPort extends UiccPort {
                                     EuiccCardErrorException.OPERATION_DISABLE_PROFILE, result);
                     }
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -303,6 +457,7 @@ public class EuiccPort extends UiccPort {
      */
     public void switchToProfile(String iccid, boolean refresh, AsyncResultCallback<Void> callback,
             Handler handler) {
+        invalidateCardProfiles();
         sendApduWithSimResetErrorWorkaround(
                 newRequestProvider((RequestBuilder requestBuilder) -> {
                     byte[] iccidBytes = IccUtils.bcdToBytes(padTrailingFs(iccid));
@@ -337,7 +492,7 @@ public class EuiccPort extends UiccPort {
                                     EuiccCardErrorException.OPERATION_SWITCH_TO_PROFILE, result);
                     }
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -386,6 +541,7 @@ public class EuiccPort extends UiccPort {
      */
     public void setNickname(String iccid, String nickname, AsyncResultCallback<Void> callback,
             Handler handler) {
+        invalidateCardProfiles();
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_SET_NICKNAME)
@@ -402,7 +558,7 @@ public class EuiccPort extends UiccPort {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -413,6 +569,7 @@ public class EuiccPort extends UiccPort {
      * @since 1.1.0 [GSMA SGP.22]
      */
     public void deleteProfile(String iccid, AsyncResultCallback<Void> callback, Handler handler) {
+        invalidateCardProfiles();
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) -> {
                     byte[] iccidBytes = IccUtils.bcdToBytes(padTrailingFs(iccid));
@@ -429,7 +586,7 @@ public class EuiccPort extends UiccPort {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -442,6 +599,7 @@ public class EuiccPort extends UiccPort {
      */
     public void resetMemory(@EuiccCardManager.ResetOption int options,
             AsyncResultCallback<Void> callback, Handler handler) {
+        invalidateCardProfiles();
         sendApduWithSimResetErrorWorkaround(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_EUICC_MEMORY_RESET)
@@ -455,7 +613,7 @@ public class EuiccPort extends UiccPort {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -528,6 +686,12 @@ public class EuiccPort extends UiccPort {
      */
     public void getRulesAuthTable(AsyncResultCallback<EuiccRulesAuthTable> callback,
             Handler handler) {
+        // The RAT is set at manufacturing time and never changes.
+        if (mRulesAuthTable != null) {
+            AsyncResultHelper.returnResult(mRulesAuthTable, callback, handler);
+            return;
+        }
+
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_RAT)
@@ -551,7 +715,8 @@ public class EuiccPort extends UiccPort {
                                 Arrays.asList(opIds), node.getChild(Tags.TAG_SEQUENCE,
                                         Tags.TAG_CTX_2).asBits());
                     }
-                    return builder.build();
+                    mRulesAuthTable = builder.build();
+                    return mRulesAuthTable;
                 },
                 callback, handler);
     }
@@ -715,8 +880,13 @@ public class EuiccPort extends UiccPort {
      */
     public void loadBoundProfilePackage(byte[] boundProfilePackage,
             AsyncResultCallback<byte[]> callback, Handler handler) {
+        invalidateCardProfiles();
+        // Number of STORE DATA segments acknowledged by the eUICC, and when the first one was sent.
+        int[] numSegments = new int[1];
+        long[] startTimeMs = new long[1];
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) -> {
+                    startTimeMs[0] = SystemClock.elapsedRealtime();
                     Asn1Node bppNode = new Asn1Decoder(boundProfilePackage).nextNode();
                     int actualLength = bppNode.getDataLength();
                     int segmentedLength = 0;
@@ -778,25 +948,32 @@ public class EuiccPort extends UiccPort {
                     requestBuilder.addStoreData(bppNode.getHeadAsHex()
                             + initialiseSecureChannelRequest.toHex());
 
-                    requestBuilder.addStoreData(firstSequenceOf87.toHex());
+                    // The segments are added as bytes, so the hex string of each APDU is only built
+                    // when it is sent instead of holding the whole BPP as hex strings.
+                    requestBuilder.addStoreData(firstSequenceOf87.toBytes());
 
                     requestBuilder.addStoreData(sequenceOf88.getHeadAsHex());
                     int size = metaDataSeqs.size();
                     for (int i = 0; i < size; i++) {
-                        requestBuilder.addStoreData(metaDataSeqs.get(i).toHex());
+                        requestBuilder.addStoreData(metaDataSeqs.get(i).toBytes());
                     }
 
                     if (secondSequenceOf87 != null) {
-                        requestBuilder.addStoreData(secondSequenceOf87.toHex());
+                        requestBuilder.addStoreData(secondSequenceOf87.toBytes());
                     }
 
                     requestBuilder.addStoreData(sequenceOf86.getHeadAsHex());
                     size = elementSeqs.size();
                     for (int i = 0; i < size; i++) {
-                        requestBuilder.addStoreData(elementSeqs.get(i).toHex());
+                        requestBuilder.addStoreData(elementSeqs.get(i).toBytes());
                     }
                 }),
                 response -> {
+                    long elapsedMs = SystemClock.elapsedRealtime() - startTimeMs[0];
+                    logd("loadBoundProfilePackage: " + boundProfilePackage.length + " bytes, "
+                            + (numSegments[0] + 1) + " APDUs in " + elapsedMs + " ms ("
+                            + (elapsedMs > 0 ? boundProfilePackage.length / elapsedMs : 0)
+                            + " bytes/ms)");
                     // SGP.22 v2.0 ErrorResult
                     Asn1Node root = parseResponse(response);
                     if (root.hasChild(Tags.TAG_PROFILE_INSTALLATION_RESULT_DATA,
@@ -811,18 +988,20 @@ public class EuiccPort extends UiccPort {
                     return root.toBytes();
                 },
                 intermediateResult -> {
+                    numSegments[0]++;
                     byte[] payload = intermediateResult.payload;
                     if (payload != null && payload.length > 2) {
                         int tag = (payload[0] & 0xFF) << 8 | (payload[1] & 0xFF);
                         // Stops if the installation result has been returned
                         if (tag == Tags.TAG_PROFILE_INSTALLATION_RESULT) {
-                            logd("loadBoundProfilePackage failed due to an early error.");
+                            logd("loadBoundProfilePackage failed due to an early error after "
+                                    + numSegments[0] + " APDUs.");
                             return false;
                         }
                     }
                     return true;
                 },
-                callback, handler);
+                invalidateProfilesOnDone(callback), handler);
     }
 
     /**
@@ -1431,6 +1610,13 @@ public class EuiccPort extends UiccPort {
         pw.increaseIndent();
         pw.println("mEid=" + mEid);
         pw.println("mSupportedMepMode=" + mSupportedMepMode);
+        synchronized (mProfilesLock) {
+            pw.println("mCachedProfiles="
+                    + (mCachedProfiles == null ? "null" : mCachedProfiles.length + " profiles")
+                    + " queries=" + mNumProfilesQueries + " cacheHits=" + mNumProfilesCacheHits
+                    + " coalesced=" + mNumProfilesCoalesced);
+        }
+        mApduSender.dump(pw);
         pw.decreaseIndent();
     }
 }
@@ -22,6 +22,8 @@ package com.android.internal.telephony.uicc.euicc.apdu;
  * @hide
  */
 class ApduCommand {
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
     /** Channel of an APDU as defined in GlobalPlatform Card Specification v.2.3. */
     public final int channel;
 
@@ -40,9 +42,18 @@ class ApduCommand {
     /** Parameter 3 of an APDU as defined in GlobalPlatform Card Specification v.2.3. */
     public final int p3;
 
-    /** Command data of an APDU as defined in GlobalPlatform Card Specification v.2.3. */
+    /**
+     * Command data of an APDU as defined in GlobalPlatform Card Specification v.2.3, or
+     * {@code null} if the command data is a slice of {@link #mData}. Use {@link #getCmdHex()} to
+     * get the command data.
+     */
     public final String cmdHex;
 
+    // Command data kept as bytes and only converted to hex when the command is sent, so that a
+    // large request does not hold the hex strings of all its commands at once.
+    private final byte[] mData;
+    private final int mDataOffset;
+
     /**
      * isEs10 indicates that the current streaming APDU contains an ES10 command or it is a regular
      * APDU. (As per spec SGP.22 V3.0, ES10 commands needs to be sent over command port of MEP-A1)
@@ -58,14 +69,48 @@ class ApduCommand {
         this.p2 = p2;
         this.p3 = p3;
         this.cmdHex = cmdHex;
+        mData = null;
+        mDataOffset = 0;
         // TODO: Currently ApduCommand is used for ES10 commands, so updating to true by default.
         //  Modify it in case used for non ES10 commands in future.
         this.isEs10 = true;
     }
 
+    /**
+     * The parameters are defined as in GlobalPlatform Card Specification v.2.3. The command data
+     * is {@code length} bytes of {@code data} from {@code offset}, P3 is {@code length}.
+     */
+    ApduCommand(int channel, int cla, int ins, int p1, int p2, byte[] data, int offset,
+            int length) {
+        this.channel = channel;
+        this.cla = cla;
+        this.ins = ins;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.p3 = length;
+        this.cmdHex = null;
+        mData = data;
+        mDataOffset = offset;
+        this.isEs10 = true;
+    }
+
+    /** @return The command data in a hex string. */
+    public String getCmdHex() {
+        if (cmdHex != null) {
+            return cmdHex;
+        }
+        char[] hex = new char[p3 * 2];
+        for (int i = 0; i < p3; i++) {
+            int b = mData[mDataOffset + i] & 0xFF;
+            hex[i * 2] = HEX_CHARS[b >>> 4];
+            hex[i * 2 + 1] = HEX_CHARS[b & 0x0F];
+        }
+        return new String(hex);
+    }
+
     @Override
     public String toString() {
         return "ApduCommand(channel=" + channel + ", cla=" + cla + ", ins=" + ins + ", p1=" + p1
-                + ", p2=" + p2 + ", p3=" + p3 + ", cmd=" + cmdHex + ", isEs10=" + isEs10 + ")";
+                + ", p2=" + p2 + ", p3=" + p3 + ", cmd=" + getCmdHex() + ", isEs10=" + isEs10 + ")";
     }
 }
@@ -18,9 +18,10 @@ package com.android.internal.telephony.uicc.euicc.apdu;
 
 import android.annotation.Nullable;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.IccOpenLogicalChannelResponse;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.uicc.IccIoResult;
 import com.android.internal.telephony.uicc.euicc.async.AsyncResultCallback;
@@ -29,6 +30,8 @@ import com.android.telephony.Rlog;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.List;
 
 /**
@@ -36,7 +39,10 @@ import java.util.List;
  * before sending and closed after all APDU commands are sent. The complete response of the last
  * APDU command will be returned. If any APDU command returns an error status (other than
  * {@link #STATUS_NO_ERROR}) or causing an exception, an {@link ApduException} will be returned
- * immediately without sending the rest of commands. This class is thread-safe.
+ * immediately without sending the rest of commands. Requests sent while the logical channel is
+ * in use are queued and served in order once the channel is closed. A queued request fails if it
+ * waits for the channel longer than {@link #QUEUE_TIMEOUT_MS}, or if too many requests are
+ * queued. This class is thread-safe.
  *
  * @hide
  */
@@ -51,7 +57,12 @@ public class ApduSender {
     private static final int STATUS_NO_ERROR = 0x9000;
     private static final int SW1_NO_ERROR = 0x91;
 
-    private static final int WAIT_TIME_MS = 2000;
+    // A queued request fails after waiting this long for the logical channel, e.g. if the modem
+    // never answers the opening or closing of the channel used by the previous request.
+    @VisibleForTesting
+    static final long QUEUE_TIMEOUT_MS = 2000;
+    @VisibleForTesting
+    static final int MAX_PENDING_REQUESTS = 16;
 
     private static void logv(String msg) {
         Rlog.v(LOG_TAG, msg);
@@ -67,10 +78,35 @@ public class ApduSender {
     private final CloseLogicalChannelInvocation mCloseChannel;
     private final TransmitApduLogicalChannelInvocation mTransmitApdu;
 
-    // Lock for accessing mChannelOpened. We only allow to open a single logical channel at any
-    // time for an AID.
+    /** A request waiting for the logical channel to be closed by the previous request. */
+    private class PendingRequest {
+        final RequestProvider mRequestProvider;
+        final ApduSenderResultCallback mResultCallback;
+        final Handler mHandler;
+        final long mQueuedTimeMs;
+        final Runnable mTimeout = () -> onQueueTimeout(this);
+
+        PendingRequest(RequestProvider requestProvider, ApduSenderResultCallback resultCallback,
+                Handler handler) {
+            mRequestProvider = requestProvider;
+            mResultCallback = resultCallback;
+            mHandler = handler;
+            mQueuedTimeMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // Lock for accessing mChannelOpened and mPendingRequests. We only allow to open a single
+    // logical channel at any time for an AID.
     private final Object mChannelLock = new Object();
     private boolean mChannelOpened;
+    private final ArrayDeque<PendingRequest> mPendingRequests = new ArrayDeque<>();
+
+    // Queue statistics, guarded by mChannelLock.
+    private int mNumQueuedRequests;
+    private long mTotalQueueWaitMs;
+    private long mMaxQueueWaitMs;
+    private int mNumTimedOutRequests;
+    private int mNumRejectedRequests;
 
     /**
      * @param aid The AID that will be used to open a logical channel to.
@@ -101,29 +137,36 @@ public class ApduSender {
             Handler handler) {
         synchronized (mChannelLock) {
             if (mChannelOpened) {
-                if (!Looper.getMainLooper().equals(Looper.myLooper())) {
-                    logd("Logical channel has already been opened. Wait.");
-                    try {
-                        mChannelLock.wait(WAIT_TIME_MS);
-                    } catch (InterruptedException e) {
-                        // nothing to do
-                    }
-                    if (mChannelOpened) {
-                        AsyncResultHelper.throwException(
-                                new ApduException("The logical channel is still in use."),
-                                resultCallback, handler);
-                        return;
-                    }
-                } else {
+                if (mPendingRequests.size() >= MAX_PENDING_REQUESTS) {
+                    mNumRejectedRequests++;
                     AsyncResultHelper.throwException(
                             new ApduException("The logical channel is in use."),
                             resultCallback, handler);
                     return;
                 }
+                // Never block the caller. The request will be sent once the channel is closed.
+                logd("Logical channel has already been opened. Queue the request.");
+                PendingRequest request =
+                        new PendingRequest(requestProvider, resultCallback, handler);
+                mPendingRequests.add(request);
+                mNumQueuedRequests++;
+                handler.postDelayed(request.mTimeout, QUEUE_TIMEOUT_MS);
+                return;
             }
             mChannelOpened = true;
         }
 
+        openChannelAndSend(requestProvider, resultCallback, handler);
+    }
+
+    /**
+     * Opens the logical channel and sends the request. The caller must own the channel, i.e. have
+     * set {@link #mChannelOpened}.
+     */
+    private void openChannelAndSend(
+            RequestProvider requestProvider,
+            ApduSenderResultCallback resultCallback,
+            Handler handler) {
         mOpenChannel.invoke(mAid, new AsyncResultCallback<IccOpenLogicalChannelResponse>() {
             @Override
             public void onResult(IccOpenLogicalChannelResponse openChannelResponse) {
@@ -131,10 +174,7 @@ public class ApduSender {
                 int status = openChannelResponse.getStatus();
                 if (channel == IccOpenLogicalChannelResponse.INVALID_CHANNEL
                         || status != IccOpenLogicalChannelResponse.STATUS_NO_ERROR) {
-                    synchronized (mChannelLock) {
-                        mChannelOpened = false;
-                        mChannelLock.notify();
-                    }
+                    releaseChannel();
                     resultCallback.onException(
                             new ApduException("Failed to open logical channel opened for AID: "
                                     + mAid + ", with status: " + status));
@@ -266,10 +306,7 @@ public class ApduSender {
         mCloseChannel.invoke(channel, new AsyncResultCallback<Boolean>() {
             @Override
             public void onResult(Boolean aBoolean) {
-                synchronized (mChannelLock) {
-                    mChannelOpened = false;
-                    mChannelLock.notify();
-                }
+                releaseChannel();
 
                 if (exception == null) {
                     resultCallback.onResult(response);
@@ -279,4 +316,59 @@ public class ApduSender {
             }
         }, handler);
     }
+
+    /**
+     * Releases the logical channel after it has been closed, or failed to open, and hands it to
+     * the first queued request, if any.
+     */
+    private void releaseChannel() {
+        PendingRequest next;
+        synchronized (mChannelLock) {
+            next = mPendingRequests.poll();
+            if (next == null) {
+                mChannelOpened = false;
+                return;
+            }
+            long waitMs = SystemClock.elapsedRealtime() - next.mQueuedTimeMs;
+            mTotalQueueWaitMs += waitMs;
+            mMaxQueueWaitMs = Math.max(mMaxQueueWaitMs, waitMs);
+        }
+        next.mHandler.removeCallbacks(next.mTimeout);
+        // mChannelOpened stays true, the channel now belongs to the next request.
+        next.mHandler.post(() -> openChannelAndSend(next.mRequestProvider, next.mResultCallback,
+                next.mHandler));
+    }
+
+    /**
+     * Fails a queued request which waited too long for the logical channel.
+     */
+    private void onQueueTimeout(PendingRequest request) {
+        synchronized (mChannelLock) {
+            if (!mPendingRequests.remove(request)) {
+                // The request got the channel in the meantime.
+                return;
+            }
+            mNumTimedOutRequests++;
+        }
+        logd("Timed out waiting for the logical channel.");
+        request.mResultCallback.onException(
+                new ApduException("The logical channel is still in use."));
+    }
+
+    /**
+     * Dump the queue statistics.
+     *
+     * @param pw Print writer
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mChannelLock) {
+            pw.println("ApduSender: mAid=" + mAid + " mChannelOpened=" + mChannelOpened
+                    + " pendingRequests=" + mPendingRequests.size()
+                    + " queuedRequests=" + mNumQueuedRequests
+                    + " totalQueueWaitMs=" + mTotalQueueWaitMs
+                    + " maxQueueWaitMs=" + mMaxQueueWaitMs
+                    + " timedOutRequests=" + mNumTimedOutRequests
+                    + " rejectedRequests=" + mNumRejectedRequests);
+        }
+    }
 }
@@ -88,6 +88,28 @@ public class RequestBuilder {
         addApdu(CLA_STORE_DATA, INS_STORE_DATA, P1_STORE_DATA_END, totalSubCmds - 1, data);
     }
 
+    /**
+     * Adds a STORE DATA command with the given bytes. Long command length of which is larger than
+     * {@link #mMaxApduDataLen} will be automatically split into multiple ones. The commands refer
+     * to {@code data} instead of copying it, and their hex strings are only built when they are
+     * sent.
+     *
+     * @param data The STORE DATA command as defined in GlobalPlatform Card Specification v.2.3.
+     *     It must not be modified after being added.
+     */
+    public void addStoreData(byte[] data) {
+        int totalLen = data.length;
+        int totalSubCmds = totalLen == 0 ? 1 : (totalLen + mMaxApduDataLen - 1) / mMaxApduDataLen;
+        int offset = 0;
+        for (int i = 1; i < totalSubCmds; ++i) {
+            mCommands.add(new ApduCommand(mChannel, CLA_STORE_DATA, INS_STORE_DATA,
+                    P1_STORE_DATA_INTERM, i - 1, data, offset, mMaxApduDataLen));
+            offset += mMaxApduDataLen;
+        }
+        mCommands.add(new ApduCommand(mChannel, CLA_STORE_DATA, INS_STORE_DATA,
+                P1_STORE_DATA_END, totalSubCmds - 1, data, offset, totalLen - offset));
+    }
+
     List<ApduCommand> getCommands() {
         return mCommands;
     }
@@ -18,6 +18,7 @@ package com.android.internal.telephony.uicc.euicc.apdu;
 
 import android.os.AsyncResult;
 import android.os.Message;
+import android.util.Log;
 
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
@@ -37,6 +38,8 @@ public class TransmitApduLogicalChannelInvocation
         extends AsyncMessageInvocation<ApduCommand, IccIoResult> {
     private static final String LOG_TAG = "TransApdu";
     private static final int SW1_ERROR = 0x6F;
+    // Formatting the APDUs is not free, only do it if they are logged.
+    private static final boolean VDBG = Rlog.isLoggable(LOG_TAG, Log.VERBOSE);
 
     private final CommandsInterface mCi;
 
@@ -46,10 +49,10 @@ public class TransmitApduLogicalChannelInvocation
 
     @Override
     protected void sendRequestMessage(ApduCommand command, Message msg) {
-        Rlog.v(LOG_TAG, "Send: " + command);
+        if (VDBG) Rlog.v(LOG_TAG, "Send: " + command);
         mCi.iccTransmitApduLogicalChannel(command.channel, command.cla | command.channel,
-                command.ins, command.p1, command.p2, command.p3, command.cmdHex, command.isEs10,
-                msg);
+                command.ins, command.p1, command.p2, command.p3, command.getCmdHex(),
+                command.isEs10, msg);
     }
 
     @Override
@@ -68,7 +71,7 @@ public class TransmitApduLogicalChannelInvocation
             response = new IccIoResult(SW1_ERROR, 0 /* sw2 */, (byte[]) null /* payload */);
         }
 
-        Rlog.v(LOG_TAG, "Response: " + response);
+        if (VDBG) Rlog.v(LOG_TAG, "Response: " + response);
         return response;
     }
 }
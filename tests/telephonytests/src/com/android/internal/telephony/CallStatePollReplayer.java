@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.mockito.Mockito.doAnswer;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.testing.TestableLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays recorded lists of calls through the call state polling of a {@link GsmCdmaCallTracker}.
+ *
+ * Each frame is reported by {@link SimulatedCommands#getCurrentCalls} after a call state change
+ * is notified, and the test looper is run until the tracker has handled all the polls. For each
+ * frame the replayer records the number of polls, the time from the call state change to
+ * {@link GsmCdmaPhone#notifyPreciseCallStateChanged()} and the number of objects allocated on the
+ * looper thread.
+ */
+public class CallStatePollReplayer {
+    private final SimulatedCommands mSimulatedCommands;
+    private final TestableLooper mTestableLooper;
+    private final List<long[]> mFrames = new ArrayList<>();
+    private long mNotificationTimeNs;
+
+    // Indexes of the stats of a frame.
+    private static final int STAT_POLLS = 0;
+    private static final int STAT_LATENCY_NS = 1;
+    private static final int STAT_ALLOCATIONS = 2;
+
+    /**
+     * @param simulatedCommands The commands used by the tracker.
+     * @param phone The mocked phone of the tracker, its call state notification is recorded.
+     * @param testableLooper The looper of the tracker.
+     */
+    public CallStatePollReplayer(SimulatedCommands simulatedCommands, GsmCdmaPhone phone,
+            TestableLooper testableLooper) {
+        mSimulatedCommands = simulatedCommands;
+        mTestableLooper = testableLooper;
+        doAnswer(invocation -> {
+            if (mNotificationTimeNs < 0) {
+                mNotificationTimeNs = SystemClock.elapsedRealtimeNanos();
+            }
+            return null;
+        }).when(phone).notifyPreciseCallStateChanged();
+    }
+
+    /**
+     * Create a call as reported by the modem.
+     *
+     * @param index The index of the call.
+     * @param state The state of the call.
+     * @param isMT Whether the call is mobile terminated.
+     * @param isMpty Whether the call is part of a conference.
+     * @param number The number of the call.
+     * @return The call.
+     */
+    public static DriverCall createDriverCall(int index, DriverCall.State state, boolean isMT,
+            boolean isMpty, String number) {
+        DriverCall dc = new DriverCall();
+        dc.index = index;
+        dc.state = state;
+        dc.isMT = isMT;
+        dc.isMpty = isMpty;
+        dc.number = number;
+        dc.TOA = PhoneNumberUtils.toaFromString(number);
+        dc.isVoice = true;
+        dc.als = 0;
+        return dc;
+    }
+
+    /**
+     * Replay a frame of calls, and process the polls it triggers.
+     *
+     * @param calls The calls reported by the modem, sorted by index.
+     */
+    @SuppressWarnings("deprecation")
+    public void replay(DriverCall... calls) {
+        int pollCount = mSimulatedCommands.getCurrentCallsRequestCount();
+        mNotificationTimeNs = -1;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long frameStartTimeNs = SystemClock.elapsedRealtimeNanos();
+        mSimulatedCommands.replayCurrentCalls(Arrays.asList(calls));
+        mTestableLooper.processAllMessages();
+        Debug.stopAllocCounting();
+
+        long[] frame = new long[3];
+        frame[STAT_POLLS] = mSimulatedCommands.getCurrentCallsRequestCount() - pollCount;
+        frame[STAT_LATENCY_NS] =
+                mNotificationTimeNs < 0 ? -1 : mNotificationTimeNs - frameStartTimeNs;
+        frame[STAT_ALLOCATIONS] = Debug.getThreadAllocCount();
+        mFrames.add(frame);
+    }
+
+    /** @return The number of replayed frames. */
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /** @return The number of polls triggered by a frame. */
+    public int getPollCount(int frame) {
+        return (int) mFrames.get(frame)[STAT_POLLS];
+    }
+
+    /**
+     * @return The time from the call state change of a frame to the call state notification, or
+     * -1 if the call state was not notified.
+     */
+    public long getLatencyNs(int frame) {
+        return mFrames.get(frame)[STAT_LATENCY_NS];
+    }
+
+    /** @return The number of objects allocated on the looper thread to handle a frame. */
+    public long getAllocationCount(int frame) {
+        return mFrames.get(frame)[STAT_ALLOCATIONS];
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency of the notified frames at the given percentile, or -1 if no frame was
+     * notified.
+     */
+    public long getLatencyPercentileNs(int percentile) {
+        long[] latencies = mFrames.stream().mapToLong(frame -> frame[STAT_LATENCY_NS])
+                .filter(latency -> latency >= 0).sorted().toArray();
+        if (latencies.length == 0) {
+            return -1;
+        }
+        // Nearest-rank percentile.
+        int rank = (int) Math.ceil(percentile / 100.0 * latencies.length);
+        return latencies[Math.max(0, rank - 1)];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CallStatePollReplayer{frames=")
+                .append(mFrames.size())
+                .append(", latencyNs p50=").append(getLatencyPercentileNs(50))
+                .append(" p90=").append(getLatencyPercentileNs(90))
+                .append(" max=").append(getLatencyPercentileNs(100));
+        for (int i = 0; i < mFrames.size(); i++) {
+            sb.append(", [").append(i).append("] polls=").append(getPollCount(i))
+                    .append(" allocations=").append(getAllocationCount(i));
+        }
+        return sb.append("}").toString();
+    }
+}
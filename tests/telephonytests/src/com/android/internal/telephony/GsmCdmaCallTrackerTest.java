@@ -17,6 +17,7 @@ package com.android.internal.telephony;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
@@ -476,5 +477,69 @@ public class GsmCdmaCallTrackerTest extends TelephonyTest {
         }
         fail("Expected otasp call state exception");
     }
+
+    @Test
+    @MediumTest
+    public void testReplayWaitingHeldAndConferenceCalls() {
+        CallStatePollReplayer replayer = new CallStatePollReplayer(mSimulatedCommands, mPhone,
+                mTestableLooper);
+        String number1 = "6505551212";
+        String number2 = "6505551213";
+
+        replayer.replay(CallStatePollReplayer.createDriverCall(
+                1, DriverCall.State.INCOMING, true, false, number1));
+        assertEquals(PhoneConstants.State.RINGING, mCTUT.getState());
+        assertEquals(GsmCdmaCall.State.INCOMING, mCTUT.mRingingCall.getState());
+
+        replayer.replay(CallStatePollReplayer.createDriverCall(
+                1, DriverCall.State.ACTIVE, true, false, number1));
+        assertEquals(PhoneConstants.State.OFFHOOK, mCTUT.getState());
+        assertEquals(GsmCdmaCall.State.ACTIVE, mCTUT.mForegroundCall.getState());
+
+        replayer.replay(
+                CallStatePollReplayer.createDriverCall(
+                        1, DriverCall.State.ACTIVE, true, false, number1),
+                CallStatePollReplayer.createDriverCall(
+                        2, DriverCall.State.WAITING, true, false, number2));
+        assertEquals(PhoneConstants.State.RINGING, mCTUT.getState());
+        assertEquals(GsmCdmaCall.State.WAITING, mCTUT.mRingingCall.getState());
+
+        replayer.replay(
+                CallStatePollReplayer.createDriverCall(
+                        1, DriverCall.State.HOLDING, true, false, number1),
+                CallStatePollReplayer.createDriverCall(
+                        2, DriverCall.State.ACTIVE, true, false, number2));
+        assertEquals(GsmCdmaCall.State.ACTIVE, mCTUT.mForegroundCall.getState());
+        assertEquals(GsmCdmaCall.State.HOLDING, mCTUT.mBackgroundCall.getState());
+
+        replayer.replay(
+                CallStatePollReplayer.createDriverCall(
+                        1, DriverCall.State.ACTIVE, true, true, number1),
+                CallStatePollReplayer.createDriverCall(
+                        2, DriverCall.State.ACTIVE, true, true, number2));
+        assertEquals(GsmCdmaCall.State.ACTIVE, mCTUT.mForegroundCall.getState());
+        assertEquals(2, mCTUT.mForegroundCall.getConnections().size());
+        assertEquals(GsmCdmaCall.State.IDLE, mCTUT.mBackgroundCall.getState());
+
+        // A poll without any change does not notify the call state.
+        replayer.replay(
+                CallStatePollReplayer.createDriverCall(
+                        1, DriverCall.State.ACTIVE, true, true, number1),
+                CallStatePollReplayer.createDriverCall(
+                        2, DriverCall.State.ACTIVE, true, true, number2));
+        assertEquals(-1, replayer.getLatencyNs(5));
+
+        replayer.replay();
+        assertEquals(PhoneConstants.State.IDLE, mCTUT.getState());
+
+        assertEquals(7, replayer.getFrameCount());
+        for (int i = 0; i < replayer.getFrameCount(); i++) {
+            assertTrue(replayer.getPollCount(i) >= 1);
+            if (i != 5) {
+                assertTrue(replayer.getLatencyNs(i) >= 0);
+            }
+        }
+        logd(replayer.toString());
+    }
 }
 
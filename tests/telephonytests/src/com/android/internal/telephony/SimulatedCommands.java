@@ -174,6 +174,10 @@ public class SimulatedCommands extends BaseCommands
 
     int mNextCallFailCause = CallFailCause.NORMAL_CLEARING;
 
+    // Recorded calls reported by getCurrentCalls() instead of the simulated call state.
+    private List<DriverCall> mReplayedCalls;
+    private int mCurrentCallsRequestCount;
+
     @UnsupportedAppUsage
     private boolean mDcSuccess = true;
     private SetupDataCallResult mSetupDataCallResult;
@@ -539,9 +543,11 @@ public class SimulatedCommands extends BaseCommands
     @Override
     public void getCurrentCalls (Message result) {
         SimulatedCommandsVerifier.getInstance().getCurrentCalls(result);
+        mCurrentCallsRequestCount++;
         if ((mState == TelephonyManager.RADIO_POWER_ON) && !isSimLocked()) {
             //Rlog.i("GSM", "[SimCmds] getCurrentCalls");
-            resultSuccess(result, simulatedCallState.getDriverCalls());
+            resultSuccess(result, mReplayedCalls != null
+                    ? new ArrayList<>(mReplayedCalls) : simulatedCallState.getDriverCalls());
         } else {
             //Rlog.i("GSM", "[SimCmds] getCurrentCalls: RADIO_OFF or SIM not ready!");
             resultFail(result, null,
@@ -1638,6 +1644,23 @@ public class SimulatedCommands extends BaseCommands
         mCallStateRegistrants.notifyRegistrants();
     }
 
+    /**
+     * Report a recorded list of calls from getCurrentCalls() instead of the simulated call state,
+     * and notify the call state change.
+     *
+     * @param calls The calls sorted by index, or {@code null} to report the simulated call state
+     * again.
+     */
+    public void replayCurrentCalls(List<DriverCall> calls) {
+        mReplayedCalls = calls;
+        mCallStateRegistrants.notifyRegistrants();
+    }
+
+    /** @return The number of getCurrentCalls() requests. */
+    public int getCurrentCallsRequestCount() {
+        return mCurrentCallsRequestCount;
+    }
+
     @Override
     public void
     triggerIncomingSMS(String message) {
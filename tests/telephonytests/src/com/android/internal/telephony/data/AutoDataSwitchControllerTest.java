@@ -577,13 +577,19 @@ public class AutoDataSwitchControllerTest extends TelephonyTest {
     @Test
     public void testValidationFailedRetry() {
         prepareIdealUsesNonDdsCondition();
+        assertThat(mAutoDataSwitchControllerUT.isRetryingValidation()).isFalse();
 
         for (int i = 0; i < MAX_RETRY; i++) {
             mAutoDataSwitchControllerUT.evaluateRetryOnValidationFailed();
             processAllFutureMessages();
+            assertThat(mAutoDataSwitchControllerUT.isRetryingValidation()).isTrue();
         }
         verify(mMockedPhoneSwitcherCallback, times(MAX_RETRY))
                 .onRequireValidation(PHONE_2, true /*need validation*/);
+
+        // The retries are over once the max retry count is reached.
+        mAutoDataSwitchControllerUT.evaluateRetryOnValidationFailed();
+        assertThat(mAutoDataSwitchControllerUT.isRetryingValidation()).isFalse();
     }
 
     @Test
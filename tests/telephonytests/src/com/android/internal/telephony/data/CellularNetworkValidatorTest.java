@@ -210,6 +210,44 @@ public class CellularNetworkValidatorTest extends TelephonyTest {
         assertInValidation(subId);
     }
 
+    @Test
+    @SmallTest
+    public void testRecentlyFailedNetwork() {
+        mNetworkRegistrationInfo = new NetworkRegistrationInfo.Builder()
+                .setAccessNetworkTechnology(TelephonyManager.NETWORK_TYPE_LTE)
+                .setRegistrationState(NetworkRegistrationInfo.REGISTRATION_STATE_HOME)
+                .setCellIdentity(mCellIdentityLte1)
+                .build();
+        doReturn(mNetworkRegistrationInfo).when(mServiceState).getNetworkRegistrationInfo(
+                anyInt(), anyInt());
+        assertFalse(mValidatorUT.isRecentlyFailed(1));
+
+        testValidateFailure();
+        assertTrue(mValidatorUT.isRecentlyFailed(1));
+
+        // A successful validation clears the failure.
+        resetStates();
+        testValidateSuccess();
+        assertFalse(mValidatorUT.isRecentlyFailed(1));
+    }
+
+    @Test
+    @SmallTest
+    public void testRecentlyFailedNetworkExpires() {
+        mNetworkRegistrationInfo = new NetworkRegistrationInfo.Builder()
+                .setAccessNetworkTechnology(TelephonyManager.NETWORK_TYPE_LTE)
+                .setRegistrationState(NetworkRegistrationInfo.REGISTRATION_STATE_HOME)
+                .setCellIdentity(mCellIdentityLte1)
+                .build();
+        doReturn(mNetworkRegistrationInfo).when(mServiceState).getNetworkRegistrationInfo(
+                anyInt(), anyInt());
+        testValidateFailure();
+
+        setCacheTtlInCarrierConfig(1000);
+        waitForMs(1100);
+        assertFalse(mValidatorUT.isRecentlyFailed(1));
+    }
+
     @Test
     @SmallTest
     public void testDoNotSkipIfCacheExpires() {
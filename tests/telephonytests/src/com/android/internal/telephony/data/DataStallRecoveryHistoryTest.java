@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import static com.android.internal.telephony.data.DataStallRecoveryManager.RECOVERY_ACTION_CLEANUP;
+import static com.android.internal.telephony.data.DataStallRecoveryManager.RECOVERY_ACTION_GET_DATA_CALL_LIST;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.telephony.TelephonyManager;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class DataStallRecoveryHistoryTest extends TelephonyTest {
+    private static final int CARRIER_ID = 1839;
+    private static final int RAT = TelephonyManager.NETWORK_TYPE_LTE;
+
+    private DataStallRecoveryHistory mHistoryUT;
+    private long mTimeMs;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mTimeMs = 1_000_000;
+        mHistoryUT = new DataStallRecoveryHistory(mContext, () -> mTimeMs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHistoryUT = null;
+        super.tearDown();
+    }
+
+    @Test
+    public void testNotIneffectiveWithoutEnoughAttempts() {
+        for (int i = 0; i < DataStallRecoveryHistory.MIN_ATTEMPTS_TO_EVALUATE - 1; i++) {
+            mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_GET_DATA_CALL_LIST);
+        }
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_GET_DATA_CALL_LIST))
+                .isFalse();
+
+        mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_GET_DATA_CALL_LIST);
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_GET_DATA_CALL_LIST))
+                .isTrue();
+    }
+
+    @Test
+    public void testEffectiveAction() {
+        for (int i = 0; i < DataStallRecoveryHistory.MIN_ATTEMPTS_TO_EVALUATE; i++) {
+            mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+            if (i % 2 == 0) {
+                mHistoryUT.onRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+            }
+        }
+        assertThat(mHistoryUT.getRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(DataStallRecoveryHistory.MIN_ATTEMPTS_TO_EVALUATE / 2);
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP)).isFalse();
+
+        // The history is kept per carrier and RAT.
+        assertThat(mHistoryUT.getAttempts(CARRIER_ID, TelephonyManager.NETWORK_TYPE_NR,
+                RECOVERY_ACTION_CLEANUP)).isEqualTo(0);
+        assertThat(mHistoryUT.getAttempts(CARRIER_ID + 1, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testHistoryAging() {
+        for (int i = 0; i < DataStallRecoveryHistory.MAX_ATTEMPTS - 1; i++) {
+            mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+            mHistoryUT.onRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+        }
+        mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+
+        assertThat(mHistoryUT.getAttempts(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(DataStallRecoveryHistory.MAX_ATTEMPTS / 2);
+        assertThat(mHistoryUT.getRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo((DataStallRecoveryHistory.MAX_ATTEMPTS - 1) / 2);
+    }
+
+    @Test
+    public void testIneffectiveActionRetriedAfterInterval() {
+        for (int i = 0; i < DataStallRecoveryHistory.MIN_ATTEMPTS_TO_EVALUATE * 2; i++) {
+            mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+        }
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP)).isTrue();
+
+        // The action is attempted again once it was not performed for a while.
+        mTimeMs += DataStallRecoveryHistory.RETRY_INEFFECTIVE_ACTION_INTERVAL_MS;
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP)).isFalse();
+
+        // The outdated history is halved, so the new outcome weighs more.
+        for (int i = 0; i < 2; i++) {
+            mHistoryUT.onActionPerformed(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+            mHistoryUT.onRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+        }
+        assertThat(mHistoryUT.getAttempts(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(DataStallRecoveryHistory.MIN_ATTEMPTS_TO_EVALUATE + 2);
+        assertThat(mHistoryUT.getRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(2);
+        assertThat(mHistoryUT.isIneffective(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP)).isFalse();
+    }
+
+    @Test
+    public void testRecoveredNotAboveAttempts() {
+        mHistoryUT.onRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP);
+        assertThat(mHistoryUT.getRecovered(CARRIER_ID, RAT, RECOVERY_ACTION_CLEANUP))
+                .isEqualTo(0);
+    }
+}
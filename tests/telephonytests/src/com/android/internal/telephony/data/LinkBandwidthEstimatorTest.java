@@ -21,12 +21,14 @@ import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.BW_STATS_COUNT_THRESHOLD;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.LINK_RX;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.LINK_TX;
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.MAX_NUM_PERSISTED_NETWORKS;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_ACTIVE_PHONE_CHANGED;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_DEFAULT_NETWORK_CHANGED;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_MODEM_ACTIVITY_RETURNED;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_NR_FREQUENCY_CHANGED;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_SCREEN_STATE_CHANGED;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.MSG_SIGNAL_STRENGTH_CHANGED;
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.TRAFFIC_STATS_POLL_INTERVAL_MAX_MS;
 import static com.android.internal.telephony.data.LinkBandwidthEstimator.UNKNOWN_TAC;
 
 import static org.junit.Assert.assertEquals;
@@ -41,6 +43,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.net.ConnectivityManager;
 import android.net.NetworkCapabilities;
 import android.os.Handler;
 import android.telephony.CellIdentityLte;
@@ -60,6 +63,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 @RunWith(AndroidTestingRunner.class)
@@ -753,4 +757,110 @@ public class LinkBandwidthEstimatorTest extends TelephonyTest {
         verify(callback).onDataActivityChanged(eq(TelephonyManager.DATA_ACTIVITY_IN));
         Mockito.clearInvocations(callback);
     }
+
+    @Test
+    public void testRegisteredCallbackWarmStarted() throws Exception {
+        mLBE.obtainMessage(MSG_SCREEN_STATE_CHANGED, true).sendToTarget();
+        processAllMessages();
+        for (int i = 0; i < BW_STATS_COUNT_THRESHOLD + 2; i++) {
+            addTxBytes(10_000L);
+            addRxBytes(500_000L);
+            addElapsedTime(5_100);
+            moveTimeForward(5_100);
+            processAllMessages();
+            mLBE.obtainMessage(MSG_MODEM_ACTIVITY_RETURNED, new ModemActivityInfo(
+                    i * 5_100L, 0, 0, TX_TIME_2_MS, i * RX_TIME_2_MS)).sendToTarget();
+            processAllMessages();
+        }
+        verifyUpdateBandwidth(-1, 19_597);
+
+        LinkBandwidthEstimatorCallback callback = Mockito.mock(
+                LinkBandwidthEstimatorCallback.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(callback).invokeFromExecutor(any(Runnable.class));
+        mLBE.registerCallback(callback);
+        // The last estimate is delivered from the handler thread, not the caller's one.
+        verify(callback, never()).onBandwidthChanged(anyInt(), anyInt());
+
+        processAllMessages();
+        verify(callback).onBandwidthChanged(eq(-1), eq(19_597));
+    }
+
+    @Test
+    public void testStatsPersistedAcrossInstances() throws Exception {
+        LinkBandwidthEstimator.NetworkBandwidth network = mLBE.lookupNetwork("310260", 366, "LTE");
+        network.update(20_000L, LINK_RX, 1);
+        network.update(30_000L, LINK_RX, 1);
+
+        LinkBandwidthEstimator lbe = new LinkBandwidthEstimator(mPhone, mTelephonyFacade);
+        network = lbe.lookupNetwork("310260", 366, "LTE");
+        assertEquals(2, network.getCount(LINK_RX, 1));
+        assertEquals(50_000L, network.getValue(LINK_RX, 1));
+        assertEquals(0, network.getCount(LINK_TX, 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedNetworkStatsEvicted() throws Exception {
+        for (int tac = 0; tac <= MAX_NUM_PERSISTED_NETWORKS; tac++) {
+            mLBE.lookupNetwork("310260", tac, "LTE").update(1_000L, LINK_RX, 1);
+        }
+
+        LinkBandwidthEstimator lbe = new LinkBandwidthEstimator(mPhone, mTelephonyFacade);
+        // The first network is the least recently used one, so its stats were evicted.
+        assertEquals(0, lbe.lookupNetwork("310260", 0, "LTE").getCount(LINK_RX, 1));
+        assertEquals(1, lbe.lookupNetwork("310260", 1, "LTE").getCount(LINK_RX, 1));
+        assertEquals(1, lbe.lookupNetwork("310260", MAX_NUM_PERSISTED_NETWORKS, "LTE")
+                .getCount(LINK_RX, 1));
+    }
+
+    @Test
+    public void testIdleTrafficStatsPollBackoff() throws Exception {
+        mLBE.obtainMessage(MSG_SCREEN_STATE_CHANGED, true).sendToTarget();
+        processAllMessages();
+        for (int i = 0; i < 30; i++) {
+            addElapsedTime(1_000);
+            moveTimeForward(1_000);
+            processAllMessages();
+        }
+        // Polled at 0s, 1s, 2s, then backed off to 4s, 8s, 16s and 24s.
+        verify(mTelephonyFacade, times(7)).getMobileTxBytes();
+        assertEquals(TRAFFIC_STATS_POLL_INTERVAL_MAX_MS, mLBE.getTrafficStatsPollIntervalMs());
+
+        // Traffic is detected at the next poll, and brings the poll back to the base interval.
+        addTxBytes(10_000L);
+        addRxBytes(19_000L);
+        addElapsedTime(2_000);
+        moveTimeForward(2_000);
+        processAllMessages();
+        verify(mLinkBandwidthEstimatorCallback)
+                .onDataActivityChanged(eq(TelephonyManager.DATA_ACTIVITY_INOUT));
+        assertEquals(1_000, mLBE.getTrafficStatsPollIntervalMs());
+    }
+
+    @Test
+    public void testDefaultNetworkActiveResetsTrafficStatsPoll() throws Exception {
+        ArgumentCaptor<ConnectivityManager.OnNetworkActiveListener> listenerCaptor =
+                ArgumentCaptor.forClass(ConnectivityManager.OnNetworkActiveListener.class);
+        verify(mConnectivityManager).addDefaultNetworkActiveListener(listenerCaptor.capture());
+        mLBE.obtainMessage(MSG_SCREEN_STATE_CHANGED, true).sendToTarget();
+        processAllMessages();
+        for (int i = 0; i < 10; i++) {
+            addElapsedTime(1_000);
+            moveTimeForward(1_000);
+            processAllMessages();
+        }
+        assertEquals(TRAFFIC_STATS_POLL_INTERVAL_MAX_MS, mLBE.getTrafficStatsPollIntervalMs());
+        Mockito.clearInvocations(mTelephonyFacade);
+
+        // The traffic is polled right away when the radio becomes active.
+        addRxBytes(10_000L);
+        listenerCaptor.getValue().onNetworkActive();
+        processAllMessages();
+        verify(mTelephonyFacade).getMobileTxBytes();
+        verify(mLinkBandwidthEstimatorCallback)
+                .onDataActivityChanged(eq(TelephonyManager.DATA_ACTIVITY_IN));
+        assertEquals(1_000, mLBE.getTrafficStatsPollIntervalMs());
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.android.internal.telephony.data;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doReturn;
@@ -402,6 +403,54 @@ public class QosCallbackTrackerTest extends TelephonyTest {
                 any(QosSession.class), any(EpsBearerQosSessionAttributes.class));
     }
 
+    @Test
+    public void testUnchangedSessionFiltersNotRematched() throws Exception {
+        int[] matchCount = new int[1];
+        Filter filter = new Filter(new InetSocketAddress(
+                InetAddresses.parseNumericAddress("122.22.22.22"), 2222),
+                new InetSocketAddress(InetAddresses.parseNumericAddress("144.44.44.44"), 2223)) {
+            @Override
+            public boolean matchesRemoteAddress(final @NonNull InetAddress address,
+                    final int startPort, final int endPort) {
+                matchCount[0]++;
+                return super.matchesRemoteAddress(address, startPort, endPort);
+            }
+        };
+        mQosCallbackTracker.addFilter(1, filter);
+
+        ArrayList<QosBearerFilter> qosFilters = new ArrayList<>();
+        qosFilters.add(createIpv4QosFilter("122.22.22.22", "144.44.44.44",
+                new QosBearerFilter.PortRange(2222, 2222),
+                new QosBearerFilter.PortRange(2223, 2223), 45));
+        ArrayList<QosBearerSession> qosSessions = new ArrayList<>();
+        qosSessions.add(new QosBearerSession(1235, createEpsQos(5, 6, 7, 8), qosFilters));
+        mQosCallbackTracker.updateSessions(qosSessions);
+        processAllMessages();
+
+        verify(mINetworkAgentRegistry, times(1)).sendEpsQosSessionAvailable(eq(1),
+                any(QosSession.class), any(EpsBearerQosSessionAttributes.class));
+        int matchCountAfterFirstUpdate = matchCount[0];
+
+        // Same session filters with a modified QOS
+        qosSessions.clear();
+        qosSessions.add(new QosBearerSession(1235, createEpsQos(10, 12, 14, 16), qosFilters));
+        mQosCallbackTracker.updateSessions(qosSessions);
+        processAllMessages();
+
+        // The previous match result is reused, and the callback is still notified.
+        assertEquals(matchCountAfterFirstUpdate, matchCount[0]);
+        verify(mINetworkAgentRegistry, times(2)).sendEpsQosSessionAvailable(eq(1),
+                any(QosSession.class), any(EpsBearerQosSessionAttributes.class));
+
+        // Remove the session
+        qosSessions.clear();
+        mQosCallbackTracker.updateSessions(qosSessions);
+        processAllMessages();
+
+        assertEquals(matchCountAfterFirstUpdate, matchCount[0]);
+        verify(mINetworkAgentRegistry, times(1)).sendQosSessionLost(eq(1), any(QosSession.class));
+    }
+
     @Test
     public void testEmptyQosSessions() throws Exception {
         // Add filter
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class EmergencyCallSetupTracerTest {
+    private long mTimeMs;
+    private EmergencyCallSetupTracer mTracer;
+
+    @Before
+    public void setUp() {
+        mTimeMs = 1000;
+        mTracer = new EmergencyCallSetupTracer(() -> mTimeMs);
+    }
+
+    private void traceCall(String callId, long radioOnMs, long connectedMs) {
+        long startTimeMs = mTimeMs;
+        mTracer.start(callId, false);
+        mTimeMs = startTimeMs + radioOnMs;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_RADIO_ON);
+        mTimeMs = startTimeMs + connectedMs;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_CONNECTED);
+    }
+
+    @Test
+    public void testPhaseTimes() {
+        mTracer.start("call1", false);
+        mTimeMs += 100;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_EMERGENCY_MODE_SET);
+        mTimeMs += 50;
+        // Only the first time of a phase is recorded.
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_EMERGENCY_MODE_SET);
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_DOMAIN_SELECTED);
+        mTimeMs += 200;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_CONNECTED);
+        // The trace is ended once the call is connected.
+        mTimeMs += 300;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_DIALED);
+
+        assertEquals(100, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_EMERGENCY_MODE_SET, 50));
+        assertEquals(150, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_DOMAIN_SELECTED, 50));
+        assertEquals(350, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_CONNECTED, 100));
+        assertEquals(-1, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_DIALED, 50));
+        assertEquals(-1, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_RADIO_ON, 50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        for (int i = 1; i <= 10; i++) {
+            traceCall("call" + i, i * 100, i * 1000);
+        }
+
+        assertEquals(500, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_RADIO_ON, 50));
+        assertEquals(900, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_RADIO_ON, 90));
+        assertEquals(10000, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_CONNECTED, 100));
+    }
+
+    @Test
+    public void testOldestTracesReused() {
+        for (int i = 1; i <= EmergencyCallSetupTracer.MAX_TRACES + 4; i++) {
+            traceCall("call" + i, i, i * 10);
+        }
+
+        // Only the last traces are kept.
+        assertEquals(5, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_RADIO_ON, 0));
+        assertEquals(EmergencyCallSetupTracer.MAX_TRACES + 4, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_RADIO_ON, 100));
+
+        StringWriter sw = new StringWriter();
+        mTracer.dump(new IndentingPrintWriter(sw, "  "));
+        String dump = sw.toString();
+        assertTrue(dump.indexOf("callId=call5 ") < dump.indexOf("callId=call20 "));
+        assertTrue(dump.indexOf("callId=call4 ") < 0);
+    }
+
+    @Test
+    public void testEndedCallNotConnected() {
+        mTracer.start("call1", true);
+        mTimeMs += 100;
+        // The end of another call does not end the trace.
+        mTracer.end("call2");
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_DDS_SWITCHED);
+        mTracer.end("call1");
+        mTimeMs += 100;
+        mTracer.mark(EmergencyCallSetupTracer.PHASE_CONNECTED);
+
+        assertEquals(100, mTracer.getPhasePercentile(
+                EmergencyCallSetupTracer.PHASE_DDS_SWITCHED, 50));
+        assertEquals(-1, mTracer.getPhasePercentile(EmergencyCallSetupTracer.PHASE_CONNECTED, 50));
+
+        StringWriter sw = new StringWriter();
+        mTracer.dump(new IndentingPrintWriter(sw, "  "));
+        assertTrue(sw.toString().contains(
+                "callId=call1 startedInEcm=true radioOn=- ddsSwitched=100"));
+        assertTrue(sw.toString().contains("connected=- duration=100"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class EmergencyNumberDatabaseTest {
+    private static final String EMERGENCY_NUMBER_DB_OTA_FILE = "eccdata_ota";
+
+    private static EmergencyNumberDatabase buildDatabase(String fileName) throws IOException {
+        return EmergencyNumberDatabase.build(fileName, new BufferedInputStream(
+                InstrumentationRegistry.getTargetContext().getAssets().open(fileName)));
+    }
+
+    @Test
+    public void testGetCountryInfo() throws Exception {
+        EmergencyNumberDatabase database = buildDatabase(EMERGENCY_NUMBER_DB_OTA_FILE);
+
+        assertEquals(EMERGENCY_NUMBER_DB_OTA_FILE, database.getSource());
+        assertEquals(999999, database.getRevision());
+        assertEquals(1, database.getCountryCount());
+
+        ProtobufEccData.CountryInfo countryInfo = database.getCountryInfo("us");
+        assertNotNull(countryInfo);
+        assertEquals("US", countryInfo.isoCode);
+        assertEquals(1, countryInfo.eccs.length);
+        assertEquals("98765", countryInfo.eccs[0].phoneNumber);
+        assertArrayEquals(new int[] {ProtobufEccData.EccInfo.Type.POLICE,
+                ProtobufEccData.EccInfo.Type.AMBULANCE, ProtobufEccData.EccInfo.Type.FIRE},
+                countryInfo.eccs[0].types);
+
+        assertNull(database.getCountryInfo("jp"));
+    }
+
+    @Test
+    public void testGetCountryInfoDecodesCountryAgain() throws Exception {
+        EmergencyNumberDatabase database = buildDatabase(EMERGENCY_NUMBER_DB_OTA_FILE);
+
+        // Each load decodes a new record, the index is not changed by the caller.
+        ProtobufEccData.CountryInfo countryInfo = database.getCountryInfo("US");
+        countryInfo.eccs = new ProtobufEccData.EccInfo[0];
+        assertEquals(1, database.getCountryInfo("US").eccs.length);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EmergencyNumberIndexTest extends TestCase {
+    private static EmergencyNumber createEmergencyNumber(String number, String mnc,
+            int categories, int sources, int routing) {
+        return new EmergencyNumber(number, "us", mnc, categories, new ArrayList<String>(),
+                sources, routing);
+    }
+
+    public void testLookup() throws Exception {
+        EmergencyNumber radio911 = createEmergencyNumber("911", "",
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_POLICE,
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+        EmergencyNumber database911 = createEmergencyNumber("911", "30",
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_AMBULANCE,
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_NORMAL);
+        EmergencyNumber prefix911 = createEmergencyNumber("*272911", "",
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_EMERGENCY);
+        EmergencyNumberIndex index = new EmergencyNumberIndex(
+                Arrays.asList(radio911, database911, prefix911));
+
+        assertEquals(2, index.size());
+        assertTrue(index.contains("911"));
+        assertTrue(index.contains("*272911"));
+        assertFalse(index.contains("91"));
+        assertFalse(index.contains("9111"));
+        assertFalse(index.contains("112"));
+        assertFalse(index.contains(""));
+        assertFalse(index.contains(null));
+
+        assertEquals(radio911, index.getEmergencyNumber("911"));
+        assertNull(index.getEmergencyNumber("112"));
+        List<EmergencyNumber> numbers = index.getEmergencyNumbers("911");
+        assertEquals(Arrays.asList(radio911, database911), numbers);
+        assertTrue(index.getEmergencyNumbers("112").isEmpty());
+
+        // The categories come from the network, the routing from the database.
+        assertEquals(EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_POLICE,
+                index.getEmergencyServiceCategories("911"));
+        assertEquals(EmergencyNumber.EMERGENCY_CALL_ROUTING_NORMAL,
+                index.getEmergencyCallRouting("911"));
+        assertEquals(EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                index.getEmergencyServiceCategories("*272911"));
+        assertEquals(EmergencyNumber.EMERGENCY_CALL_ROUTING_EMERGENCY,
+                index.getEmergencyCallRouting("*272911"));
+        assertEquals(EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN,
+                index.getEmergencyCallRouting("112"));
+    }
+
+    public void testNumberWithOtherCharacters() throws Exception {
+        EmergencyNumber number = createEmergencyNumber("91A", "",
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_TEST,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+        EmergencyNumberIndex index = new EmergencyNumberIndex(Arrays.asList(number));
+
+        assertTrue(index.contains("91A"));
+        assertFalse(index.contains("91"));
+        assertFalse(index.contains("91B"));
+        assertEquals(number, index.getEmergencyNumber("91A"));
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, EmergencyNumberIndex.EMPTY.size());
+        assertFalse(EmergencyNumberIndex.EMPTY.contains("911"));
+        assertNull(EmergencyNumberIndex.EMPTY.getEmergencyNumber("911"));
+    }
+}
@@ -2559,6 +2559,291 @@ public class EmergencyStateTrackerTest extends TelephonyTest {
         verify(testPhone).exitEmergencyMode(any(Message.class));
     }
 
+    /**
+     * Test that the emergency call started on the pre-warmed phone reuses the emergency mode and
+     * the registration result set by the pre-warm.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_startEmergencyCall_reusesEmergencyMode() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+        setUpAsyncResultForSetEmergencyMode(testPhone, E_REG_RESULT);
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+
+        assertTrue(emergencyStateTracker.isInEmergencyMode());
+        assertFalse(emergencyStateTracker.isInEmergencyCall());
+
+        CompletableFuture<Integer> future = emergencyStateTracker.startEmergencyCall(testPhone,
+                mTestConnection1, false);
+        processAllMessages();
+
+        assertTrue(future.isDone());
+        assertEquals((Integer) DisconnectCause.NOT_DISCONNECTED, future.getNow(-1));
+        assertTrue(emergencyStateTracker.isInEmergencyCall());
+        assertTrue(emergencyStateTracker.getEmergencyRegistrationResult().equals(E_REG_RESULT));
+        verify(testPhone, times(1)).setEmergencyMode(eq(MODE_EMERGENCY_WWAN), any(Message.class));
+        verify(testPhone, never()).exitEmergencyMode(any(Message.class));
+    }
+
+    /**
+     * Test that a number which is not an emergency number is not pre-warmed.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_notEmergencyNumber_notPreWarmed() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(false).when(mEmergencyNumberTracker).isEmergencyNumber("9115551234");
+
+        assertFalse(emergencyStateTracker.preWarmEmergencyCall(testPhone, "9115551234"));
+        processAllMessages();
+
+        assertFalse(emergencyStateTracker.isInEmergencyMode());
+        verify(testPhone, never()).setEmergencyMode(anyInt(), any(Message.class));
+    }
+
+    /**
+     * Test that the emergency mode set by the pre-warm is exited if the emergency call is not
+     * started before the timeout.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_timeout_exitsEmergencyMode() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+        setUpAsyncResultForSetEmergencyMode(testPhone, E_REG_RESULT);
+        setUpAsyncResultForExitEmergencyMode(testPhone);
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+
+        assertTrue(emergencyStateTracker.isInEmergencyMode());
+
+        moveTimeForward(EmergencyStateTracker.DEFAULT_PRE_WARM_TIMEOUT_MS + 50);
+        processAllMessages();
+
+        assertFalse(emergencyStateTracker.isInEmergencyMode());
+        verify(testPhone).exitEmergencyMode(any(Message.class));
+    }
+
+    /**
+     * Test that the response to a cancelled pre-warm is ignored by the emergency call started
+     * after it.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_cancelled_ignoresPreWarmResponse() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+        setUpAsyncResultForExitEmergencyMode(testPhone);
+
+        // The modem does not answer the pre-warm before it is cancelled.
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+        emergencyStateTracker.cancelPreWarmEmergencyCall();
+        processAllMessages();
+
+        CompletableFuture<Integer> future = emergencyStateTracker.startEmergencyCall(testPhone,
+                mTestConnection1, false);
+        processAllMessages();
+
+        ArgumentCaptor<Message> msgCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(testPhone, times(2)).setEmergencyMode(eq(MODE_EMERGENCY_WWAN),
+                msgCaptor.capture());
+
+        // The late response to the pre-warm does not complete the emergency call.
+        Message preWarmMsg = msgCaptor.getAllValues().get(0);
+        AsyncResult.forMessage(preWarmMsg, E_REG_RESULT, null);
+        preWarmMsg.sendToTarget();
+        processAllMessages();
+
+        assertFalse(future.isDone());
+        assertFalse(E_REG_RESULT.equals(emergencyStateTracker.getEmergencyRegistrationResult()));
+
+        Message callMsg = msgCaptor.getAllValues().get(1);
+        AsyncResult.forMessage(callMsg, E_REG_RESULT, null);
+        callMsg.sendToTarget();
+        processAllMessages();
+
+        assertTrue(future.isDone());
+        assertTrue(emergencyStateTracker.isInEmergencyCall());
+    }
+
+    /**
+     * Test that the emergency call started on the pre-warmed phone while the pre-warm is in
+     * progress completes once the modem responds to the pre-warm.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_inProgress_callWaitsForPreWarmResponse() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+        CompletableFuture<Integer> future = emergencyStateTracker.startEmergencyCall(testPhone,
+                mTestConnection1, false);
+        processAllMessages();
+
+        assertFalse(future.isDone());
+
+        ArgumentCaptor<Message> msgCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(testPhone).setEmergencyMode(eq(MODE_EMERGENCY_WWAN), msgCaptor.capture());
+        Message preWarmMsg = msgCaptor.getValue();
+        AsyncResult.forMessage(preWarmMsg, E_REG_RESULT, null);
+        preWarmMsg.sendToTarget();
+        processAllMessages();
+
+        assertTrue(future.isDone());
+        assertEquals((Integer) DisconnectCause.NOT_DISCONNECTED, future.getNow(-1));
+        assertTrue(emergencyStateTracker.isInEmergencyCall());
+        assertTrue(emergencyStateTracker.getEmergencyRegistrationResult().equals(E_REG_RESULT));
+    }
+
+    /**
+     * Test that the response to the pre-warm is ignored if the emergency call which used the
+     * pre-warm ended before the response.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_callEndedBeforePreWarmResponse_ignoresPreWarmResponse() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+        emergencyStateTracker.startEmergencyCall(testPhone, mTestConnection1, false);
+        processAllMessages();
+        emergencyStateTracker.endCall(mTestConnection1);
+        processAllMessages();
+
+        ArgumentCaptor<Message> setCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(testPhone).setEmergencyMode(eq(MODE_EMERGENCY_WWAN), setCaptor.capture());
+        ArgumentCaptor<Message> exitCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(testPhone).exitEmergencyMode(exitCaptor.capture());
+
+        // The late response to the pre-warm arrives while the exit is pending.
+        Message preWarmMsg = setCaptor.getValue();
+        AsyncResult.forMessage(preWarmMsg, E_REG_RESULT, null);
+        preWarmMsg.sendToTarget();
+        processAllMessages();
+
+        assertFalse(E_REG_RESULT.equals(emergencyStateTracker.getEmergencyRegistrationResult()));
+
+        // A new pre-warm is not accepted before the exit completes.
+        assertFalse(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+
+        Message exitMsg = exitCaptor.getValue();
+        AsyncResult.forMessage(exitMsg, null, null);
+        exitMsg.sendToTarget();
+        processAllMessages();
+
+        assertFalse(emergencyStateTracker.isInEmergencyMode());
+        assertFalse(emergencyStateTracker.isInEmergencyCall());
+    }
+
+    /**
+     * Test that the emergency call started on the other phone waits for the exit of the
+     * emergency mode set by the pre-warm before setting the emergency mode on its phone.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_startEmergencyCallOnOtherPhone_exitsPreWarmFirst() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone phone0 = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        Phone phone1 = getPhone(1);
+        doReturn(mEmergencyNumberTracker).when(phone0).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+        setUpAsyncResultForSetEmergencyMode(phone0, E_REG_RESULT);
+        setUpAsyncResultForSetEmergencyMode(phone1, E_REG_RESULT);
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(phone0, "911"));
+        processAllMessages();
+        CompletableFuture<Integer> future = emergencyStateTracker.startEmergencyCall(phone1,
+                mTestConnection1, false);
+        processAllMessages();
+
+        // The emergency mode is not set on the other phone before the exit completes.
+        ArgumentCaptor<Message> exitCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(phone0).exitEmergencyMode(exitCaptor.capture());
+        verify(phone1, never()).setEmergencyMode(anyInt(), any(Message.class));
+        assertFalse(future.isDone());
+
+        Message exitMsg = exitCaptor.getValue();
+        AsyncResult.forMessage(exitMsg, null, null);
+        exitMsg.sendToTarget();
+        processAllMessages();
+
+        verify(phone1).setEmergencyMode(eq(MODE_EMERGENCY_WWAN), any(Message.class));
+        assertTrue(future.isDone());
+        assertEquals((Integer) DisconnectCause.NOT_DISCONNECTED, future.getNow(-1));
+        assertTrue(emergencyStateTracker.isInEmergencyCall());
+    }
+
+    /**
+     * Test that the pre-warm is cancelled after {@link
+     * EmergencyStateTracker#MAX_PRE_WARM_DURATION_MS}, even if it keeps being extended.
+     */
+    @Test
+    @SmallTest
+    public void preWarmEmergencyCall_extended_cancelledAfterMaxDuration() {
+        EmergencyStateTracker emergencyStateTracker = setupEmergencyStateTracker(
+                false /* isSuplDdsSwitchRequiredForEmergencyCall */);
+        Phone testPhone = setupTestPhoneForEmergencyCall(false /* isRoaming */,
+                true /* isRadioOn */);
+        doReturn(mEmergencyNumberTracker).when(testPhone).getEmergencyNumberTracker();
+        doReturn(true).when(mEmergencyNumberTracker).isEmergencyNumber("911");
+        setUpAsyncResultForSetEmergencyMode(testPhone, E_REG_RESULT);
+        setUpAsyncResultForExitEmergencyMode(testPhone);
+
+        assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        processAllMessages();
+
+        long extendIntervalMs = EmergencyStateTracker.DEFAULT_PRE_WARM_TIMEOUT_MS / 2;
+        for (long elapsedMs = extendIntervalMs;
+                elapsedMs < EmergencyStateTracker.MAX_PRE_WARM_DURATION_MS;
+                elapsedMs += extendIntervalMs) {
+            moveTimeForward(extendIntervalMs);
+            processAllMessages();
+            assertTrue(emergencyStateTracker.isInEmergencyMode());
+            assertTrue(emergencyStateTracker.preWarmEmergencyCall(testPhone, "911"));
+        }
+
+        moveTimeForward(extendIntervalMs);
+        processAllMessages();
+
+        assertFalse(emergencyStateTracker.isInEmergencyMode());
+        verify(testPhone).exitEmergencyMode(any(Message.class));
+    }
+
     private EmergencyStateTracker setupEmergencyStateTracker(
             boolean isSuplDdsSwitchRequiredForEmergencyCall) {
         doReturn(mPhoneSwitcher).when(mPhoneSwitcherProxy).getPhoneSwitcher();
@@ -38,6 +38,7 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -105,6 +106,7 @@ public class ImsResolverTest extends ImsTestBase {
     UserManager mMockUserManager;
     ImsResolver.ImsDynamicQueryManagerFactory mMockQueryManagerFactory;
     ImsServiceFeatureQueryManager mMockQueryManager;
+    ImsServiceFeatureCache mMockFeatureCache;
     ImsFeatureBinderRepository mMockRepo;
 
     private ImsResolver mTestImsResolver;
@@ -126,6 +128,7 @@ public class ImsResolverTest extends ImsTestBase {
         mMockUserManager = mock(UserManager.class);
         mMockQueryManagerFactory = mock(ImsResolver.ImsDynamicQueryManagerFactory.class);
         mMockQueryManager = mock(ImsServiceFeatureQueryManager.class);
+        mMockFeatureCache = mock(ImsServiceFeatureCache.class);
         mMockRepo = mock(ImsFeatureBinderRepository.class);
     }
 
@@ -420,6 +423,90 @@ public class ImsResolverTest extends ImsTestBase {
         assertEquals(TEST_CARRIER_DEFAULT_NAME, controller.getComponentName());
     }
 
+    /**
+     * Ensure that the features returned by the dynamic query of the carrier ImsService are cached
+     * for the version of its package.
+     */
+    @Test
+    @SmallTest
+    public void testCarrierPackageBindCachesQueriedFeatures() throws Exception {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_MMTEL));
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_RCS));
+        setConfigCarrierStringMmTelRcs(0, TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        setupPackageQuery(TEST_CARRIER_DEFAULT_NAME, new HashSet<>(), true);
+        setupPackageVersion(TEST_CARRIER_DEFAULT_NAME.getPackageName(), 2);
+        ImsServiceController controller = setupController();
+
+        startBindCarrierConfigAlreadySet();
+        setupDynamicQueryFeatures(TEST_CARRIER_DEFAULT_NAME, features, 1);
+
+        verify(mMockFeatureCache).put(eq(TEST_CARRIER_DEFAULT_NAME), eq("2/0"), eq(1),
+                eq(features));
+        verify(controller).bind(eq(features), any(SparseIntArray.class));
+    }
+
+    /**
+     * Ensure that the carrier ImsService is bound with its cached features without being queried
+     * when the version of its package did not change.
+     */
+    @Test
+    @SmallTest
+    public void testCarrierPackageBindUsesCachedFeatures() throws Exception {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_MMTEL));
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_RCS));
+        setConfigCarrierStringMmTelRcs(0, TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        setupPackageQuery(TEST_CARRIER_DEFAULT_NAME, new HashSet<>(), true);
+        setupPackageVersion(TEST_CARRIER_DEFAULT_NAME.getPackageName(), 2);
+        when(mMockFeatureCache.get(eq(TEST_CARRIER_DEFAULT_NAME), eq("2/0"), eq(1)))
+                .thenReturn(new HashSet<>(features));
+        ImsServiceController controller = setupController();
+
+        startBindCarrierConfigAlreadySet();
+
+        verify(mMockQueryManager, never()).startQuery(any(), any());
+        verify(controller).bind(eq(features), any(SparseIntArray.class));
+
+        // The cached features are removed when the package changes, and the package is queried.
+        when(mMockFeatureCache.get(eq(TEST_CARRIER_DEFAULT_NAME), eq("2/0"), eq(1)))
+                .thenReturn(null);
+        packageChanged(TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        verify(mMockFeatureCache).removePackage(TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        setupDynamicQueryFeatures(TEST_CARRIER_DEFAULT_NAME, features, 1);
+    }
+
+    /**
+     * Ensure that the carrier ImsService is queried on a carrier config change, even if its
+     * features are cached.
+     */
+    @Test
+    @SmallTest
+    public void testCarrierConfigChangeIgnoresCachedFeatures() throws Exception {
+        setupResolver(1 /*numSlots*/, TEST_DEVICE_DEFAULT_NAME.getPackageName(),
+                TEST_DEVICE_DEFAULT_NAME.getPackageName());
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_MMTEL));
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(0, ImsFeature.FEATURE_RCS));
+        setConfigCarrierStringMmTelRcs(0, TEST_CARRIER_DEFAULT_NAME.getPackageName());
+        setupPackageQuery(TEST_CARRIER_DEFAULT_NAME, new HashSet<>(), true);
+        setupPackageVersion(TEST_CARRIER_DEFAULT_NAME.getPackageName(), 2);
+        when(mMockFeatureCache.get(eq(TEST_CARRIER_DEFAULT_NAME), eq("2/0"), eq(1)))
+                .thenReturn(new HashSet<>(features));
+        ImsServiceController controller = setupController();
+
+        startBindCarrierConfigAlreadySet();
+        verify(mMockQueryManager, never()).startQuery(any(), any());
+        verify(controller).bind(eq(features), any(SparseIntArray.class));
+
+        sendCarrierConfigChanged(0, 0);
+        setupDynamicQueryFeatures(TEST_CARRIER_DEFAULT_NAME, features, 1);
+    }
+
     /**
      * Set the carrier config override value to many separate services for MMTEL and RCS and ensure
      * that ImsResolver calls .bind on those package names with the correct ImsFeatures.
@@ -1976,9 +2063,17 @@ public class ImsResolverTest extends ImsTestBase {
         when(mMockQueryManagerFactory.create(any(Context.class),
                 any(ImsServiceFeatureQueryManager.Listener.class))).thenReturn(mMockQueryManager);
         mTestImsResolver.setImsDynamicQueryManagerFactory(mMockQueryManagerFactory);
+        mTestImsResolver.setImsServiceFeatureCache(mMockFeatureCache);
         processAllMessages();
     }
 
+    private void setupPackageVersion(String packageName, long versionCode) throws Exception {
+        PackageInfo info = new PackageInfo();
+        info.packageName = packageName;
+        info.setLongVersionCode(versionCode);
+        when(mMockPM.getPackageInfo(eq(packageName), anyInt())).thenReturn(info);
+    }
+
     private void setupPackageQuery(List<ResolveInfo> infos) {
         // Only return info if not using the compat argument
         when(mMockPM.queryIntentServicesAsUser(
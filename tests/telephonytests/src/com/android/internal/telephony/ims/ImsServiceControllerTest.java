@@ -79,6 +79,7 @@ public class ImsServiceControllerTest extends ImsTestBase {
     private static final int SUB_3 = 3;
     private static final int SUB_4 = 4;
     private static final int SUB_5 = 5;
+    private static final long PERMISSION_GRANT_TIMEOUT_MS = 100;
 
     private static final ImsServiceController.RebindRetry REBIND_RETRY =
             new ImsServiceController.RebindRetry() {
@@ -255,6 +256,106 @@ public class ImsServiceControllerTest extends ImsTestBase {
         validateRcsFeatureContainerExists(SLOT_0);
     }
 
+    /**
+     * Tests that the startup trace records the steps of the bind until the features are ready.
+     */
+    @SmallTest
+    @Test
+    public void testStartupTrace() throws RemoteException {
+        assertTrue(mTestImsServiceController.getStartupTrace().contains("not bound"));
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> testFeatures = new HashSet<>();
+        testFeatures.add(new ImsFeatureConfiguration.FeatureSlotPair(SLOT_0,
+                ImsFeature.FEATURE_MMTEL));
+        SparseIntArray slotIdToSubIdMap = new SparseIntArray();
+        slotIdToSubIdMap.put(SLOT_0, SUB_2);
+        bindAndConnectService(testFeatures, slotIdToSubIdMap.clone());
+
+        String trace = mTestImsServiceController.getStartupTrace();
+        assertTrue(trace, trace.contains("connected=+"));
+        assertTrue(trace, trace.contains("featuresCreated=+"));
+        assertFalse(trace, trace.contains("ready{"));
+
+        ArgumentCaptor<IImsFeatureStatusCallback> captor =
+                ArgumentCaptor.forClass(IImsFeatureStatusCallback.class);
+        verify(mMockServiceControllerBinder).addFeatureStatusCallback(eq(SLOT_0),
+                eq(ImsFeature.FEATURE_MMTEL), captor.capture());
+        captor.getValue().notifyImsFeatureStatus(ImsFeature.STATE_READY);
+        trace = mTestImsServiceController.getStartupTrace();
+        assertTrue(trace, trace.contains("ready{" + SLOT_0 + ","
+                + ImsFeature.FEATURE_LOG_MAP.get(ImsFeature.FEATURE_MMTEL) + "}=+"));
+    }
+
+    /**
+     * Tests that the ImsService is bound as soon as the permissions are granted.
+     */
+    @SmallTest
+    @Test
+    public void testBindAfterPermissionsGranted() {
+        mTestImsServiceController.setPermissionGranterForTesting(
+                (packageNames, user, executor, callback) -> executor.execute(
+                        () -> callback.accept(true)), PERMISSION_GRANT_TIMEOUT_MS);
+
+        assertTrue(mTestImsServiceController.bind(getMmTelFeatures(), getSlotIdToSubIdMap()));
+        waitForHandlerAction(mHandler, 1000);
+
+        verify(mMockContext).bindService(any(), any(), anyInt());
+        String trace = mTestImsServiceController.getStartupTrace();
+        assertTrue(trace, trace.contains("permissionsGranted=+"));
+    }
+
+    /**
+     * Tests that the ImsService is bound right away when the permissions can not be granted,
+     * without waiting for the timeout.
+     */
+    @SmallTest
+    @Test
+    public void testBindAfterPermissionsGrantFailed() {
+        mTestImsServiceController.setPermissionGranterForTesting(
+                (packageNames, user, executor, callback) -> executor.execute(
+                        () -> callback.accept(false)), PERMISSION_GRANT_TIMEOUT_MS);
+
+        assertTrue(mTestImsServiceController.bind(getMmTelFeatures(), getSlotIdToSubIdMap()));
+        waitForHandlerAction(mHandler, 1000);
+
+        verify(mMockContext).bindService(any(), any(), anyInt());
+        String trace = mTestImsServiceController.getStartupTrace();
+        assertFalse(trace, trace.contains("permissionsGranted"));
+    }
+
+    /**
+     * Tests that the ImsService is bound after the timeout when the permission grant never
+     * completes.
+     */
+    @SmallTest
+    @Test
+    public void testBindAfterPermissionsGrantTimedOut() {
+        mTestImsServiceController.setPermissionGranterForTesting(
+                (packageNames, user, executor, callback) -> { }, PERMISSION_GRANT_TIMEOUT_MS);
+
+        assertTrue(mTestImsServiceController.bind(getMmTelFeatures(), getSlotIdToSubIdMap()));
+        waitForHandlerAction(mHandler, 1000);
+        verify(mMockContext, never()).bindService(any(), any(), anyInt());
+
+        waitForHandlerActionDelayed(mHandler, 2 * PERMISSION_GRANT_TIMEOUT_MS,
+                PERMISSION_GRANT_TIMEOUT_MS);
+        verify(mMockContext).bindService(any(), any(), anyInt());
+        String trace = mTestImsServiceController.getStartupTrace();
+        assertFalse(trace, trace.contains("permissionsGranted"));
+    }
+
+    private HashSet<ImsFeatureConfiguration.FeatureSlotPair> getMmTelFeatures() {
+        HashSet<ImsFeatureConfiguration.FeatureSlotPair> features = new HashSet<>();
+        features.add(new ImsFeatureConfiguration.FeatureSlotPair(SLOT_0,
+                ImsFeature.FEATURE_MMTEL));
+        return features;
+    }
+
+    private SparseIntArray getSlotIdToSubIdMap() {
+        SparseIntArray slotIdToSubIdMap = new SparseIntArray();
+        slotIdToSubIdMap.put(SLOT_0, SUB_2);
+        return slotIdToSubIdMap;
+    }
+
     /**
      * Ensures ImsServiceController removes/adds changes to features that result in the same
      * feature set with IMS feature when sub ID changed.
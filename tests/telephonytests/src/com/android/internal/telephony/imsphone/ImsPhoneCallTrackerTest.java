@@ -533,6 +533,32 @@ public class ImsPhoneCallTrackerTest extends TelephonyTest {
                 connection.getNumberVerificationStatus());
     }
 
+    @Test
+    @SmallTest
+    public void testCallStateSnapshot() {
+        ImsPhoneCallTracker.CallStateSnapshot idleSnapshot = mCTUT.getCallStateSnapshot();
+        assertEquals(PhoneConstants.State.IDLE, idleSnapshot.getState());
+        assertEquals(0, idleSnapshot.getConnections().size());
+
+        ImsPhoneConnection connection = setupRingingConnection();
+        ImsPhoneCallTracker.CallStateSnapshot ringingSnapshot = mCTUT.getCallStateSnapshot();
+        assertTrue(ringingSnapshot.getVersion() > idleSnapshot.getVersion());
+        assertEquals(PhoneConstants.State.RINGING, ringingSnapshot.getState());
+        assertEquals(ImsPhoneCall.State.INCOMING, ringingSnapshot.getRingingCallState());
+        assertEquals(1, ringingSnapshot.getConnections().size());
+        assertEquals(connection, ringingSnapshot.getConnections().get(0));
+
+        // The connection is found from its ImsCall by the listener callbacks.
+        mImsCallListener.onCallTerminated(connection.getImsCall(),
+                new ImsReasonInfo(ImsReasonInfo.CODE_USER_TERMINATED_BY_REMOTE, 0));
+        assertEquals(DisconnectCause.INCOMING_MISSED, connection.getDisconnectCause());
+        ImsPhoneCallTracker.CallStateSnapshot endedSnapshot = mCTUT.getCallStateSnapshot();
+        assertTrue(endedSnapshot.getVersion() > ringingSnapshot.getVersion());
+        assertEquals(PhoneConstants.State.IDLE, endedSnapshot.getState());
+        // The previous snapshot is immutable.
+        assertEquals(1, ringingSnapshot.getConnections().size());
+    }
+
     @Test
     @SmallTest
     public void testImsMTCallMissed() {
@@ -639,17 +665,45 @@ public class ImsPhoneCallTrackerTest extends TelephonyTest {
         verify(mImsPhoneConnectionListener, never()).onConferenceParticipantsChanged(any());
     }
 
+    @Test
+    @SmallTest
+    public void testImsCepUnchangedParticipantsNotNotified() throws Exception {
+        testImsMTCallAccept();
+        doReturn(true).when(mImsCall).isConferenceHost();
+        doReturn(true).when(mImsCall).isMultiparty();
+
+        injectConferenceState();
+        verify(mImsPhoneConnectionListener).onConferenceParticipantsChanged(any());
+
+        // The same conference event package again does not notify the listeners.
+        injectConferenceState("connected");
+        verify(mImsPhoneConnectionListener).onConferenceParticipantsChanged(any());
+
+        // A participant state change is notified.
+        injectConferenceState("disconnected");
+        verify(mImsPhoneConnectionListener, times(2)).onConferenceParticipantsChanged(any());
+
+        // A new listener gets the next update, even if the participants did not change.
+        ImsPhoneConnection.Listener listener = mock(ImsPhoneConnection.Listener.class);
+        mCTUT.getConnections().get(0).addListener(listener);
+        injectConferenceState("disconnected");
+        verify(listener).onConferenceParticipantsChanged(any());
+    }
+
     private void injectConferenceState() {
         ImsPhoneConnection connection = mCTUT.getConnections().get(0);
         connection.addListener(mImsPhoneConnectionListener);
+        injectConferenceState("connected");
+    }
 
+    private void injectConferenceState(String status) {
         ImsConferenceState state = new ImsConferenceState();
         // Yuck
         Bundle participant = new Bundle();
         participant.putString(ImsConferenceState.USER, "sip:6505551212@fakeims.com");
         participant.putString(ImsConferenceState.DISPLAY_TEXT, "yuck");
         participant.putString(ImsConferenceState.ENDPOINT, "sip:6505551212@fakeims.com");
-        participant.putString(ImsConferenceState.STATUS, "connected");
+        participant.putString(ImsConferenceState.STATUS, status);
         state.mParticipants.put("sip:6505551212@fakeims.com", participant);
 
         mImsCall.conferenceStateUpdated(state);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.telephony.imsphone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RttTextBufferTest {
+    // U+1F600, a surrogate pair.
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    @Test
+    public void testAppendAndRemove() {
+        RttTextBuffer buffer = new RttTextBuffer(4);
+        buffer.append("abc");
+        buffer.append("de" + EMOJI);
+        assertEquals(6, buffer.codePointCount());
+        assertEquals(7, buffer.length());
+
+        assertEquals("abcd", buffer.remove(4));
+        assertEquals(2, buffer.codePointCount());
+        assertEquals("e" + EMOJI, buffer.toString());
+        assertEquals("e" + EMOJI, buffer.remove(10));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.codePointCount());
+    }
+
+    @Test
+    public void testWrapAround() {
+        RttTextBuffer buffer = new RttTextBuffer(8);
+        buffer.append("abcdef");
+        assertEquals("abcd", buffer.remove(4));
+        // Wraps around the end of the buffer without growing it.
+        buffer.append("ghijk");
+        assertEquals(8, buffer.capacity());
+        assertEquals("efghijk", buffer.toString());
+        assertEquals("efghijk", buffer.remove(7));
+    }
+
+    @Test
+    public void testSurrogatePairNotSplit() {
+        RttTextBuffer buffer = new RttTextBuffer(8);
+        buffer.append("a" + EMOJI.charAt(0));
+        assertEquals(2, buffer.codePointCount());
+        // The high surrogate is kept until the rest of the pair is appended.
+        assertEquals("a", buffer.remove(2));
+        assertEquals(1, buffer.codePointCount());
+        assertEquals("", buffer.remove(1));
+
+        buffer.append(EMOJI.charAt(1) + "b");
+        assertEquals(2, buffer.codePointCount());
+        assertEquals(EMOJI, buffer.remove(1));
+        assertEquals("b", buffer.remove(1));
+    }
+
+    @Test
+    public void testTypingAndPasteBursts() {
+        RttTextBuffer buffer = new RttTextBuffer(16);
+        StringBuilder typed = new StringBuilder();
+        StringBuilder sent = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            // Fast typing, with a paste burst every 100 keystrokes.
+            String text = i % 100 == 0 ? "paste " + EMOJI + " burst ".repeat(50)
+                    : (i % 7 == 0 ? EMOJI : String.valueOf((char) ('a' + i % 26)));
+            buffer.append(text);
+            typed.append(text);
+            // Send at most 30 codepoints at a time, as the rate limit would.
+            if (i % 3 == 0) {
+                String chunk = buffer.remove(ImsRttTextHandler.MAX_CODEPOINTS_PER_SECOND);
+                assertFalse(!chunk.isEmpty()
+                        && Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+                sent.append(chunk);
+            }
+        }
+        while (!buffer.isEmpty()) {
+            sent.append(buffer.remove(ImsRttTextHandler.MAX_CODEPOINTS_PER_SECOND));
+        }
+        assertEquals(typed.toString(), sent.toString());
+        assertEquals(0, buffer.codePointCount());
+    }
+}
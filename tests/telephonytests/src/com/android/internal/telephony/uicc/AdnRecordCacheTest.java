@@ -259,6 +259,38 @@ public class AdnRecordCacheTest extends TelephonyTest {
     }
 
 
+    @Test
+    public void updateAdnBySearch_LargePhonebook() {
+        ArrayList<AdnRecord> adnRecordList = new ArrayList<>();
+        for (int i = 1; i <= 500; i++) {
+            adnRecordList.add(new AdnRecord(EF_MBDN, i, "AlphaTag" + i, "1234" + i));
+        }
+        mAdnRecordCache.setAdnLikeFiles(EF_MBDN, adnRecordList);
+
+        AdnRecord oldAdn = new AdnRecord("AlphaTag480", "1234480");
+        mAdnRecordCache.updateAdnBySearch(EF_MBDN, oldAdn, new AdnRecord("New", "5678"), null,
+                Message.obtain(mTestHandler));
+        verify(mFhMock, times(1)).getEFLinearRecordSize(anyInt(), isNull(), any(Message.class));
+
+        // Record #480 is replaced, the index follows the update.
+        AdnRecord newAdn = new AdnRecord(EF_MBDN, 480, "New", "5678");
+        Message updateDone = mAdnRecordCache.obtainMessage(AdnRecordCache.EVENT_UPDATE_ADN_DONE,
+                EF_MBDN, 480);
+        updateDone.obj = new AsyncResult(newAdn, null, null);
+        mAdnRecordCache.handleMessage(updateDone);
+        Assert.assertSame(newAdn, mAdnRecordCache.getRecordsIfLoaded(EF_MBDN).get(479));
+
+        Message message = Message.obtain(mTestHandler);
+        mAdnRecordCache.updateAdnBySearch(EF_MBDN, oldAdn, new AdnRecord("", ""), null, message);
+        mTestLooper.dispatchAll();
+        AsyncResult ar = (AsyncResult) message.obj;
+        Assert.assertNotNull(ar.exception);
+
+        mAdnRecordCache.updateAdnBySearch(EF_MBDN, new AdnRecord("New", "5678"),
+                new AdnRecord("", ""), null, Message.obtain(mTestHandler));
+        verify(mFhMock, times(2)).getEFLinearRecordSize(anyInt(), isNull(), any(Message.class));
+    }
+
     @Test
     public void updateAdnBySearch_AdnException() {
         doReturn(null).when(mUsimPhoneBookManager).loadEfFilesFromUsim();
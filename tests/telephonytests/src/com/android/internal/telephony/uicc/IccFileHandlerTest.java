@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -44,6 +45,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 public class IccFileHandlerTest {
@@ -534,4 +536,135 @@ public class IccFileHandlerTest {
         verify(mCi, times(1)).iccIOForApp(anyInt(), anyInt(), anyString(),
                 anyInt(), anyInt(), anyInt(), anyString(), isNull(), isNull(), any(Message.class));
     }
+
+    @Test
+    public void loadEFLinearFixedAll_PipelinedReads() {
+        int efid = 0x4f30;
+        int numRecords = IccFileHandler.MAX_PENDING_READ_RECORDS + 2;
+        List<Message> pendingReads = new ArrayList<>();
+        doAnswer(
+                invocation -> {
+                    Message response = invocation.getArgument(9);
+                    if (response.what == 6) {
+                        // 6 records of 16 bytes.
+                        IccIoResult iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes(
+                                "000000604F30040000FFFF01020110"));
+                        AsyncResult.forMessage(response, iir, null);
+                        response.sendToTarget();
+                    } else {
+                        pendingReads.add(response);
+                    }
+                    return null;
+                }).when(mCi).iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+
+        Message message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFLinearFixedAll(efid, null, message);
+        mTestLooper.dispatchAll();
+
+        // Records are read without waiting for the previous record.
+        assertEquals(IccFileHandler.MAX_PENDING_READ_RECORDS, pendingReads.size());
+
+        // Answer the reads in reverse order.
+        for (int answered = 0; answered < numRecords; answered++) {
+            Message response = pendingReads.remove(pendingReads.size() - 1);
+            byte[] record = new byte[16];
+            record[0] = (byte) response.arg1;
+            AsyncResult.forMessage(response, new IccIoResult(0x90, 0x00, record), null);
+            response.sendToTarget();
+            mTestLooper.dispatchAll();
+        }
+
+        AsyncResult ar = (AsyncResult) message.obj;
+        assertNotNull(ar);
+        assertNull(ar.exception);
+        ArrayList<byte[]> results = (ArrayList<byte[]>) ar.result;
+        assertEquals(numRecords, results.size());
+        for (int i = 0; i < numRecords; i++) {
+            assertEquals(i + 1, results.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void loadEFTransparent_SizeCached() {
+        int efid = 0x4f3a;
+        doAnswer(
+                invocation -> {
+                    Message response = invocation.getArgument(9);
+                    IccIoResult iir;
+                    if (invocation.getArgument(0).equals(0xc0)) {
+                        // Transparent EF of 4 bytes.
+                        iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes(
+                                "000000044F3A040000FFFF01020000"));
+                    } else {
+                        iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes("01020304"));
+                    }
+                    AsyncResult.forMessage(response, iir, null);
+                    response.sendToTarget();
+                    return null;
+                }).when(mCi).iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+
+        Message message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFTransparent(efid, message);
+        mTestLooper.dispatchAll();
+        AsyncResult ar = (AsyncResult) message.obj;
+        assertEquals("01020304", IccUtils.bytesToHexString((byte[]) ar.result));
+
+        message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFTransparent(efid, message);
+        mTestLooper.dispatchAll();
+        ar = (AsyncResult) message.obj;
+        assertEquals("01020304", IccUtils.bytesToHexString((byte[]) ar.result));
+
+        // GET RESPONSE is only sent for the first load.
+        verify(mCi, times(1)).iccIOForApp(eq(0xc0), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+        verify(mCi, times(2)).iccIOForApp(eq(0xb0), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+    }
+
+    @Test
+    public void loadEFTransparent_SizeClearedOnIccIdChange() {
+        int efid = 0x4f3a;
+        doAnswer(
+                invocation -> {
+                    Message response = invocation.getArgument(9);
+                    IccIoResult iir;
+                    if (invocation.getArgument(0).equals(0xc0)) {
+                        // Transparent EF of 4 bytes.
+                        iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes(
+                                "000000044F3A040000FFFF01020000"));
+                    } else {
+                        iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes("01020304"));
+                    }
+                    AsyncResult.forMessage(response, iir, null);
+                    response.sendToTarget();
+                    return null;
+                }).when(mCi).iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+
+        mIccFileHandler.onIccIdLoaded("89014103211118510720");
+        Message message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFTransparent(efid, message);
+        mTestLooper.dispatchAll();
+
+        // The same card is read again, the size is still cached.
+        mIccFileHandler.onIccIdLoaded("89014103211118510720");
+        message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFTransparent(efid, message);
+        mTestLooper.dispatchAll();
+        verify(mCi, times(1)).iccIOForApp(eq(0xc0), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+
+        // A different card is inserted, GET RESPONSE is sent again.
+        mIccFileHandler.onIccIdLoaded("89014103211118510721");
+        message = Message.obtain(mTestHandler);
+        mIccFileHandler.loadEFTransparent(efid, message);
+        mTestLooper.dispatchAll();
+        AsyncResult ar = (AsyncResult) message.obj;
+        assertEquals("01020304", IccUtils.bytesToHexString((byte[]) ar.result));
+        verify(mCi, times(2)).iccIOForApp(eq(0xc0), anyInt(), anyString(), anyInt(), anyInt(),
+                anyInt(), isNull(), isNull(), isNull(), any(Message.class));
+    }
 }
@@ -16,16 +16,20 @@
 
 package com.android.internal.telephony.uicc;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -50,6 +54,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -67,6 +72,7 @@ public class SIMRecordsTest extends TelephonyTest {
     private static final int EF_SIZE = 12;
     private static final int MAX_NUM_FPLMN = 4;
     private static final int SET_VOICE_MAIL_TIMEOUT = 1000;
+    private static final String ICCID = "89014103211118510720";
 
     // Mocked classes
     private IccFileHandler mFhMock;
@@ -948,6 +954,87 @@ public class SIMRecordsTest extends TelephonyTest {
         assertEquals(alphaTag, mSIMRecordsUT.getVoiceMailAlphaTag());
     }
 
+    @Test
+    public void testCachedEfServedAndRevalidated() {
+        UiccPort uiccPort = mock(UiccPort.class);
+        doReturn(ICCID).when(uiccPort).getIccId();
+        doReturn(uiccPort).when(mUiccController).getUiccPort(anyInt());
+        new IccFileCache(mContext).putTransparent(ICCID, SIMRecords.EF_GID1,
+                IccUtils.hexStringToBytes("1234"));
+
+        mSIMRecordsUT.fetchSimRecords();
+        mTestLooper.dispatchAll();
+
+        // The cached content is used, and the card is only read once the records are loaded.
+        assertEquals("1234", mSIMRecordsUT.getGid1());
+        verify(mFhMock, never()).loadEFTransparent(eq(SIMRecords.EF_GID1), any(Message.class));
+
+        mSIMRecordsUT.onAllRecordsLoaded();
+        mTestLooper.dispatchAll();
+
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mFhMock).loadEFTransparent(eq(SIMRecords.EF_GID1), messageCaptor.capture());
+        Message response = messageCaptor.getValue();
+        AsyncResult.forMessage(response, IccUtils.hexStringToBytes("5678"), null);
+        response.sendToTarget();
+        mTestLooper.dispatchAll();
+
+        // The content read from the card replaces the stale cached content.
+        assertEquals("5678", mSIMRecordsUT.getGid1());
+        assertArrayEquals(IccUtils.hexStringToBytes("5678"),
+                new IccFileCache(mContext).getTransparent(ICCID, SIMRecords.EF_GID1));
+    }
+
+    @Test
+    public void testCachedEfChangedAfterRecordsLoaded() {
+        UiccPort uiccPort = mock(UiccPort.class);
+        doReturn(ICCID).when(uiccPort).getIccId();
+        doReturn(uiccPort).when(mUiccController).getUiccPort(anyInt());
+        new IccFileCache(mContext).putTransparent(ICCID, SIMRecords.EF_GID1,
+                IccUtils.hexStringToBytes("1234"));
+        Handler recordsHandler = mock(Handler.class);
+        mSIMRecordsUT.registerForRecordsLoaded(recordsHandler, 1, null);
+        mSIMRecordsUT.registerForRecordsOverride(recordsHandler, 2, null);
+
+        mSIMRecordsUT.fetchSimRecords();
+        mTestLooper.dispatchAll();
+        int recordsToLoad = mSIMRecordsUT.mRecordsToLoad;
+        mSIMRecordsUT.onAllRecordsLoaded();
+        mTestLooper.dispatchAll();
+
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mFhMock).loadEFTransparent(eq(SIMRecords.EF_GID1), messageCaptor.capture());
+        Message response = messageCaptor.getValue();
+        AsyncResult.forMessage(response, IccUtils.hexStringToBytes("5678"), null);
+        response.sendToTarget();
+        mTestLooper.dispatchAll();
+
+        // The changed file is handled as an update, without loading the records again.
+        assertEquals("5678", mSIMRecordsUT.getGid1());
+        assertEquals(recordsToLoad, mSIMRecordsUT.mRecordsToLoad);
+        ArgumentCaptor<Message> notifyCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(recordsHandler, times(2)).sendMessageAtTime(notifyCaptor.capture(), anyLong());
+        assertEquals(1, notifyCaptor.getAllValues().get(0).what);
+        assertEquals(2, notifyCaptor.getAllValues().get(1).what);
+    }
+
+    @Test
+    public void testCachedEfInvalidatedOnRefresh() {
+        UiccPort uiccPort = mock(UiccPort.class);
+        doReturn(ICCID).when(uiccPort).getIccId();
+        doReturn(uiccPort).when(mUiccController).getUiccPort(anyInt());
+        IccFileCache fileCache = new IccFileCache(mContext);
+        fileCache.putTransparent(ICCID, SIMRecords.EF_GID1, IccUtils.hexStringToBytes("1234"));
+        fileCache.putTransparent(ICCID, SIMRecords.EF_GID2, IccUtils.hexStringToBytes("5678"));
+
+        mSIMRecordsUT.onRefresh(true, new int[] {SIMRecords.EF_GID1});
+        mTestLooper.dispatchAll();
+
+        assertNull(fileCache.getTransparent(ICCID, SIMRecords.EF_GID1));
+        assertArrayEquals(IccUtils.hexStringToBytes("5678"),
+                fileCache.getTransparent(ICCID, SIMRecords.EF_GID2));
+    }
+
     public interface Condition {
         Object expected();
 
@@ -20,11 +20,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.spy;
 
 import android.os.AsyncResult;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 
+import com.android.internal.telephony.SimulatedCommands;
 import com.android.internal.telephony.TelephonyTest;
 
 import org.junit.After;
@@ -109,6 +114,69 @@ public class SimPhonebookRecordCacheTest extends TelephonyTest {
         assertEquals(adnRecords.get(0).getRecId(), 1);
     }
 
+    @Test
+    public void testGetPhonebookRecordsInBatches() {
+        // The modem does not send the records until the test does.
+        SimulatedCommands ci = spy(mSimulatedCommands);
+        doNothing().when(ci).getSimPhonebookRecords(any(Message.class));
+        List<List<AdnRecord>> batches = new ArrayList<>();
+        SimPhonebookRecordCache[] cache = new SimPhonebookRecordCache[1];
+        Handler handler = new Handler(mSimPhonebookRecordHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                batches.add((List<AdnRecord>) ((AsyncResult) msg.obj).result);
+            }
+        };
+        handler.post(() -> cache[0] = new SimPhonebookRecordCache(mContext, 0, ci));
+        waitForLastHandlerAction(handler);
+        cache[0].requestLoadAllPbRecords(null);
+        cache[0].registerForRecordsReceived(handler, 1, null);
+
+        List<SimPhonebookRecord> records = new ArrayList<SimPhonebookRecord>();
+        records.add(new SimPhonebookRecord(1, "ABC", "12345", null, null));
+        records.add(new SimPhonebookRecord(2, "DEF", "67890", null, null));
+        AsyncResult ar = new AsyncResult(null,
+                new ReceivedPhonebookRecords(ReceivedPhonebookRecords.RS_OK, records), null);
+        cache[0].handleMessage(Message.obtain(cache[0], EVENT_PHONEBOOK_RECORDS_RECEIVED, ar));
+        waitForLastHandlerAction(handler);
+
+        // The reader gets the first batch before the loading is completed.
+        assertTrue(cache[0].isLoadInProgress());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(2, cache[0].getAdnRecords().size());
+
+        // A reader registered during the loading gets the records received so far.
+        List<List<AdnRecord>> lateBatches = new ArrayList<>();
+        Handler lateHandler = new Handler(mSimPhonebookRecordHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                lateBatches.add((List<AdnRecord>) ((AsyncResult) msg.obj).result);
+            }
+        };
+        cache[0].registerForRecordsReceived(lateHandler, 1, null);
+        waitForLastHandlerAction(lateHandler);
+        assertEquals(1, lateBatches.size());
+        assertEquals(2, lateBatches.get(0).size());
+
+        records = new ArrayList<SimPhonebookRecord>();
+        records.add(new SimPhonebookRecord(3, "GHI", "13579", null, null));
+        ar = new AsyncResult(null,
+                new ReceivedPhonebookRecords(ReceivedPhonebookRecords.RS_FINAL, records), null);
+        cache[0].handleMessage(Message.obtain(cache[0], EVENT_PHONEBOOK_RECORDS_RECEIVED, ar));
+        waitForLastHandlerAction(handler);
+
+        assertFalse(cache[0].isLoadInProgress());
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(1).get(0).getRecId());
+        assertEquals(2, lateBatches.size());
+        assertEquals(3, cache[0].getNumRecordsReceived());
+        assertEquals(3, cache[0].getAdnRecords().size());
+        cache[0].unregisterForRecordsReceived(handler);
+        cache[0].unregisterForRecordsReceived(lateHandler);
+        cache[0].dispose();
+    }
+
     @Test
     public void testGetPhonebookRecordsWithoutInitization() {
         assertFalse(mSimPhonebookRecordCacheUt.isLoading());
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.telephony.UiccAccessRule;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class UiccAccessRuleIndexTest {
+    private static final String CERT_HASH_1 =
+            "ABCE1E3B1C4F2D5A6B7C8D9E0F1A2B3C4D5E6F708192A3B4C5D6E7F8091A2B3C";
+    private static final String CERT_HASH_2 = "0102030405060708090A0B0C0D0E0F1011121314";
+    private static final String PACKAGE_NAME = "com.example.carrier";
+
+    @Test
+    public void testMatches() {
+        UiccAccessRuleIndex index = new UiccAccessRuleIndex(Arrays.asList(
+                new UiccAccessRule(IccUtils.hexStringToBytes(CERT_HASH_1), PACKAGE_NAME, 0),
+                new UiccAccessRule(IccUtils.hexStringToBytes(CERT_HASH_2), null, 0)));
+
+        assertFalse(index.isEmpty());
+        assertTrue(index.matches(CERT_HASH_1, PACKAGE_NAME));
+        // The package name of the rule must match.
+        assertFalse(index.matches(CERT_HASH_1, "com.example.other"));
+        // A rule without package name matches any package.
+        assertTrue(index.matches(CERT_HASH_2, "com.example.other"));
+        assertFalse(index.matches(CERT_HASH_1.replace('A', 'B'), PACKAGE_NAME));
+        assertTrue(index.matches(Set.of("00", CERT_HASH_2), PACKAGE_NAME));
+        assertFalse(index.matches(Set.of("00"), PACKAGE_NAME));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(new UiccAccessRuleIndex(null).isEmpty());
+        assertFalse(new UiccAccessRuleIndex(null).matches(CERT_HASH_1, PACKAGE_NAME));
+    }
+
+    @Test
+    public void testManyRules() {
+        List<UiccAccessRule> rules = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rules.add(new UiccAccessRule(IccUtils.hexStringToBytes(String.format("%064X", i)),
+                    PACKAGE_NAME + i, 0));
+        }
+        UiccAccessRuleIndex index = new UiccAccessRuleIndex(rules);
+
+        assertTrue(index.matches(String.format("%064X", 999), PACKAGE_NAME + 999));
+        assertFalse(index.matches(String.format("%064X", 999), PACKAGE_NAME + 998));
+        assertFalse(index.matches(String.format("%064X", 1000), PACKAGE_NAME + 1000));
+    }
+}
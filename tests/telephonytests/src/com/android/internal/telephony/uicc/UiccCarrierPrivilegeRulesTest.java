@@ -16,13 +16,17 @@
 package com.android.internal.telephony.uicc;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import android.content.pm.Signature;
 import android.os.AsyncResult;
@@ -812,4 +816,160 @@ public class UiccCarrierPrivilegeRulesTest extends TelephonyTest {
         assertEquals(0, mUiccCarrierPrivilegeRules.getCarrierPrivilegeStatus(signature,
                 mUiccCarrierPrivilegeRules.getPackageNames().get(0)));
     }
+
+    private static final String ICCID = "89014103211118510720";
+    private static final String REFRESH_TAG = "0102030405060708";
+    private static final String RULES_MYAPP =
+            "FF4045E243E135C114ABCD92CBB156B280FA4E1429A6ECEEB6E5C1BFE4CA1D636F6D2E676F6F676"
+                    + "C652E616E64726F69642E617070732E6D79617070E30ADB080000000000000001";
+    private static final String RULES_OTHERAPP =
+            "FF4048E246E138C114ABCD92CBB156B280FA4E1429A6ECEEB6E5C1BFE4CA20636F6D2E676F6F676"
+                    + "C652E616E64726F69642E617070732E6F74686572617070E30ADB080000000000000001";
+
+    /**
+     * Sets up a card with ARA-M only, whose refresh tag and rules are the given ones.
+     */
+    private UiccAccessRulesCache setUpCachedRulesHelper(String refreshTag, String rules) {
+        doReturn(ICCID).when(mUiccPort).getIccId();
+        UiccAccessRulesCache rulesCache = mock(UiccAccessRulesCache.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String aid = (String) invocation.getArguments()[0];
+                Message message = (Message) invocation.getArguments()[2];
+                AsyncResult ar = aid.equals(ARAD)
+                        ? new AsyncResult(null, null,
+                                new CommandException(CommandException.Error.NO_SUCH_ELEMENT))
+                        : new AsyncResult(null, new int[]{0}, null);
+                message.obj = ar;
+                message.sendToTarget();
+                return null;
+            }
+        }).when(mUiccProfile).iccOpenLogicalChannel(anyString(), anyInt(), any(Message.class));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                int p1 = (int) invocation.getArguments()[3];
+                Message message = (Message) invocation.getArguments()[8];
+                String payload = (p1 == P1_REFRESH_TAG) ? "DF2008" + refreshTag : rules;
+                IccIoResult iir = new IccIoResult(0x90, 0x00, IccUtils.hexStringToBytes(payload));
+                message.obj = new AsyncResult(null, iir, null);
+                message.sendToTarget();
+                return null;
+            }
+        }).when(mUiccProfile).iccTransmitApduLogicalChannel(anyInt(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt(), anyString(), eq(false), any(Message.class));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Message message = (Message) invocation.getArguments()[2];
+                message.sendToTarget();
+                return null;
+            }
+        }).when(mUiccProfile).iccCloseLogicalChannel(anyInt(), eq(false), any(Message.class));
+
+        return rulesCache;
+    }
+
+    private static final int P1 = 0xFF;
+    private static final int P1_REFRESH_TAG = 0xDF;
+
+    @Test
+    @SmallTest
+    public void testRulesCache_CacheRulesFromARAM() {
+        UiccAccessRulesCache rulesCache = setUpCachedRulesHelper(REFRESH_TAG, RULES_MYAPP);
+
+        mUiccCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(mUiccProfile, null, rulesCache);
+        processAllMessages();
+
+        assertTrue(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+        assertEquals("com.google.android.apps.myapp",
+                mUiccCarrierPrivilegeRules.getPackageNames().get(0));
+        verify(rulesCache).put(ICCID, REFRESH_TAG, RULES_MYAPP);
+    }
+
+    @Test
+    @SmallTest
+    public void testRulesCache_CachedRulesUpToDate() {
+        UiccAccessRulesCache rulesCache = setUpCachedRulesHelper(REFRESH_TAG, RULES_MYAPP);
+        doReturn(new UiccAccessRulesCache.Entry(REFRESH_TAG, RULES_MYAPP))
+                .when(rulesCache).get(ICCID);
+
+        mUiccCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(mUiccProfile, null, rulesCache);
+
+        // The cached rules are served before the UICC is accessed.
+        assertTrue(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+        assertEquals("com.google.android.apps.myapp",
+                mUiccCarrierPrivilegeRules.getPackageNames().get(0));
+
+        processAllMessages();
+
+        assertEquals(1, mUiccCarrierPrivilegeRules.getPackageNames().size());
+        assertEquals("com.google.android.apps.myapp",
+                mUiccCarrierPrivilegeRules.getPackageNames().get(0));
+        // Only the refresh tag is read from ARA-M.
+        verify(mUiccProfile, never()).iccOpenLogicalChannel(eq(ARAD), anyInt(),
+                any(Message.class));
+        verify(mUiccProfile, never()).iccTransmitApduLogicalChannel(anyInt(), anyInt(), anyInt(),
+                eq(P1), anyInt(), anyInt(), anyString(), eq(false), any(Message.class));
+        verify(rulesCache, never()).put(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    @SmallTest
+    public void testRulesCache_CachedRulesStale() {
+        final String newRefreshTag = "0807060504030201";
+        UiccAccessRulesCache rulesCache = setUpCachedRulesHelper(newRefreshTag, RULES_OTHERAPP);
+        doReturn(new UiccAccessRulesCache.Entry(REFRESH_TAG, RULES_MYAPP))
+                .when(rulesCache).get(ICCID);
+
+        mUiccCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(mUiccProfile, null, rulesCache);
+        assertEquals("com.google.android.apps.myapp",
+                mUiccCarrierPrivilegeRules.getPackageNames().get(0));
+
+        processAllMessages();
+
+        assertTrue(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+        assertEquals(1, mUiccCarrierPrivilegeRules.getPackageNames().size());
+        assertEquals("com.google.android.apps.otherapp",
+                mUiccCarrierPrivilegeRules.getPackageNames().get(0));
+        assertFalse(mUiccCarrierPrivilegeRules.getPackageNames().contains(
+                "com.google.android.apps.myapp"));
+        verify(rulesCache).put(ICCID, newRefreshTag, RULES_OTHERAPP);
+    }
+
+    @Test
+    @SmallTest
+    public void testRulesCache_RevalidationFailed() {
+        UiccAccessRulesCache rulesCache = setUpCachedRulesHelper(REFRESH_TAG, RULES_MYAPP);
+        doReturn(new UiccAccessRulesCache.Entry(REFRESH_TAG, RULES_MYAPP))
+                .when(rulesCache).get(ICCID);
+        // ARA-M does not answer anymore.
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Message message = (Message) invocation.getArguments()[8];
+                IccIoResult iir = new IccIoResult(0x6A, 0x88, (byte[]) null);
+                message.obj = new AsyncResult(null, iir, null);
+                message.sendToTarget();
+                return null;
+            }
+        }).when(mUiccProfile).iccTransmitApduLogicalChannel(anyInt(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt(), anyString(), eq(false), any(Message.class));
+
+        mUiccCarrierPrivilegeRules = new UiccCarrierPrivilegeRules(mUiccProfile, null, rulesCache);
+        assertTrue(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+
+        processAllMessages();
+
+        // The cached rules are not served anymore, and the rules are read again from the card.
+        assertFalse(mUiccCarrierPrivilegeRules.hasCarrierPrivilegeRules());
+        assertTrue(mUiccCarrierPrivilegeRules.getPackageNames().isEmpty());
+        verify(rulesCache).remove(ICCID);
+        verify(mUiccProfile).iccOpenLogicalChannel(eq(ARAD), anyInt(), any(Message.class));
+        verify(rulesCache, never()).put(anyString(), anyString(), anyString());
+    }
 }
@@ -309,6 +309,56 @@ public class UiccProfileTest extends TelephonyTest {
         assertEquals(State.LOADED, mUiccProfile.getState());
     }
 
+    @Test
+    @SmallTest
+    public void testIsimRecordsLoadDeferred() {
+        /* update app status and index, the USIM app is not ready */
+        IccCardApplicationStatus umtsApp = composeUiccApplicationStatus(
+                IccCardApplicationStatus.AppType.APPTYPE_USIM,
+                IccCardApplicationStatus.AppState.APPSTATE_UNKNOWN, "0xA2");
+        IccCardApplicationStatus imsApp = composeUiccApplicationStatus(
+                IccCardApplicationStatus.AppType.APPTYPE_ISIM,
+                IccCardApplicationStatus.AppState.APPSTATE_READY, "0xA1");
+        mIccCardStatus.mApplications = new IccCardApplicationStatus[]{umtsApp, imsApp};
+        mIccCardStatus.mCdmaSubscriptionAppIndex = -1;
+        mIccCardStatus.mImsSubscriptionAppIndex = 1;
+        mIccCardStatus.mGsmUmtsSubscriptionAppIndex = 0;
+        mUiccProfile.update(mContext, mSimulatedCommands, mIccCardStatus);
+        processAllMessages();
+
+        UiccCardApplication isimApp = mUiccProfile.getApplicationIndex(1);
+        assertTrue(isimApp.isRecordsLoadDeferred());
+
+        // The ISIM records are loaded when they are used.
+        isimApp.getIccRecords().onRecordsRequested();
+        processAllMessages();
+        assertFalse(isimApp.isRecordsLoadDeferred());
+    }
+
+    @Test
+    @SmallTest
+    public void testIsimRecordsLoadDeferredUntilTimeout() {
+        IccCardApplicationStatus umtsApp = composeUiccApplicationStatus(
+                IccCardApplicationStatus.AppType.APPTYPE_USIM,
+                IccCardApplicationStatus.AppState.APPSTATE_UNKNOWN, "0xA2");
+        IccCardApplicationStatus imsApp = composeUiccApplicationStatus(
+                IccCardApplicationStatus.AppType.APPTYPE_ISIM,
+                IccCardApplicationStatus.AppState.APPSTATE_READY, "0xA1");
+        mIccCardStatus.mApplications = new IccCardApplicationStatus[]{umtsApp, imsApp};
+        mIccCardStatus.mCdmaSubscriptionAppIndex = -1;
+        mIccCardStatus.mImsSubscriptionAppIndex = 1;
+        mIccCardStatus.mGsmUmtsSubscriptionAppIndex = 0;
+        mUiccProfile.update(mContext, mSimulatedCommands, mIccCardStatus);
+        processAllMessages();
+
+        UiccCardApplication isimApp = mUiccProfile.getApplicationIndex(1);
+        assertTrue(isimApp.isRecordsLoadDeferred());
+
+        moveTimeForward(10000);
+        processAllMessages();
+        assertFalse(isimApp.isRecordsLoadDeferred());
+    }
+
     @Test
     @SmallTest
     public void testUpdateUiccProfileApplicationAllSupportedAppsReady() {
@@ -25,6 +25,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -204,6 +205,57 @@ public class EuiccPortTest extends TelephonyTest {
         verifyStoreData(channel, "BF2D0D5C0B5A909192B79F709599BF76");
     }
 
+    @Test
+    public void testGetAllProfiles_CoalescedAndCached() {
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor1 = new ResultCaptor<>();
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor2 = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor1, mHandler);
+        mEuiccPort.getAllProfiles(resultCaptor2, mHandler);
+        processAllMessages();
+
+        assertUnexpectedException(resultCaptor1.exception);
+        assertUnexpectedException(resultCaptor2.exception);
+        assertEquals("98760000000000543210", resultCaptor1.result[0].getIccid());
+        assertEquals("98760000000000543210", resultCaptor2.result[0].getIccid());
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor3 = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor3, mHandler);
+        ResultCaptor<EuiccProfileInfo> profileCaptor = new ResultCaptor<>();
+        mEuiccPort.getProfile("98760000000000543210", profileCaptor, mHandler);
+        processAllMessages();
+
+        assertEquals("98760000000000543210", resultCaptor3.result[0].getIccid());
+        assertEquals("98760000000000543210", profileCaptor.result.getIccid());
+        // All the callers are served by a single exchange.
+        verifyStoreData(channel, "BF2D0D5C0B5A909192B79F709599BF76");
+    }
+
+    @Test
+    public void testGetAllProfiles_Invalidated() {
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000",
+                "BF2D14A012E3105A0A896700000000004523019F7001009000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_ENABLED, resultCaptor.result[0].getState());
+
+        mEuiccPort.invalidateProfiles();
+        resultCaptor = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+
+        assertUnexpectedException(resultCaptor.exception);
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_DISABLED, resultCaptor.result[0].getState());
+        verify(mMockCi, times(2)).iccTransmitApduLogicalChannel(eq(channel), eq(0x80 | channel),
+                eq(0xE2), eq(0x91), eq(0), anyInt(), eq("BF2D0D5C0B5A909192B79F709599BF76"),
+                anyBoolean(), any());
+    }
+
     @Test
     public void testEnabledOnEsimPort_GetAllProfiles() {
         int channel = mockLogicalChannelResponses(
@@ -418,6 +470,69 @@ public class EuiccPortTest extends TelephonyTest {
         verifyStoreData(channel, "BF291A5A0A89670000000000452301900C6E6577206E69636B6E616D65");
     }
 
+    @Test
+    public void testGetAllProfiles_InvalidatedWhenOperationDone() {
+        int channel = mockLogicalChannelResponses("BF33038001009000",
+                "BF2D14A012E3105A0A896700000000004523019F7001019000",
+                "BF2D14A012E3105A0A896700000000004523019F7001019000");
+
+        // The profiles are queried while a profile is being deleted.
+        ResultCaptor<Void> deleteCaptor = new ResultCaptor<>();
+        mEuiccPort.deleteProfile("98760000000000543210", deleteCaptor, mHandler);
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+        assertUnexpectedException(deleteCaptor.exception);
+        assertUnexpectedException(resultCaptor.exception);
+
+        // The list read during the deletion is not served from the cache.
+        resultCaptor = new ResultCaptor<>();
+        mEuiccPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+
+        assertUnexpectedException(resultCaptor.exception);
+        verify(mMockCi, times(2)).iccTransmitApduLogicalChannel(eq(channel), eq(0x80 | channel),
+                eq(0xE2), eq(0x91), eq(0), anyInt(), eq("BF2D0D5C0B5A909192B79F709599BF76"),
+                anyBoolean(), any());
+    }
+
+    @Test
+    public void testGetAllProfiles_InvalidatedOnOtherPort() {
+        EuiccPort otherPort = new EuiccPort(mContext, mMockCi, mMockIccCardStatus,
+                1 /* phoneId */, new Object(), mEuiccCard,
+                IccSlotStatus.MultipleEnabledProfilesMode.NONE);
+        doAnswer(invocation -> {
+            mEuiccPort.invalidateProfiles();
+            otherPort.invalidateProfiles();
+            return null;
+        }).when(mEuiccCard).invalidateProfiles();
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000",
+                "BF33038001009000",
+                "BF2D14A012E3105A0A896700000000004523019F7001019000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        otherPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+        assertUnexpectedException(resultCaptor.exception);
+
+        // A profile is deleted through this port.
+        ResultCaptor<Void> deleteCaptor = new ResultCaptor<>();
+        mEuiccPort.deleteProfile("98760000000000543210", deleteCaptor, mHandler);
+        processAllMessages();
+        assertUnexpectedException(deleteCaptor.exception);
+
+        // The other port reads the profiles from the eUICC again.
+        resultCaptor = new ResultCaptor<>();
+        otherPort.getAllProfiles(resultCaptor, mHandler);
+        processAllMessages();
+
+        assertUnexpectedException(resultCaptor.exception);
+        verify(mMockCi, times(2)).iccTransmitApduLogicalChannel(eq(channel), eq(0x80 | channel),
+                eq(0xE2), eq(0x91), eq(0), anyInt(), eq("BF2D0D5C0B5A909192B79F709599BF76"),
+                anyBoolean(), any());
+    }
+
     @Test
     public void testDeleteProfile() {
         int channel = mockLogicalChannelResponses("BF33038001009000");
@@ -278,6 +278,48 @@ public class ApduSenderTest {
                 eq(1), eq(0xFF), eq(s2), anyBoolean(), any());
     }
 
+    @Test
+    public void testSendStoreDataBytes() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "9000", "9000",
+                "B2222B9000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        // Each segment has 0xFF (the limit of a single command) bytes, except the last one.
+        String s1 = new String(new char[0xFF]).replace("\0", "AA");
+        String s2 = new String(new char[0xFF]).replace("\0", "BB");
+        String s3 = new String(new char[16]).replace("\0", "0C");
+        byte[] longData = IccUtils.hexStringToBytes(s1 + s2 + s3);
+        mSender.send((selectResponse, requestBuilder) -> {
+            requestBuilder.addStoreData(longData);
+        }, mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals("B2222B", IccUtils.bytesToHexString(mResponseCaptor.response));
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x11),
+                eq(0), eq(0xFF), eq(s1), anyBoolean(), any());
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x11),
+                eq(1), eq(0xFF), eq(s2), anyBoolean(), any());
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x91),
+                eq(2), eq(16), eq(s3), anyBoolean(), any());
+    }
+
+    @Test
+    public void testSendStoreDataBytesLen0() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "B2222B9000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        mSender.send((selectResponse, requestBuilder) -> {
+            requestBuilder.addStoreData(new byte[0]);
+        }, mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals("B2222B", IccUtils.bytesToHexString(mResponseCaptor.response));
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x91),
+                eq(0), eq(0), eq(""), anyBoolean(), any());
+    }
+
     @Test
     public void testSendStoreDataLen0() throws InterruptedException {
         int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
@@ -337,8 +379,70 @@ public class ApduSenderTest {
                 outerResponseCaptor, mHandler);
         mLooper.processAllMessages();
 
-        assertNull("Should not open channel when another one is already opened.", mSelectResponse);
-        assertTrue(mResponseCaptor.exception instanceof ApduException);
+        // The second request waits for the first one to close the channel instead of failing.
+        assertNull(outerResponseCaptor.exception);
+        assertNull(mResponseCaptor.exception);
+        assertEquals("9000", IccUtils.bytesToHexString(mSelectResponse));
+        verify(mMockCi, times(2)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
+        verify(mMockCi, times(2)).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testQueuedRequestsServedInOrder() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "A29000",
+                "A39000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        ResponseCaptor[] captors = new ResponseCaptor[3];
+        for (int i = 0; i < captors.length; i++) {
+            captors[i] = new ResponseCaptor();
+            final int p1 = i;
+            mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                    10, 1, p1, 0, "a"), captors[i], mHandler);
+        }
+        mLooper.processAllMessages();
+
+        assertEquals("A1", IccUtils.bytesToHexString(captors[0].response));
+        assertEquals("A2", IccUtils.bytesToHexString(captors[1].response));
+        assertEquals("A3", IccUtils.bytesToHexString(captors[2].response));
+        verify(mMockCi, times(3)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
+        verify(mMockCi, times(3)).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testQueuedRequestTimesOut() {
+        // The modem never answers the opening of the channel.
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), mResponseCaptor, mHandler);
+        ResponseCaptor queuedCaptor = new ResponseCaptor();
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "b"), queuedCaptor, mHandler);
+        mLooper.processAllMessages();
+        assertNull(queuedCaptor.exception);
+
+        mLooper.moveTimeForward(ApduSender.QUEUE_TIMEOUT_MS);
+        mLooper.processAllMessages();
+
+        assertTrue(queuedCaptor.exception instanceof ApduException);
         verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
     }
+
+    @Test
+    public void testQueueFullRejectsRequest() {
+        // The modem never answers the opening of the channel.
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), mResponseCaptor, mHandler);
+        for (int i = 0; i < ApduSender.MAX_PENDING_REQUESTS; i++) {
+            mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                    10, 1, 2, 3, 0, "b"), new ResponseCaptor(), mHandler);
+        }
+        ResponseCaptor rejectedCaptor = new ResponseCaptor();
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "c"), rejectedCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        // The request is rejected right away.
+        assertTrue(rejectedCaptor.exception instanceof ApduException);
+    }
 }